@@ -8,6 +8,7 @@ import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.executor.ExecutorFilter;
 import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
+import org.jivesoftware.openfire.nio.SessionOrderedExecutor;
 
 import java.util.Map;
 import java.util.Queue;
@@ -328,6 +329,9 @@ public class MINAStatCollector {
                         if (executor instanceof OrderedThreadPoolExecutor) {
                             tmpQueuevedEvents += ((OrderedThreadPoolExecutor) executor).getActiveCount();
                         }
+                        else if (executor instanceof SessionOrderedExecutor) {
+                            tmpQueuevedEvents += ((SessionOrderedExecutor) executor).getActiveCount();
+                        }
                     }
 
                     sessStat.lastByteRead = readBytes;
@@ -0,0 +1,261 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.dom4j.Attribute;
+import org.dom4j.CharacterData;
+import org.dom4j.DocumentFactory;
+import org.dom4j.Element;
+import org.dom4j.Entity;
+import org.dom4j.Namespace;
+import org.dom4j.Node;
+import org.dom4j.QName;
+
+/**
+ * Compact encoding of stanzas stored in the <tt>ofOffline</tt> table and in the history of
+ * group chat rooms. Decoding a stanza only requires walking the encoded string once and
+ * creating its elements, which is much cheaper than parsing its XML text.<p>
+ *
+ * Encoded stanzas start with {@link #PREFIX}, which can't be the beginning of an XML
+ * stanza, followed by a sequence of tokens:
+ * <ul>
+ *      <li><tt>E</tt> name namespace: start of an element.</li>
+ *      <li><tt>A</tt> name namespace value: attribute of the current element.</li>
+ *      <li><tt>N</tt> prefix namespace: namespace declared by the current element.</li>
+ *      <li><tt>T</tt> value: text of the current element.</li>
+ *      <li><tt>)</tt>: end of the current element.</li>
+ * </ul>
+ * Values are written as their length, a colon and their characters, so they never need
+ * to be escaped. Names, prefixes and namespaces are written the same way the first time
+ * they appear and then as a reference (<tt>*</tt>index<tt>;</tt>) to the table of names
+ * that were already used. The table starts with the {@link #NAMES} that are common in
+ * messages. The table must never be modified since stored messages refer to it.
+ */
+public final class OfflineMessageCodec {
+
+    /**
+     * Prefix of the stanzas encoded with version 1 of this encoding.
+     */
+    static final String PREFIX = "#1;";
+
+    private static final String[] NAMES = {
+            "", "message", "jabber:client", "body", "to", "from", "type", "id", "xml:lang",
+            "http://www.w3.org/XML/1998/namespace", "subject", "thread", "x", "html",
+            "http://jabber.org/protocol/xhtml-im", "http://www.w3.org/1999/xhtml", "p", "span", "style",
+            "http://jabber.org/protocol/chatstates", "active", "composing", "paused", "inactive", "gone",
+            "request", "received", "urn:xmpp:receipts", "jabber:x:event", "offline", "delivered",
+            "displayed", "xmlns", "xmpp", "jabber:x:oob", "url", "desc", "error", "code"
+    };
+
+    private static final Map<String, Integer> NAME_INDEXES = new HashMap<String, Integer>();
+
+    static {
+        for (int i = 0; i < NAMES.length; i++) {
+            NAME_INDEXES.put(NAMES[i], i);
+        }
+    }
+
+    private OfflineMessageCodec() {
+    }
+
+    /**
+     * Returns true if the stored stanza was encoded with this encoding. Otherwise it is
+     * the XML text of the stanza.
+     *
+     * @param stanza the stored stanza.
+     * @return true if the stored stanza was encoded with this encoding.
+     */
+    public static boolean isEncoded(String stanza) {
+        return stanza.startsWith(PREFIX);
+    }
+
+    /**
+     * Encodes an element and its content.
+     *
+     * @param element the element to encode.
+     * @return the encoded element.
+     */
+    public static String encode(Element element) {
+        StringBuilder out = new StringBuilder(256).append(PREFIX);
+        encode(element, out, new HashMap<String, Integer>(NAME_INDEXES));
+        return out.toString();
+    }
+
+    private static void encode(Element element, StringBuilder out, Map<String, Integer> names) {
+        out.append('E');
+        writeName(element.getQualifiedName(), out, names);
+        writeName(element.getNamespaceURI(), out, names);
+        for (int i = 0, size = element.attributeCount(); i < size; i++) {
+            Attribute attribute = element.attribute(i);
+            out.append('A');
+            writeName(attribute.getQualifiedName(), out, names);
+            writeName(attribute.getNamespaceURI(), out, names);
+            writeValue(attribute.getValue(), out);
+        }
+        for (Iterator<?> it = element.nodeIterator(); it.hasNext();) {
+            Node node = (Node) it.next();
+            if (node instanceof Element) {
+                encode((Element) node, out, names);
+            }
+            else if (node instanceof Namespace) {
+                Namespace namespace = (Namespace) node;
+                out.append('N');
+                writeName(namespace.getPrefix(), out, names);
+                writeName(namespace.getURI(), out, names);
+            }
+            else if (node instanceof CharacterData || node instanceof Entity) {
+                // Text and CDATA sections. Comments are not kept.
+                if (node.getNodeType() != Node.COMMENT_NODE) {
+                    out.append('T');
+                    writeValue(node.getText(), out);
+                }
+            }
+        }
+        out.append(')');
+    }
+
+    private static void writeName(String name, StringBuilder out, Map<String, Integer> names) {
+        Integer index = names.get(name);
+        if (index != null) {
+            out.append('*').append(index.intValue()).append(';');
+        }
+        else {
+            names.put(name, names.size());
+            writeValue(name, out);
+        }
+    }
+
+    private static void writeValue(String value, StringBuilder out) {
+        out.append(value.length()).append(':').append(value);
+    }
+
+    /**
+     * Decodes an element that was encoded with {@link #encode(Element)}.
+     *
+     * @param stanza the encoded element.
+     * @return the decoded element.
+     * @throws IllegalArgumentException if the stanza is not a valid encoded element.
+     */
+    public static Element decode(String stanza) {
+        if (!isEncoded(stanza)) {
+            throw new IllegalArgumentException("Stanza is not encoded");
+        }
+        Decoder decoder = new Decoder(stanza);
+        try {
+            if (decoder.next() != 'E') {
+                throw new IllegalArgumentException("Stanza does not start with an element");
+            }
+            Element element = decoder.readElement();
+            if (decoder.position != stanza.length()) {
+                throw new IllegalArgumentException("Unexpected data after the end of the stanza");
+            }
+            return element;
+        }
+        catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated stanza", e);
+        }
+    }
+
+    private static class Decoder {
+
+        private final DocumentFactory factory = DocumentFactory.getInstance();
+        private final List<String> names = new ArrayList<String>(NAMES.length + 8);
+        private final String data;
+        private int position;
+
+        Decoder(String data) {
+            this.data = data;
+            this.position = PREFIX.length();
+            for (String name : NAMES) {
+                names.add(name);
+            }
+        }
+
+        char next() {
+            return data.charAt(position++);
+        }
+
+        Element readElement() {
+            String name = readName();
+            Element element = factory.createElement(getQName(name, readName()));
+            while (true) {
+                char token = next();
+                switch (token) {
+                    case 'A':
+                        String attributeName = readName();
+                        String attributeNamespace = readName();
+                        element.addAttribute(getQName(attributeName, attributeNamespace), readValue());
+                        break;
+                    case 'N':
+                        String prefix = readName();
+                        element.add(Namespace.get(prefix, readName()));
+                        break;
+                    case 'T':
+                        element.addText(readValue());
+                        break;
+                    case 'E':
+                        element.add(readElement());
+                        break;
+                    case ')':
+                        return element;
+                    default:
+                        throw new IllegalArgumentException("Unknown token " + token + " at " + (position - 1));
+                }
+            }
+        }
+
+        QName getQName(String name, String namespace) {
+            // Use the same QName of parsed nodes without namespace
+            return namespace.length() == 0 ? factory.createQName(name) : factory.createQName(name, namespace);
+        }
+
+        String readName() {
+            if (data.charAt(position) == '*') {
+                position++;
+                return names.get(readNumber(';'));
+            }
+            String name = readValue();
+            names.add(name);
+            return name;
+        }
+
+        String readValue() {
+            int length = readNumber(':');
+            String value = data.substring(position, position + length);
+            position += length;
+            return value;
+        }
+
+        int readNumber(char end) {
+            int number = 0;
+            char c;
+            while ((c = next()) != end) {
+                if (c < '0' || c > '9' || number > (Integer.MAX_VALUE - 9) / 10) {
+                    throw new IllegalArgumentException("Invalid number at " + (position - 1));
+                }
+                number = number * 10 + (c - '0');
+            }
+            return number;
+        }
+    }
+}
@@ -29,9 +29,11 @@ import org.jivesoftware.database.SequenceManager;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.event.UserEventDispatcher;
 import org.jivesoftware.openfire.event.UserEventListener;
+import org.jivesoftware.openfire.session.ClientSession;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
 import org.jivesoftware.util.XMPPDateTimeFormat;
@@ -46,6 +48,7 @@ import java.io.StringReader;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -69,7 +72,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         "INSERT INTO ofOffline (username, messageID, creationDate, messageSize, stanza) " +
         "VALUES (?, ?, ?, ?, ?)";
     private static final String LOAD_OFFLINE =
-        "SELECT stanza, creationDate FROM ofOffline WHERE username=?";
+        "SELECT stanza, creationDate, messageID FROM ofOffline WHERE username=?";
     private static final String LOAD_OFFLINE_MESSAGE =
         "SELECT stanza FROM ofOffline WHERE username=? AND creationDate=?";
     private static final String SELECT_SIZE_OFFLINE =
@@ -80,6 +83,8 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         "DELETE FROM ofOffline WHERE username=?";
     private static final String DELETE_OFFLINE_MESSAGE =
         "DELETE FROM ofOffline WHERE username=? AND creationDate=?";
+    private static final String DELETE_OFFLINE_MESSAGE_ID =
+        "DELETE FROM ofOffline WHERE username=? AND messageID=?";
 
     private static final int POOL_SIZE = 10;
     
@@ -102,6 +107,8 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
 
     /**
      * Pool of SAX Readers. SAXReader is not thread safe so we need to have a pool of readers.
+     * Readers are only needed for messages stored as XML. A new reader is created when all
+     * the readers of the pool are being used.
      */
     private BlockingQueue<SAXReader> xmlReaders = new LinkedBlockingQueue<SAXReader>(POOL_SIZE);
 
@@ -140,8 +147,9 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
 
         long messageID = SequenceManager.nextID(JiveConstants.OFFLINE);
 
-        // Get the message in XML format.
-        String msgXML = message.getElement().asXML();
+        // Get the message in XML format or in the compact encoding if enabled.
+        String msgXML = JiveGlobals.getBooleanProperty("xmpp.offline.compact", false) ?
+                OfflineMessageCodec.encode(message.getElement()) : message.getElement().asXML();
 
         Connection con = null;
         PreparedStatement pstmt = null;
@@ -181,45 +189,16 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
      * @return An iterator of packets containing all offline messages.
      */
     public Collection<OfflineMessage> getMessages(String username, boolean delete) {
-        List<OfflineMessage> messages = new ArrayList<OfflineMessage>();
-        SAXReader xmlReader = null;
+        final List<OfflineMessage> messages = new ArrayList<OfflineMessage>();
         Connection con = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
         try {
-            // Get a sax reader from the pool
-            xmlReader = xmlReaders.take();
             con = DbConnectionManager.getConnection();
-            pstmt = con.prepareStatement(LOAD_OFFLINE);
-            pstmt.setString(1, username);
-            rs = pstmt.executeQuery();
-            while (rs.next()) {
-                String msgXML = rs.getString(1);
-                Date creationDate = new Date(Long.parseLong(rs.getString(2).trim()));
-                OfflineMessage message;
-                try {
-                    message = new OfflineMessage(creationDate,
-                            xmlReader.read(new StringReader(msgXML)).getRootElement());
-                } catch (DocumentException e) {
-                    // Try again after removing invalid XML chars (e.g. &#12;)
-                    Matcher matcher = pattern.matcher(msgXML);
-                    if (matcher.find()) {
-                        msgXML = matcher.replaceAll("");
-                    }
-                    message = new OfflineMessage(creationDate,
-                            xmlReader.read(new StringReader(msgXML)).getRootElement());
+            readMessages(con, username, new MessageHandler() {
+                public boolean handle(long messageID, OfflineMessage message) {
+                    messages.add(message);
+                    return true;
                 }
-
-                // Add a delayed delivery (XEP-0203) element to the message.
-                Element delay = message.addChildElement("delay", "urn:xmpp:delay");
-                delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-                delay.addAttribute("stamp", XMPPDateTimeFormat.format(creationDate));
-                // Add a legacy delayed delivery (XEP-0091) element to the message. XEP is obsolete and support should be dropped in future.
-                delay = message.addChildElement("x", "jabber:x:delay");
-                delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-                delay.addAttribute("stamp", XMPPDateTimeFormat.formatOld(creationDate));
-                messages.add(message);
-            }
+            });
             // Check if the offline messages loaded should be deleted, and that there are
             // messages to delete.
             if (delete && !messages.isEmpty()) {
@@ -242,13 +221,166 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
             Log.error("Error retrieving offline messages of username: " + username, e);
         }
         finally {
-            DbConnectionManager.closeConnection(rs, pstmt, con);
-            // Return the sax reader to the pool
+            DbConnectionManager.closeConnection(con);
+        }
+        return messages;
+    }
+
+    /**
+     * Delivers all messages in the store for a user to a session and deletes them from
+     * the store. Each message is sent to the session as soon as it is read from the
+     * database, instead of waiting for all the messages to be loaded like
+     * {@link #getMessages(String, boolean)} does. Delivery stops if the session is closed.
+     * Only the messages that were delivered are deleted.
+     *
+     * @param username the username of the user who's messages are going to be delivered.
+     * @param session the session of the user that will receive the messages.
+     * @return the number of messages that were delivered.
+     */
+    public int deliverMessages(String username, final ClientSession session) {
+        final List<Long> delivered = new ArrayList<Long>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            readMessages(con, username, new MessageHandler() {
+                public boolean handle(long messageID, OfflineMessage message) {
+                    if (session.isClosed()) {
+                        return false;
+                    }
+                    session.process(message);
+                    delivered.add(messageID);
+                    return true;
+                }
+            });
+            if (!delivered.isEmpty()) {
+                boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+                pstmt = con.prepareStatement(DELETE_OFFLINE_MESSAGE_ID);
+                for (long messageID : delivered) {
+                    pstmt.setString(1, username);
+                    pstmt.setLong(2, messageID);
+                    if (batch) {
+                        pstmt.addBatch();
+                    }
+                    else {
+                        pstmt.executeUpdate();
+                    }
+                }
+                if (batch) {
+                    pstmt.executeBatch();
+                }
+            }
+        }
+        catch (Exception e) {
+            Log.error("Error delivering offline messages of username: " + username, e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(pstmt, con);
+            if (!delivered.isEmpty()) {
+                removeUsernameFromSizeCache(username);
+            }
+        }
+        return delivered.size();
+    }
+
+    /**
+     * Reads the messages in the store for a user and passes them to a handler as they are
+     * decoded. Messages that can't be decoded are skipped.
+     *
+     * @param con the connection to use for reading the messages.
+     * @param username the username of the user who's messages are going to be read.
+     * @param handler the handler of the messages.
+     * @throws SQLException if an error occurs while reading the messages.
+     */
+    private void readMessages(Connection con, String username, MessageHandler handler) throws SQLException {
+        SAXReader xmlReader = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = con.prepareStatement(LOAD_OFFLINE);
+            pstmt.setString(1, username);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                String msgXML = rs.getString(1);
+                Date creationDate = new Date(Long.parseLong(rs.getString(2).trim()));
+                long messageID = rs.getLong(3);
+                OfflineMessage message;
+                try {
+                    if (OfflineMessageCodec.isEncoded(msgXML)) {
+                        message = new OfflineMessage(creationDate, OfflineMessageCodec.decode(msgXML));
+                    }
+                    else {
+                        if (xmlReader == null) {
+                            xmlReader = getXMLReader();
+                        }
+                        message = new OfflineMessage(creationDate, parseXML(xmlReader, msgXML));
+                    }
+                }
+                catch (Exception e) {
+                    Log.error("Error decoding offline message " + messageID + " of username: " + username, e);
+                    continue;
+                }
+                addDelayedDelivery(message, creationDate);
+                if (!handler.handle(messageID, message)) {
+                    break;
+                }
+            }
+        }
+        finally {
+            DbConnectionManager.closeStatement(rs, pstmt);
             if (xmlReader != null) {
-                xmlReaders.add(xmlReader);
+                releaseXMLReader(xmlReader);
             }
         }
-        return messages;
+    }
+
+    /**
+     * Parses the XML text of a stored message.
+     */
+    private Element parseXML(SAXReader xmlReader, String msgXML) throws DocumentException {
+        try {
+            return xmlReader.read(new StringReader(msgXML)).getRootElement();
+        } catch (DocumentException e) {
+            // Try again after removing invalid XML chars (e.g. &#12;)
+            Matcher matcher = pattern.matcher(msgXML);
+            if (matcher.find()) {
+                msgXML = matcher.replaceAll("");
+            }
+            return xmlReader.read(new StringReader(msgXML)).getRootElement();
+        }
+    }
+
+    /**
+     * Adds delayed delivery elements with the date when the message was stored.
+     */
+    private void addDelayedDelivery(OfflineMessage message, Date creationDate) {
+        // Add a delayed delivery (XEP-0203) element to the message.
+        Element delay = message.addChildElement("delay", "urn:xmpp:delay");
+        delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
+        delay.addAttribute("stamp", XMPPDateTimeFormat.format(creationDate));
+        // Add a legacy delayed delivery (XEP-0091) element to the message. XEP is obsolete and support should be dropped in future.
+        delay = message.addChildElement("x", "jabber:x:delay");
+        delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
+        delay.addAttribute("stamp", XMPPDateTimeFormat.formatOld(creationDate));
+    }
+
+    /**
+     * Returns a SAX reader from the pool or a new one if the pool is empty.
+     */
+    private SAXReader getXMLReader() {
+        SAXReader xmlReader = xmlReaders.poll();
+        if (xmlReader == null) {
+            xmlReader = new SAXReader();
+            xmlReader.setEncoding("UTF-8");
+        }
+        return xmlReader;
+    }
+
+    /**
+     * Returns a SAX reader to the pool. The reader is discarded if the pool is full.
+     */
+    private void releaseXMLReader(SAXReader xmlReader) {
+        xmlReaders.offer(xmlReader);
     }
 
     /**
@@ -266,8 +398,6 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         ResultSet rs = null;
         SAXReader xmlReader = null;
         try {
-            // Get a sax reader from the pool
-            xmlReader = xmlReaders.take();
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(LOAD_OFFLINE_MESSAGE);
             pstmt.setString(1, username);
@@ -275,16 +405,18 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
             rs = pstmt.executeQuery();
             while (rs.next()) {
                 String msgXML = rs.getString(1);
-                message = new OfflineMessage(creationDate,
-                        xmlReader.read(new StringReader(msgXML)).getRootElement());
-                // Add a delayed delivery (XEP-0203) element to the message.
-                Element delay = message.addChildElement("delay", "urn:xmpp:delay");
-                delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-                delay.addAttribute("stamp", XMPPDateTimeFormat.format(creationDate));
-                // Add a legacy delayed delivery (XEP-0091) element to the message. XEP is obsolete and support should be dropped in future.
-                delay = message.addChildElement("x", "jabber:x:delay");
-                delay.addAttribute("from", XMPPServer.getInstance().getServerInfo().getXMPPDomain());
-                delay.addAttribute("stamp", XMPPDateTimeFormat.formatOld(creationDate));
+                if (OfflineMessageCodec.isEncoded(msgXML)) {
+                    message = new OfflineMessage(creationDate, OfflineMessageCodec.decode(msgXML));
+                }
+                else {
+                    if (xmlReader == null) {
+                        // Get a sax reader from the pool
+                        xmlReader = getXMLReader();
+                    }
+                    message = new OfflineMessage(creationDate,
+                            xmlReader.read(new StringReader(msgXML)).getRootElement());
+                }
+                addDelayedDelivery(message, creationDate);
             }
         }
         catch (Exception e) {
@@ -294,7 +426,7 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         finally {
             // Return the sax reader to the pool
             if (xmlReader != null) {
-                xmlReaders.add(xmlReader);
+                releaseXMLReader(xmlReader);
             }
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
@@ -463,6 +595,21 @@ public class OfflineMessageStore extends BasicModule implements UserEventListene
         UserEventDispatcher.removeListener(this);
     }
 
+    /**
+     * Receives the messages read from the store.
+     */
+    private interface MessageHandler {
+
+        /**
+         * Handles a message read from the store.
+         *
+         * @param messageID the ID of the message in the store.
+         * @param message the message.
+         * @return false if no more messages should be read.
+         */
+        boolean handle(long messageID, OfflineMessage message);
+    }
+
     /**
      * Decide whether a message should be stored offline according to XEP-0160 and XEP-0334.
      *
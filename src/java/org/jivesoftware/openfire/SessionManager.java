@@ -22,7 +22,6 @@ package org.jivesoftware.openfire;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
@@ -33,7 +32,6 @@ import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 
-import org.dom4j.Element;
 import org.jivesoftware.openfire.audit.AuditStreamIDFactory;
 import org.jivesoftware.openfire.auth.AuthToken;
 import org.jivesoftware.openfire.auth.UnauthorizedException;
@@ -42,9 +40,6 @@ import org.jivesoftware.openfire.cluster.ClusterManager;
 import org.jivesoftware.openfire.component.InternalComponentManager;
 import org.jivesoftware.openfire.container.BasicModule;
 import org.jivesoftware.openfire.disco.DiscoInfoProvider;
-import org.jivesoftware.openfire.disco.DiscoItem;
-import org.jivesoftware.openfire.disco.DiscoItemsProvider;
-import org.jivesoftware.openfire.disco.DiscoServerItem;
 import org.jivesoftware.openfire.disco.ServerItemsProvider;
 import org.jivesoftware.openfire.event.SessionEventDispatcher;
 import org.jivesoftware.openfire.http.HttpConnection;
@@ -67,7 +62,6 @@ import org.jivesoftware.openfire.session.RemoteSessionLocator;
 import org.jivesoftware.openfire.session.Session;
 import org.jivesoftware.openfire.spi.BasicStreamIDFactory;
 import org.jivesoftware.openfire.user.UserManager;
-import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.Log;
@@ -75,7 +69,6 @@ import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xmpp.forms.DataForm;
 import org.xmpp.packet.JID;
 import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
@@ -88,7 +81,7 @@ import org.xmpp.packet.Presence;
  *
  * @author Derek DeMoro
  */
-public class SessionManager extends BasicModule implements ClusterEventListener/*, ServerItemsProvider, DiscoInfoProvider, DiscoItemsProvider */{
+public class SessionManager extends BasicModule implements ClusterEventListener {
 
 	private static final Logger Log = LoggerFactory.getLogger(SessionManager.class);
 
@@ -712,10 +705,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         // User sessions had negative presence before this change so deliver messages
         if (session.canFloodOfflineMessages()) {
             OfflineMessageStore messageStore = server.getOfflineMessageStore();
-            Collection<OfflineMessage> messages = messageStore.getMessages(session.getAuthToken().getUsername(), true);
-            for (Message message : messages) {
-                session.process(message);
-            }
+            messageStore.deliverMessages(session.getAuthToken().getUsername(), session);
         }
     }
 
@@ -1176,51 +1166,7 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         conflictLimit = limit;
         JiveGlobals.setProperty("xmpp.session.conflict-limit", Integer.toString(conflictLimit));
     }
-    /*
-    @Override
-    public Iterator<DiscoServerItem> getItems() {
-        return Arrays.asList(new DiscoServerItem(serverAddress, null, null, null, this, this)).iterator();
-    }
-
-    @Override
-    public Iterator<Element> getIdentities(String name, String node, JID senderJID) {
-        return Collections.emptyIterator();
-    }
 
-    @Override
-    public Iterator<String> getFeatures(String name, String node, JID senderJID) {
-        return Collections.emptyIterator();
-    }
-
-    @Override
-    public DataForm getExtendedInfo(String name, String node, JID senderJID) {
-        return null;
-    }
-
-    @Override
-    public boolean hasInfo(String name, String node, JID senderJID) {
-        return false;
-    }
-
-    @Override
-    public Iterator<DiscoItem> getItems(String name, String node, JID senderJID) {
-        try {
-            // If the requesting entity is the user itself or the requesting entity can probe the presence of the user.
-            if (name != null && senderJID != null &&
-            	server.getUserManager().isRegisteredUser(senderJID) && 
-            	(name.equals(senderJID.getNode()) || server.getPresenceManager().canProbePresence(senderJID, name))) {
-                Collection<DiscoItem> discoItems = new ArrayList<DiscoItem>();
-                for (ClientSession clientSession : getSessions(name)) {
-                    discoItems.add(new DiscoItem(clientSession.getAddress(), null, null, null));
-                }
-                return discoItems.iterator();
-            }
-            return Collections.emptyIterator();
-        } catch (UserNotFoundException e) {
-            return Collections.emptyIterator();
-        }
-    }
-    */
     private class ClientSessionListener implements ConnectionCloseListener {
         /**
          * Handle a session that just closed.
@@ -1379,7 +1325,6 @@ public class SessionManager extends BasicModule implements ClusterEventListener/
         sessionInfoCache = CacheFactory.createCache(C2S_INFO_CACHE_NAME);
         // Listen to cluster events
         ClusterManager.addListener(this);
-        //server.getIQDiscoItemsHandler().addServerItemsProvider(this);
     }
 
 
@@ -85,9 +85,12 @@ import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
 import org.jivesoftware.openfire.lockout.LockOutManager;
 import org.jivesoftware.openfire.mediaproxy.MediaProxyService;
 import org.jivesoftware.openfire.muc.MultiUserChatManager;
+import org.jivesoftware.openfire.net.DNSUtil;
 import org.jivesoftware.openfire.net.MulticastDNSService;
 import org.jivesoftware.openfire.net.SSLConfig;
 import org.jivesoftware.openfire.net.ServerTrafficCounter;
+import org.jivesoftware.openfire.nio.OutboundBufferPool;
+import org.jivesoftware.openfire.nio.WriteCoalescer;
 import org.jivesoftware.openfire.pep.IQPEPHandler;
 import org.jivesoftware.openfire.pep.IQPEPOwnerHandler;
 import org.jivesoftware.openfire.pubsub.PubSubModule;
@@ -507,6 +510,9 @@ public class XMPPServer {
             }
             // Initialize statistics
             ServerTrafficCounter.initStatistics();
+            OutboundBufferPool.initStatistics();
+            WriteCoalescer.initStatistics();
+            DNSUtil.initStatistics();
 
             // Load plugins (when in setup mode only the admin console will be loaded)
             pluginManager.start();
@@ -20,6 +20,9 @@
 
 package org.jivesoftware.openfire.audit;
 
+import java.util.Date;
+import java.util.List;
+
 import org.jivesoftware.openfire.session.Session;
 import org.xmpp.packet.Packet;
 
@@ -67,4 +70,24 @@ public interface Auditor {
      * @return the number of queued packets that are still in memory.
      */
     int getQueuedPacketsNumber();
+
+    /**
+     * Returns the number of packets that were not audited because the queue of packets
+     * to save was full.
+     *
+     * @return the number of packets that were not audited.
+     */
+    long getDroppedPacketsNumber();
+
+    /**
+     * Returns the audited packets that were saved to the permanent store between two dates,
+     * oldest first. Each packet is returned as the XML of its audit record. Packets that are
+     * still queued in memory are not returned.
+     *
+     * @param startDate the date of the oldest packets to return or <tt>null</tt> for no limit.
+     * @param endDate the date of the newest packets to return or <tt>null</tt> for no limit.
+     * @param maxResults the maximum number of packets to return.
+     * @return the XML of the audited packets.
+     */
+    List<String> getAuditedPackets(Date startDate, Date endDate, int maxResults);
 }
\ No newline at end of file
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.audit.spi;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the packets saved to audit files by {@link AuditorImpl}. Audit files are read as
+ * text: every audit record starts with a <tt>packet</tt> element of the Jive namespace and
+ * ends with the last <tt>&lt;/packet&gt;</tt> before the next record, so files that were
+ * appended to after a restart or that were not closed properly can be read.
+ */
+final class AuditLogReader {
+
+    private static final String PACKET_START = "<packet xmlns=\"" + AuditorImpl.NAMESPACE + "\"";
+    private static final String PACKET_END = "</packet>";
+
+    private AuditLogReader() {
+    }
+
+    /**
+     * Adds the packets of an audit file that were audited between two dates to a list,
+     * until the list has the maximum number of packets.
+     *
+     * @param file the audit file, compressed with gzip if its name ends with <tt>.gz</tt>.
+     * @param start the date in milliseconds of the oldest packets to add.
+     * @param end the date in milliseconds of the newest packets to add.
+     * @param maxResults the maximum size of the list.
+     * @param packets the list where the XML of the packets is added.
+     * @param format the format of the timestamps of the packets.
+     * @throws IOException if the file could not be read.
+     */
+    static void read(File file, long start, long end, int maxResults, List<String> packets,
+            DateFormat format) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try {
+            if (file.getName().endsWith(".gz")) {
+                in = new GZIPInputStream(in);
+            }
+            Reader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[8192];
+            boolean eof = false;
+            while (!eof && packets.size() < maxResults) {
+                try {
+                    int read = reader.read(buffer);
+                    if (read == -1) {
+                        eof = true;
+                    }
+                    else {
+                        text.append(buffer, 0, read);
+                    }
+                }
+                catch (EOFException e) {
+                    // The file is still being written or was not closed properly
+                    eof = true;
+                }
+                // Add the records followed by another record or by the end of the file
+                int recordStart = text.indexOf(PACKET_START);
+                while (recordStart != -1 && packets.size() < maxResults) {
+                    int next = text.indexOf(PACKET_START, recordStart + PACKET_START.length());
+                    if (next == -1 && !eof) {
+                        break;
+                    }
+                    String record = text.substring(recordStart, next == -1 ? text.length() : next);
+                    int recordEnd = record.lastIndexOf(PACKET_END);
+                    if (recordEnd != -1) {
+                        record = record.substring(0, recordEnd + PACKET_END.length());
+                        long date = getDate(record, format);
+                        if (date == -1 || (date >= start && date <= end)) {
+                            packets.add(record);
+                        }
+                    }
+                    recordStart = next;
+                }
+                // Discard the text of the records that were read
+                if (recordStart == -1) {
+                    text.delete(0, Math.max(0, text.length() - PACKET_START.length()));
+                }
+                else {
+                    text.delete(0, recordStart);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the dates of the first and last packets and the number of packets saved in
+     * an index file, or <tt>null</tt> if the index file does not exist or can't be read.
+     *
+     * @param indexFile the index file.
+     * @return the dates of the first and last packets and the number of packets, or null.
+     */
+    static long[] readIndex(File indexFile) {
+        if (!indexFile.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+            try {
+                String line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+                String[] values = line.trim().split(" ");
+                if (values.length != 3) {
+                    return null;
+                }
+                return new long[] {Long.parseLong(values[0]), Long.parseLong(values[1]),
+                        Long.parseLong(values[2])};
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the date in milliseconds of the timestamp of an audit record or -1 if the
+     * record doesn't have a valid timestamp.
+     */
+    private static long getDate(String record, DateFormat format) {
+        int start = record.indexOf(" timestamp=\"");
+        int tagEnd = record.indexOf('>');
+        if (start == -1 || start > tagEnd) {
+            return -1;
+        }
+        start += " timestamp=\"".length();
+        int end = record.indexOf('"', start);
+        if (end == -1) {
+            return -1;
+        }
+        try {
+            return format.parse(record.substring(start, end)).getTime();
+        }
+        catch (ParseException e) {
+            return -1;
+        }
+    }
+}
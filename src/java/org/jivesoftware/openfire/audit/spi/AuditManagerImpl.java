@@ -266,6 +266,7 @@ public class AuditManagerImpl extends BasicModule implements AuditManager {
         auditor.setMaxValues(maxTotalSize, maxFileSize, maxDays);
         auditor.setLogDir(logDir);
         auditor.setLogTimeout(logTimeout);
+        auditor.start();
 
         interceptor = new AuditorInterceptor();
         if (enabled) {
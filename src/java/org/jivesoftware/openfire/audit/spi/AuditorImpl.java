@@ -24,9 +24,13 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -35,20 +39,22 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 import java.util.TimeZone;
-import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
-import org.dom4j.DocumentFactory;
-import org.dom4j.Element;
 import org.jivesoftware.openfire.audit.AuditManager;
 import org.jivesoftware.openfire.audit.Auditor;
 import org.jivesoftware.openfire.session.Session;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.FastDateFormat;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.StringUtils;
-import org.jivesoftware.util.TaskEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.IQ;
@@ -56,14 +62,39 @@ import org.xmpp.packet.Message;
 import org.xmpp.packet.Packet;
 import org.xmpp.packet.Presence;
 
+/**
+ * Saves audited packets to rolling XML files. Packets are serialized when they are audited
+ * and added to a bounded queue that a dedicated thread writes to the current audit file.
+ * When the queue is full packets wait for space until the auditor is stopped. If the
+ * <tt>xmpp.audit.queue.maxwait</tt> property is zero or more, packets wait at most that
+ * many milliseconds and are dropped if the queue is still full.<p>
+ *
+ * Audit files are compressed with gzip unless the <tt>xmpp.audit.compress</tt> property is
+ * false. Each audit file has an index file with the dates of its first and last packets that
+ * is used to find the files to read when returning the packets audited between two dates.
+ */
 public class AuditorImpl implements Auditor {
 
 	private static final Logger Log = LoggerFactory.getLogger(AuditorImpl.class);
 
+    static final String NAMESPACE = "http://www.jivesoftware.org";
+    private static final String AUDIT_PATTERN = "MMM dd, yyyy hh:mm:ss:SSS a";
+    private static final int DEFAULT_QUEUE_SIZE = 10000;
+    private static final int DEFAULT_LOG_TIMEOUT = 120000;
+    /**
+     * Max number of records written before checking if the file has to be flushed.
+     */
+    private static final int BATCH_SIZE = 500;
+    private static final int BUFFER_SIZE = 8192;
+    private static final String QUEUE_STAT = "audit_queue";
+    private static final String DROPPED_STAT = "audit_dropped";
+    private static final String SAVED_STAT = "audit_saved";
+
     private AuditManager auditManager;
     private File currentAuditFile;
+    private File currentIndexFile;
+    private CountingOutputStream fileStream;
     private Writer writer;
-    private org.jivesoftware.util.XMLWriter xmlWriter;
     /**
      * Limit date used to detect when we need to rollover files. This date will be
      * configured as the last second of the day.
@@ -73,34 +104,55 @@ public class AuditorImpl implements Auditor {
      * Max size in bytes that all audit log files may have. When the limit is reached
      * oldest audit log files will be removed until total size is under the limit.
      */
-    private long maxTotalSize;
+    private volatile long maxTotalSize;
     /**
      * Max size in bytes that each audit log file may have. Once the limit has been
      * reached a new audit file will be created.
      */
-    private long maxFileSize;
+    private volatile long maxFileSize;
     /**
      * Max number of days to keep audit information. Once the limit has been reached
      * audit files that contain information that exceed the limit will be deleted.
      */
-    private int maxDays;
+    private volatile int maxDays;
+    /**
+     * Max time in milliseconds that saved packets may stay in memory buffers before
+     * they are flushed to the audit file.
+     */
+    private volatile int logTimeout = DEFAULT_LOG_TIMEOUT;
     /**
      * Flag that indicates if packets can still be accepted to be saved to the audit log.
      */
-    private boolean closed = false;
+    private volatile boolean closed = false;
     /**
      * Directoty (absolute path) where the audit files will be saved.
      */
-    private String logDir;
+    private volatile String logDir;
     /**
      * File (or better say directory) of the folder that contains the audit logs.
      */
-    private File baseFolder;
+    private volatile File baseFolder;
 
     /**
      * Queue that holds the audited packets that will be later saved to an XML file.
      */
-    private BlockingQueue<AuditPacket> logQueue = new LinkedBlockingQueue<AuditPacket>();
+    private final BlockingQueue<AuditPacket> logQueue;
+    /**
+     * Max time in milliseconds to wait for space in the queue before dropping a packet. A
+     * negative value means that packets wait until there is space in the queue.
+     */
+    private final int queueMaxWait;
+    private final boolean compress;
+    private final AtomicLong droppedPackets = new AtomicLong();
+    private final AtomicLong savedPackets = new AtomicLong();
+    private final Thread writerThread;
+
+    /**
+     * Dates of the first and last packets and number of packets of the current file.
+     */
+    private long firstPacketDate;
+    private long lastPacketDate;
+    private int packetsInFile;
 
     /**
      * Allow only a limited number of files for each day, max. three digits (000-999)
@@ -110,17 +162,29 @@ public class AuditorImpl implements Auditor {
      * Track the current index number `...-nnn.log´
      */
     private int filesIndex = 0;
-    /**
-     * Timer to save queued logs to the XML file.
-     */
-    private SaveQueuedPacketsTask saveQueuedPacketsTask;
     private FastDateFormat dateFormat;
     private static FastDateFormat auditFormat;
 
     public AuditorImpl(AuditManager manager) {
         auditManager = manager;
         dateFormat = FastDateFormat.getInstance("yyyyMMdd", TimeZone.getTimeZone("UTC"));
-        auditFormat = FastDateFormat.getInstance("MMM dd, yyyy hh:mm:ss:SSS a", JiveGlobals.getLocale());
+        auditFormat = FastDateFormat.getInstance(AUDIT_PATTERN, JiveGlobals.getLocale());
+        logQueue = new ArrayBlockingQueue<AuditPacket>(
+                JiveGlobals.getIntProperty("xmpp.audit.queue.size", DEFAULT_QUEUE_SIZE));
+        queueMaxWait = JiveGlobals.getIntProperty("xmpp.audit.queue.maxwait", -1);
+        compress = JiveGlobals.getBooleanProperty("xmpp.audit.compress", true);
+        addStatistics();
+
+        writerThread = new Thread(new AuditWriter(), "Audit log writer");
+        writerThread.setDaemon(true);
+    }
+
+    /**
+     * Starts the thread that writes the audited packets to the audit files. Must be invoked
+     * once the log directory and the max values of the audit files have been set.
+     */
+    void start() {
+        writerThread.start();
     }
 
     protected void setMaxValues(int totalSize, int fileSize, int days) {
@@ -130,14 +194,8 @@ public class AuditorImpl implements Auditor {
     }
 
     public void setLogTimeout(int logTimeout) {
-        // Cancel any existing task because the timeout has changed
-        if (saveQueuedPacketsTask != null) {
-            saveQueuedPacketsTask.cancel();
-        }
-        // Create a new task and schedule it with the new timeout
-        saveQueuedPacketsTask = new SaveQueuedPacketsTask();
-        TaskEngine.getInstance().schedule(saveQueuedPacketsTask, logTimeout, logTimeout);
-
+        // The writer thread uses the new timeout after its next flush
+        this.logTimeout = logTimeout;
     }
 
     public void setLogDir(String logDir) {
@@ -154,6 +212,10 @@ public class AuditorImpl implements Auditor {
         return logQueue.size();
     }
 
+    public long getDroppedPacketsNumber() {
+        return droppedPackets.get();
+    }
+
     public void audit(Packet packet, Session session) {
         if (auditManager.isEnabled()) {
             if (packet instanceof Message) {
@@ -177,44 +239,185 @@ public class AuditorImpl implements Auditor {
     private void writePacket(Packet packet, Session session) {
         if (!closed) {
             // Add to the logging queue this new entry that will be saved later
-            logQueue.add(new AuditPacket(packet.createCopy(), session));
+            AuditPacket auditPacket = new AuditPacket(packet, session);
+            boolean queued;
+            try {
+                if (queueMaxWait < 0) {
+                    // Wait for space in the queue unless the auditor is stopped in the meantime
+                    queued = logQueue.offer(auditPacket, 1, TimeUnit.SECONDS);
+                    while (!queued && !closed) {
+                        queued = logQueue.offer(auditPacket, 1, TimeUnit.SECONDS);
+                    }
+                }
+                else {
+                    queued = logQueue.offer(auditPacket, queueMaxWait, TimeUnit.MILLISECONDS);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+            if (!queued) {
+                droppedPackets.incrementAndGet();
+            }
         }
     }
 
     public void stop() {
         // Stop queuing packets since we are being stopped
         closed = true;
-        // Save all remaining queued packets to the XML file
-        saveQueuedPackets();
-        close();
+        // Let the writer thread save all remaining queued packets to the XML file
+        try {
+            if (writerThread.isAlive()) {
+                logQueue.put(AuditPacket.STOP);
+                writerThread.join();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        StatisticsManager.getInstance().removeStatistic(QUEUE_STAT);
+        StatisticsManager.getInstance().removeStatistic(DROPPED_STAT);
+        StatisticsManager.getInstance().removeStatistic(SAVED_STAT);
+    }
+
+    public List<String> getAuditedPackets(Date startDate, Date endDate, int maxResults) {
+        long start = startDate == null ? Long.MIN_VALUE : startDate.getTime();
+        long end = endDate == null ? Long.MAX_VALUE : endDate.getTime();
+        List<String> packets = new ArrayList<String>();
+        File folder = baseFolder;
+        File[] files = folder == null ? null : folder.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return isAuditFile(name);
+            }
+        });
+        if (files == null) {
+            return packets;
+        }
+        // Sort files by name (chronological order)
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File o1, File o2) {
+                return o1.getName().compareTo(o2.getName());
+            }
+        });
+        DateFormat format = new SimpleDateFormat(AUDIT_PATTERN, JiveGlobals.getLocale());
+        for (File file : files) {
+            if (packets.size() >= maxResults) {
+                break;
+            }
+            // Skip files whose index shows that they don't have packets of the period
+            long[] index = AuditLogReader.readIndex(getIndexFile(file));
+            if (index != null && (index[1] < start || index[0] > end)) {
+                continue;
+            }
+            try {
+                AuditLogReader.read(file, start, end, maxResults, packets, format);
+            }
+            catch (IOException e) {
+                Log.error("Error reading audit file " + file, e);
+            }
+        }
+        return packets;
     }
 
     private void close() {
-        if (xmlWriter != null) {
+        if (writer != null) {
             try {
-                xmlWriter.flush();
                 writer.write("</jive>");
-                xmlWriter.close();
-                writer = null;
-                xmlWriter = null;
+                writer.close();
             }
             catch (Exception e) {
                 Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
             }
+            writer = null;
+            fileStream = null;
+            writeIndex();
         }
     }
 
-    private void prepareAuditFile(Date auditDate) throws IOException {
-        ensureMaxTotalSize();
+    private void flush() {
+        if (writer != null) {
+            try {
+                writer.flush();
+            }
+            catch (IOException ioe) {
+                Log.error(ioe.getMessage(), ioe);
+            }
+            writeIndex();
+        }
+    }
 
+    /**
+     * Saves the dates of the first and last packets and the number of packets of the
+     * current audit file to its index file.
+     */
+    private void writeIndex() {
+        if (currentIndexFile == null || packetsInFile == 0) {
+            return;
+        }
+        try {
+            Writer indexWriter = new OutputStreamWriter(new FileOutputStream(currentIndexFile), "UTF-8");
+            try {
+                indexWriter.write(firstPacketDate + " " + lastPacketDate + " " + packetsInFile + "\n");
+            }
+            finally {
+                indexWriter.close();
+            }
+        }
+        catch (IOException e) {
+            Log.error("Error writing audit index file " + currentIndexFile, e);
+        }
+    }
+
+    private void save(AuditPacket auditPacket) {
+        try {
+            prepareAuditFile(auditPacket.getCreationDate());
+            writer.write(auditPacket.getXML());
+            writer.write('\n');
+            if (packetsInFile == 0) {
+                firstPacketDate = auditPacket.getCreationDate();
+            }
+            lastPacketDate = auditPacket.getCreationDate();
+            packetsInFile++;
+            savedPackets.incrementAndGet();
+        }
+        catch (IOException e) {
+            Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+            // Start a new file for the next packets
+            close();
+            droppedPackets.incrementAndGet();
+        }
+    }
+
+    private void prepareAuditFile(long auditDate) throws IOException {
         // Rotate file if: we just started, current file size exceeded limit or date has changed
-        if (currentAuditFile == null || currentAuditFile.length() > maxFileSize ||
-                xmlWriter == null || currentDateLimit == null || auditDate.after(currentDateLimit))
+        if (writer == null || fileStream.getCount() > maxFileSize ||
+                currentDateLimit == null || auditDate > currentDateLimit.getTime())
         {
-            createAuditFile(auditDate);
+            ensureMaxTotalSize();
+            createAuditFile(new Date(auditDate));
         }
     }
 
+    private static boolean isAuditFile(String name) {
+        return name.startsWith("jive.audit-") && (name.endsWith(".log") || name.endsWith(".log.gz"));
+    }
+
+    /**
+     * Returns the index file of an audit file.
+     */
+    private static File getIndexFile(File auditFile) {
+        String name = auditFile.getName();
+        return new File(auditFile.getParentFile(), name.substring(0, name.indexOf(".log")) + ".idx");
+    }
+
+    /**
+     * Returns true if the audit file of the given name, compressed or not, exists.
+     */
+    private boolean auditFileExists(String name) {
+        return new File(logDir, name + ".log").exists() || new File(logDir, name + ".log.gz").exists();
+    }
+
     /**
      * Ensures that max total size limit is not exceeded. If total size of audit files
      * exceed the limit then oldest audit files will be removed until total size does
@@ -224,7 +427,7 @@ public class AuditorImpl implements Auditor {
         // Get list of existing audit files
         FilenameFilter filter = new FilenameFilter() {
             public boolean accept(File dir, String name) {
-                return name.startsWith("jive.audit-") && name.endsWith(".log");
+                return isAuditFile(name);
             }
         };
         File[] files = baseFolder.listFiles(filter);
@@ -251,6 +454,7 @@ public class AuditorImpl implements Auditor {
                 }
                 // Delete oldest file
                 fileToDelete.delete();
+                getIndexFile(fileToDelete).delete();
             }
         }
     }
@@ -271,10 +475,10 @@ public class AuditorImpl implements Auditor {
         final String oldestFile =
                 "jive.audit-" + dateFormat.format(calendar.getTime()) + "-000.log";
 
-        // Get list of audit files to delete
+        // Get list of audit and index files to delete
         FilenameFilter filter = new FilenameFilter() {
             public boolean accept(File dir, String name) {
-                return name.startsWith("jive.audit-") && name.endsWith(".log") &&
+                return (isAuditFile(name) || (name.startsWith("jive.audit-") && name.endsWith(".idx"))) &&
                         name.compareTo(oldestFile) < 0;
             }
         };
@@ -289,16 +493,17 @@ public class AuditorImpl implements Auditor {
         }
     }
 
-	/* if this new logic still causes problems one may want to 
+	/* if this new logic still causes problems one may want to
 	* use log4j or change the file format from YYYYmmdd-nnn to YYYYmmdd-HHMM */
 	/**
-	* Sets <b>xmlWriter</b> so this class can use it to write audit logs<br>
-	* The audit filename <b>currentAuditFile</b> will be `jive.audit-YYYYmmdd-nnn.log´<br>
+	* Sets <b>writer</b> so this class can use it to write audit logs<br>
+	* The audit filename <b>currentAuditFile</b> will be `jive.audit-YYYYmmdd-nnn.log´, or
+	* `jive.audit-YYYYmmdd-nnn.log.gz´ when audit files are compressed<br>
 	* `nnn´ will be reset to `000´ when a new log file is created the next day <br>
 	* `nnn´ will be increased for log files which belong to the same day<br>
 	* <b>WARNING:</b> If log files of the current day are deleted and the server is restarted then
 	* the value of `nnn´ may be random (it's calculated by `Math.max(files.length, filesIndex);´
-	* with `filesIndex=0´ and  `files.length=nr(existing jive.audit-YYYYmmdd-???.log files)´ - 
+	* with `filesIndex=0´ and  `files.length=nr(existing jive.audit-YYYYmmdd-???.log files)´ -
 	* if there are 10 audit files (033-043) then nnn will be 10 instead of 44).<br>
 	* If  `nnn=999´ then all audit data will be written to this file till the next day.<br>
 	* @param auditDate
@@ -320,7 +525,7 @@ public class AuditorImpl implements Auditor {
    	// Get list of existing audit files
    	FilenameFilter filter = new FilenameFilter() {
    		public boolean accept(File dir, String name) {
-   			return name.startsWith(filePrefix) && name.endsWith(".log");
+   			return name.startsWith(filePrefix) && isAuditFile(name);
    		}
    	};
    	File[] files = baseFolder.listFiles(filter);
@@ -329,136 +534,254 @@ public class AuditorImpl implements Auditor {
    	filesIndex = Math.max(files.length, filesIndex);
 		if (filesIndex >= maxTotalFilesDay)
 		{
-			// don't close this file, continue auditing to it
-			return;
+			if (writer != null) {
+				// don't close this file, continue auditing to it
+				return;
+			}
+			// append to the last file of the day (after restart)
+			filesIndex = maxTotalFilesDay - 1;
 		}
-		File tmpAuditFile = new File(logDir, filePrefix + StringUtils.zeroPadString(Integer.toString(filesIndex), 3) + ".log");
-		if ( (filesIndex == maxTotalFilesDay-1) && !tmpAuditFile.exists() ) 
+		String fileName = filePrefix + StringUtils.zeroPadString(Integer.toString(filesIndex), 3);
+		if ( (filesIndex == maxTotalFilesDay-1) && !auditFileExists(fileName) )
 		{
 			Log.warn("Creating last audit file for this date: " + dateFormat.format(auditDate));
 		}
-		while ( (filesIndex<(maxTotalFilesDay-1)) && (tmpAuditFile.exists()) )
+		while ( (filesIndex<(maxTotalFilesDay-1)) && auditFileExists(fileName) )
 		{
-			Log.debug("Audit file '"+ tmpAuditFile.getName() +"' does already exist.");
+			Log.debug("Audit file '"+ fileName +"' does already exist.");
 			filesIndex++;
-			tmpAuditFile = new File(logDir, filePrefix + StringUtils.zeroPadString(Integer.toString(filesIndex), 3) + ".log");
+			fileName = filePrefix + StringUtils.zeroPadString(Integer.toString(filesIndex), 3);
 		}
-		currentAuditFile = tmpAuditFile;
 		close();
+		File tmpAuditFile = new File(logDir, fileName + ".log.gz");
+		if (!compress || (!tmpAuditFile.exists() && new File(logDir, fileName + ".log").exists())) {
+			tmpAuditFile = new File(logDir, fileName + ".log");
+		}
+		currentAuditFile = tmpAuditFile;
+		currentIndexFile = getIndexFile(currentAuditFile);
+		long[] index = AuditLogReader.readIndex(currentIndexFile);
+		if (index != null) {
+			firstPacketDate = index[0];
+			lastPacketDate = index[1];
+			packetsInFile = (int) index[2];
+		}
+		else {
+			packetsInFile = 0;
+		}
 		// always append to an existing file (after restart)
-		writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(currentAuditFile, true), "UTF-8"));
-		writer.write("<jive xmlns=\"http://www.jivesoftware.org\">");
-		xmlWriter = new org.jivesoftware.util.XMLWriter(writer);
+		fileStream = new CountingOutputStream(new FileOutputStream(currentAuditFile, true),
+				currentAuditFile.length());
+		OutputStream out = fileStream;
+		if (currentAuditFile.getName().endsWith(".gz")) {
+			// Appending starts a new gzip member, which readers concatenate. Flushing the
+			// stream makes the data written so far readable.
+			out = new GZIPOutputStream(fileStream, BUFFER_SIZE, true);
+		}
+		writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), BUFFER_SIZE);
+		writer.write("<jive xmlns=\"" + NAMESPACE + "\">\n");
 	}
 
+    private void addStatistics() {
+        StatisticsManager.getInstance().addStatistic(QUEUE_STAT,
+                new i18nStatistic("audit.queue", Statistic.Type.count) {
+                    public double sample() {
+                        return logQueue.size();
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic(DROPPED_STAT, new PacketRateStatistic("audit.dropped", droppedPackets));
+        StatisticsManager.getInstance().addStatistic(SAVED_STAT, new PacketRateStatistic("audit.saved", savedPackets));
+    }
+
     /**
-     * Saves the queued entries to an XML file and checks that very old files are deleted.
+     * Number of packets counted since the last sample.
      */
-    private class SaveQueuedPacketsTask extends TimerTask {
-        @Override
-		public void run() {
-            try {
-                // Ensure that saved audit logs are not too old
-                ensureMaxDays();
-                // Save queued packets to the audit logs
-                saveQueuedPackets();
-            }
-            catch (Throwable e) {
-                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-            }
+    private static class PacketRateStatistic extends i18nStatistic {
+
+        private final AtomicLong counter;
+        private long lastCount;
+
+        public PacketRateStatistic(String key, AtomicLong counter) {
+            super(key, Statistic.Type.rate);
+            this.counter = counter;
+        }
+
+        public double sample() {
+            long count = counter.get();
+            long packets = count - lastCount;
+            lastCount = count;
+            return packets;
+        }
+
+        public boolean isPartialSample() {
+            return true;
         }
     }
 
-    private void saveQueuedPackets() {
-        List<AuditPacket> packets = new ArrayList<AuditPacket>(logQueue.size());
-        logQueue.drainTo(packets);
-        for (AuditPacket auditPacket : packets) {
-            try {
-                prepareAuditFile(auditPacket.getCreationDate());
-                Element element = auditPacket.getElement();
-                // Protect against null elements.
-                if (element != null) {
-                    xmlWriter.write(element);
+    /**
+     * Saves the queued packets to the audit files, flushes the current file and checks that
+     * very old files are deleted every <tt>logTimeout</tt> milliseconds.
+     */
+    private class AuditWriter implements Runnable {
+
+        public void run() {
+            List<AuditPacket> packets = new ArrayList<AuditPacket>(BATCH_SIZE);
+            long nextFlush = System.currentTimeMillis() + logTimeout;
+            boolean running = true;
+            while (running) {
+                try {
+                    AuditPacket auditPacket =
+                            logQueue.poll(Math.max(nextFlush - System.currentTimeMillis(), 1), TimeUnit.MILLISECONDS);
+                    if (auditPacket != null) {
+                        packets.add(auditPacket);
+                        logQueue.drainTo(packets, BATCH_SIZE - 1);
+                    }
+                    for (AuditPacket packet : packets) {
+                        if (packet == AuditPacket.STOP) {
+                            running = false;
+                        }
+                        else {
+                            save(packet);
+                        }
+                    }
+                    packets.clear();
+                    long now = System.currentTimeMillis();
+                    if (running && now >= nextFlush) {
+                        // Ensure that saved audit logs are not too old
+                        ensureMaxDays();
+                        flush();
+                        nextFlush = now + logTimeout;
+                    }
+                }
+                catch (InterruptedException e) {
+                    running = false;
+                }
+                catch (Throwable e) {
+                    Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+                    packets.clear();
                 }
             }
-            catch (IOException e) {
-                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-                // Add again the entry to the queue to save it later
-                if (xmlWriter != null) {
-                    logQueue.add(auditPacket);
+            // Save the packets that were queued while the auditor was being stopped
+            logQueue.drainTo(packets);
+            for (AuditPacket packet : packets) {
+                if (packet != AuditPacket.STOP) {
+                    save(packet);
                 }
             }
+            close();
         }
-        try {
-            if (xmlWriter != null) {
-                xmlWriter.flush();
-            }
+    }
+
+    /**
+     * Output stream that counts the bytes written to the audit file.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        public CountingOutputStream(OutputStream out, long count) {
+            super(out);
+            this.count = count;
         }
-        catch (IOException ioe) {
-            Log.error(ioe.getMessage(), ioe);
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        public long getCount() {
+            return count;
         }
     }
 
     /**
-     * Wrapper on a Packet with information about the packet's status at the moment
-     * when the message was queued.<p>
+     * A packet serialized with information about the packet's status at the moment
+     * when the packet was queued.<p>
      *
-     * The idea is to wrap every packet that is needed to be audited and then add the
-     * wrapper to a queue that will be later processed (i.e. saved to the XML file).
+     * The idea is to serialize every packet that is needed to be audited and then add
+     * the serialized packet to a queue that will be later processed (i.e. saved to the
+     * XML file). Packets don't need to be copied since they are serialized when audited.
      */
     private static class AuditPacket {
 
-        private static DocumentFactory docFactory = DocumentFactory.getInstance();
+        /**
+         * Marker that tells the writer thread to stop.
+         */
+        private static final AuditPacket STOP = new AuditPacket();
+
+        private final String xml;
+        private final long creationDate;
 
-        private Element element;
-        private Date creationDate;
+        private AuditPacket() {
+            xml = null;
+            creationDate = 0;
+        }
 
         public AuditPacket(Packet packet, Session session) {
-            element = docFactory.createElement("packet", "http://www.jivesoftware.org");
-            creationDate = new Date();
+            creationDate = System.currentTimeMillis();
+            StringBuilder builder = new StringBuilder(256);
+            builder.append("<packet xmlns=\"").append(NAMESPACE).append('"');
             if (session != null && session.getStreamID() != null) {
-                element.addAttribute("streamID", session.getStreamID().toString());
+                builder.append(" streamID=\"")
+                        .append(StringUtils.escapeForXML(session.getStreamID().toString())).append('"');
             }
+            String status;
             switch (session == null ? 0 : session.getStatus()) {
                 case Session.STATUS_AUTHENTICATED:
-                    element.addAttribute("status", "auth");
+                    status = "auth";
                     break;
                 case Session.STATUS_CLOSED:
-                    element.addAttribute("status", "closed");
+                    status = "closed";
                     break;
                 case Session.STATUS_CONNECTED:
-                    element.addAttribute("status", "connected");
+                    status = "connected";
                     // This is a workaround. Since we don't want to have an incorrect FROM attribute
                     // value we need to clean up the FROM attribute. The FROM attribute will contain
                     // an incorrect value since we are setting a fake JID until the user actually
                     // authenticates with the server.
-                    packet.setFrom((String) null);
+                    if (packet.getElement().attribute("from") != null) {
+                        packet = packet.createCopy();
+                        packet.setFrom((String) null);
+                    }
                     break;
                 default:
-                    element.addAttribute("status", "unknown");
+                    status = "unknown";
                     break;
             }
-            element.addAttribute("timestamp", auditFormat.format(creationDate));
-            element.add(packet.getElement());
+            builder.append(" status=\"").append(status).append('"');
+            builder.append(" timestamp=\"").append(auditFormat.format(new Date(creationDate))).append("\">");
+            builder.append(packet.toXML());
+            builder.append("</packet>");
+            xml = builder.toString();
         }
 
         /**
-         * Returns the Element associated with this audit packet.
+         * Returns the XML of this audit packet.
          *
-         * @return the Element.
+         * @return the XML of this audit packet.
          */
-        public Element getElement() {
-            return element;
+        public String getXML() {
+            return xml;
         }
 
         /**
          * Returns the date when the packet was audited. This is the time when the
          * packet was queued to be saved.
          *
-         * @return the date when the packet was audited.
+         * @return the date in milliseconds when the packet was audited.
          */
-        public Date getCreationDate() {
+        public long getCreationDate() {
             return creationDate;
         }
     }
-}
\ No newline at end of file
+}
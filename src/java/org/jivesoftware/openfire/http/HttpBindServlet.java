@@ -246,17 +246,17 @@ public class HttpBindServlet extends HttpServlet {
 
         final long rid = getLongAttribute(rootNode.attributeValue("rid"), -1);
 
-        synchronized (session) {
-            try {
-                session.forwardRequest(rid, context.getRequest().isSecure(), rootNode, context);
-            }
-            catch (HttpBindException e) {
-                sendError(session, context, e.getBindingError());
-            }
-            catch (HttpConnectionClosedException nc) {
-                Log.error("Error sending packet to client.", nc);
-                context.complete();
-            }
+        // The session guards its connections itself, holding its lock here could deadlock
+        // when the request closes the session and packets are routed to other sessions
+        try {
+            session.forwardRequest(rid, context.getRequest().isSecure(), rootNode, context);
+        }
+        catch (HttpBindException e) {
+            sendError(session, context, e.getBindingError());
+        }
+        catch (HttpConnectionClosedException nc) {
+            Log.error("Error sending packet to client.", nc);
+            context.complete();
         }
     }
 
@@ -30,11 +30,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.dom4j.*;
@@ -99,9 +98,16 @@ public class HttpSession extends LocalClientSession {
     private int wait;
     private int hold = 0;
     private String language;
-    private final List<HttpConnection> connectionQueue = Collections.synchronizedList(new LinkedList<HttpConnection>());
-    private final List<Deliverable> pendingElements = Collections.synchronizedList(new ArrayList<Deliverable>());
-    private final List<Delivered> sentElements = Collections.synchronizedList(new ArrayList<Delivered>());
+    // Connections and sent elements are indexed by rid, pending elements are guarded by connectionLock
+    private final RidRing<HttpConnection> connectionQueue = new RidRing<HttpConnection>(4);
+    private final List<Deliverable> pendingElements = new ArrayList<Deliverable>();
+    private final RidRing<Delivered> sentElements = new RidRing<Delivered>(2);
+    /**
+     * Guards the connections, the pending elements and the last request ID. The lock is never held
+     * while the session is closed or packets are routed, since that may deliver packets to other
+     * sessions.
+     */
+    private final Object connectionLock = new Object();
     private boolean isSecure;
     private int maxPollingInterval;
     private long lastPoll = -1;
@@ -110,7 +116,7 @@ public class HttpSession extends LocalClientSession {
     private int inactivityTimeout;
     private int defaultInactivityTimeout;
     private long lastActivity;
-    private long lastRequestID;
+    private volatile long lastRequestID;
     private boolean lastResponseEmpty;
     private int maxRequests;
     private int maxPause;
@@ -119,17 +125,10 @@ public class HttpSession extends LocalClientSession {
     private int minorVersion = -1;
     private X509Certificate[] sslCertificates;
 
-    private final Queue<Collection<Element>> packetsToSend = new LinkedList<Collection<Element>>();
+    private final Queue<Collection<Element>> packetsToSend = new ConcurrentLinkedQueue<Collection<Element>>();
     // Semaphore which protects the packets to send, so, there can only be one consumer at a time.
     private SessionPacketRouter router;
 
-    private static final Comparator<HttpConnection> connectionComparator
-            = new Comparator<HttpConnection>() {
-        public int compare(HttpConnection o1, HttpConnection o2) {
-            return (int) (o1.getRequestId() - o2.getRequestId());
-        }
-    };
-
     public HttpSession(PacketDeliverer backupDeliverer, String serverName, InetAddress address,
                        StreamID streamID, long rid, HttpConnection connection) {
         super(serverName, new HttpVirtualConnection(address), streamID);
@@ -297,6 +296,9 @@ public class HttpSession extends LocalClientSession {
      */
     public void setMaxRequests(int maxRequests) {
         this.maxRequests = maxRequests;
+        // Room for the open requests and for as many requests that were already responded to
+        connectionQueue.ensureCapacity(2 * (maxRequests + 1));
+        sentElements.ensureCapacity(maxRequests + 1);
     }
 
     /**
@@ -433,11 +435,11 @@ public class HttpSession extends LocalClientSession {
      */
     public void pause(int duration) {
     	// Respond immediately to all pending requests
-    	synchronized (connectionQueue) {
-	        for (HttpConnection toClose : connectionQueue) {
+    	synchronized (connectionLock) {
+	        for (HttpConnection toClose : connectionQueue.values()) {
 	            if (!toClose.isClosed()) {
 	                toClose.close();
-	                lastRequestID = toClose.getRequestId();
+	                lastRequestID = Math.max(lastRequestID, toClose.getRequestId());
 	            }
 	        }
     	}
@@ -452,16 +454,9 @@ public class HttpSession extends LocalClientSession {
      * @return the time in milliseconds since the epoch that this session was last active.
      */
     public long getLastActivity() {
-        if (!connectionQueue.isEmpty()) {
-        	synchronized (connectionQueue) {
-	            for (HttpConnection connection : connectionQueue) {
-	                // The session is currently active, set the last activity to the current time.
-	                if (!(connection.isClosed())) {
-	                    lastActivity = System.currentTimeMillis();
-	                    break;
-	                }
-	            }
-        	}
+        if (getOpenConnectionCount() > 0) {
+            // The session is currently active, set the last activity to the current time.
+            lastActivity = System.currentTimeMillis();
         }
         return lastActivity;
     }
@@ -478,13 +473,8 @@ public class HttpSession extends LocalClientSession {
      */
     public long getLastAcknowledged() {
     	long ack = lastRequestID;
-    	Collections.sort(connectionQueue, connectionComparator);
-    	synchronized (connectionQueue) {
-	        for (HttpConnection connection : connectionQueue) {
-	            if (connection.getRequestId() == ack + 1) {
-	            	ack++;
-	            }
-	        }
+    	while (connectionQueue.get(ack + 1) != null) {
+    	    ack++;
     	}
         return ack;
     }
@@ -600,10 +590,16 @@ public class HttpSession extends LocalClientSession {
             isPoll = false;
         else if (rootNode.attributeValue("pause") != null)
             isPoll = false;
-        HttpConnection connection = this.createConnection(rid, isSecure, isPoll, context);
+        HttpConnection connection;
+        synchronized (connectionLock) {
+            connection = this.createConnection(rid, isSecure, isPoll, context);
+            if (elements.size() > 0) {
+                // Queue the packets in the order of the requests
+                packetsToSend.add(elements);
+            }
+        }
         if (elements.size() > 0) {
             // creates the runnable to forward the packets
-            packetsToSend.add(elements);
             new HttpPacketSender(this).init();
         }
 
@@ -612,18 +608,25 @@ public class HttpSession extends LocalClientSession {
         int pauseDuration = HttpBindServlet.getIntAttribute(rootNode.attributeValue("pause"), -1);
 
         if ("terminate".equals(type)) {
-            connection.deliverBody(createEmptyBody(true), true);
+            synchronized (connectionLock) {
+                connection.deliverBody(createEmptyBody(true), true);
+                lastRequestID = connection.getRequestId();
+            }
+            // The session is closed without holding the lock since closing it routes packets
             close();
-            lastRequestID = connection.getRequestId();
         }
         else if ("true".equals(restartStream) && rootNode.elements().size() == 0) {
-            connection.deliverBody(createSessionRestartResponse(), true);
-            lastRequestID = connection.getRequestId();
+            synchronized (connectionLock) {
+                connection.deliverBody(createSessionRestartResponse(), true);
+                lastRequestID = connection.getRequestId();
+            }
         }
         else if (pauseDuration > 0 && pauseDuration <= getMaxPause()) {
             pause(pauseDuration);
-            connection.deliverBody(createEmptyBody(false), true);
-            lastRequestID = connection.getRequestId();
+            synchronized (connectionLock) {
+                connection.deliverBody(createEmptyBody(false), true);
+                lastRequestID = connection.getRequestId();
+            }
             setLastResponseEmpty(true);
         }
         else {
@@ -690,7 +693,7 @@ public class HttpSession extends LocalClientSession {
      * @throws HttpBindException if the connection has violated a facet of the HTTP binding
      * protocol.
      */
-    synchronized HttpConnection createConnection(long rid, boolean isSecure, boolean isPoll, AsyncContext context)
+    private HttpConnection createConnection(long rid, boolean isSecure, boolean isPoll, AsyncContext context)
             throws HttpConnectionClosedException, HttpBindException, IOException
     {
         final HttpConnection connection = new HttpConnection(rid, isSecure, sslCertificates, context);
@@ -700,7 +703,9 @@ public class HttpSession extends LocalClientSession {
             @Override
             public void onComplete(AsyncEvent asyncEvent) throws IOException {
                 Log.debug("complete event " + asyncEvent);
-                connectionQueue.remove(connection);
+                synchronized (connectionLock) {
+                    connectionQueue.remove(connection.getRequestId(), connection);
+                }
                 fireConnectionClosed(connection);
             }
 
@@ -708,16 +713,18 @@ public class HttpSession extends LocalClientSession {
             public void onTimeout(AsyncEvent asyncEvent) throws IOException {
                 Log.debug("timeout event " + asyncEvent);
                 try {
-                    // If onTimeout does not result in a complete(), the container falls back to default behavior.
-                    // This is why this body is to be delivered in a non-async fashion.
-                    connection.deliverBody(createEmptyBody(false), false);
-                    setLastResponseEmpty(true);
-
-                    // This connection timed out we need to increment the request count
-                    if (connection.getRequestId() != lastRequestID + 1) {
-                        throw new IOException("Unexpected RID error.");
+                    synchronized (connectionLock) {
+                        // If onTimeout does not result in a complete(), the container falls back to default behavior.
+                        // This is why this body is to be delivered in a non-async fashion.
+                        connection.deliverBody(createEmptyBody(false), false);
+                        setLastResponseEmpty(true);
+
+                        // This connection timed out we need to increment the request count
+                        if (connection.getRequestId() != lastRequestID + 1) {
+                            throw new IOException("Unexpected RID error.");
+                        }
+                        lastRequestID = connection.getRequestId();
                     }
-                    lastRequestID = connection.getRequestId();
                 } catch (HttpConnectionClosedException e) {
                     Log.warn("Unexpected exception while processing connection timeout.", e);
                 }
@@ -729,7 +736,9 @@ public class HttpSession extends LocalClientSession {
             public void onError(AsyncEvent asyncEvent) throws IOException {
                 Log.debug("error event " + asyncEvent);
                 Log.warn("Unhandled AsyncListener error: " + asyncEvent.getThrowable());
-                connectionQueue.remove(connection);
+                synchronized (connectionLock) {
+                    connectionQueue.remove(connection.getRequestId(), connection);
+                }
                 fireConnectionClosed(connection);
             }
 
@@ -759,16 +768,7 @@ public class HttpSession extends LocalClientSession {
     }
 
     private Delivered retrieveDeliverable(long rid) {
-    	Delivered result = null;
-    	synchronized (sentElements) {
-	        for (Delivered delivered : sentElements) {
-	            if (delivered.getRequestID() == rid) {
-	                result = delivered;
-	                break;
-	            }
-	        }
-    	}
-        return result;
+        return sentElements.get(rid);
     }
 
     private void addConnection(HttpConnection connection, boolean isPoll) throws HttpBindException,
@@ -790,38 +790,34 @@ public class HttpSession extends LocalClientSession {
          * deliverable on the new connection. This is under the assumption that a connection has been dropped,
          * and re-requested before jetty has realised.
          */
-        synchronized (connectionQueue) {
-			for (HttpConnection queuedConnection : connectionQueue) {
-				if (queuedConnection.getRequestId() == rid) {
-					if(Log.isDebugEnabled()) {
-						Log.debug("Found previous connection in queue with rid " + rid);
-					}
-					if(queuedConnection.isClosed()) {
-						if(Log.isDebugEnabled()) {
-							Log.debug("It's closed - copying deliverables");
-						}
-						
-			            Delivered deliverable = retrieveDeliverable(rid);
-			            if (deliverable == null) {
-			                Log.warn("Deliverable unavailable for " + rid);
-			                throw new HttpBindException("Unexpected RID error.",
-			                        BoshBindingError.itemNotFound);
-			            }
-			            connection.deliverBody(createDeliverable(deliverable.deliverables), true);
-					} else {
-						if(Log.isDebugEnabled()) {
-							Log.debug("It's still open - calling close()");
-						}
-						deliver(queuedConnection, Collections.singleton(new Deliverable("")));
-						connection.close();
-						
-						if(rid == (lastRequestID + 1)) {
-							lastRequestID = rid;
-						}
-					}
-					break;
-				}
-			}
+        HttpConnection queuedConnection = connectionQueue.get(rid);
+        if (queuedConnection != null) {
+            if(Log.isDebugEnabled()) {
+                Log.debug("Found previous connection in queue with rid " + rid);
+            }
+            if(queuedConnection.isClosed()) {
+                if(Log.isDebugEnabled()) {
+                    Log.debug("It's closed - copying deliverables");
+                }
+
+                Delivered deliverable = retrieveDeliverable(rid);
+                if (deliverable == null) {
+                    Log.warn("Deliverable unavailable for " + rid);
+                    throw new HttpBindException("Unexpected RID error.",
+                            BoshBindingError.itemNotFound);
+                }
+                connection.deliverBody(createDeliverable(deliverable.deliverables), true);
+            } else {
+                if(Log.isDebugEnabled()) {
+                    Log.debug("It's still open - calling close()");
+                }
+                deliver(queuedConnection, Collections.singleton(new Deliverable("")));
+                connection.close();
+
+                if(rid == (lastRequestID + 1)) {
+                    lastRequestID = rid;
+                }
+            }
         }
 
         checkOveractivity(isPoll);
@@ -830,56 +826,49 @@ public class HttpSession extends LocalClientSession {
 
         // We aren't supposed to hold connections open or we already have some packets waiting
         // to be sent to the client.
-        if (isPollingSession() || (pendingElements.size() > 0 && connection.getRequestId() == lastRequestID + 1)) {
+        if (isPollingSession() || (!pendingElements.isEmpty() && rid == lastRequestID + 1)) {
             fireConnectionOpened(connection);
-            synchronized(pendingElements) {
-                deliver(connection, pendingElements);
-                lastRequestID = connection.getRequestId();
-                pendingElements.clear();
-            }
+            deliver(connection, new ArrayList<Deliverable>(pendingElements));
+            lastRequestID = rid;
+            pendingElements.clear();
         }
         else {
             // With this connection we need to check if we will have too many connections open,
             // closing any extras.
+            connectionQueue.put(rid, connection);
+            int connectionsToClose;
+            if (hasHigherRequestId(rid)) {
+                // Current connection does not have the greatest rid. That means
+                // requests were received out of order, respond to all.
+                connectionsToClose = Integer.MAX_VALUE;
+            }
+            else {
+                // Everything's fine, number of current connections open tells us
+                // how many that we need to close.
+                connectionsToClose = getOpenConnectionCount() - hold;
+            }
 
-            connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
-
-            synchronized (connectionQueue) {
-	            int connectionsToClose;
-	            if(connectionQueue.get(connectionQueue.size() - 1) != connection) {
-	            	// Current connection does not have the greatest rid. That means
-	            	// requests were received out of order, respond to all.
-	            	connectionsToClose = connectionQueue.size();
-	            }
-	            else {
-	                // Everything's fine, number of current connections open tells us
-	            	// how many that we need to close.
-	            	connectionsToClose = getOpenConnectionCount() - hold;
-	            }
-	            int closed = 0;
-	            for (int i = 0; i < connectionQueue.size() && closed < connectionsToClose; i++) {
-	                HttpConnection toClose = connectionQueue.get(i);
-	                if (!toClose.isClosed() && toClose.getRequestId() == lastRequestID + 1) {
-	                    if(toClose == connection) {
-	                    	// Current connection has no continuation yet, just deliver.
-	                    	deliver("");
-	                    }
-	                    else {
-	                        toClose.close();
-	                    }
-	                    lastRequestID = toClose.getRequestId();
-	                    closed++;
-	                }
-	            }
+            // Respond to the open connections in rid order, starting with the oldest one.
+            for (int closed = 0; closed < connectionsToClose; closed++) {
+                HttpConnection toClose = connectionQueue.get(lastRequestID + 1);
+                if (toClose == null || toClose.isClosed()) {
+                    break;
+                }
+                if(toClose == connection) {
+                    // Current connection has no continuation yet, just deliver.
+                    deliver("");
+                }
+                else {
+                    toClose.close();
+                }
+                lastRequestID = toClose.getRequestId();
             }
         }
     }
 
     private int getOpenConnectionCount() {
         int count = 0;
-        // NOTE: synchronized by caller
-        for (HttpConnection connection : connectionQueue) {
+        for (HttpConnection connection : connectionQueue.values()) {
             if (!connection.isClosed()) {
                 count++;
             }
@@ -887,17 +876,22 @@ public class HttpSession extends LocalClientSession {
         return count;
     }
 
+    private boolean hasHigherRequestId(long rid) {
+        for (HttpConnection connection : connectionQueue.values()) {
+            if (connection.getRequestId() > rid) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void deliver(HttpConnection connection, Collection<Deliverable> deliverable)
             throws HttpConnectionClosedException, IOException {
         connection.deliverBody(createDeliverable(deliverable), true);
 
         Delivered delivered = new Delivered(deliverable);
         delivered.setRequestID(connection.getRequestId());
-        while (sentElements.size() > maxRequests) {
-            sentElements.remove(0);
-        }
-
-        sentElements.add(delivered);
+        sentElements.put(connection.getRequestId(), delivered);
     }
 
     private void fireConnectionOpened(HttpConnection connection) {
@@ -918,18 +912,10 @@ public class HttpSession extends LocalClientSession {
      *         protocol.
      */
     private void checkOveractivity(boolean isPoll) throws HttpBindException {
-    	int pendingConnections = 0;
+    	int pendingConnections = getOpenConnectionCount();
     	boolean overactivity = false;
     	String errorMessage = "Overactivity detected";
 
-    	synchronized (connectionQueue) {
-    		for (HttpConnection conn : connectionQueue) {
-    			if (!conn.isClosed()) {
-    				pendingConnections++;
-    			}
-    		}
-        }
-
         if(pendingConnections >= maxRequests) {
         	overactivity = true;
         	errorMessage += ", too many simultaneous requests.";
@@ -972,33 +958,23 @@ public class HttpSession extends LocalClientSession {
 
     private void deliver(Deliverable stanza) {
         Collection<Deliverable> deliverable = Arrays.asList(stanza);
-        boolean delivered = false;
-        int pendingConnections = 0;
-        synchronized (connectionQueue) {
-	        for (HttpConnection connection : connectionQueue) {
-                if (connection.isClosed()) {
-                    continue;
+        synchronized (connectionLock) {
+            HttpConnection connection;
+            while ((connection = connectionQueue.get(lastRequestID + 1)) != null && !connection.isClosed()) {
+                try {
+                    lastRequestID = connection.getRequestId();
+                    deliver(connection, deliverable);
+                    return;
                 }
-                pendingConnections++;
-	            try {
-	                if (connection.getRequestId() == lastRequestID + 1) {
-	                    lastRequestID = connection.getRequestId();
-	                    deliver(connection, deliverable);
-	                    delivered = true;
-	                    break;
-	                }
-	            }
-	            catch (HttpConnectionClosedException e) {
-	                /* Connection was closed, try the next one. Indicates a (concurrency?) bug. */
-	                Log.warn("Iterating over a connection that was closed. Openfire will recover from this problem, but it should not occur in the first place.");
+                catch (HttpConnectionClosedException e) {
+                    /* Connection was closed, try the next one. Indicates a (concurrency?) bug. */
+                    Log.warn("Iterating over a connection that was closed. Openfire will recover from this problem, but it should not occur in the first place.");
                 } catch (IOException e) {
                     Log.warn("An unexpected exception occurred while iterating over connections. Openfire will attempt to recover by ignoring this connection.", e);
                 }
             }
-        }
 
-        if (!delivered) {
-            if (pendingConnections > 0) {
+            if (getOpenConnectionCount() > 0) {
                 Log.warn("Unable to deliver a stanza (it is being queued instead), although there are available connections! RID / Connection processing is out of sync!");
             }
             pendingElements.add(stanza);
@@ -1033,16 +1009,15 @@ public class HttpSession extends LocalClientSession {
 
         try {
 	        // close connection(s) and deliver pending elements (if any)
-	        synchronized (connectionQueue) {
-		        for (HttpConnection toClose : connectionQueue) {
+	        List<Deliverable> undelivered;
+	        synchronized (connectionLock) {
+		        for (HttpConnection toClose : connectionQueue.values()) {
 		            try {
 		            	if (!toClose.isClosed()) {
 		            		if (!pendingElements.isEmpty() && toClose.getRequestId() == lastRequestID + 1) {
-		            			synchronized(pendingElements) {
-			            			deliver(toClose, pendingElements);
-					                lastRequestID = toClose.getRequestId();
-					                pendingElements.clear();
-		            			}
+		            			deliver(toClose, new ArrayList<Deliverable>(pendingElements));
+		            			lastRequestID = toClose.getRequestId();
+		            			pendingElements.clear();
 	            			} else {
 	            				toClose.deliverBody(null, true);
 	            			}
@@ -1054,13 +1029,12 @@ public class HttpSession extends LocalClientSession {
                         Log.debug("An unexpected exception occurred while closing a session.", e);
 		            }
 		        }
+		        undelivered = new ArrayList<Deliverable>(pendingElements);
+		        pendingElements.clear();
 	        }
 	
-	    	synchronized (pendingElements) {
-		        for (Deliverable deliverable : pendingElements) {
-		            failDelivery(deliverable.getPackets());
-		        }
-		        pendingElements.clear();
+	        for (Deliverable deliverable : undelivered) {
+	            failDelivery(deliverable.getPackets());
 	        }
         } finally { // ensure the session is removed from the session map
 	        for (SessionListener listener : listeners) {
@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Values indexed by the request ID (rid) of the requests of an HTTP session. A client may
+ * only have a few outstanding requests with consecutive rids, so the value of a rid is kept
+ * in the slot <tt>rid % capacity</tt> of a ring, where it replaces the value of an older rid
+ * that used the same slot. Values are read and written without locking.
+ *
+ * @param <T> the type of the values.
+ */
+final class RidRing<T> {
+
+    private volatile AtomicReferenceArray<Slot<T>> slots;
+
+    /**
+     * Creates a new ring.
+     *
+     * @param capacity the number of consecutive rids that the ring can hold.
+     */
+    RidRing(int capacity) {
+        slots = new AtomicReferenceArray<Slot<T>>(capacity);
+    }
+
+    /**
+     * Returns the value of a rid or null if the ring holds no value for the rid.
+     *
+     * @param rid the request ID.
+     * @return the value of the rid or null.
+     */
+    T get(long rid) {
+        AtomicReferenceArray<Slot<T>> ring = slots;
+        Slot<T> slot = ring.get(index(ring, rid));
+        return slot != null && slot.rid == rid ? slot.value : null;
+    }
+
+    /**
+     * Sets the value of a rid unless the ring holds the value of a newer rid in its slot.
+     *
+     * @param rid the request ID.
+     * @param value the value of the rid.
+     * @return true if the value was stored.
+     */
+    boolean put(long rid, T value) {
+        AtomicReferenceArray<Slot<T>> ring = slots;
+        int index = index(ring, rid);
+        Slot<T> newSlot = new Slot<T>(rid, value);
+        while (true) {
+            Slot<T> slot = ring.get(index);
+            if (slot != null && slot.rid > rid) {
+                return false;
+            }
+            if (ring.compareAndSet(index, slot, newSlot)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the value of a rid if it is the given value.
+     *
+     * @param rid the request ID.
+     * @param value the value to remove.
+     * @return true if the value was removed.
+     */
+    boolean remove(long rid, T value) {
+        AtomicReferenceArray<Slot<T>> ring = slots;
+        int index = index(ring, rid);
+        while (true) {
+            Slot<T> slot = ring.get(index);
+            if (slot == null || slot.rid != rid || slot.value != value) {
+                return false;
+            }
+            if (ring.compareAndSet(index, slot, null)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the values in the ring, in no particular order.
+     *
+     * @return the values in the ring.
+     */
+    List<T> values() {
+        AtomicReferenceArray<Slot<T>> ring = slots;
+        List<T> values = new ArrayList<T>(ring.length());
+        for (int i = 0; i < ring.length(); i++) {
+            Slot<T> slot = ring.get(i);
+            if (slot != null) {
+                values.add(slot.value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Makes the ring large enough to hold the values of the given number of consecutive
+     * rids. Must be called before the ring is shared with other threads, since values
+     * stored during the resize may be lost.
+     *
+     * @param capacity the number of consecutive rids that the ring must hold.
+     */
+    synchronized void ensureCapacity(int capacity) {
+        AtomicReferenceArray<Slot<T>> ring = slots;
+        if (ring.length() >= capacity) {
+            return;
+        }
+        AtomicReferenceArray<Slot<T>> newRing = new AtomicReferenceArray<Slot<T>>(capacity);
+        for (int i = 0; i < ring.length(); i++) {
+            Slot<T> slot = ring.get(i);
+            if (slot != null) {
+                newRing.set(index(newRing, slot.rid), slot);
+            }
+        }
+        slots = newRing;
+    }
+
+    private static int index(AtomicReferenceArray<?> ring, long rid) {
+        int index = (int) (rid % ring.length());
+        return index < 0 ? index + ring.length() : index;
+    }
+
+    private static final class Slot<T> {
+
+        private final long rid;
+        private final T value;
+
+        Slot(long rid, T value) {
+            this.rid = rid;
+            this.value = value;
+        }
+    }
+}
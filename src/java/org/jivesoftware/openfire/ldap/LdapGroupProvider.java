@@ -21,8 +21,11 @@
 package org.jivesoftware.openfire.ldap;
 
 import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
@@ -32,10 +35,7 @@ import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
 import javax.naming.directory.Attribute;
 import javax.naming.directory.Attributes;
-import javax.naming.directory.SearchControls;
-import javax.naming.directory.SearchResult;
 import javax.naming.ldap.LdapContext;
-import javax.naming.ldap.LdapName;
 
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.group.AbstractGroupProvider;
@@ -217,16 +217,6 @@ public class LdapGroupProvider extends AbstractGroupProvider {
         Pattern pattern =
                 Pattern.compile("(?i)(^" + manager.getUsernameField() + "=)([^,]+)(.+)");
 
-        SearchControls searchControls = new SearchControls();
-        searchControls.setReturningAttributes(new String[] { manager.getUsernameField() });
-        // See if recursive searching is enabled. Otherwise, only search one level.
-        if (manager.isSubTreeSearch()) {
-            searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
-        }
-        else {
-            searchControls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
-        }
-
         String name;
         String description;
         try {
@@ -244,50 +234,48 @@ public class LdapGroupProvider extends AbstractGroupProvider {
         Set<JID> members = new TreeSet<JID>();
         Attribute memberField = a.get(manager.getGroupMemberField());
         if (memberField != null) {
+            List<String> usernames = new ArrayList<String>();
+            // DNs of members whose username is not part of the DN
+            List<String> memberDNs = new ArrayList<String>();
             NamingEnumeration ne = memberField.getAll();
             while (ne.hasMore()) {
                 String username = (String) ne.next();
                 // If not posix mode, each group member is stored as a full DN.
                 if (!manager.isPosixMode()) {
-                    try {
-                        // Try to find the username with a regex pattern match.
-                        Matcher matcher = pattern.matcher(username);
-                        if (matcher.matches() && matcher.groupCount() == 3) {
-                            // The username is in the DN, no additional search needed
-                            username = matcher.group(2);
-                        }
-                        // The regex pattern match failed. This will happen if the
-                        // the member DN's don't use the standard username field. For
-                        // example, Active Directory has a username field of
-                        // sAMAccountName, but stores group members as "CN=...".
-                        else {
-                            // Create an LDAP name with the full DN.
-                            LdapName ldapName = new LdapName(username);
-                            // Turn the LDAP name into something we can use in a
-                            // search by stripping off the comma.
-                            StringBuilder userFilter = new StringBuilder();
-                            userFilter.append("(&(");
-                            userFilter.append(ldapName.get(ldapName.size() - 1));
-                            userFilter.append(")");
-                            userFilter.append(MessageFormat.format(manager.getSearchFilter(), "*"));
-                            userFilter.append(")");
-                            NamingEnumeration usrAnswer = ctx.search("",
-                                    userFilter.toString(), searchControls);
-                            if (usrAnswer != null && usrAnswer.hasMoreElements()) {
-                                Attribute usernameAttr = ((SearchResult)usrAnswer.next()).getAttributes().get(manager.getUsernameField());
-                                if (usernameAttr != null) {
-                                    username = (String)usernameAttr.get();
-                                }
-                            }
-                            // Close the enumeration.
-                            usrAnswer.close();
-                        }
+                    // Try to find the username with a regex pattern match.
+                    Matcher matcher = pattern.matcher(username);
+                    if (matcher.matches() && matcher.groupCount() == 3) {
+                        // The username is in the DN, no additional search needed
+                        username = matcher.group(2);
                     }
-                    catch (Exception e) {
-                        // TODO: A NPE is occuring here
-                        Log.error(e.getMessage(), e);
+                    // The regex pattern match failed. This will happen if the
+                    // the member DN's don't use the standard username field. For
+                    // example, Active Directory has a username field of
+                    // sAMAccountName, but stores group members as "CN=...".
+                    else {
+                        memberDNs.add(username);
+                        continue;
                     }
                 }
+                usernames.add(username);
+            }
+            // Close the enumeration.
+            ne.close();
+            if (!memberDNs.isEmpty()) {
+                // Search the usernames of all these members at once
+                Map<String, String> found = Collections.emptyMap();
+                try {
+                    found = manager.findMemberUsernames(ctx, memberDNs);
+                }
+                catch (Exception e) {
+                    Log.error(e.getMessage(), e);
+                }
+                for (String memberDN : memberDNs) {
+                    String username = found.get(memberDN);
+                    usernames.add(username != null ? username : memberDN);
+                }
+            }
+            for (String username : usernames) {
                 // A search filter may have been defined in the LdapUserProvider.
                 // Therefore, we have to try to load each user we found to see if
                 // it passes the filter.
@@ -324,8 +312,6 @@ public class LdapGroupProvider extends AbstractGroupProvider {
                     }
                 }
             }
-            // Close the enumeration.
-            ne.close();
         }
         if (manager.isDebugEnabled()) {
             Log.debug("LdapGroupProvider: Adding group \"" + name + "\" with " + members.size() +
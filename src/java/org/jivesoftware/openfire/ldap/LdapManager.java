@@ -20,12 +20,14 @@
 
 package org.jivesoftware.openfire.ldap;
 
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
@@ -35,14 +37,17 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.naming.Context;
+import javax.naming.InvalidNameException;
 import javax.naming.NamingEnumeration;
 import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
 import javax.naming.directory.DirContext;
 import javax.naming.directory.InitialDirContext;
 import javax.naming.directory.SearchControls;
 import javax.naming.directory.SearchResult;
 import javax.naming.ldap.Control;
 import javax.naming.ldap.LdapContext;
+import javax.naming.ldap.LdapName;
 import javax.naming.ldap.PagedResultsControl;
 import javax.naming.ldap.PagedResultsResponseControl;
 import javax.naming.ldap.SortControl;
@@ -54,6 +59,8 @@ import org.jivesoftware.openfire.group.GroupNotFoundException;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.JiveInitialLdapContext;
+import org.jivesoftware.util.cache.Cache;
+import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmpp.packet.JID;
@@ -91,6 +98,10 @@ import org.xmpp.packet.JID;
  *          "com.sun.jndi.ldap.LdapCtxFactory" will be used.</li>
  *      <li>ldap.connectionPoolEnabled -- true if an LDAP connection pool should be used.
  *          False if not set.</li>
+ *      <li>ldap.queryCache.enabled -- true if the DNs of users and groups and the usernames
+ *          of group members should be cached. True if not set.</li>
+ *      <li>ldap.memberBatchSize -- maximum number of group members whose usernames are
+ *          searched at once. The default value is 100.</li>
  * </ul>
  *
  * @author Matt Tucker
@@ -158,6 +169,13 @@ public class LdapManager {
             }
         };
         instance = new LdapManager(properties);
+        // Instances created to test settings don't cache the results of queries
+        if (JiveGlobals.getBooleanProperty("ldap.queryCache.enabled", true)) {
+            instance.userDNCache = CacheFactory.createCache("LDAP UserDN");
+            instance.groupDNCache = CacheFactory.createCache("LDAP GroupDN");
+            instance.memberCache = CacheFactory.createCache("LDAP Member Usernames");
+        }
+        LdapStatistics.register();
     }
 
 
@@ -192,6 +210,12 @@ public class LdapManager {
     private boolean posixMode = false;
     private String groupSearchFilter = null;
 
+    // Caches of the DNs of users and groups (by base DN and name) and of the usernames
+    // of group members (by member DN), or null if results are not cached
+    private Cache<String, String> userDNCache;
+    private Cache<String, String> groupDNCache;
+    private Cache<String, String> memberCache;
+
     private final Map<String, String> properties;
 
     /**
@@ -947,6 +971,29 @@ public class LdapManager {
      * @see #findUserDN(String) to search using the default baseDN and alternateBaseDN.
      */
     public String findUserDN(String username, String baseDN) throws Exception {
+        String key = baseDN + '|' + username;
+        if (userDNCache != null) {
+            String userDN = userDNCache.get(key);
+            if (userDN != null) {
+                LdapStatistics.USER_DN.hits(1);
+                return userDN;
+            }
+        }
+        LdapStatistics.USER_DN.misses(1);
+        long start = System.currentTimeMillis();
+        try {
+            String userDN = searchUserDN(username, baseDN);
+            if (userDNCache != null) {
+                userDNCache.put(key, userDN);
+            }
+            return userDN;
+        }
+        finally {
+            LdapStatistics.USER_DN.queried(start);
+        }
+    }
+
+    private String searchUserDN(String username, String baseDN) throws Exception {
         boolean debug = Log.isDebugEnabled();
         //Support for usernameSuffix
         username = username + usernameSuffix;
@@ -1095,6 +1142,29 @@ public class LdapManager {
      * @see #findGroupDN(String) to search using the default baseDN and alternateBaseDN.
      */
     public String findGroupDN(String groupname, String baseDN) throws Exception {
+        String key = baseDN + '|' + groupname;
+        if (groupDNCache != null) {
+            String groupDN = groupDNCache.get(key);
+            if (groupDN != null) {
+                LdapStatistics.GROUP_DN.hits(1);
+                return groupDN;
+            }
+        }
+        LdapStatistics.GROUP_DN.misses(1);
+        long start = System.currentTimeMillis();
+        try {
+            String groupDN = searchGroupDN(groupname, baseDN);
+            if (groupDNCache != null) {
+                groupDNCache.put(key, groupDN);
+            }
+            return groupDN;
+        }
+        finally {
+            LdapStatistics.GROUP_DN.queried(start);
+        }
+    }
+
+    private String searchGroupDN(String groupname, String baseDN) throws Exception {
         boolean debug = Log.isDebugEnabled();
         if (debug) {
             Log.debug("LdapManager: Trying to find a groups's DN based on it's groupname. " + groupNameField + ": " + groupname
@@ -1348,6 +1418,7 @@ public class LdapManager {
      *      performed on.
      */
     public void setUsernameField(String usernameField) {
+        clearCaches();
         this.usernameField = usernameField;
         if (usernameField == null) {
             properties.remove("ldap.usernameField");
@@ -1364,6 +1435,7 @@ public class LdapManager {
      * @param usernameSuffix the String to append to usernames for lookups
      */
     public void setUsernameSuffix(String usernameSuffix) {
+        clearCaches();
         this.usernameSuffix = usernameSuffix;
         if (usernameSuffix == null) {
             properties.remove("ldap.usernameSuffix");
@@ -1624,6 +1696,7 @@ public class LdapManager {
      *      when searching for users.
      */
     public void setSearchFilter(String searchFilter) {
+        clearCaches();
         this.searchFilter = searchFilter;
         properties.put("ldap.searchFilter", searchFilter);
     }
@@ -1651,6 +1724,7 @@ public class LdapManager {
      * @param subTreeSearch true if the entire tree under the base DN will be searched.
      */
     public void setSubTreeSearch(boolean subTreeSearch) {
+        clearCaches();
         this.subTreeSearch = subTreeSearch;
         properties.put("ldap.subTreeSearch", String.valueOf(subTreeSearch));
     }
@@ -1709,6 +1783,7 @@ public class LdapManager {
      * @param groupNameField the field used for groups.
      */
     public void setGroupNameField(String groupNameField) {
+        clearCaches();
         this.groupNameField = groupNameField;
         properties.put("ldap.groupNameField", groupNameField);
     }
@@ -1804,6 +1879,7 @@ public class LdapManager {
      *      when searching for groups.
      */
     public void setGroupSearchFilter(String groupSearchFilter) {
+        clearCaches();
         this.groupSearchFilter = groupSearchFilter;
         properties.put("ldap.groupSearchFilter", groupSearchFilter);
     }
@@ -1820,10 +1896,192 @@ public class LdapManager {
     }
 
     public void setIsEnclosingDNs(boolean enable) {
+        clearCaches();
         this.encloseDNs = enable;
         properties.put("ldap.encloseDNs", Boolean.toString(enable));
     }
 
+    /**
+     * Removes the cached results of queries, which depend on the settings of the manager.
+     */
+    private void clearCaches() {
+        if (userDNCache != null) {
+            userDNCache.clear();
+            groupDNCache.clear();
+            memberCache.clear();
+        }
+    }
+
+    /**
+     * Finds the usernames of group members given their DNs, as stored in the member field
+     * of groups. Members are searched in batches with a filter that matches the relative DN
+     * of many members at once instead of with a search per member, and the results are read
+     * in pages if the <tt>ldap.pagedResultsSize</tt> property is set.
+     *
+     * @param ctx the context to search in.
+     * @param memberDNs the DNs of the members.
+     * @return the usernames of the members that were found, by member DN.
+     * @throws NamingException if a search failed.
+     * @throws IOException if the paged results control could not be created.
+     */
+    Map<String, String> findMemberUsernames(LdapContext ctx, Collection<String> memberDNs)
+            throws NamingException, IOException {
+        Map<String, String> usernames = new HashMap<String, String>();
+        // The members that are not cached, by the type of their relative DN (e.g. cn)
+        Map<String, List<String>> membersByType = new HashMap<String, List<String>>();
+        int hits = 0;
+        for (String memberDN : memberDNs) {
+            String username = memberCache != null ? memberCache.get(memberDN) : null;
+            if (username != null) {
+                usernames.put(memberDN, username);
+                hits++;
+                continue;
+            }
+            try {
+                LdapName name = new LdapName(memberDN);
+                if (name.isEmpty()) {
+                    continue;
+                }
+                String type = name.getRdn(name.size() - 1).getType().toLowerCase();
+                List<String> members = membersByType.get(type);
+                if (members == null) {
+                    members = new ArrayList<String>();
+                    membersByType.put(type, members);
+                }
+                members.add(memberDN);
+            }
+            catch (InvalidNameException e) {
+                Log.debug("LdapManager: Invalid member DN: " + memberDN, e);
+            }
+        }
+        LdapStatistics.MEMBERS.hits(hits);
+        LdapStatistics.MEMBERS.misses(memberDNs.size() - hits);
+
+        int batchSize = getIntProperty("ldap.memberBatchSize", 100);
+        for (Map.Entry<String, List<String>> entry : membersByType.entrySet()) {
+            List<String> members = entry.getValue();
+            for (int i = 0; i < members.size(); i += batchSize) {
+                List<String> batch = members.subList(i, Math.min(members.size(), i + batchSize));
+                searchMembers(ctx, entry.getKey(), batch, usernames);
+            }
+        }
+        return usernames;
+    }
+
+    private void searchMembers(LdapContext ctx, String type, List<String> memberDNs,
+            Map<String, String> usernames) throws NamingException, IOException {
+        // The members, by the value of their relative DN
+        Map<String, List<String>> membersByValue = new HashMap<String, List<String>>();
+        StringBuilder filter = new StringBuilder();
+        filter.append("(&(|");
+        for (String memberDN : memberDNs) {
+            LdapName name = new LdapName(memberDN);
+            String value = name.getRdn(name.size() - 1).getValue().toString();
+            List<String> members = membersByValue.get(value.toLowerCase());
+            if (members == null) {
+                members = new ArrayList<String>(1);
+                membersByValue.put(value.toLowerCase(), members);
+                filter.append("(").append(type).append("=").append(sanitizeSearchFilter(value)).append(")");
+            }
+            members.add(memberDN);
+        }
+        filter.append(")").append(MessageFormat.format(getSearchFilter(), "*")).append(")");
+
+        SearchControls searchControls = new SearchControls();
+        // See if recursive searching is enabled. Otherwise, only search one level.
+        if (isSubTreeSearch()) {
+            searchControls.setSearchScope(SearchControls.SUBTREE_SCOPE);
+        }
+        else {
+            searchControls.setSearchScope(SearchControls.ONELEVEL_SCOPE);
+        }
+        searchControls.setReturningAttributes(new String[] { usernameField, type });
+
+        // The usernames found for a relative DN value, by the DN of their entry
+        Map<String, Map<LdapName, String>> results = new HashMap<String, Map<LdapName, String>>();
+        int pageSize = getIntProperty("ldap.pagedResultsSize", -1);
+        byte[] cookie = null;
+        long start = System.currentTimeMillis();
+        try {
+            // Run through all pages of results (one page is also possible)
+            do {
+                if (pageSize > 0) {
+                    ctx.setRequestControls(new Control[] { cookie == null ?
+                            new PagedResultsControl(pageSize, Control.NONCRITICAL) :
+                            new PagedResultsControl(pageSize, cookie, Control.CRITICAL) });
+                }
+                NamingEnumeration<SearchResult> answer = ctx.search("", filter.toString(), searchControls);
+                while (answer.hasMoreElements()) {
+                    SearchResult result = answer.next();
+                    Attribute usernameAttr = result.getAttributes().get(usernameField);
+                    Attribute valueAttr = result.getAttributes().get(type);
+                    if (usernameAttr == null || valueAttr == null) {
+                        continue;
+                    }
+                    LdapName entryDN = new LdapName(result.getNameInNamespace());
+                    String username = (String) usernameAttr.get();
+                    NamingEnumeration<?> values = valueAttr.getAll();
+                    while (values.hasMore()) {
+                        String value = values.next().toString().toLowerCase();
+                        Map<LdapName, String> entries = results.get(value);
+                        if (entries == null) {
+                            entries = new HashMap<LdapName, String>();
+                            results.put(value, entries);
+                        }
+                        entries.put(entryDN, username);
+                    }
+                }
+                answer.close();
+                // Examine the paged results control response
+                cookie = null;
+                Control[] controls = ctx.getResponseControls();
+                if (controls != null) {
+                    for (Control control : controls) {
+                        if (control instanceof PagedResultsResponseControl) {
+                            cookie = ((PagedResultsResponseControl) control).getCookie();
+                        }
+                    }
+                }
+            } while (cookie != null);
+        }
+        finally {
+            ctx.setRequestControls(null);
+            LdapStatistics.MEMBERS.queried(start);
+        }
+
+        for (Map.Entry<String, List<String>> entry : membersByValue.entrySet()) {
+            Map<LdapName, String> entries = results.get(entry.getKey());
+            if (entries == null) {
+                continue;
+            }
+            for (String memberDN : entry.getValue()) {
+                // Prefer the entry with the DN of the member. Otherwise, use any entry with
+                // the same relative DN since the DN of the member may be stored in another form.
+                String username = entries.get(new LdapName(memberDN));
+                if (username == null) {
+                    username = entries.values().iterator().next();
+                }
+                usernames.put(memberDN, username);
+                if (memberCache != null) {
+                    memberCache.put(memberDN, username);
+                }
+            }
+        }
+    }
+
+    private int getIntProperty(String name, int defaultValue) {
+        String value = properties.get(name);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                // poorly formatted number, ignoring
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * Generic routine for retrieving a list of results from the LDAP server.  It's meant to be very
      * flexible so that just about any query for a list of results can make use of it without having
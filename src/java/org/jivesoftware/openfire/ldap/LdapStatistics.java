@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.ldap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+
+/**
+ * Latency and cache hit rate of a type of LDAP query. Every type of query reports the
+ * average time of the searches sent to the directory and the percentage of lookups that
+ * were answered by a cache.
+ */
+final class LdapStatistics {
+
+    /**
+     * Searches for the DN of a user.
+     */
+    static final LdapStatistics USER_DN = new LdapStatistics("user_dn");
+
+    /**
+     * Searches for the DN of a group.
+     */
+    static final LdapStatistics GROUP_DN = new LdapStatistics("group_dn");
+
+    /**
+     * Searches for the usernames of group members.
+     */
+    static final LdapStatistics MEMBERS = new LdapStatistics("members");
+
+    private final String type;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong queryTime = new AtomicLong();
+
+    private LdapStatistics(String type) {
+        this.type = type;
+    }
+
+    /**
+     * Records lookups that were answered by a cache.
+     *
+     * @param count the number of lookups.
+     */
+    void hits(int count) {
+        hits.addAndGet(count);
+    }
+
+    /**
+     * Records lookups that had to query the directory.
+     *
+     * @param count the number of lookups.
+     */
+    void misses(int count) {
+        misses.addAndGet(count);
+    }
+
+    /**
+     * Records a search sent to the directory.
+     *
+     * @param start the time in milliseconds when the search started.
+     */
+    void queried(long start) {
+        queries.incrementAndGet();
+        queryTime.addAndGet(System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Adds the statistics of all query types to the statistics manager.
+     */
+    static void register() {
+        USER_DN.addStatistics();
+        GROUP_DN.addStatistics();
+        MEMBERS.addStatistics();
+    }
+
+    private void addStatistics() {
+        StatisticsManager.getInstance().addStatistic("ldap_" + type + "_time",
+                new i18nStatistic("ldap." + type + ".time", Statistic.Type.count) {
+                    public double sample() {
+                        long count = queries.getAndSet(0);
+                        long time = queryTime.getAndSet(0);
+                        return count == 0 ? 0 : (double) time / count;
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic("ldap_" + type + "_hits",
+                new i18nStatistic("ldap." + type + ".hits", Statistic.Type.count) {
+                    public double sample() {
+                        long hitCount = hits.getAndSet(0);
+                        long total = hitCount + misses.getAndSet(0);
+                        return total == 0 ? 0 : 100.0 * hitCount / total;
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+    }
+}
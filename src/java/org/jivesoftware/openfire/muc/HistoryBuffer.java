@@ -0,0 +1,502 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc;
+
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.dom4j.Element;
+import org.jivesoftware.openfire.OfflineMessageCodec;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.XMPPDateTimeFormat;
+import org.xmpp.packet.Message;
+
+/**
+ * Fixed capacity ring of the messages in the history of a room. Messages are kept in the
+ * compact encoding of {@link OfflineMessageCodec} together with their timestamp and text
+ * length, so history requests can be evaluated without decoding them, and are only decoded
+ * when they are sent to an occupant.<p>
+ *
+ * Every message gets a sequence number that tells its position in the ring. Readers take a
+ * {@link Snapshot} with the range of sequence numbers present when it was taken and read
+ * the ring without locking. Messages overwritten after the snapshot was taken are skipped.<p>
+ *
+ * The memory used by the history of all rooms is limited by the
+ * <tt>xmpp.muc.history.maxMemory</tt> property (in bytes). Once the limit is reached, rooms
+ * adding messages drop their oldest messages, keeping at least {@link #MIN_RETAINED}.
+ */
+class HistoryBuffer {
+
+    /**
+     * Number of messages that a room keeps even when the memory limit was reached.
+     */
+    static final int MIN_RETAINED = 5;
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Estimated memory used by an entry besides the characters of its stanza.
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final long DEFAULT_MAX_MEMORY = 128 * 1024 * 1024;
+
+    private static final XMPPDateTimeFormat xmppDateTime = new XMPPDateTimeFormat();
+
+    /**
+     * Estimated memory used by the history of all rooms.
+     */
+    private static final AtomicLong totalMemory = new AtomicLong();
+
+    private volatile AtomicReferenceArray<Entry> entries = new AtomicReferenceArray<Entry>(INITIAL_CAPACITY);
+    /**
+     * Sequence number of the oldest message in the ring. Guarded by this.
+     */
+    private long first = 0;
+    /**
+     * Sequence number of the next message added to the ring. Guarded by this.
+     */
+    private long next = 0;
+    /**
+     * Latest room subject change or null if none exists yet. Guarded by this.
+     */
+    private Entry subject;
+    /**
+     * Estimated memory used by the messages in the ring. Guarded by this.
+     */
+    private long memory = 0;
+
+    /**
+     * Adds a message to the history.
+     *
+     * @param message the message to add, including its delay information.
+     * @param capacity the maximum number of messages to keep besides the latest subject
+     *        change, or -1 if the number of messages is not limited.
+     * @param subjectChange true if the message changes the room's subject.
+     */
+    synchronized void add(Message message, int capacity, boolean subjectChange) {
+        Entry entry = new Entry(next, getTimestamp(message), getTextLength(message),
+                OfflineMessageCodec.encode(message.getElement()));
+        if (subjectChange) {
+            subject = entry;
+        }
+        if (capacity == 0) {
+            // Only the subject change is kept (outside of the ring)
+            clearRing();
+            next++;
+            first = next;
+            return;
+        }
+        ensureCapacity(capacity);
+        if (capacity > 0) {
+            while (next - first >= capacity) {
+                removeOldest();
+            }
+        }
+        insert(entry);
+        memory += entry.getMemorySize();
+        totalMemory.addAndGet(entry.getMemorySize());
+        if (totalMemory.get() > getMaxMemory()) {
+            while (next - first > MIN_RETAINED && totalMemory.get() > getMaxMemory()) {
+                removeOldest();
+            }
+        }
+    }
+
+    /**
+     * Adds an entry keeping the ring sorted by timestamp. Messages may be added out of order
+     * when running inside of a cluster, in which case the newer messages are moved one
+     * position forward (and get a new sequence number).
+     */
+    private void insert(Entry entry) {
+        long position = next;
+        while (position > first) {
+            Entry previous = get(position - 1);
+            if (previous.timestamp <= entry.timestamp) {
+                break;
+            }
+            Entry moved = previous.withSequence(position);
+            set(position, moved);
+            if (subject == previous) {
+                subject = moved;
+            }
+            position--;
+        }
+        Entry inserted = entry.withSequence(position);
+        set(position, inserted);
+        if (subject == entry) {
+            subject = inserted;
+        }
+        next++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        int length = entries.length();
+        int size = (int) (next - first);
+        int required = capacity > 0 ? capacity : size + 1;
+        if (capacity > 0 ? length == capacity : length >= required) {
+            return;
+        }
+        int newLength = capacity > 0 ? capacity : Math.max(length * 2, required);
+        AtomicReferenceArray<Entry> newEntries = new AtomicReferenceArray<Entry>(newLength);
+        // Keep the most recent messages that fit in the new ring
+        for (long sequence = Math.max(first, next - newLength); sequence < next; sequence++) {
+            newEntries.set((int) (sequence % newLength), get(sequence));
+        }
+        while (next - first > newLength) {
+            Entry removed = get(first);
+            memory -= removed.getMemorySize();
+            totalMemory.addAndGet(-removed.getMemorySize());
+            first++;
+        }
+        // Snapshots taken before the resize keep reading the old ring
+        entries = newEntries;
+    }
+
+    private void removeOldest() {
+        AtomicReferenceArray<Entry> ring = entries;
+        int index = (int) (first % ring.length());
+        Entry removed = ring.get(index);
+        ring.set(index, null);
+        memory -= removed.getMemorySize();
+        totalMemory.addAndGet(-removed.getMemorySize());
+        first++;
+    }
+
+    private void clearRing() {
+        while (next > first) {
+            removeOldest();
+        }
+    }
+
+    /**
+     * Removes all the messages of the history, including the latest subject change, and
+     * releases the memory they were using.
+     */
+    synchronized void clear() {
+        clearRing();
+        subject = null;
+    }
+
+    /**
+     * Replaces every message in the history with the result of a rewriter. Used when the
+     * delay information of the messages has to be updated.
+     *
+     * @param rewriter the rewriter to apply to every message.
+     */
+    synchronized void rewrite(Rewriter rewriter) {
+        for (long sequence = first; sequence < next; sequence++) {
+            Entry entry = get(sequence);
+            Entry rewritten = entry.rewrite(rewriter);
+            memory += rewritten.getMemorySize() - entry.getMemorySize();
+            totalMemory.addAndGet(rewritten.getMemorySize() - entry.getMemorySize());
+            set(sequence, rewritten);
+            if (subject == entry) {
+                subject = rewritten;
+            }
+        }
+        if (subject != null && subject.sequence < first) {
+            subject = subject.rewrite(rewriter);
+        }
+    }
+
+    /**
+     * Returns the latest room subject change or null if none exists yet.
+     *
+     * @return the latest room subject change or null if none exists yet.
+     */
+    synchronized Entry getSubject() {
+        return subject;
+    }
+
+    /**
+     * Returns the messages currently in the history, sorted from oldest to newest. The
+     * latest subject change comes first if it is no longer in the ring.
+     *
+     * @return the messages currently in the history.
+     */
+    synchronized Snapshot snapshot() {
+        return new Snapshot(entries, first, next, subject);
+    }
+
+    /**
+     * Returns the number of messages in the ring.
+     *
+     * @return the number of messages in the ring.
+     */
+    synchronized int size() {
+        return (int) (next - first);
+    }
+
+    /**
+     * Returns the estimated memory used by the messages in the ring.
+     *
+     * @return the estimated memory in bytes.
+     */
+    synchronized long getMemory() {
+        return memory;
+    }
+
+    private Entry get(long sequence) {
+        AtomicReferenceArray<Entry> ring = entries;
+        return ring.get((int) (sequence % ring.length()));
+    }
+
+    private void set(long sequence, Entry entry) {
+        AtomicReferenceArray<Entry> ring = entries;
+        ring.set((int) (sequence % ring.length()), entry);
+    }
+
+    /**
+     * Returns the estimated memory used by the history of all rooms.
+     *
+     * @return the estimated memory in bytes.
+     */
+    static long getTotalMemory() {
+        return totalMemory.get();
+    }
+
+    private static long getMaxMemory() {
+        return JiveGlobals.getLongProperty("xmpp.muc.history.maxMemory", DEFAULT_MAX_MEMORY);
+    }
+
+    private static long getTimestamp(Message message) {
+        Element delay = message.getChildElement("delay", "urn:xmpp:delay");
+        if (delay != null && delay.attributeValue("stamp") != null) {
+            try {
+                return xmppDateTime.parseString(delay.attributeValue("stamp")).getTime();
+            }
+            catch (Exception e) {
+                // Use the current time
+            }
+        }
+        return System.currentTimeMillis();
+    }
+
+    private static int getTextLength(Message message) {
+        String text = message.getBody() == null ? message.getSubject() : message.getBody();
+        return text == null ? -1 : text.length();
+    }
+
+    /**
+     * Updates a message of the history.
+     */
+    interface Rewriter {
+
+        /**
+         * Updates a message of the history. The message is a copy, changes are stored back
+         * in the history.
+         *
+         * @param message the message to update.
+         */
+        void rewrite(Message message);
+    }
+
+    /**
+     * Message in the history of a room.
+     */
+    static final class Entry {
+
+        private final long sequence;
+        private final long timestamp;
+        private final int textLength;
+        private final String stanza;
+
+        private Entry(long sequence, long timestamp, int textLength, String stanza) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.textLength = textLength;
+            this.stanza = stanza;
+        }
+
+        private Entry withSequence(long newSequence) {
+            return new Entry(newSequence, timestamp, textLength, stanza);
+        }
+
+        private Entry rewrite(Rewriter rewriter) {
+            Message message = getMessage();
+            rewriter.rewrite(message);
+            return new Entry(sequence, timestamp, textLength, OfflineMessageCodec.encode(message.getElement()));
+        }
+
+        /**
+         * Returns the time when the message was sent to the room.
+         *
+         * @return the time in milliseconds when the message was sent to the room.
+         */
+        long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the length of the body of the message, or of its subject if it has no
+         * body, or -1 if it has neither.
+         *
+         * @return the length of the text of the message.
+         */
+        int getTextLength() {
+            return textLength;
+        }
+
+        /**
+         * Returns a new copy of the message.
+         *
+         * @return a new copy of the message.
+         */
+        Message getMessage() {
+            return new Message(OfflineMessageCodec.decode(stanza), true);
+        }
+
+        private int getMemorySize() {
+            return stanza.length() * 2 + ENTRY_OVERHEAD;
+        }
+    }
+
+    /**
+     * Messages present in the history when the snapshot was taken. Messages removed from
+     * the ring after that are returned as null.
+     */
+    static final class Snapshot {
+
+        private final AtomicReferenceArray<Entry> ring;
+        private final long first;
+        private final long next;
+        private final Entry changedSubject;
+        /**
+         * The latest subject change if it is no longer in the ring, otherwise null.
+         */
+        private final Entry subject;
+
+        private Snapshot(AtomicReferenceArray<Entry> ring, long first, long next, Entry changedSubject) {
+            this.ring = ring;
+            this.first = first;
+            this.next = next;
+            this.changedSubject = changedSubject;
+            this.subject = changedSubject != null && changedSubject.sequence < first ? changedSubject : null;
+        }
+
+        /**
+         * Returns the latest room subject change when the snapshot was taken or null if
+         * none exists.
+         *
+         * @return the latest room subject change or null if none exists.
+         */
+        Entry getChangedSubject() {
+            return changedSubject;
+        }
+
+        /**
+         * Returns the number of messages in the snapshot.
+         *
+         * @return the number of messages in the snapshot.
+         */
+        int size() {
+            return (int) (next - first) + (subject != null ? 1 : 0);
+        }
+
+        /**
+         * Returns a message of the snapshot, or null if it was removed from the history
+         * after the snapshot was taken.
+         *
+         * @param index the position of the message, from 0 (oldest) to size - 1 (newest).
+         * @return the message or null if it was removed from the history.
+         */
+        Entry get(int index) {
+            if (subject != null) {
+                if (index == 0) {
+                    return subject;
+                }
+                index--;
+            }
+            long sequence = first + index;
+            Entry entry = ring.get((int) (sequence % ring.length()));
+            return entry != null && entry.sequence == sequence ? entry : null;
+        }
+
+        /**
+         * Returns an iterator of the messages of the snapshot that decodes each message when
+         * it is returned. Removed messages are skipped.
+         *
+         * @param index the position of the first message returned by {@link ListIterator#next()}.
+         * @return an iterator of the messages of the snapshot.
+         */
+        ListIterator<Message> iterator(int index) {
+            return new SnapshotIterator(this, index);
+        }
+    }
+
+    private static final class SnapshotIterator implements ListIterator<Message> {
+
+        private final Snapshot snapshot;
+        private int cursor;
+
+        private SnapshotIterator(Snapshot snapshot, int cursor) {
+            this.snapshot = snapshot;
+            this.cursor = cursor;
+        }
+
+        public boolean hasNext() {
+            while (cursor < snapshot.size() && snapshot.get(cursor) == null) {
+                cursor++;
+            }
+            return cursor < snapshot.size();
+        }
+
+        public Message next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return snapshot.get(cursor++).getMessage();
+        }
+
+        public boolean hasPrevious() {
+            while (cursor > 0 && snapshot.get(cursor - 1) == null) {
+                cursor--;
+            }
+            return cursor > 0;
+        }
+
+        public Message previous() {
+            if (!hasPrevious()) {
+                throw new NoSuchElementException();
+            }
+            return snapshot.get(--cursor).getMessage();
+        }
+
+        public int nextIndex() {
+            return cursor;
+        }
+
+        public int previousIndex() {
+            return cursor - 1;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void set(Message message) {
+            throw new UnsupportedOperationException();
+        }
+
+        public void add(Message message) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -23,8 +23,6 @@ package org.jivesoftware.openfire.muc;
 import java.text.ParseException;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.ListIterator;
 
 import org.dom4j.Element;
 import org.jivesoftware.openfire.muc.spi.LocalMUCRole;
@@ -143,29 +141,29 @@ public class HistoryRequest {
             }
         }
         else {
-            Message changedSubject = roomHistory.getChangedSubject();
+            HistoryBuffer.Snapshot history = roomHistory.getSnapshot();
+            HistoryBuffer.Entry changedSubject = history.getChangedSubject();
             boolean addChangedSubject = (changedSubject != null) ? true : false;
             if (getMaxChars() == 0) {
                 // The user requested to receive no history
                 if (addChangedSubject) {
-                    joinRole.send(changedSubject);
+                    joinRole.send(changedSubject.getMessage());
                 }
                 return;
             }
             int accumulatedChars = 0;
             int accumulatedStanzas = 0;
-            Element delayInformation;
-            LinkedList<Message> historyToSend = new LinkedList<Message>();
-            ListIterator<Message> iterator = roomHistory.getReverseMessageHistory();
-            while (iterator.hasPrevious()) {
-                Message message = iterator.previous();
-                // Update number of characters to send
-                String text = message.getBody() == null ? message.getSubject() : message.getBody();
-                if (text == null) {
-                    // Skip this message since it has no body and no subject  
+            long now = System.currentTimeMillis();
+            // Position of the oldest message to send
+            int start = history.size();
+            for (int index = history.size() - 1; index >= 0; index--) {
+                HistoryBuffer.Entry entry = history.get(index);
+                if (entry == null || entry.getTextLength() < 0) {
+                    // Skip this message since it was removed or it has no body and no subject
                     continue;
                 }
-                accumulatedChars += text.length();
+                // Update number of characters to send
+                accumulatedChars += entry.getTextLength();
                 if (getMaxChars() > -1 && accumulatedChars > getMaxChars()) {
                     // Stop collecting history since we have exceded a limit
                     break;
@@ -177,46 +175,36 @@ public class HistoryRequest {
                     break;
                 }
 
-                if (getSeconds() > -1 || getSince() != null) {
-                    delayInformation = message.getChildElement("x", "jabber:x:delay");
-                    try {
-                        // Get the date when the historic message was sent
-                        Date delayedDate = xmppDateTime.parseString(delayInformation.attributeValue("stamp"));
-                        if (getSince() != null && delayedDate != null && delayedDate.before(getSince())) {
-                            // Stop collecting history since we have exceded a limit
-                            break;
-                        }
-                        if (getSeconds() > -1) {
-                            Date current = new Date();
-                            long diff = (current.getTime() - delayedDate.getTime()) / 1000;
-                            if (getSeconds() <= diff) {
-                                // Stop collecting history since we have exceded a limit
-                                break;
-                            }
-                        }
-                    }
-                    catch (Exception e) {
-                        Log.error("Error parsing date from historic message", e);
+                if (getSince() != null && entry.getTimestamp() < getSince().getTime()) {
+                    // Stop collecting history since we have exceded a limit
+                    break;
+                }
+                if (getSeconds() > -1) {
+                    long diff = (now - entry.getTimestamp()) / 1000;
+                    if (getSeconds() <= diff) {
+                        // Stop collecting history since we have exceded a limit
+                        break;
                     }
-
                 }
 
                 // Don't add the latest subject change if it's already in the history.
-                if (addChangedSubject) {
-                    if (changedSubject != null && changedSubject.equals(message)) {
-                        addChangedSubject = false;
-                    }
+                if (addChangedSubject && entry == changedSubject) {
+                    addChangedSubject = false;
                 }
 
-                historyToSend.addFirst(message);
+                start = index;
             }
             // Check if we should add the latest subject change.
             if (addChangedSubject) {
-                historyToSend.addFirst(changedSubject);
+                joinRole.send(changedSubject.getMessage());
             }
-            // Send the smallest amount of traffic to the user
-            for (Object aHistoryToSend : historyToSend) {
-                joinRole.send((Message) aHistoryToSend);
+            // Send the smallest amount of traffic to the user. Messages are only decoded
+            // when they are sent.
+            for (int index = start; index < history.size(); index++) {
+                HistoryBuffer.Entry entry = history.get(index);
+                if (entry != null && entry.getTextLength() >= 0) {
+                    joinRole.send(entry.getMessage());
+                }
             }
         }
     }
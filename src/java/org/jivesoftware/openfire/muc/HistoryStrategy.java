@@ -20,12 +20,8 @@
 
 package org.jivesoftware.openfire.muc;
 
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.ListIterator;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.jivesoftware.openfire.muc.cluster.UpdateHistoryStrategy;
 import org.jivesoftware.openfire.muc.spi.MUCPersistenceManager;
@@ -54,9 +50,9 @@ public class HistoryStrategy {
     private Type type = Type.number;
 
     /**
-     * List containing the history of messages.
+     * Ring containing the history of messages.
      */
-    private ConcurrentLinkedQueue<Message> history = new ConcurrentLinkedQueue<Message>();
+    private final HistoryBuffer history = new HistoryBuffer();
     /**
      * Default max number.
      */
@@ -70,10 +66,6 @@ public class HistoryStrategy {
      * (chat server defaults).
      */
     private HistoryStrategy parent;
-    /**
-     * Track the latest room subject change or null if none exists yet.
-     */
-    private Message roomSubject = null;
     /**
      * The string prefix to be used on the context property names
      * (do not include trailing dot).
@@ -181,41 +173,48 @@ public class HistoryStrategy {
         }
 
         // Room subject change messages are special
-        boolean subjectChange = false;
-        if (packet.getSubject() != null && packet.getSubject().length() > 0){
-            subjectChange = true;
-            roomSubject = packet;
-        }
+        boolean subjectChange = packet.getSubject() != null && packet.getSubject().length() > 0;
 
-        // store message according to active strategy
+        // store message according to active strategy. The last room subject change is
+        // preserved by the history even after it is pushed out of the ring.
         if (strategyType == Type.none){
             if (subjectChange) {
-                history.clear();
-                history.add(packet);
+                history.add(packet, 0, true);
             }
         }
         else if (strategyType == Type.all) {
-            history.add(packet);
+            history.add(packet, -1, subjectChange);
         }
         else if (strategyType == Type.number) {
-            if (history.size() >= strategyMaxNumber) {
-                // We have to remove messages so the new message won't exceed
-                // the max history size
-                // This is complicated somewhat because we must skip over the
-                // last room subject
-                // message because we want to preserve the room subject if
-                // possible.
-                Iterator<Message> historyIter = history.iterator();
-                while (historyIter.hasNext() && history.size() > strategyMaxNumber) {
-                    if (historyIter.next() != roomSubject) {
-                        historyIter.remove();
-                    }
-                }
-            }
-            history.add(packet);
+            history.add(packet, Math.max(strategyMaxNumber, 1), subjectChange);
         }
     }
 
+    /**
+     * Removes all the messages from the history and releases the memory they were using.
+     */
+    public void clear() {
+        history.clear();
+    }
+
+    /**
+     * Replaces every message in the history with the result of a rewriter.
+     *
+     * @param rewriter the rewriter to apply to every message.
+     */
+    void rewriteHistory(HistoryBuffer.Rewriter rewriter) {
+        history.rewrite(rewriter);
+    }
+
+    /**
+     * Returns the messages currently in the history without decoding them.
+     *
+     * @return the messages currently in the history.
+     */
+    HistoryBuffer.Snapshot getSnapshot() {
+        return history.snapshot();
+    }
+
     boolean isHistoryEnabled() {
         Type strategyType = type;
         if (type == Type.defaulType && parent != null) {
@@ -230,10 +229,7 @@ public class HistoryStrategy {
      * @return An iterator of Message objects to be sent to the new room member.
      */
     public Iterator<Message> getMessageHistory(){
-        LinkedList<Message> list = new LinkedList<Message>(history);
-        // Sort messages. Messages may be out of order when running inside of a cluster
-        Collections.sort(list, new MessageComparator());
-        return list.iterator();
+        return history.snapshot().iterator(0);
     }
 
     /**
@@ -244,10 +240,8 @@ public class HistoryStrategy {
      * @return A list iterator of Message objects positioned at the end of the list.
      */
     public ListIterator<Message> getReverseMessageHistory(){
-        LinkedList<Message> list = new LinkedList<Message>(history);
-        // Sort messages. Messages may be out of order when running inside of a cluster
-        Collections.sort(list, new MessageComparator());
-        return list.listIterator(list.size());
+        HistoryBuffer.Snapshot snapshot = history.snapshot();
+        return snapshot.iterator(snapshot.size());
     }
 
     /**
@@ -309,7 +303,7 @@ public class HistoryStrategy {
      *         room's subject.
      */
     public boolean hasChangedSubject() {
-        return roomSubject != null;
+        return history.getSubject() != null;
     }
 
     /**
@@ -319,14 +313,7 @@ public class HistoryStrategy {
      * @return the latest room subject change or null if none exists yet.
      */
     public Message getChangedSubject() {
-        return roomSubject;
-    }
-
-    private static class MessageComparator implements Comparator<Message> {
-        public int compare(Message o1, Message o2) {
-            String stamp1 = o1.getChildElement("x", "jabber:x:delay").attributeValue("stamp");
-            String stamp2 = o2.getChildElement("x", "jabber:x:delay").attributeValue("stamp");
-            return stamp1.compareTo(stamp2);
-        }
+        HistoryBuffer.Entry subject = history.getSubject();
+        return subject == null ? null : subject.getMessage();
     }
 }
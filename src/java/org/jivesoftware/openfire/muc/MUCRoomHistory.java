@@ -78,25 +78,25 @@ public final class MUCRoomHistory {
             isNonAnonymousRoom = room.canAnyoneDiscoverJID();
             // Update the "from" attribute of the delay information in the history
             // TODO Make this update in a separate thread
-            for (Iterator<Message> it = getMessageHistory(); it.hasNext();) {
-                Message message = it.next();
-                Element delayElement = message.getChildElement("x", "jabber:x:delay");
-                if (room.canAnyoneDiscoverJID()) {
-                    // Set the Full JID as the "from" attribute
-                    try {
-                        MUCRole role = room.getOccupant(message.getFrom().getResource());
-                        delayElement.addAttribute("from", role.getUserAddress().toString());
+            historyStrategy.rewriteHistory(new HistoryBuffer.Rewriter() {
+                public void rewrite(Message message) {
+                    Element delayElement = message.getChildElement("x", "jabber:x:delay");
+                    if (room.canAnyoneDiscoverJID()) {
+                        // Set the Full JID as the "from" attribute
+                        try {
+                            MUCRole role = room.getOccupant(message.getFrom().getResource());
+                            delayElement.addAttribute("from", role.getUserAddress().toString());
+                        }
+                        catch (UserNotFoundException e) {
+                            // Ignore.
+                        }
                     }
-                    catch (UserNotFoundException e) {
-                        // Ignore.
+                    else {
+                        // Set the Room JID as the "from" attribute
+                        delayElement.addAttribute("from", message.getFrom().toString());
                     }
                 }
-                else {
-                    // Set the Room JID as the "from" attribute
-                    delayElement.addAttribute("from", message.getFrom().toString());
-                }
-            }
-
+            });
         }
 
         // Add the delay information to the message
@@ -128,6 +128,24 @@ public final class MUCRoomHistory {
         return historyStrategy.getMessageHistory();
     }
 
+    /**
+     * Returns the messages currently in the history without decoding them, so that the
+     * messages to send can be selected by their timestamp and length.
+     *
+     * @return the messages currently in the history.
+     */
+    HistoryBuffer.Snapshot getSnapshot() {
+        return historyStrategy.getSnapshot();
+    }
+
+    /**
+     * Removes all the messages from the history and releases the memory they were using.
+     * Used when the room is removed from memory.
+     */
+    public void clear() {
+        historyStrategy.clear();
+    }
+
     /**
      * Obtain the current history to be iterated in reverse mode. This means that the returned list
      * iterator will be positioned at the end of the history so senders of this message must
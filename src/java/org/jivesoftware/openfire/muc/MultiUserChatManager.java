@@ -44,12 +44,14 @@ import org.jivesoftware.openfire.muc.cluster.RoomInfo;
 import org.jivesoftware.openfire.muc.cluster.SeniorMemberServicesRequest;
 import org.jivesoftware.openfire.muc.cluster.ServiceInfo;
 import org.jivesoftware.openfire.muc.cluster.ServiceUpdatedEvent;
+import org.jivesoftware.openfire.muc.spi.ConversationLogWriter;
 import org.jivesoftware.openfire.muc.spi.LocalMUCRoom;
 import org.jivesoftware.openfire.muc.spi.MUCPersistenceManager;
 import org.jivesoftware.openfire.muc.spi.MUCServicePropertyEventListener;
 import org.jivesoftware.openfire.muc.spi.MultiUserChatServiceImpl;
 import org.jivesoftware.openfire.stats.Statistic;
 import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.util.AlreadyExistsException;
 import org.jivesoftware.util.JiveConstants;
@@ -87,6 +89,9 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
     private static final String usersStatKey = "muc_users";
     private static final String incomingStatKey = "muc_incoming";
     private static final String outgoingStatKey = "muc_outgoing";
+    private static final String residentRoomsStatKey = "muc_rooms_resident";
+    private static final String roomLoadTimeStatKey = "muc_rooms_load_time";
+    private static final String historyMemoryStatKey = "muc_history_memory";
     private static final String trafficStatGroup = "muc_traffic";
 
     private ConcurrentHashMap<String,MultiUserChatService> mucServices = new ConcurrentHashMap<String,MultiUserChatService>();
@@ -117,6 +122,9 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         addTotalConnectedUsers();
         addNumberIncomingMessages();
         addNumberOutgoingMessages();
+        addRoomLoadingStats();
+        addHistoryMemoryStats();
+        ConversationLogWriter.initStatistics();
 
         ClusterManager.addListener(this);
         UserEventDispatcher.addListener(this);
@@ -138,6 +146,10 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         StatisticsManager.getInstance().removeStatistic(usersStatKey);
         StatisticsManager.getInstance().removeStatistic(incomingStatKey);
         StatisticsManager.getInstance().removeStatistic(outgoingStatKey);
+        StatisticsManager.getInstance().removeStatistic(residentRoomsStatKey);
+        StatisticsManager.getInstance().removeStatistic(roomLoadTimeStatKey);
+        StatisticsManager.getInstance().removeStatistic(historyMemoryStatKey);
+        ConversationLogWriter.removeStatistics();
 
         for (MultiUserChatService service : mucServices.values()) {
             unregisterMultiUserChatService(service.getServiceName());
@@ -748,6 +760,51 @@ public class MultiUserChatManager extends BasicModule implements ClusterEventLis
         StatisticsManager.getInstance().addMultiStatistic(outgoingStatKey, trafficStatGroup, statistic);
     }
 
+    private void addRoomLoadingStats() {
+        StatisticsManager.getInstance().addStatistic(residentRoomsStatKey, new i18nStatistic("muc.rooms.resident", Statistic.Type.count) {
+            public double sample() {
+                double rooms = 0;
+                for (MultiUserChatService service : getMultiUserChatServices()) {
+                    if (service instanceof MultiUserChatServiceImpl) {
+                        rooms += ((MultiUserChatServiceImpl) service).getNumberResidentRooms();
+                    }
+                }
+                return rooms;
+            }
+
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(roomLoadTimeStatKey, new i18nStatistic("muc.rooms.load_time", Statistic.Type.count) {
+            public double sample() {
+                double time = 0;
+                for (MultiUserChatService service : getMultiUserChatServices()) {
+                    if (service instanceof MultiUserChatServiceImpl) {
+                        time += ((MultiUserChatServiceImpl) service).getRoomLoadTime();
+                    }
+                }
+                return time;
+            }
+
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+    }
+
+    private void addHistoryMemoryStats() {
+        StatisticsManager.getInstance().addStatistic(historyMemoryStatKey, new i18nStatistic("muc.history.memory", Statistic.Type.count) {
+            public double sample() {
+                return HistoryBuffer.getTotalMemory() / 1024d;
+            }
+
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+    }
+
     // Cluster management tasks
     public void joinedCluster() {
         if (!ClusterManager.isSeniorClusterMember()) {
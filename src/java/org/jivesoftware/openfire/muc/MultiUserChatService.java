@@ -259,6 +259,32 @@ public interface MultiUserChatService extends Component {
      */
     List<MUCRoom> getChatRooms();
 
+    /**
+     * Returns a page of the rooms in the server (i.e. persistent or not, in memory or not),
+     * sorted by name. Only the rooms of the page are loaded when rooms are loaded on demand.
+     *
+     * @param startIndex the index of the first room of the page.
+     * @param numResults the maximum number of rooms of the page.
+     * @return a list with a snapshot of the rooms of the page.
+     */
+    List<MUCRoom> getChatRooms(int startIndex, int numResults);
+
+    /**
+     * Returns the names of all the rooms in the server (i.e. persistent or not, in memory
+     * or not) without loading the rooms that are not in memory.
+     *
+     * @return a list with a snapshot of the names of the rooms.
+     */
+    List<String> getChatRoomNames();
+
+    /**
+     * Retuns a list with a snapshot of the rooms that are loaded in memory. Persistent rooms
+     * that are loaded on demand are not included until they are used.
+     *
+     * @return a list with a snapshot of the rooms in memory.
+     */
+    List<MUCRoom> getResidentChatRooms();
+
     /**
      * Returns true if the server includes a chatroom with the requested name.
      * 
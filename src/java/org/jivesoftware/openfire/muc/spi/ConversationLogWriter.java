@@ -0,0 +1,347 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc.spi;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the conversation log entries of a MUC service to the database from a dedicated
+ * thread. Entries are grouped in batches of up to <tt>batchSize</tt> entries that are saved
+ * in a single transaction. A batch is written as soon as it is full or when its oldest entry
+ * has been waiting for <tt>maxDelay</tt> milliseconds.<p>
+ *
+ * The queue of pending entries is bounded. When it is full the threads logging new entries
+ * wait for the writer to catch up, up to <tt>xmpp.muc.log.maxwait</tt> milliseconds (5
+ * seconds by default), before giving up on the entry. When a batch cannot be saved its entries
+ * are saved one by one. Entries that still fail are retried with the next batch, and discarded
+ * after they failed <tt>MAX_ATTEMPTS</tt> times or when the writer is stopped.
+ *
+ * @see MUCPersistenceManager#saveConversationLogBatch(List)
+ */
+public class ConversationLogWriter implements Runnable {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConversationLogWriter.class);
+
+    /**
+     * Max number of milliseconds to wait for new entries before checking if the writer was stopped.
+     */
+    private static final long POLL_INTERVAL = 1000;
+    /**
+     * Number of milliseconds to wait before retrying a batch that could not be saved.
+     */
+    private static final long RETRY_DELAY = 5000;
+    /**
+     * Number of times that the writer tries to save an entry before discarding it.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final String queueStatKey = "muc_log_queue";
+    private static final String flushTimeStatKey = "muc_log_flush_time";
+    private static final String rowsStatKey = "muc_log_rows";
+
+    /**
+     * Writers of all the running MUC services, used to sample the size of their queues.
+     */
+    private static final Set<ConversationLogWriter> writers = new CopyOnWriteArraySet<ConversationLogWriter>();
+    /**
+     * Number of entries saved to the database since the last statistics sample.
+     */
+    private static final AtomicLong rows = new AtomicLong();
+    /**
+     * Number of flushes and time spent on them since the last statistics sample.
+     */
+    private static final AtomicLong flushes = new AtomicLong();
+    private static final AtomicLong flushTime = new AtomicLong();
+
+    private final String serviceName;
+    private final BlockingQueue<ConversationLogEntry> queue;
+    private volatile int batchSize;
+    private volatile long maxDelay;
+    private volatile boolean running;
+    private Thread thread;
+    /**
+     * Number of failed attempts to save the entries that are retried. Only used by the writer thread.
+     */
+    private final Map<ConversationLogEntry, Integer> attempts = new IdentityHashMap<ConversationLogEntry, Integer>();
+
+    ConversationLogWriter(String serviceName, int capacity, int batchSize, long maxDelay) {
+        this.serviceName = serviceName;
+        this.queue = new LinkedBlockingQueue<ConversationLogEntry>(capacity);
+        this.batchSize = batchSize;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Creates and adds the conversation logging statistics to the statistic manager.
+     */
+    public static void initStatistics() {
+        StatisticsManager.getInstance().addStatistic(queueStatKey, new i18nStatistic("muc.log.queue", Statistic.Type.count) {
+            public double sample() {
+                double size = 0;
+                for (ConversationLogWriter writer : writers) {
+                    size += writer.queue.size();
+                }
+                return size;
+            }
+
+            public boolean isPartialSample() {
+                return true;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(flushTimeStatKey, new i18nStatistic("muc.log.flush_time", Statistic.Type.count) {
+            public double sample() {
+                long count = flushes.getAndSet(0);
+                long time = flushTime.getAndSet(0);
+                return count == 0 ? 0 : (double) time / count;
+            }
+
+            public boolean isPartialSample() {
+                return false;
+            }
+        });
+        StatisticsManager.getInstance().addStatistic(rowsStatKey, new i18nStatistic("muc.log.rows", Statistic.Type.rate) {
+            public double sample() {
+                return rows.getAndSet(0);
+            }
+
+            public boolean isPartialSample() {
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Removes the conversation logging statistics from the statistic manager.
+     */
+    public static void removeStatistics() {
+        StatisticsManager.getInstance().removeStatistic(queueStatKey);
+        StatisticsManager.getInstance().removeStatistic(flushTimeStatKey);
+        StatisticsManager.getInstance().removeStatistic(rowsStatKey);
+    }
+
+    /**
+     * Starts the thread that writes the queued entries to the database. Does nothing if
+     * the writer is already running.
+     */
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        writers.add(this);
+        thread = new Thread(this, "MUC Log Writer - " + serviceName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the writer after saving the entries that are still queued. Entries that cannot
+     * be saved at this point are discarded.
+     */
+    synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Log.warn("Interrupted while waiting for the conversation log of " + serviceName + " to be saved");
+        }
+        thread = null;
+        writers.remove(this);
+    }
+
+    /**
+     * Queues an entry to be saved to the database. If the queue is full, waits for the
+     * writer to make room for it.
+     *
+     * @param entry the entry to save.
+     * @return false if the entry was discarded because the queue remained full.
+     */
+    boolean add(ConversationLogEntry entry) {
+        if (queue.offer(entry)) {
+            return true;
+        }
+        try {
+            if (queue.offer(entry, JiveGlobals.getLongProperty("xmpp.muc.log.maxwait", 5000),
+                    TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Log.error("Conversation log queue of " + serviceName + " is full. Discarding message of room " +
+                entry.getRoomID() + " sent by " + entry.getSender());
+        return false;
+    }
+
+    void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    public void run() {
+        List<ConversationLogEntry> batch = new ArrayList<ConversationLogEntry>();
+        long deadline = 0;
+        while (true) {
+            boolean stopping = !running;
+            int size = Math.max(1, batchSize);
+            try {
+                if (batch.isEmpty()) {
+                    if (stopping && queue.isEmpty()) {
+                        break;
+                    }
+                    ConversationLogEntry entry = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (entry == null) {
+                        continue;
+                    }
+                    batch.add(entry);
+                    deadline = System.currentTimeMillis() + maxDelay;
+                }
+                queue.drainTo(batch, size - batch.size());
+                long wait = deadline - System.currentTimeMillis();
+                if (batch.size() < size && wait > 0 && !stopping) {
+                    // Wait for the batch to fill up or for its oldest entry to be due
+                    ConversationLogEntry entry = queue.poll(Math.min(wait, POLL_INTERVAL), TimeUnit.MILLISECONDS);
+                    if (entry != null) {
+                        batch.add(entry);
+                    }
+                    continue;
+                }
+                if (flush(batch)) {
+                    continue;
+                }
+                if (stopping) {
+                    discard(batch);
+                }
+                else {
+                    // Keep the entries that could not be saved and try again later
+                    discardFailedEntries(batch);
+                    Thread.sleep(RETRY_DELAY);
+                }
+            }
+            catch (InterruptedException e) {
+                // Save what is left and stop
+                running = false;
+            }
+            catch (Throwable e) {
+                Log.error("Error saving conversation log entries of " + serviceName, e);
+                if (stopping) {
+                    discard(batch);
+                    continue;
+                }
+                discardFailedEntries(batch);
+                // Do not retry right away, since the error is likely to happen again
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                }
+                catch (InterruptedException ie) {
+                    running = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the entries to the database as a batch. If the batch fails the entries are
+     * saved one by one so that a single bad entry does not hold back the rest of them.
+     * Entries that were saved are removed from the list.
+     *
+     * @param batch the entries to save.
+     * @return true if all the entries were saved.
+     */
+    private boolean flush(List<ConversationLogEntry> batch) {
+        long start = System.currentTimeMillis();
+        int saved = batch.size();
+        if (MUCPersistenceManager.saveConversationLogBatch(batch)) {
+            if (!attempts.isEmpty()) {
+                for (ConversationLogEntry entry : batch) {
+                    attempts.remove(entry);
+                }
+            }
+            batch.clear();
+        }
+        else {
+            for (Iterator<ConversationLogEntry> it = batch.iterator(); it.hasNext();) {
+                ConversationLogEntry entry = it.next();
+                if (MUCPersistenceManager.saveConversationLogEntry(entry)) {
+                    attempts.remove(entry);
+                    it.remove();
+                }
+            }
+            saved -= batch.size();
+        }
+        flushTime.addAndGet(System.currentTimeMillis() - start);
+        flushes.incrementAndGet();
+        rows.addAndGet(saved);
+        return batch.isEmpty();
+    }
+
+    /**
+     * Counts a failed attempt to save each of the entries, and removes from the list the
+     * entries that already failed <tt>MAX_ATTEMPTS</tt> times.
+     *
+     * @param batch the entries that could not be saved.
+     */
+    private void discardFailedEntries(List<ConversationLogEntry> batch) {
+        for (Iterator<ConversationLogEntry> it = batch.iterator(); it.hasNext();) {
+            ConversationLogEntry entry = it.next();
+            Integer failures = attempts.get(entry);
+            failures = failures == null ? 1 : failures + 1;
+            if (failures < MAX_ATTEMPTS) {
+                attempts.put(entry, failures);
+            }
+            else {
+                attempts.remove(entry);
+                it.remove();
+                Log.error("Discarding message of room " + entry.getRoomID() + " sent by " + entry.getSender() +
+                        " that could not be saved to the conversation log of " + serviceName);
+            }
+        }
+    }
+
+    private void discard(List<ConversationLogEntry> batch) {
+        Log.error("Discarding " + batch.size() + " conversation log entries of " + serviceName);
+        for (ConversationLogEntry entry : batch) {
+            attempts.remove(entry);
+        }
+        batch.clear();
+    }
+}
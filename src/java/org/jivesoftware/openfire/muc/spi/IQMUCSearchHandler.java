@@ -22,12 +22,13 @@ import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 import org.dom4j.QName;
 import org.jivesoftware.openfire.muc.MUCRoom;
-import org.jivesoftware.openfire.muc.MultiUserChatService;
 import org.xmpp.forms.DataForm;
 import org.xmpp.forms.FormField;
 import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
 import org.xmpp.packet.PacketError;
 import org.xmpp.packet.PacketError.Condition;
+import org.xmpp.resultsetmanagement.Result;
 import org.xmpp.resultsetmanagement.ResultSet;
 import org.xmpp.resultsetmanagement.ResultSetImpl;
 
@@ -45,7 +46,7 @@ public class IQMUCSearchHandler
 	/**
 	 * The MUC-server to extend with jabber:iq:search functionality.
 	 */
-	private final MultiUserChatService mucService;
+	private final MultiUserChatServiceImpl mucService;
 
 	/**
 	 * Creates a new instance of the search provider.
@@ -53,7 +54,7 @@ public class IQMUCSearchHandler
 	 * @param mucService
 	 *            The server for which to return search results.
 	 */
-	public IQMUCSearchHandler(MultiUserChatService mucService)
+	public IQMUCSearchHandler(MultiUserChatServiceImpl mucService)
 	{
 		this.mucService = mucService;
 	}
@@ -212,9 +213,27 @@ public class IQMUCSearchHandler
 			}
 		}
 
-		// search for chatrooms matching the request params.
-		final List<MUCRoom> mucs = new ArrayList<MUCRoom>();
-		for (MUCRoom room : mucService.getChatRooms())
+		// search for chatrooms matching the request params. Persistent rooms
+		// that are not in memory are matched against their index entries
+		// instead of being loaded.
+		final List<RoomSummary> candidates = new ArrayList<RoomSummary>();
+		for (MUCRoom room : mucService.getResidentChatRooms())
+		{
+			if (canBeIncludedInResult(room))
+			{
+				candidates.add(new RoomSummary(room));
+			}
+		}
+		for (RoomIndexEntry entry : mucService.getNonResidentRoomEntries())
+		{
+			if (canBeIncludedInResult(entry))
+			{
+				candidates.add(new RoomSummary(entry, mucService.getServiceDomain()));
+			}
+		}
+
+		final List<RoomSummary> mucs = new ArrayList<RoomSummary>();
+		for (RoomSummary room : candidates)
 		{
 			boolean find = false;
 
@@ -224,7 +243,7 @@ public class IQMUCSearchHandler
 				{
 					if (name_is_exact_match)
 					{
-						if (name.equalsIgnoreCase(room.getNaturalLanguageName()))
+						if (name.equalsIgnoreCase(room.naturalName))
 						{
 							find = true;
 							break;
@@ -232,7 +251,7 @@ public class IQMUCSearchHandler
 					}
 					else
 					{
-						if (room.getNaturalLanguageName().toLowerCase().indexOf(
+						if (room.naturalName.toLowerCase().indexOf(
 							name.toLowerCase()) != -1)
 						{
 							find = true;
@@ -242,42 +261,42 @@ public class IQMUCSearchHandler
 				}
 			}
 
-			if (subject != null
-					&& room.getSubject().toLowerCase().indexOf(
+			if (subject != null && room.subject != null
+					&& room.subject.toLowerCase().indexOf(
 						subject.toLowerCase()) != -1)
 			{
 				find = true;
 			}
 
-			if (numusers > -1 && room.getParticipants().size() < numusers)
+			if (numusers > -1 && room.participants < numusers)
 			{
 				find = false;
 			}
 
-			if (numaxusers > -1 && room.getMaxUsers() < numaxusers)
+			if (numaxusers > -1 && room.maxUsers < numaxusers)
 			{
 				find = false;
 			}
 
-			if (!includePasswordProtectedRooms && room.isPasswordProtected())
+			if (!includePasswordProtectedRooms && room.passwordProtected)
 			{
 				find = false;
 			}
 
-			if (find && canBeIncludedInResult(room))
+			if (find)
 			{
 				mucs.add(room);
 			}
 		}
 
-		final ResultSet<MUCRoom> searchResults = new ResultSetImpl<MUCRoom>(
+		final ResultSet<RoomSummary> searchResults = new ResultSetImpl<RoomSummary>(
 			sortByUserAmount(mucs));
 
 		// See if the requesting entity would like to apply 'result set
 		// management'
 		final Element set = iq.getChildElement().element(
 			QName.get("set", ResultSet.NAMESPACE_RESULT_SET_MANAGEMENT));
-		final List<MUCRoom> mucrsm;
+		final List<RoomSummary> mucrsm;
 
 		// apply RSM only if the element exists, and the (total) results
 		// set is not empty.
@@ -305,7 +324,7 @@ public class IQMUCSearchHandler
 		else
 		{
 			// if no rsm, all found rooms are part of the result.
-			mucrsm = new ArrayList<MUCRoom>(searchResults);
+			mucrsm = new ArrayList<RoomSummary>(searchResults);
 		}
 
 		final Element res = DocumentHelper.createElement(QName.get("query",
@@ -313,16 +332,16 @@ public class IQMUCSearchHandler
 
 		final DataForm resultform = new DataForm(DataForm.Type.result);
 		boolean atLeastoneResult = false;
-		for (MUCRoom room : mucrsm)
+		for (RoomSummary room : mucrsm)
 		{
 			final Map<String, Object> fields = new HashMap<String, Object>();
-			fields.put("name", room.getNaturalLanguageName());
-			fields.put("subject", room.getSubject());
-			fields.put("num_users", room.getOccupantsCount());
-			fields.put("num_max_users", room.getMaxUsers());
-			fields.put("is_password_protected", room.isPasswordProtected());
-			fields.put("is_member_only", room.isMembersOnly());
-			fields.put("jid", room.getRole().getRoleAddress().toString());
+			fields.put("name", room.naturalName);
+			fields.put("subject", room.subject);
+			fields.put("num_users", room.occupants);
+			fields.put("num_max_users", room.maxUsers);
+			fields.put("is_password_protected", room.passwordProtected);
+			fields.put("is_member_only", room.membersOnly);
+			fields.put("jid", room.jid.toString());
             resultform.addItemFields(fields);
 			atLeastoneResult = true;
 		}
@@ -355,13 +374,13 @@ public class IQMUCSearchHandler
 	 *            The unordered list that will be sorted.
      * @return The sorted list of MUC rooms.
 	 */
-	private static List<MUCRoom> sortByUserAmount(List<MUCRoom> mucs)
+	private static List<RoomSummary> sortByUserAmount(List<RoomSummary> mucs)
 	{
-		Collections.sort(mucs, new Comparator<MUCRoom>()
+		Collections.sort(mucs, new Comparator<RoomSummary>()
 		{
-			public int compare(MUCRoom o1, MUCRoom o2)
+			public int compare(RoomSummary o1, RoomSummary o2)
 			{
-				return o2.getOccupantsCount() - o1.getOccupantsCount();
+				return o2.occupants - o1.occupants;
 			}
 		});
 
@@ -390,6 +409,28 @@ public class IQMUCSearchHandler
 		return room.isPublicRoom();
 	}
 
+	/**
+	 * Checks if a room that is not in memory may be included in search
+	 * results. The same rules as {@link #canBeIncludedInResult(MUCRoom)} are
+	 * applied to the index entry of the room.
+	 * 
+	 * @param entry
+	 *            The index entry of the room to check
+	 * @return ''true'' if the room may be included in search results, ''false''
+	 *         otherwise.
+	 */
+	private boolean canBeIncludedInResult(RoomIndexEntry entry)
+	{
+		// Check if locked rooms may be discovered
+		final boolean discoverLocked = MUCPersistenceManager.getBooleanProperty(mucService.getServiceName(), "discover.locked", true);
+
+		if (!discoverLocked && entry.isLocked())
+		{
+			return false;
+		}
+		return entry.isPublicRoom();
+	}
+
 	/**
 	 * Returns the first value from the FormField, or 'null' if no value has
 	 * been set.
@@ -417,4 +458,54 @@ public class IQMUCSearchHandler
 
 		return it.get(0);
 	}
+
+	/**
+	 * The searchable fields of a room, taken from the room itself when it is
+	 * in memory or from its index entry otherwise. Rooms that are not in
+	 * memory have no occupants.
+	 */
+	private static final class RoomSummary implements Result
+	{
+		private final String name;
+		private final String naturalName;
+		private final String subject;
+		private final int participants;
+		private final int occupants;
+		private final int maxUsers;
+		private final boolean passwordProtected;
+		private final boolean membersOnly;
+		private final JID jid;
+
+		RoomSummary(MUCRoom room)
+		{
+			name = room.getName();
+			naturalName = room.getNaturalLanguageName();
+			subject = room.getSubject();
+			participants = room.getParticipants().size();
+			occupants = room.getOccupantsCount();
+			maxUsers = room.getMaxUsers();
+			passwordProtected = room.isPasswordProtected();
+			membersOnly = room.isMembersOnly();
+			jid = room.getRole().getRoleAddress();
+		}
+
+		RoomSummary(RoomIndexEntry entry, String serviceDomain)
+		{
+			name = entry.getName();
+			naturalName = entry.getNaturalName();
+			subject = entry.getSubject();
+			participants = 0;
+			occupants = 0;
+			maxUsers = entry.getMaxUsers();
+			passwordProtected = entry.isPasswordProtected();
+			membersOnly = entry.isMembersOnly();
+			jid = new JID(entry.getName(), serviceDomain, null);
+		}
+
+		public String getUID()
+		{
+			// name is unique for each one particular MUC service.
+			return name;
+		}
+	}
 }
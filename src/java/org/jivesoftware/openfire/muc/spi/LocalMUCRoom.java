@@ -173,6 +173,11 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
      */
     private MUCRoomHistory roomHistory;
 
+    /**
+     * True when the history of the room has not been loaded from the database yet.
+     */
+    private volatile boolean historyPending = false;
+
     /**
      * Time when the room was locked. A value of zero means that the room is unlocked.
      */
@@ -675,13 +680,13 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
 
         }
         if (historyRequest == null) {
-            Iterator<Message> history = roomHistory.getMessageHistory();
+            Iterator<Message> history = getRoomHistory().getMessageHistory();
             while (history.hasNext()) {
                 joinRole.send(history.next());
             }
         }
         else {
-            historyRequest.sendHistory(joinRole, roomHistory);
+            historyRequest.sendHistory(joinRole, getRoomHistory());
         }
         // Update the date when the last occupant left the room
         setEmptyDate(null);
@@ -1171,7 +1176,7 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
     public void broadcast(BroadcastMessageRequest messageRequest) {
         Message message = messageRequest.getMessage();
         // Add message to the room history
-        roomHistory.addMessage(message);
+        getRoomHistory().addMessage(message);
         // Send message to occupants connected to this JVM
         for (MUCRole occupant : occupantsByFullJID.values()) {
             // Do not send broadcast messages to deaf occupants or occupants hosted in
@@ -2067,9 +2072,45 @@ public class LocalMUCRoom implements MUCRoom, GroupEventListener {
     }
 
     public MUCRoomHistory getRoomHistory() {
+        if (historyPending) {
+            synchronized (roomHistory) {
+                if (historyPending) {
+                    MUCPersistenceManager.loadHistoryFromDB(this, roomHistory);
+                    historyPending = false;
+                }
+            }
+        }
         return roomHistory;
     }
 
+    /**
+     * Sets if the history of the room still has to be loaded from the database. A pending
+     * history is loaded the first time that it is used.
+     *
+     * @param pending true if the history has not been loaded from the database yet.
+     */
+    void setHistoryPending(boolean pending) {
+        this.historyPending = pending;
+    }
+
+    /**
+     * Returns true if the room has history that would be lost if the room was removed from
+     * memory, since the conversation of the room is not logged to the database.
+     *
+     * @return true if the history of the room can't be loaded again from the database.
+     */
+    boolean hasUnloggedHistory() {
+        return !historyPending && !isLogEnabled() && roomHistory.getMessageHistory().hasNext();
+    }
+
+    /**
+     * Removes the messages from the history of the room and releases the memory they were
+     * using. Used when the room is removed from memory.
+     */
+    void clearHistory() {
+        roomHistory.clear();
+    }
+
     public Collection<JID> getOwners() {
         return Collections.unmodifiableList(owners);
     }
@@ -77,6 +77,16 @@ public class MUCPersistenceManager {
         "canInvite, roomPassword, canDiscoverJID, logEnabled, subject, rolesToBroadcast, " +
         "useReservedNick, canChangeNick, canRegister " +
         "FROM ofMucRoom WHERE serviceID=? AND (emptyDate IS NULL or emptyDate > ?)";
+    private static final String LOAD_ROOM_INDEX =
+        "SELECT roomID, name, naturalName, lockedDate, publicRoom, membersOnly, subject, maxUsers, " +
+        "roomPassword FROM ofMucRoom WHERE serviceID=? AND (emptyDate IS NULL or emptyDate > ?)";
+    private static final String LOAD_INDEX_AFFILIATIONS =
+        "SELECT ofMucAffiliation.roomID,ofMucAffiliation.jid FROM ofMucAffiliation,ofMucRoom " +
+        "WHERE ofMucAffiliation.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=? " +
+        "AND ofMucRoom.publicRoom=0 AND ofMucAffiliation.affiliation<>40";
+    private static final String LOAD_INDEX_MEMBERS =
+        "SELECT ofMucMember.roomID,ofMucMember.jid FROM ofMucMember,ofMucRoom " +
+        "WHERE ofMucMember.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=? AND ofMucRoom.publicRoom=0";
     private static final String LOAD_ALL_AFFILIATIONS =
         "SELECT ofMucAffiliation.roomID,ofMucAffiliation.jid,ofMucAffiliation.affiliation " +
         "FROM ofMucAffiliation,ofMucRoom WHERE ofMucAffiliation.roomID = ofMucRoom.roomID AND ofMucRoom.serviceID=?";
@@ -172,6 +182,18 @@ public class MUCPersistenceManager {
      * @param room the room to load from the database if persistent
      */
     public static void loadFromDB(LocalMUCRoom room) {
+        loadFromDB(room, true);
+    }
+
+    /**
+     * Loads the room configuration from the database if the room was persistent. The history
+     * of the room may be loaded later, when it is first needed.
+     *
+     * @param room the room to load from the database if persistent
+     * @param loadHistory true if the history should be loaded now. Otherwise it is loaded by
+     *        {@link LocalMUCRoom#getRoomHistory()} when it is first used.
+     */
+    public static void loadFromDB(LocalMUCRoom room, boolean loadHistory) {
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -225,34 +247,11 @@ public class MUCPersistenceManager {
             room.setPersistent(true);
             DbConnectionManager.fastcloseStmt(rs, pstmt);
 
-            // Recreate the history only for the rooms that have the conversation logging
-            // enabled
-            if (room.isLogEnabled()) {
-                pstmt = con.prepareStatement(LOAD_HISTORY);
-                // Reload the history, using "muc.history.reload.limit" (days); defaults to 2
-                int reloadLimitDays = JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2);
-                long from = System.currentTimeMillis() - (BigInteger.valueOf(86400000).multiply(BigInteger.valueOf(reloadLimitDays))).longValue();
-                pstmt.setString(1, StringUtils.dateToMillis(new Date(from)));
-                pstmt.setLong(2, room.getID());
-                rs = pstmt.executeQuery();
-                while (rs.next()) {
-                    String senderJID = rs.getString(1);
-                    String nickname = rs.getString(2);
-                    Date sentDate = new Date(Long.parseLong(rs.getString(3).trim()));
-                    String subject = rs.getString(4);
-                    String body = rs.getString(5);
-                    room.getRoomHistory().addOldMessage(senderJID, nickname, sentDate, subject,
-                            body);
-                }
+            if (loadHistory) {
+                loadHistory(con, room, room.getRoomHistory());
             }
-            DbConnectionManager.fastcloseStmt(rs, pstmt);
-
-            // If the room does not include the last subject in the history then recreate one if
-            // possible
-            if (!room.getRoomHistory().hasChangedSubject() && room.getSubject() != null &&
-                    room.getSubject().length() > 0) {
-                room.getRoomHistory().addOldMessage(room.getRole().getRoleAddress().toString(),
-                        null, room.getModificationDate(), room.getSubject(), null);
+            else {
+                room.setHistoryPending(true);
             }
 
             pstmt = con.prepareStatement(LOAD_AFFILIATIONS);
@@ -314,6 +313,63 @@ public class MUCPersistenceManager {
         }
     }
 
+    /**
+     * Loads the history of a persistent room from the database.
+     *
+     * @param room the room whose history will be loaded.
+     * @param history the history where the loaded messages will be added.
+     */
+    static void loadHistoryFromDB(LocalMUCRoom room, MUCRoomHistory history) {
+        Connection con = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            loadHistory(con, room, history);
+        }
+        catch (SQLException sqle) {
+            Log.error(sqle.getMessage(), sqle);
+        }
+        finally {
+            DbConnectionManager.closeConnection(con);
+        }
+    }
+
+    private static void loadHistory(Connection con, LocalMUCRoom room, MUCRoomHistory history) throws SQLException {
+        // Recreate the history only for the rooms that have the conversation logging
+        // enabled
+        if (room.isLogEnabled()) {
+            PreparedStatement pstmt = null;
+            ResultSet rs = null;
+            try {
+                pstmt = con.prepareStatement(LOAD_HISTORY);
+                // Reload the history, using "muc.history.reload.limit" (days); defaults to 2
+                int reloadLimitDays = JiveGlobals.getIntProperty(MUC_HISTORY_RELOAD_LIMIT, 2);
+                long from = System.currentTimeMillis() - (BigInteger.valueOf(86400000).multiply(BigInteger.valueOf(reloadLimitDays))).longValue();
+                pstmt.setString(1, StringUtils.dateToMillis(new Date(from)));
+                pstmt.setLong(2, room.getID());
+                rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    String senderJID = rs.getString(1);
+                    String nickname = rs.getString(2);
+                    Date sentDate = new Date(Long.parseLong(rs.getString(3).trim()));
+                    String subject = rs.getString(4);
+                    String body = rs.getString(5);
+                    history.addOldMessage(senderJID, nickname, sentDate, subject, body);
+                }
+            }
+            finally {
+                DbConnectionManager.fastcloseStmt(rs, pstmt);
+            }
+        }
+
+        // If the room does not include the last subject in the history then recreate one if
+        // possible
+        if (!history.hasChangedSubject() && room.getSubject() != null &&
+                room.getSubject().length() > 0) {
+            history.addOldMessage(room.getRole().getRoleAddress().toString(),
+                    null, room.getModificationDate(), room.getSubject(), null);
+        }
+    }
+
     /**
      * Save the room configuration to the DB.
      * 
@@ -468,6 +524,92 @@ public class MUCPersistenceManager {
         return rooms.values();
     }
 
+    /**
+     * Loads the names and discovery settings of the rooms that had occupants after a given
+     * date from the database. Used instead of {@link #loadRoomsFromDB} when the rooms of a
+     * service are loaded on demand. The owners, admins and members of the rooms that are not
+     * public are loaded too, so that the rooms can be discovered by them without being loaded.
+     *
+     * @param chatserver the chat server that hosts the rooms.
+     * @param emptyDate rooms that hadn't been used before this date won't be included.
+     * @return the index entries of the persistent rooms.
+     */
+    static List<RoomIndexEntry> loadRoomIndexFromDB(MultiUserChatService chatserver, Date emptyDate) {
+        Long serviceID = XMPPServer.getInstance().getMultiUserChatManager().getMultiUserChatServiceID(chatserver.getServiceName());
+        List<RoomIndexEntry> entries = new ArrayList<RoomIndexEntry>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            Map<Long, List<JID>> affiliated = new HashMap<Long, List<JID>>();
+            loadIndexAffiliations(con, LOAD_INDEX_AFFILIATIONS, serviceID, affiliated);
+            loadIndexAffiliations(con, LOAD_INDEX_MEMBERS, serviceID, affiliated);
+            pstmt = con.prepareStatement(LOAD_ROOM_INDEX);
+            // Read the rows in pages instead of holding the whole result in memory
+            DbConnectionManager.setFetchSize(pstmt, 500);
+            pstmt.setLong(1, serviceID);
+            pstmt.setString(2, StringUtils.dateToMillis(emptyDate));
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                List<JID> roomAffiliated = affiliated.get(rs.getLong(1));
+                if (roomAffiliated == null) {
+                    roomAffiliated = Collections.emptyList();
+                }
+                String password = rs.getString(9);
+                entries.add(new RoomIndexEntry(rs.getString(2), rs.getString(3), rs.getString(7),
+                        Long.parseLong(rs.getString(4).trim()) > 0, rs.getInt(5) == 1, rs.getInt(6) == 1,
+                        rs.getInt(8), password != null && password.trim().length() > 0, roomAffiliated));
+            }
+        }
+        catch (SQLException sqle) {
+            Log.error("A database error prevented the MUC room index to be loaded from the database.", sqle);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return entries;
+    }
+
+    /**
+     * Adds the JIDs returned by a query of the owners, admins or members of the rooms of a
+     * service to the lists of the rooms. Key: id of the room.
+     */
+    private static void loadIndexAffiliations(Connection con, String sql, Long serviceID,
+            Map<Long, List<JID>> affiliated) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            pstmt = con.prepareStatement(sql);
+            DbConnectionManager.setFetchSize(pstmt, 500);
+            pstmt.setLong(1, serviceID);
+            rs = pstmt.executeQuery();
+            while (rs.next()) {
+                final String jidValue = rs.getString(2);
+                final JID jid;
+                try {
+                    // might be a group JID
+                    jid = GroupJID.fromString(jidValue);
+                }
+                catch (IllegalArgumentException ex) {
+                    Log.warn("An illegal JID ({}) was found in the database while loading the MUC room index. " +
+                            "The JID is ignored.", jidValue);
+                    continue;
+                }
+                List<JID> roomAffiliated = affiliated.get(rs.getLong(1));
+                if (roomAffiliated == null) {
+                    roomAffiliated = new ArrayList<JID>();
+                    affiliated.put(rs.getLong(1), roomAffiliated);
+                }
+                roomAffiliated.add(jid);
+            }
+        }
+        finally {
+            DbConnectionManager.closeResultSet(rs);
+            DbConnectionManager.closeStatement(pstmt);
+        }
+    }
+
     private static Map<Long, LocalMUCRoom> loadRooms(Long serviceID, Date emptyDate, MultiUserChatService chatserver, PacketRouter packetRouter) throws SQLException {
         final Map<Long, LocalMUCRoom> rooms = new HashMap<Long, LocalMUCRoom>();
 
@@ -1049,6 +1191,51 @@ public class MUCPersistenceManager {
         }
     }
 
+    /**
+     * Saves a group of conversation log entries to the database in a single transaction. The
+     * entries are sent to the database as a JDBC batch when the driver supports batch updates.
+     * When the database supports transactions either all the entries are saved or none of them is.
+     *
+     * @param entries the ConversationLogEntries to save to the database.
+     * @return true if the ConversationLogEntries were saved successfully to the database.
+     */
+    public static boolean saveConversationLogBatch(List<ConversationLogEntry> entries) {
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        boolean abortTransaction = false;
+        try {
+            con = DbConnectionManager.getTransactionConnection();
+            pstmt = con.prepareStatement(ADD_CONVERSATION_LOG);
+            boolean batch = DbConnectionManager.isBatchUpdatesSupported();
+            for (ConversationLogEntry entry : entries) {
+                pstmt.setLong(1, entry.getRoomID());
+                pstmt.setString(2, entry.getSender().toString());
+                pstmt.setString(3, entry.getNickname());
+                pstmt.setString(4, StringUtils.dateToMillis(entry.getDate()));
+                pstmt.setString(5, entry.getSubject());
+                pstmt.setString(6, entry.getBody());
+                if (batch) {
+                    pstmt.addBatch();
+                }
+                else {
+                    pstmt.executeUpdate();
+                }
+            }
+            if (batch) {
+                pstmt.executeBatch();
+            }
+            return true;
+        }
+        catch (SQLException sqle) {
+            Log.error("Error saving conversation log entries", sqle);
+            abortTransaction = true;
+            return false;
+        }
+        finally {
+            DbConnectionManager.closeTransactionConnection(pstmt, con, abortTransaction);
+        }
+    }
+
     /**
      * Returns an integer based on the binary representation of the roles to broadcast.
      * 
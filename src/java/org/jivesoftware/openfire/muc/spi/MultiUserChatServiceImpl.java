@@ -24,13 +24,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -114,17 +114,13 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      */
     private UserTimeoutTask userTimeoutTask;
     /**
-     * The time to elapse between logging the room conversations.
+     * The max time that a room conversation message may wait before being logged.
      */
     private int log_timeout = 300000;
     /**
-     * The number of messages to log on each run of the logging process.
+     * The max number of messages to log in a single database transaction.
      */
     private int log_batch_size = 50;
-    /**
-     * Task that flushes room conversation logs to the database.
-     */
-    private LogConversationTask logConversationTask;
     /**
      * the chat service's hostname (subdomain)
      */
@@ -203,9 +199,9 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     private GroupAwareList<JID> sysadmins = new ConcurrentGroupList<JID>();
 
     /**
-     * Queue that holds the messages to log for the rooms that need to log their conversations.
+     * Writer that saves the messages of the rooms that need to log their conversations.
      */
-    private Queue<ConversationLogEntry> logQueue = new LinkedBlockingQueue<ConversationLogEntry>(100000);
+    private ConversationLogWriter logWriter;
 
     /**
      * Max number of hours that a persistent room may be empty before the service removes the
@@ -222,6 +218,25 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      * The time to elapse between each rooms cleanup. Default frequency is 60 minutes.
      */
     private static final long CLEANUP_FREQUENCY = 60 * 60 * 1000;
+    /**
+     * True if persistent rooms are loaded from the database when they are first used instead
+     * of loading all of them when the service starts.
+     */
+    private boolean lazyLoadRooms = false;
+    /**
+     * Max number of minutes that a persistent room may be empty before the service removes the
+     * room from memory when rooms are loaded on demand. Default time limit is: 30 minutes.
+     */
+    private long idleLimit = 30;
+    /**
+     * Persistent rooms that may not be loaded in memory when rooms are loaded on demand, table:
+     * key room name (String); value summary of the room.
+     */
+    private final Map<String, RoomIndexEntry> roomIndex = new ConcurrentHashMap<String, RoomIndexEntry>();
+    /**
+     * Milliseconds that it took to load the rooms (or the room index) when the service started.
+     */
+    private volatile long roomLoadTime = 0;
 
     /**
      * Total number of received messages in all rooms since the last reset. The counter
@@ -287,6 +302,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         }
         this.isHidden = isHidden;
         historyStrategy = new HistoryStrategy(null);
+        logWriter = new ConversationLogWriter(subdomain, 100000, log_batch_size, log_timeout);
     }
 
     public String getDescription() {
@@ -444,49 +460,6 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         }
     }
 
-    /**
-     * Logs the conversation of the rooms that have this feature enabled.
-     */
-    private class LogConversationTask extends TimerTask {
-        @Override
-		public void run() {
-            try {
-                logConversation();
-            }
-            catch (Throwable e) {
-                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
-            }
-        }
-    }
-
-    private void logConversation() {
-        ConversationLogEntry entry;
-        boolean success;
-        for (int index = 0; index <= log_batch_size && !logQueue.isEmpty(); index++) {
-            entry = logQueue.poll();
-            if (entry != null) {
-                success = MUCPersistenceManager.saveConversationLogEntry(entry);
-                if (!success) {
-                    logQueue.add(entry);
-                }
-            }
-        }
-    }
-
-    /**
-     * Logs all the remaining conversation log entries to the database. Use this method to force
-     * saving all the conversation log entries before the service becomes unavailable.
-     */
-    private void logAllConversation() {
-        ConversationLogEntry entry;
-        while (!logQueue.isEmpty()) {
-            entry = logQueue.poll();
-            if (entry != null) {
-                MUCPersistenceManager.saveConversationLogEntry(entry);
-            }
-        }
-    }
-
     /**
      * Removes from memory rooms that have been without activity for a period of time. A room is
      * considered without activity when no occupants are present in the room for a while.
@@ -508,10 +481,41 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     }
 
     private void cleanupRooms() {
+        Date idleDate = new Date(System.currentTimeMillis() - (idleLimit * 60000));
         for (MUCRoom room : rooms.values()) {
             if (room.getEmptyDate() != null && room.getEmptyDate().before(getCleanupDate())) {
                 removeChatRoom(room.getName());
             }
+            else if (lazyLoadRooms && room.wasSavedToDB() && room.getEmptyDate() != null &&
+                    room.getEmptyDate().before(idleDate)) {
+                // The room is in the database and will be loaded again when needed
+                unloadChatRoom(room.getName(), idleDate);
+            }
+        }
+    }
+
+    /**
+     * Removes a persistent room from memory if it is still idle. The room is checked again
+     * while holding the same lock that is used to load rooms, so that a room is not unloaded
+     * while it is being loaded or joined. Rooms that have occupants or history that is not
+     * logged to the database are kept in memory.
+     *
+     * @param roomName the name of the room.
+     * @param idleDate rooms that have been empty since before this date are unloaded.
+     */
+    private void unloadChatRoom(String roomName, Date idleDate) {
+        LocalMUCRoom room;
+        synchronized (roomName.intern()) {
+            room = rooms.get(roomName);
+            if (room == null || room.getOccupantsCount() > 0 || room.getEmptyDate() == null ||
+                    !room.getEmptyDate().before(idleDate) || room.hasUnloggedHistory()) {
+                return;
+            }
+            room = removeLocalChatRoom(roomName);
+        }
+        if (room != null) {
+            // Notify other cluster nodes that a room has been removed
+            CacheFactory.doClusterTask(new RoomRemovedEvent(room));
         }
     }
 
@@ -528,7 +532,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                     // Try to load the room's configuration from the database (if the room is
                     // persistent but was added to the DB after the server was started up or the
                     // room may be an old room that was not present in memory)
-                    MUCPersistenceManager.loadFromDB(room);
+                    MUCPersistenceManager.loadFromDB(room, !lazyLoadRooms);
                     loaded = true;
                 }
                 catch (IllegalArgumentException e) {
@@ -597,7 +601,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                         // Try to load the room's configuration from the database (if the room is
                         // persistent but was added to the DB after the server was started up or the
                         // room may be an old room that was not present in memory)
-                        MUCPersistenceManager.loadFromDB(room);
+                        MUCPersistenceManager.loadFromDB(room, !lazyLoadRooms);
                         loaded = true;
                         rooms.put(roomName, room);
                     }
@@ -616,7 +620,10 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     }
 
     public void refreshChatRoom(String roomName) {
-        rooms.remove(roomName);
+        LocalMUCRoom room = rooms.remove(roomName);
+        if (room != null) {
+            room.clearHistory();
+        }
         getChatRoom(roomName);
     }
 
@@ -625,9 +632,60 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     }
 
     public List<MUCRoom> getChatRooms() {
+        if (lazyLoadRooms) {
+            // Load the persistent rooms that are not in memory
+            for (String roomName : roomIndex.keySet()) {
+                if (!rooms.containsKey(roomName)) {
+                    getChatRoom(roomName);
+                }
+            }
+        }
+        return new ArrayList<MUCRoom>(rooms.values());
+    }
+
+    public List<MUCRoom> getChatRooms(int startIndex, int numResults) {
+        List<String> roomNames = getChatRoomNames();
+        Collections.sort(roomNames);
+        List<MUCRoom> answer = new ArrayList<MUCRoom>(Math.max(0, Math.min(numResults, roomNames.size())));
+        for (int i = Math.max(0, startIndex); i < roomNames.size() && answer.size() < numResults; i++) {
+            MUCRoom room = getChatRoom(roomNames.get(i));
+            if (room != null) {
+                answer.add(room);
+            }
+        }
+        return answer;
+    }
+
+    public List<String> getChatRoomNames() {
+        Set<String> roomNames = new HashSet<String>(rooms.keySet());
+        if (lazyLoadRooms) {
+            roomNames.addAll(roomIndex.keySet());
+        }
+        return new ArrayList<String>(roomNames);
+    }
+
+    public List<MUCRoom> getResidentChatRooms() {
         return new ArrayList<MUCRoom>(rooms.values());
     }
 
+    /**
+     * Returns the index entries of the persistent rooms that are not loaded in memory. Empty
+     * unless rooms are loaded on demand.
+     *
+     * @return a snapshot of the entries of the rooms that are not in memory.
+     */
+    Collection<RoomIndexEntry> getNonResidentRoomEntries() {
+        List<RoomIndexEntry> entries = new ArrayList<RoomIndexEntry>();
+        if (lazyLoadRooms) {
+            for (Map.Entry<String, RoomIndexEntry> indexEntry : roomIndex.entrySet()) {
+                if (!rooms.containsKey(indexEntry.getKey())) {
+                    entries.add(indexEntry.getValue());
+                }
+            }
+        }
+        return entries;
+    }
+
     public boolean hasChatRoom(String roomName) {
         return getChatRoom(roomName) != null;
     }
@@ -657,14 +715,38 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     }
 
     private void removeChatRoom(String roomName, boolean notify) {
-        MUCRoom room = rooms.remove(roomName);
+        LocalMUCRoom room;
+        synchronized (roomName.intern()) {
+            room = removeLocalChatRoom(roomName);
+        }
+        if (room != null && notify) {
+            // Notify other cluster nodes that a room has been removed
+            CacheFactory.doClusterTask(new RoomRemovedEvent(room));
+        }
+    }
+
+    /**
+     * Removes a room from memory. Must be invoked while holding the lock of the room name.
+     *
+     * @param roomName the name of the room.
+     * @return the removed room or <tt>null</tt> if the room was not in memory.
+     */
+    private LocalMUCRoom removeLocalChatRoom(String roomName) {
+        LocalMUCRoom room = rooms.remove(roomName);
         if (room != null) {
             totalChatTime += room.getChatLength();
-            if (notify) {
-                // Notify other cluster nodes that a room has been removed
-                CacheFactory.doClusterTask(new RoomRemovedEvent((LocalMUCRoom)room));
+            room.clearHistory();
+            if (lazyLoadRooms) {
+                // Keep track of the persistent rooms that are no longer in memory
+                if (room.wasSavedToDB() && !room.isDestroyed) {
+                    roomIndex.put(roomName, new RoomIndexEntry(room));
+                }
+                else {
+                    roomIndex.remove(roomName);
+                }
             }
         }
+        return room;
     }
 
     public String getServiceName() {
@@ -787,14 +869,8 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         if (this.log_timeout == timeout) {
             return;
         }
-        // Cancel the existing task because the timeout has changed
-        if (logConversationTask != null) {
-            logConversationTask.cancel();
-        }
         this.log_timeout = timeout;
-        // Create a new task and schedule it with the new timeout
-        logConversationTask = new LogConversationTask();
-        TaskEngine.getInstance().schedule(logConversationTask, log_timeout, log_timeout);
+        logWriter.setMaxDelay(timeout);
         // Set the new property value
         MUCPersistenceManager.setProperty(chatServiceName, "tasks.log.timeout", Integer.toString(timeout));
     }
@@ -808,6 +884,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
             return;
         }
         this.log_batch_size = size;
+        logWriter.setBatchSize(size);
         // Set the new property value
         MUCPersistenceManager.setProperty(chatServiceName, "tasks.log.batchsize", Integer.toString(size));
     }
@@ -1082,6 +1159,17 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
                 Log.error("Wrong number format of property unload.empty_days for service "+chatServiceName, e);
             }
         }
+        lazyLoadRooms = MUCPersistenceManager.getBooleanProperty(chatServiceName, "room.lazyload", false);
+        value = MUCPersistenceManager.getProperty(chatServiceName, "unload.idle_minutes");
+        idleLimit = 30;
+        if (value != null) {
+            try {
+                idleLimit = Integer.parseInt(value);
+            }
+            catch (NumberFormatException e) {
+                Log.error("Wrong number format of property unload.idle_minutes for service "+chatServiceName, e);
+            }
+        }
     }
 
     public void start() {
@@ -1089,13 +1177,19 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         // values)
         userTimeoutTask = new UserTimeoutTask();
         TaskEngine.getInstance().schedule(userTimeoutTask, user_timeout, user_timeout);
-        // Log the room conversations every 5 minutes after a 5 minutes server startup delay
-        // (default values)
-        logConversationTask = new LogConversationTask();
-        TaskEngine.getInstance().schedule(logConversationTask, log_timeout, log_timeout);
+        // Log the room conversations in batches of 50 messages or when a message has been
+        // waiting for 5 minutes (default values)
+        logWriter.setBatchSize(log_batch_size);
+        logWriter.setMaxDelay(log_timeout);
+        logWriter.start();
         // Remove unused rooms from memory
         cleanupTask = new CleanupTask();
-        TaskEngine.getInstance().schedule(cleanupTask, CLEANUP_FREQUENCY, CLEANUP_FREQUENCY);
+        long cleanupFrequency = CLEANUP_FREQUENCY;
+        if (lazyLoadRooms) {
+            // Check often enough to remove rooms soon after they become idle
+            cleanupFrequency = Math.max(60000, Math.min(CLEANUP_FREQUENCY, idleLimit * 60000));
+        }
+        TaskEngine.getInstance().schedule(cleanupTask, cleanupFrequency, cleanupFrequency);
 
         // Set us up to answer disco item requests
         XMPPServer.getInstance().getIQDiscoItemsHandler().addServerItemsProvider(this);
@@ -1106,10 +1200,21 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         params.clear();
         params.add(getServiceDomain());
         Log.info(LocaleUtils.getLocalizedString("startup.starting.muc", params));
-        // Load all the persistent rooms to memory
-        for (LocalMUCRoom room : MUCPersistenceManager.loadRoomsFromDB(this, this.getCleanupDate(), router)) {
-            rooms.put(room.getName().toLowerCase(), room);
+        long start = System.currentTimeMillis();
+        if (lazyLoadRooms) {
+            // Only load the names of the persistent rooms. Rooms are loaded when first used.
+            roomIndex.clear();
+            for (RoomIndexEntry entry : MUCPersistenceManager.loadRoomIndexFromDB(this, this.getCleanupDate())) {
+                roomIndex.put(entry.getName().toLowerCase(), entry);
+            }
         }
+        else {
+            // Load all the persistent rooms to memory
+            for (LocalMUCRoom room : MUCPersistenceManager.loadRoomsFromDB(this, this.getCleanupDate(), router)) {
+                rooms.put(room.getName().toLowerCase(), room);
+            }
+        }
+        roomLoadTime = System.currentTimeMillis() - start;
     }
 
     private void stop() {
@@ -1118,7 +1223,8 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         XMPPServer.getInstance().getServerItemsProviders().remove(this);
         // Remove the route to this service
         routingTable.removeComponentRoute(getAddress());
-        logAllConversation();
+        // Save the remaining conversation log entries before the service becomes unavailable
+        logWriter.stop();
 
     }
 
@@ -1156,9 +1262,38 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
      * @return the number of existing rooms in the server.
      */
     public int getNumberChatRooms() {
+        if (!lazyLoadRooms) {
+            return rooms.size();
+        }
+        int total = roomIndex.size();
+        for (String roomName : rooms.keySet()) {
+            if (!roomIndex.containsKey(roomName)) {
+                total++;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of rooms that are loaded in memory. When rooms are loaded on demand
+     * this may be less than the number of existing rooms.
+     *
+     * @return the number of rooms that are loaded in memory.
+     */
+    public int getNumberResidentRooms() {
         return rooms.size();
     }
 
+    /**
+     * Returns the number of milliseconds that it took to load the persistent rooms, or only
+     * their names when rooms are loaded on demand, when the service was started.
+     *
+     * @return the number of milliseconds that it took to load the rooms at startup.
+     */
+    public long getRoomLoadTime() {
+        return roomLoadTime;
+    }
+
     /**
      * Retuns the total number of occupants in all rooms in the server.
      *
@@ -1232,7 +1367,7 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
     public void logConversation(MUCRoom room, Message message, JID sender) {
         // Only log messages that have a subject or body. Otherwise ignore it.
         if (message.getSubject() != null || message.getBody() != null) {
-            logQueue.add(new ConversationLogEntry(new Date(), room, message, sender));
+            logWriter.add(new ConversationLogEntry(new Date(), room, message, sender));
         }
     }
 
@@ -1509,6 +1644,19 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
 						room.getNaturalLanguageName(), null, null));
 				}
 			}
+			if (lazyLoadRooms)
+			{
+				// Answer the persistent rooms that are not in memory without loading them
+				for (Map.Entry<String, RoomIndexEntry> indexEntry : roomIndex.entrySet())
+				{
+					RoomIndexEntry entry = indexEntry.getValue();
+					if (!rooms.containsKey(indexEntry.getKey()) && canDiscoverRoom(entry, senderJID))
+					{
+						answer.add(new DiscoItem(new JID(entry.getName(), getServiceDomain(), null),
+							entry.getNaturalName(), null, null));
+					}
+				}
+			}
 		}
         else if (name != null && node == null) {
             // Answer the room occupants as items if that info is publicly available
@@ -1542,6 +1690,24 @@ public class MultiUserChatServiceImpl implements Component, MultiUserChatService
         return true;
     }
 
+    /**
+     * Returns true if a room that is not in memory may be discovered by a user. The same
+     * rules as {@link #canDiscoverRoom(MUCRoom, JID)} are applied to the index entry of the room.
+     */
+    private boolean canDiscoverRoom(RoomIndexEntry entry, JID senderJID) {
+        // Check if locked rooms may be discovered
+        if (!allowToDiscoverLockedRooms && entry.isLocked()) {
+            return false;
+        }
+        if (!entry.isPublicRoom()) {
+            if (!allowToDiscoverMembersOnlyRooms && entry.isMembersOnly()) {
+                return false;
+            }
+            return entry.isAffiliated(senderJID);
+        }
+        return true;
+    }
+
     /**
      * Converts an array to a comma-delimited String.
      *
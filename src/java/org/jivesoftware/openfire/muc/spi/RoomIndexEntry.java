@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.muc.spi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.group.GroupJID;
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.xmpp.packet.JID;
+
+/**
+ * Summary of a persistent room that is not loaded in memory. When rooms are loaded on
+ * demand, the chat service keeps an entry for each persistent room so that it can list
+ * and search the rooms without loading them.
+ */
+final class RoomIndexEntry {
+
+    private final String name;
+    private final String naturalName;
+    private final String subject;
+    private final boolean locked;
+    private final boolean publicRoom;
+    private final boolean membersOnly;
+    private final int maxUsers;
+    private final boolean passwordProtected;
+    /**
+     * Bare JIDs of the owners, admins and members of the room. Only kept for rooms that
+     * are not public, since only they are discovered according to the affiliation.
+     */
+    private final Set<JID> affiliatedUsers = new HashSet<JID>();
+    /**
+     * Groups whose users are owners, admins or members of the room.
+     */
+    private final List<JID> affiliatedGroups = new ArrayList<JID>();
+
+    /**
+     * Creates an entry of a room.
+     *
+     * @param name the name of the room.
+     * @param naturalName the natural language name of the room.
+     * @param subject the last subject of the room.
+     * @param locked true if the room is locked.
+     * @param publicRoom true if the room is listed in the directory.
+     * @param membersOnly true if the room is members-only.
+     * @param maxUsers the maximum number of occupants of the room.
+     * @param passwordProtected true if a password is required to join the room.
+     * @param affiliated the owners, admins and members of the room, users or groups.
+     */
+    RoomIndexEntry(String name, String naturalName, String subject, boolean locked, boolean publicRoom,
+            boolean membersOnly, int maxUsers, boolean passwordProtected, Collection<JID> affiliated) {
+        this.name = name;
+        this.naturalName = naturalName;
+        this.subject = subject;
+        this.locked = locked;
+        this.publicRoom = publicRoom;
+        this.membersOnly = membersOnly;
+        this.maxUsers = maxUsers;
+        this.passwordProtected = passwordProtected;
+        if (!publicRoom) {
+            for (JID jid : affiliated) {
+                if (jid instanceof GroupJID) {
+                    affiliatedGroups.add(jid);
+                }
+                else {
+                    affiliatedUsers.add(jid.asBareJID());
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an entry with the current configuration of a room.
+     *
+     * @param room the room.
+     */
+    RoomIndexEntry(MUCRoom room) {
+        this(room.getName(), room.getNaturalLanguageName(), room.getSubject(), room.isLocked(),
+                room.isPublicRoom(), room.isMembersOnly(), room.getMaxUsers(), room.isPasswordProtected(),
+                getAffiliated(room));
+    }
+
+    private static Collection<JID> getAffiliated(MUCRoom room) {
+        if (room.isPublicRoom()) {
+            return Collections.emptyList();
+        }
+        List<JID> affiliated = new ArrayList<JID>(room.getOwners());
+        affiliated.addAll(room.getAdmins());
+        affiliated.addAll(room.getMembers());
+        return affiliated;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getNaturalName() {
+        return naturalName;
+    }
+
+    String getSubject() {
+        return subject;
+    }
+
+    boolean isLocked() {
+        return locked;
+    }
+
+    boolean isPublicRoom() {
+        return publicRoom;
+    }
+
+    boolean isMembersOnly() {
+        return membersOnly;
+    }
+
+    int getMaxUsers() {
+        return maxUsers;
+    }
+
+    boolean isPasswordProtected() {
+        return passwordProtected;
+    }
+
+    /**
+     * Returns true if the user is an owner, admin or member of the room, directly or through
+     * a group. Only answered for rooms that are not public.
+     *
+     * @param jid the JID of the user.
+     * @return true if the user is an owner, admin or member of the room.
+     */
+    boolean isAffiliated(JID jid) {
+        JID bareJID = jid.asBareJID();
+        if (affiliatedUsers.contains(bareJID)) {
+            return true;
+        }
+        for (JID groupJID : affiliatedGroups) {
+            Group group = Group.resolveFrom(groupJID);
+            if (group != null && group.isUser(bareJID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -21,6 +21,9 @@
 package org.jivesoftware.openfire.net;
 
 import org.eclipse.jetty.util.MultiMap;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,16 +37,34 @@ import javax.naming.directory.InitialDirContext;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
- * Utilty class to perform DNS lookups for XMPP services.
+ * Utilty class to perform DNS lookups for XMPP services.<p>
+ *
+ * SRV lookups are performed by a pool of threads and their results are cached for
+ * <tt>dnsutil.cache.ttl</tt> seconds (300 by default), or <tt>dnsutil.cache.negativeTtl</tt>
+ * seconds (60 by default) for domains without SRV records. Threads that need the records of a
+ * domain that are not cached wait up to <tt>dnsutil.lookup.timeout</tt> milliseconds (5000 by
+ * default) for the lookup to finish, after which the default host and port of the domain are
+ * used.
  *
  * @author Matt Tucker
  */
 public class DNSUtil {
 
+    private static final String cacheHitsStatKey = "dns_cache_hits";
+    private static final String cacheMissesStatKey = "dns_cache_misses";
+    private static final String lookupTimeStatKey = "dns_lookup_time";
+
     private static DirContext context;
 
+    private static SrvResolver resolver;
+
     private static final Logger logger = LoggerFactory.getLogger(DNSUtil.class);
 
     /**
@@ -66,6 +87,24 @@ public class DNSUtil {
         catch (Exception e) {
             logger.error("Can't initialize DNS context!", e);
         }
+
+        int threads = JiveGlobals.getIntProperty("dnsutil.lookup.threads", 8);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "DNS Resolver");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        resolver = new SrvResolver(new SrvResolver.Lookup() {
+            public WeightedHostAddress[] lookup(String name) {
+                return srvLookup(name);
+            }
+        }, executor, JiveGlobals.getLongProperty("dnsutil.cache.ttl", 300) * 1000,
+                JiveGlobals.getLongProperty("dnsutil.cache.negativeTtl", 60) * 1000,
+                JiveGlobals.getIntProperty("dnsutil.cache.size", 10000));
     }
 
     /**
@@ -120,10 +159,16 @@ public class DNSUtil {
             }
         }
 
-        // Attempt the SRV lookup.
-        results.addAll(srvLookup("_xmpp-server._tcp." + domain));
-        if (results.isEmpty()) {
-            results.addAll(srvLookup("_jabber._tcp." + domain));
+        // Attempt the SRV lookup (or use its cached result).
+        try {
+            WeightedHostAddress[] records =
+                    resolver.resolve(domain, JiveGlobals.getLongProperty("dnsutil.lookup.timeout", 5000));
+            if (records.length > 0) {
+                results.addAll(prioritize(records));
+            }
+        }
+        catch (TimeoutException e) {
+            logger.debug("SRV lookup of domain " + domain + " is taking too long, using the default port");
         }
 
         // Use domain and default port as fallback.
@@ -133,6 +178,58 @@ public class DNSUtil {
         return results;
     }
 
+    /**
+     * Starts looking up the SRV records of a domain in the background, unless they are
+     * already cached or being looked up. Used when a connection to the domain is likely
+     * to be needed soon.
+     *
+     * @param domain the domain.
+     */
+    public static void prefetchXMPPDomain(String domain) {
+        if (dnsOverride != null && dnsOverride.containsKey(domain)) {
+            return;
+        }
+        resolver.prefetch(domain);
+    }
+
+    /**
+     * Creates and adds the DNS lookup statistics to the statistic manager.
+     */
+    public static void initStatistics() {
+        StatisticsManager.getInstance().addStatistic(cacheHitsStatKey,
+                new i18nStatistic("dns.cache.hits", Statistic.Type.rate) {
+                    public double sample() {
+                        return resolver.hits.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic(cacheMissesStatKey,
+                new i18nStatistic("dns.cache.misses", Statistic.Type.rate) {
+                    public double sample() {
+                        return resolver.misses.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic(lookupTimeStatKey,
+                new i18nStatistic("dns.lookup_time", Statistic.Type.count) {
+                    public double sample() {
+                        long count = resolver.lookups.getAndSet(0);
+                        long time = resolver.lookupTime.getAndSet(0);
+                        return count == 0 ? 0 : (double) time / count;
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+    }
+
     /**
      * Returns the internal DNS that allows to specify target IP addresses and ports
      * to use for domains. The internal DNS will be checked up before performing an
@@ -184,7 +281,7 @@ public class DNSUtil {
         return answer;
     }
 
-    private static List<? extends HostAddress> srvLookup(String lookup) {
+    private static WeightedHostAddress[] srvLookup(String lookup) {
         if (lookup == null) {
             throw new NullPointerException("DNS lookup can't be null");
         }
@@ -194,14 +291,14 @@ public class DNSUtil {
             Attribute srvRecords = dnsLookup.get("SRV");
             if (srvRecords == null) {
                 logger.debug("No SRV record found for domain: " + lookup);
-                return new ArrayList<HostAddress>();
+                return new WeightedHostAddress[0];
             }
             WeightedHostAddress[] hosts = new WeightedHostAddress[srvRecords.size()];
             for (int i = 0; i < srvRecords.size(); i++) {
                 hosts[i] = new WeightedHostAddress(((String)srvRecords.get(i)).split(" "));
             }
 
-            return prioritize(hosts);
+            return hosts;
         }
         catch (NameNotFoundException e) {
             logger.debug("No SRV record found for: " + lookup, e);
@@ -209,7 +306,7 @@ public class DNSUtil {
         catch (NamingException e) {
             logger.error("Can't process DNS lookup!", e);
         }
-        return new ArrayList<HostAddress>();
+        return new WeightedHostAddress[0];
     }
 
     /**
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.net;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.net.DNSUtil.WeightedHostAddress;
+
+/**
+ * Looks up the SRV records of XMPP domains in the background and caches the results. A
+ * lookup for the "_xmpp-server._tcp" records of a domain is attempted first and for the
+ * older "_jabber._tcp" records if there are none.<p>
+ *
+ * Domains with records are cached for a time to live and domains without records (or
+ * whose lookup failed) for a shorter negative time to live. Concurrent requests for a domain
+ * that is being looked up wait for the same lookup.
+ */
+class SrvResolver {
+
+    private static final WeightedHostAddress[] NO_RECORDS = new WeightedHostAddress[0];
+
+    /**
+     * Performs the actual DNS lookups.
+     */
+    interface Lookup {
+
+        /**
+         * Returns the SRV records of a name or an empty array if there are none or the
+         * lookup failed.
+         *
+         * @param name the name to look up (e.g. _xmpp-server._tcp.example.com).
+         * @return the SRV records of the name.
+         */
+        WeightedHostAddress[] lookup(String name);
+    }
+
+    private final Lookup lookup;
+    private final Executor executor;
+    private final long ttl;
+    private final long negativeTtl;
+    private final int maxEntries;
+
+    private final ConcurrentMap<String, CachedRecords> cache = new ConcurrentHashMap<String, CachedRecords>();
+    private final ConcurrentMap<String, LookupTask> pending = new ConcurrentHashMap<String, LookupTask>();
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+    final AtomicLong lookups = new AtomicLong();
+    final AtomicLong lookupTime = new AtomicLong();
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param lookup the object that performs the actual DNS lookups.
+     * @param executor the executor that runs the lookups.
+     * @param ttl time in milliseconds to cache the records of a domain.
+     * @param negativeTtl time in milliseconds to cache that a domain has no records.
+     * @param maxEntries maximum number of domains in the cache.
+     */
+    SrvResolver(Lookup lookup, Executor executor, long ttl, long negativeTtl, int maxEntries) {
+        this.lookup = lookup;
+        this.executor = executor;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the SRV records of a domain, waiting up to a timeout if they are not cached.
+     * The lookup continues in the background after the timeout and its result is cached.
+     *
+     * @param domain the domain.
+     * @param timeout the maximum time to wait in milliseconds.
+     * @return the SRV records of the domain or an empty array if it has none.
+     * @throws TimeoutException if the lookup did not finish in time.
+     */
+    WeightedHostAddress[] resolve(String domain, long timeout) throws TimeoutException {
+        WeightedHostAddress[] records = getCachedRecords(domain);
+        if (records != null) {
+            return records;
+        }
+        try {
+            return lookup(domain).get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return NO_RECORDS;
+        }
+        catch (ExecutionException e) {
+            return NO_RECORDS;
+        }
+    }
+
+    /**
+     * Starts looking up the SRV records of a domain unless they are cached or being
+     * looked up.
+     *
+     * @param domain the domain.
+     */
+    void prefetch(String domain) {
+        CachedRecords cached = cache.get(domain);
+        if (cached == null || cached.isExpired()) {
+            lookup(domain);
+        }
+    }
+
+    /**
+     * Returns the cached SRV records of a domain or null if they are not cached.
+     */
+    private WeightedHostAddress[] getCachedRecords(String domain) {
+        CachedRecords cached = cache.get(domain);
+        if (cached != null && !cached.isExpired()) {
+            hits.incrementAndGet();
+            return cached.records;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    private Future<WeightedHostAddress[]> lookup(String domain) {
+        LookupTask task = pending.get(domain);
+        if (task != null) {
+            if (!task.isDone()) {
+                return task;
+            }
+            // The lookup finished but the task was not removed yet
+            pending.remove(domain, task);
+        }
+        task = new LookupTask(domain);
+        LookupTask existing = pending.putIfAbsent(domain, task);
+        if (existing != null) {
+            return existing;
+        }
+        try {
+            executor.execute(task);
+        }
+        catch (RejectedExecutionException e) {
+            task.run();
+        }
+        return task;
+    }
+
+    private WeightedHostAddress[] doLookup(String domain) {
+        long start = System.currentTimeMillis();
+        WeightedHostAddress[] records = lookup.lookup("_xmpp-server._tcp." + domain);
+        if (records.length == 0) {
+            records = lookup.lookup("_jabber._tcp." + domain);
+        }
+        long now = System.currentTimeMillis();
+        lookups.incrementAndGet();
+        lookupTime.addAndGet(now - start);
+
+        if (cache.size() >= maxEntries) {
+            removeExpired();
+        }
+        if (cache.size() < maxEntries) {
+            cache.put(domain, new CachedRecords(records, now + (records.length > 0 ? ttl : negativeTtl)));
+        }
+        return records;
+    }
+
+    private void removeExpired() {
+        for (Iterator<Map.Entry<String, CachedRecords>> it = cache.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue().isExpired()) {
+                it.remove();
+            }
+        }
+    }
+
+    private class LookupTask extends FutureTask<WeightedHostAddress[]> {
+
+        private final String domain;
+
+        LookupTask(final String domain) {
+            super(new Callable<WeightedHostAddress[]>() {
+                public WeightedHostAddress[] call() {
+                    return doLookup(domain);
+                }
+            });
+            this.domain = domain;
+        }
+
+        @Override
+        protected void done() {
+            pending.remove(domain, this);
+        }
+    }
+
+    private static class CachedRecords {
+
+        private final WeightedHostAddress[] records;
+        private final long expiration;
+
+        CachedRecords(WeightedHostAddress[] records, long expiration) {
+            this.records = records;
+            this.expiration = expiration;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() >= expiration;
+        }
+    }
+}
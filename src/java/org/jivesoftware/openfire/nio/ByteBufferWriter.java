@@ -23,6 +23,7 @@ import org.apache.mina.core.buffer.IoBuffer;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.nio.CharBuffer;
 import java.nio.charset.CharsetEncoder;
 
 /**
@@ -42,7 +43,28 @@ public class ByteBufferWriter extends Writer {
 
     @Override
 	public void write(char cbuf[], int off, int len) throws IOException {
-        ioBuffer.putString(new String(cbuf, off, len), encoder);
+        ioBuffer.putString(CharBuffer.wrap(cbuf, off, len), encoder);
+    }
+
+    @Override
+    public void write(String str) throws IOException {
+        // Encode the string directly instead of copying it to a char array first
+        ioBuffer.putString(str, encoder);
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+        ioBuffer.putString(CharBuffer.wrap(str, off, off + len), encoder);
+    }
+
+    /**
+     * Sets the buffer where the encoded characters are going to be written. Allows
+     * a writer to be reused for several buffers.
+     *
+     * @param byteBuffer the buffer where encoded characters will be written.
+     */
+    public void setBuffer(IoBuffer byteBuffer) {
+        this.ioBuffer = byteBuffer;
     }
 
     @Override
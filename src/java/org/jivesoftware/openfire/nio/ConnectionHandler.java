@@ -32,6 +32,7 @@ import org.jivesoftware.openfire.Connection;
 import org.jivesoftware.openfire.net.MXParser;
 import org.jivesoftware.openfire.net.ServerTrafficCounter;
 import org.jivesoftware.openfire.net.StanzaHandler;
+import org.jivesoftware.util.JiveGlobals;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xmlpull.v1.XmlPullParserException;
@@ -91,8 +92,12 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
     @Override
 	public void sessionOpened(IoSession session) throws Exception {
         // Create a new XML parser for the new connection. The parser will be used by the XMPPDecoder filter.
-        final XMLLightweightParser parser = new XMLLightweightParser(CHARSET);
-        session.setAttribute(XML_PARSER, parser);
+        if (JiveGlobals.getBooleanProperty("xmpp.parser.framer.enabled", true)) {
+            session.setAttribute(XML_PARSER, new XMLStanzaFramer());
+        }
+        else {
+            session.setAttribute(XML_PARSER, new XMLLightweightParser(CHARSET));
+        }
         // Create a new NIOConnection for the new session
         final NIOConnection connection = createNIOConnection(session);
         session.setAttribute(CONNECTION, connection);
@@ -185,18 +190,24 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         updateReadBytesCounter(session);
         //System.out.println("RCVD: " + message);
         // Let the stanza handler process the received stanza
+        // Stanzas queued for other connections while processing are written at the end
+        WriteCoalescer.startBurst();
         try {
             handler.process((String) message, parser);
         } catch (Exception e) {
             Log.error("Closing connection due to error while processing message: " + message, e);
             Connection connection = (Connection) session.getAttribute(CONNECTION);
             connection.close();
+        } finally {
+            WriteCoalescer.endBurst();
         }
     }
 
     @Override
 	public void messageSent(IoSession session, Object message) throws Exception {
         super.messageSent(session, message);
+        // The buffer has been written so it can be reused for other packets
+        OutboundBufferPool.getInstance().release(message);
         // Update counter of written btyes
         updateWrittenBytesCounter(session);
         //System.out.println("SENT: " + Charset.forName("UTF-8").decode(((ByteBuffer)message).buf()));
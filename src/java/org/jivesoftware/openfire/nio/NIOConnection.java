@@ -31,6 +31,9 @@ import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CodingErrorAction;
 import java.security.KeyStore;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javax.net.ssl.KeyManager;
@@ -107,6 +110,11 @@ public class NIOConnection implements Connection {
      */
     private CompressionPolicy compressionPolicy = CompressionPolicy.disabled;
     private static ThreadLocal<CharsetEncoder> encoder = new ThreadLocalEncoder();
+    /**
+     * Serialization pipeline of each thread. Delivering a packet reuses the buffer and
+     * writers of the calling thread instead of creating new ones.
+     */
+    private static ThreadLocal<PacketSerializer> serializer = new ThreadLocal<PacketSerializer>();
     /**
      * Flag that specifies if the connection should be considered closed. Closing a NIO connection
      * is an asynch operation so instead of waiting for the connection to be actually closed just
@@ -126,6 +134,15 @@ public class NIOConnection implements Connection {
      */
     private final ReentrantLock ioSessionLock = new ReentrantLock(true);
 
+    /**
+     * Stanzas waiting to be written when write coalescing is enabled. See {@link WriteCoalescer}.
+     */
+    private final PendingWriteQueue pendingWrites = new PendingWriteQueue();
+    /**
+     * True when a flush of the pending writes has been scheduled at the end of a burst.
+     */
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
     public NIOConnection(IoSession session, PacketDeliverer packetDeliverer) {
         this.ioSession = session;
         this.backupDeliverer = packetDeliverer;
@@ -270,27 +287,33 @@ public class NIOConnection implements Connection {
         }
         else {
             boolean errorDelivering = false;
-            IoBuffer buffer = IoBuffer.allocate(4096);
-            buffer.setAutoExpand(true);
             try {
             	// OF-464: if the connection has been dropped, fail over to backupDeliverer (offline)
             	if (!ioSession.isConnected()) {
             		throw new IOException("Connection reset/closed by peer");
             	}
-                XMLWriter xmlSerializer =
-                        new XMLWriter(new ByteBufferWriter(buffer, encoder.get()), new OutputFormat());
-                xmlSerializer.write(packet.getElement());
-                xmlSerializer.flush();
-                if (flashClient) {
-                    buffer.put((byte) '\0');
+                IoBuffer buffer = serialize(packet);
+
+                if (WriteCoalescer.isEnabled()) {
+                    pendingWrites.add(packet, buffer);
+                    if (!WriteCoalescer.isInBurst()) {
+                        // Write right away, even if the burst of another thread already
+                        // scheduled a flush of this connection
+                        WriteCoalescer.flush(this);
+                    }
+                    else if (flushScheduled.compareAndSet(false, true)) {
+                        WriteCoalescer.schedule(this);
+                    }
                 }
-                buffer.flip();
-                
-                ioSessionLock.lock();
-                try {
-                    ioSession.write(buffer);
-                } finally {
-                    ioSessionLock.unlock();
+                else {
+                    // Stanzas queued before coalescing was disabled must be sent first
+                    flushPendingWrites();
+                    ioSessionLock.lock();
+                    try {
+                        ioSession.write(buffer);
+                    } finally {
+                        ioSessionLock.unlock();
+                    }
                 }
             }
             catch (Exception e) {
@@ -309,6 +332,100 @@ public class NIOConnection implements Connection {
         }
     }
 
+    /**
+     * Serializes the packet using the pipeline of the current thread and copies the result
+     * into a buffer of the {@link OutboundBufferPool}. The pooled buffer is returned to the
+     * pool once MINA is done writing it.
+     *
+     * @param packet the packet to serialize.
+     * @return a flipped buffer that contains the serialized packet.
+     * @throws IOException if an error occurred while serializing the packet.
+     */
+    private IoBuffer serialize(Packet packet) throws IOException {
+        PacketSerializer xmlSerializer = serializer.get();
+        if (xmlSerializer == null) {
+            xmlSerializer = new PacketSerializer();
+            serializer.set(xmlSerializer);
+        }
+        IoBuffer scratch;
+        try {
+            scratch = xmlSerializer.write(packet, flashClient);
+        }
+        catch (IOException e) {
+            // The writer may be left in an inconsistent state so don't reuse it
+            serializer.remove();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            serializer.remove();
+            throw e;
+        }
+        IoBuffer buffer = OutboundBufferPool.getInstance().acquire(scratch.remaining());
+        buffer.put(scratch);
+        buffer.flip();
+        xmlSerializer.reset();
+        return buffer;
+    }
+
+    /**
+     * Writes the stanzas that were queued while write coalescing is enabled. Stanzas that
+     * can't be written because the connection was closed or dropped are handed to the
+     * backup deliverer.
+     *
+     * @return the number of stanzas that were written.
+     */
+    int flushPendingWrites() {
+        flushScheduled.set(false);
+        if (pendingWrites.isEmpty()) {
+            return 0;
+        }
+        List<Packet> undelivered = new ArrayList<Packet>();
+        int count = writePendingWrites(undelivered);
+        if (!undelivered.isEmpty()) {
+            close();
+            // Retry sending the packets. Most probably messages will be stored offline
+            deliverToBackup(undelivered);
+        }
+        return count;
+    }
+
+    /**
+     * Writes the stanzas that were queued while write coalescing is enabled, unless the
+     * connection is closed.
+     *
+     * @param undelivered the list to which the packets that were not written are added.
+     * @return the number of stanzas that were written.
+     */
+    private int writePendingWrites(List<Packet> undelivered) {
+        if (isClosed()) {
+            pendingWrites.drainTo(undelivered);
+            return 0;
+        }
+        ioSessionLock.lock();
+        try {
+            return pendingWrites.write(ioSession, undelivered);
+        }
+        finally {
+            ioSessionLock.unlock();
+        }
+    }
+
+    private void deliverToBackup(List<Packet> packets) {
+        PacketDeliverer backup = backupDeliverer;
+        for (Packet packet : packets) {
+            if (backup == null) {
+                Log.error("Failed to deliver packet: " + packet.toXML());
+                continue;
+            }
+            try {
+                backup.deliver(packet);
+            }
+            catch (Exception e) {
+                Log.error("Error delivering packet:\n" + packet, e);
+            }
+        }
+    }
+
     public void deliverRawText(String text) {
         // Deliver the packet in asynchronous mode
         deliverRawText(text, true);
@@ -317,6 +434,7 @@ public class NIOConnection implements Connection {
     private void deliverRawText(String text, boolean asynchronous) {
         if (!isClosed()) {
             boolean errorDelivering = false;
+            List<Packet> undelivered = null;
             IoBuffer buffer = IoBuffer.allocate(text.length());
             buffer.setAutoExpand(true);
             try {
@@ -327,6 +445,11 @@ public class NIOConnection implements Connection {
                     buffer.put((byte) '\0');
                 }
                 buffer.flip();
+                // Stanzas that were queued before the text must be sent first
+                if (!pendingWrites.isEmpty()) {
+                    undelivered = new ArrayList<Packet>();
+                    writePendingWrites(undelivered);
+                }
                 ioSessionLock.lock();
                 try {
                     if (asynchronous) {
@@ -358,6 +481,9 @@ public class NIOConnection implements Connection {
             if (errorDelivering && asynchronous) {
                 close();
             }
+            if (undelivered != null && !undelivered.isEmpty()) {
+                deliverToBackup(undelivered);
+            }
         }
     }
 
@@ -487,6 +613,57 @@ public class NIOConnection implements Connection {
         return super.toString() + " MINA Session: " + ioSession;
     }
 
+    /**
+     * Serialization pipeline owned by a single thread. Keeps a scratch buffer where packets
+     * are serialized and the writers that encode the XML text into the buffer.
+     */
+    private static class PacketSerializer {
+
+        /**
+         * Scratch buffers that grew beyond this size because of a large packet are
+         * discarded after use so that each thread doesn't retain a large buffer.
+         */
+        private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+        private static final int INITIAL_CAPACITY = 4096;
+
+        private IoBuffer scratch;
+        private final ByteBufferWriter byteBufferWriter;
+        private final XMLWriter xmlWriter;
+
+        PacketSerializer() {
+            scratch = IoBuffer.allocate(INITIAL_CAPACITY);
+            scratch.setAutoExpand(true);
+            byteBufferWriter = new ByteBufferWriter(scratch, encoder.get());
+            xmlWriter = new XMLWriter(byteBufferWriter, new OutputFormat());
+        }
+
+        /**
+         * Serializes the packet into the scratch buffer and returns the flipped buffer. The
+         * buffer's content remains valid until {@link #reset()} is invoked.
+         */
+        IoBuffer write(Packet packet, boolean flashClient) throws IOException {
+            scratch.clear();
+            xmlWriter.write(packet.getElement());
+            xmlWriter.flush();
+            if (flashClient) {
+                scratch.put((byte) '\0');
+            }
+            scratch.flip();
+            return scratch;
+        }
+
+        void reset() {
+            if (scratch.capacity() > MAX_RETAINED_CAPACITY) {
+                scratch = IoBuffer.allocate(INITIAL_CAPACITY);
+                scratch.setAutoExpand(true);
+                byteBufferWriter.setBuffer(scratch);
+            }
+            else {
+                scratch.clear();
+            }
+        }
+    }
+
     private static class ThreadLocalEncoder extends ThreadLocal<CharsetEncoder> {
 
         @Override
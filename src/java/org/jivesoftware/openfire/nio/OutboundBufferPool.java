@@ -0,0 +1,231 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferWrapper;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
+
+/**
+ * Pool of direct buffers used by {@link NIOConnection} to write stanzas to MINA sessions.<p>
+ *
+ * Buffers are grouped in size classes of powers of two, from 256 bytes up to 16 KB. A
+ * buffer handed out by {@link #acquire(int)} travels down the MINA filter chain and comes
+ * back to the pool when {@link ConnectionHandler#messageSent} is invoked for it, which
+ * happens once its content has been written to the socket (or encrypted or compressed
+ * into another buffer). Buffers of sessions that are closed before the write completes
+ * are simply left to the garbage collector. Stanzas larger than the biggest size class
+ * get a heap buffer that is not pooled.<p>
+ *
+ * Pooling can be disabled with the <tt>xmpp.nio.buffer.pool.enabled</tt> property, and
+ * <tt>xmpp.nio.buffer.pool.size</tt> sets how many idle buffers are kept per size class.
+ */
+public class OutboundBufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 8;
+    private static final int MAX_SIZE_SHIFT = 14;
+
+    private static final OutboundBufferPool instance = new OutboundBufferPool();
+
+    private static final String allocatedStatKey = "nio_buffers_allocated";
+    private static final String reusedStatKey = "nio_buffers_reused";
+
+    private static final String ENABLED_PROPERTY_NAME = "xmpp.nio.buffer.pool.enabled";
+    private static final String SIZE_PROPERTY_NAME = "xmpp.nio.buffer.pool.size";
+
+    public static OutboundBufferPool getInstance() {
+        return instance;
+    }
+
+    private final List<Queue<PooledBuffer>> idleBuffers;
+    private final AtomicInteger[] idleCounts;
+
+    private volatile boolean enabled;
+    /**
+     * Maximum number of idle buffers kept per size class.
+     */
+    private volatile int poolSize;
+
+    /**
+     * Number of buffers that had to be allocated since the last statistics sample.
+     */
+    private final AtomicLong allocated = new AtomicLong();
+    /**
+     * Number of buffers that were taken from the pool since the last statistics sample.
+     */
+    private final AtomicLong reused = new AtomicLong();
+
+    private OutboundBufferPool() {
+        int classes = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+        idleBuffers = new ArrayList<Queue<PooledBuffer>>(classes);
+        idleCounts = new AtomicInteger[classes];
+        for (int i = 0; i < classes; i++) {
+            idleBuffers.add(new ConcurrentLinkedQueue<PooledBuffer>());
+            idleCounts[i] = new AtomicInteger();
+        }
+        loadProperties();
+        PropertyEventDispatcher.addListener(new PropertyListener());
+    }
+
+    private void loadProperties() {
+        enabled = JiveGlobals.getBooleanProperty(ENABLED_PROPERTY_NAME, true);
+        poolSize = JiveGlobals.getIntProperty(SIZE_PROPERTY_NAME, 1024);
+    }
+
+    /**
+     * Creates and adds the buffer allocation statistics to the statistic manager.
+     */
+    public static void initStatistics() {
+        StatisticsManager.getInstance().addStatistic(allocatedStatKey,
+                new BufferStatistic("nio.buffers.allocated", instance.allocated));
+        StatisticsManager.getInstance().addStatistic(reusedStatKey,
+                new BufferStatistic("nio.buffers.reused", instance.reused));
+    }
+
+    /**
+     * Returns an empty buffer with room for at least <tt>size</tt> bytes. The buffer is
+     * returned to the pool when {@link #release(Object)} is invoked with it.
+     *
+     * @param size the number of bytes that are going to be written to the buffer.
+     * @return an empty buffer with room for at least size bytes.
+     */
+    public IoBuffer acquire(int size) {
+        int sizeClass = sizeClassOf(size);
+        if (sizeClass < 0 || !enabled) {
+            allocated.incrementAndGet();
+            return IoBuffer.allocate(size, false);
+        }
+        PooledBuffer buffer = idleBuffers.get(sizeClass).poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = new PooledBuffer(ByteBuffer.allocateDirect(1 << (sizeClass + MIN_SIZE_SHIFT)), sizeClass);
+        }
+        else {
+            idleCounts[sizeClass].decrementAndGet();
+            reused.incrementAndGet();
+            buffer.clear();
+        }
+        buffer.inUse = 1;
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool if the message is a buffer that was obtained from
+     * {@link #acquire(int)}. Other messages are ignored.
+     *
+     * @param message the message that was written to a MINA session.
+     */
+    public void release(Object message) {
+        if (!(message instanceof PooledBuffer)) {
+            return;
+        }
+        PooledBuffer buffer = (PooledBuffer) message;
+        if (!PooledBuffer.inUseUpdater.compareAndSet(buffer, 1, 0)) {
+            // Already released
+            return;
+        }
+        if (idleCounts[buffer.sizeClass].incrementAndGet() > poolSize) {
+            // Keep the pool bounded. The buffer will be claimed by the garbage collector.
+            idleCounts[buffer.sizeClass].decrementAndGet();
+            return;
+        }
+        idleBuffers.get(buffer.sizeClass).offer(buffer);
+    }
+
+    private static int sizeClassOf(int size) {
+        for (int shift = MIN_SIZE_SHIFT; shift <= MAX_SIZE_SHIFT; shift++) {
+            if (size <= 1 << shift) {
+                return shift - MIN_SIZE_SHIFT;
+            }
+        }
+        return -1;
+    }
+
+    private class PropertyListener implements PropertyEventListener {
+        public void propertySet(String property, Map<String, Object> params) {
+            if (ENABLED_PROPERTY_NAME.equals(property) || SIZE_PROPERTY_NAME.equals(property)) {
+                loadProperties();
+            }
+        }
+
+        public void propertyDeleted(String property, Map<String, Object> params) {
+            if (ENABLED_PROPERTY_NAME.equals(property) || SIZE_PROPERTY_NAME.equals(property)) {
+                loadProperties();
+            }
+        }
+
+        public void xmlPropertySet(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+
+        public void xmlPropertyDeleted(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+    }
+
+    /**
+     * IoBuffer handed out by the pool. Remembers its size class so that it can be
+     * put back in the right queue, and whether it is being used so that it can't be
+     * added twice to the pool.
+     */
+    private static class PooledBuffer extends IoBufferWrapper {
+
+        static final AtomicIntegerFieldUpdater<PooledBuffer> inUseUpdater =
+                AtomicIntegerFieldUpdater.newUpdater(PooledBuffer.class, "inUse");
+
+        private final int sizeClass;
+        volatile int inUse;
+
+        PooledBuffer(ByteBuffer buffer, int sizeClass) {
+            super(IoBuffer.wrap(buffer));
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    private static class BufferStatistic extends i18nStatistic {
+
+        private final AtomicLong counter;
+
+        BufferStatistic(String resourceKey, AtomicLong counter) {
+            super(resourceKey, Statistic.Type.rate);
+            this.counter = counter;
+        }
+
+        public double sample() {
+            return counter.getAndSet(0);
+        }
+
+        public boolean isPartialSample() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.xmpp.packet.Packet;
+
+/**
+ * Stanzas of a {@link NIOConnection} waiting to be written when write coalescing is enabled.
+ * Each stanza keeps its packet until it is written, so that stanzas that can't be written
+ * any more because the connection was closed can still be delivered by other means (e.g.
+ * stored offline).<p>
+ *
+ * Stanzas can be added by any thread. They are written by a single thread at a time, the
+ * one that holds the lock of the session of the connection.
+ */
+class PendingWriteQueue {
+
+    /**
+     * Maximum number of bytes of queued stanzas that are copied into a single buffer.
+     */
+    static final int MAX_COALESCED_SIZE = 16 * 1024;
+
+    private final Queue<PendingWrite> writes = new ConcurrentLinkedQueue<PendingWrite>();
+
+    /**
+     * Queues a serialized stanza.
+     *
+     * @param packet the packet that was serialized.
+     * @param buffer a flipped buffer that contains the serialized packet.
+     */
+    void add(Packet packet, IoBuffer buffer) {
+        writes.offer(new PendingWrite(packet, buffer));
+    }
+
+    boolean isEmpty() {
+        return writes.isEmpty();
+    }
+
+    /**
+     * Writes the queued stanzas in the order in which they were queued, copying as many of
+     * them as fit into each buffer so that they are sent with as few writes to the socket as
+     * possible. If the session is no longer connected the stanzas are not written and their
+     * packets are added to the list of undelivered packets instead. Must be invoked while
+     * holding the lock of the session.
+     *
+     * @param session the session to write the stanzas to.
+     * @param undelivered the list to which the packets that were not written are added.
+     * @return the number of stanzas that were written.
+     */
+    int write(IoSession session, List<Packet> undelivered) {
+        if (!session.isConnected() || session.isClosing()) {
+            drainTo(undelivered);
+            return 0;
+        }
+        int count = 0;
+        PendingWrite next = writes.poll();
+        while (next != null) {
+            PendingWrite first = next;
+            int size = first.buffer.remaining();
+            List<PendingWrite> gathered = null;
+            next = writes.poll();
+            // Gather the following stanzas that fit in a buffer of the maximum coalesced size
+            while (next != null && size + next.buffer.remaining() <= MAX_COALESCED_SIZE) {
+                if (gathered == null) {
+                    gathered = new ArrayList<PendingWrite>();
+                    gathered.add(first);
+                }
+                gathered.add(next);
+                size += next.buffer.remaining();
+                next = writes.poll();
+            }
+            if (gathered == null) {
+                session.write(first.buffer);
+                count++;
+            }
+            else {
+                IoBuffer buffer = OutboundBufferPool.getInstance().acquire(size);
+                for (PendingWrite stanza : gathered) {
+                    buffer.put(stanza.buffer);
+                    OutboundBufferPool.getInstance().release(stanza.buffer);
+                }
+                buffer.flip();
+                session.write(buffer);
+                count += gathered.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Removes all the queued stanzas without writing them.
+     *
+     * @param undelivered the list to which the packets of the stanzas are added.
+     */
+    void drainTo(List<Packet> undelivered) {
+        PendingWrite write;
+        while ((write = writes.poll()) != null) {
+            OutboundBufferPool.getInstance().release(write.buffer);
+            undelivered.add(write.packet);
+        }
+    }
+
+    private static class PendingWrite {
+
+        private final Packet packet;
+        private final IoBuffer buffer;
+
+        PendingWrite(Packet packet, IoBuffer buffer) {
+            this.packet = packet;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.executor.IoEventQueueHandler;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+
+/**
+ * Measures how long the events of the sessions of a listener wait in the queue of the
+ * executor filter before a thread starts processing them. The executor tells the tracker
+ * when an event is about to be queued and when it is taken from the queue of its session.
+ * Since the events of a session are processed in order, the times at which events were
+ * queued are kept in a FIFO queue per session.<p>
+ *
+ * The average wait is available as the <tt>nio_queue_wait_&lt;listener&gt;</tt> statistic
+ * once {@link #addStatistic()} is invoked.
+ */
+public class QueueWaitTracker implements IoEventQueueHandler {
+
+    private static final String QUEUED_TIMES = "QueueWaitTracker.queuedTimes";
+
+    private final String listener;
+
+    /**
+     * Total time in nanoseconds that the processed events waited since the last sample.
+     */
+    private final AtomicLong waitTime = new AtomicLong();
+    /**
+     * Number of processed events since the last sample.
+     */
+    private final AtomicLong events = new AtomicLong();
+
+    /**
+     * Creates a new tracker for the sessions of a listener.
+     *
+     * @param listener the name of the listener (e.g. client or component).
+     */
+    public QueueWaitTracker(String listener) {
+        this.listener = listener;
+    }
+
+    public boolean accept(Object source, IoEvent event) {
+        IoSession session = event.getSession();
+        @SuppressWarnings("unchecked")
+        Queue<Long> queuedTimes = (Queue<Long>) session.getAttribute(QUEUED_TIMES);
+        if (queuedTimes == null) {
+            queuedTimes = new ConcurrentLinkedQueue<Long>();
+            @SuppressWarnings("unchecked")
+            Queue<Long> existing = (Queue<Long>) session.setAttributeIfAbsent(QUEUED_TIMES, queuedTimes);
+            if (existing != null) {
+                queuedTimes = existing;
+            }
+        }
+        // Record the time before the event is queued so that it is there when the event is polled
+        queuedTimes.offer(System.nanoTime());
+        return true;
+    }
+
+    public void offered(Object source, IoEvent event) {
+        // Do nothing
+    }
+
+    public void polled(Object source, IoEvent event) {
+        @SuppressWarnings("unchecked")
+        Queue<Long> queuedTimes = (Queue<Long>) event.getSession().getAttribute(QUEUED_TIMES);
+        Long queued = queuedTimes == null ? null : queuedTimes.poll();
+        if (queued != null) {
+            waitTime.addAndGet(System.nanoTime() - queued);
+            events.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds the average queue wait time of this listener to the statistic manager.
+     */
+    public void addStatistic() {
+        StatisticsManager.getInstance().addStatistic(getStatisticKey(listener),
+                new i18nStatistic("nio.queue_wait." + listener, Statistic.Type.count) {
+                    public double sample() {
+                        long count = events.getAndSet(0);
+                        long time = waitTime.getAndSet(0);
+                        return count == 0 ? 0 : time / 1000000d / count;
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+    }
+
+    /**
+     * Removes the average queue wait time of a listener from the statistic manager.
+     *
+     * @param listener the name of the listener.
+     */
+    public static void removeStatistic(String listener) {
+        StatisticsManager.getInstance().removeStatistic(getStatisticKey(listener));
+    }
+
+    private static String getStatisticKey(String listener) {
+        return "nio_queue_wait_" + listener;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.executor.IoEventQueueHandler;
+import org.apache.mina.filter.executor.OrderedThreadPoolExecutor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executor of MINA events that processes the events of every session in order, like
+ * {@link OrderedThreadPoolExecutor}, but gives each session with pending events its own
+ * thread instead of sharing a small pool of threads among all sessions. A session that is
+ * blocked on a slow operation (e.g. a database query to load a vCard or a roster) only
+ * delays its own events.<p>
+ *
+ * Threads are created when sessions have events to process, up to a maximum, and are
+ * discarded after being idle for 60 seconds. When the maximum is reached the sessions
+ * wait for a thread to become available.
+ */
+public class SessionOrderedExecutor implements Executor {
+
+    private static final Logger Log = LoggerFactory.getLogger(SessionOrderedExecutor.class);
+
+    private static final String SESSION_TASKS = "SessionOrderedExecutor.tasks";
+
+    private final ThreadPoolExecutor threadPool;
+    private final IoEventQueueHandler queueHandler;
+
+    /**
+     * Creates a new executor.
+     *
+     * @param maxThreads the maximum number of sessions that can be processed at the same time.
+     * @param threadFactory the factory used to create the threads. The threads are made
+     *        daemon threads so that they don't keep the JVM running.
+     * @param queueHandler the handler notified when events are queued and polled.
+     */
+    public SessionOrderedExecutor(int maxThreads, final ThreadFactory threadFactory, IoEventQueueHandler queueHandler) {
+        threadPool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = threadFactory.newThread(runnable);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        threadPool.allowCoreThreadTimeOut(true);
+        this.queueHandler = queueHandler == null ? IoEventQueueHandler.NOOP : queueHandler;
+    }
+
+    public void execute(Runnable task) {
+        if (!(task instanceof IoEvent)) {
+            throw new IllegalArgumentException("Task is not an IoEvent: " + task);
+        }
+        if (threadPool.isShutdown()) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        IoEvent event = (IoEvent) task;
+        SessionTasks tasks = getSessionTasks(event.getSession());
+        if (!queueHandler.accept(this, event)) {
+            return;
+        }
+        tasks.events.offer(event);
+        queueHandler.offered(this, event);
+        tasks.schedule();
+    }
+
+    private SessionTasks getSessionTasks(IoSession session) {
+        SessionTasks tasks = (SessionTasks) session.getAttribute(SESSION_TASKS);
+        if (tasks == null) {
+            tasks = new SessionTasks();
+            SessionTasks existing = (SessionTasks) session.setAttributeIfAbsent(SESSION_TASKS, tasks);
+            if (existing != null) {
+                tasks = existing;
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Returns the number of sessions whose events are being processed.
+     *
+     * @return the number of sessions whose events are being processed.
+     */
+    public int getActiveCount() {
+        return threadPool.getActiveCount();
+    }
+
+    /**
+     * Returns the number of threads in the pool.
+     *
+     * @return the number of threads in the pool.
+     */
+    public int getPoolSize() {
+        return threadPool.getPoolSize();
+    }
+
+    /**
+     * Stops accepting events. Events that were already queued are still processed.
+     */
+    public void shutdown() {
+        threadPool.shutdown();
+    }
+
+    /**
+     * Events of a session waiting to be processed. At most one thread processes the
+     * events of a session at any time.
+     */
+    private class SessionTasks implements Runnable {
+
+        private final Queue<IoEvent> events = new ConcurrentLinkedQueue<IoEvent>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    threadPool.execute(this);
+                }
+                catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        public void run() {
+            while (true) {
+                IoEvent event;
+                while ((event = events.poll()) != null) {
+                    queueHandler.polled(SessionOrderedExecutor.this, event);
+                    try {
+                        event.run();
+                    }
+                    catch (RuntimeException e) {
+                        Log.error("Error processing event " + event.getType() + " of session " + event.getSession(), e);
+                    }
+                }
+                scheduled.set(false);
+                // An event may have been queued after the last poll and before the flag was cleared
+                if (events.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        }
+    }
+}
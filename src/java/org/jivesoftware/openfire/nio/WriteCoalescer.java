@@ -0,0 +1,206 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides when the stanzas that were queued by {@link NIOConnection NIO connections} are
+ * written to their sessions when write coalescing is enabled with the
+ * <tt>xmpp.nio.coalesce.enabled</tt> property.<p>
+ *
+ * Stanzas delivered while a thread is processing a received stanza (see
+ * {@link #startBurst()}) are written by that thread when it is done processing it, so all
+ * the stanzas that the processing produced for a connection go out in a single write.
+ * Stanzas delivered by other threads are written right away by the delivering thread,
+ * together with the stanzas that other threads queued for the same connection while it
+ * was waiting for the lock of the session, even if the burst of another thread already
+ * scheduled a flush of the connection. Flushes therefore run on the threads that
+ * deliver the stanzas, like writes do when coalescing is disabled.<p>
+ *
+ * The average number of stanzas written by each flush is available as the
+ * <tt>nio_coalesce_stanzas</tt> statistic.
+ */
+public class WriteCoalescer {
+
+    private static final Logger Log = LoggerFactory.getLogger(WriteCoalescer.class);
+
+    private static final String stanzasStatKey = "nio_coalesce_stanzas";
+
+    private static final String ENABLED_PROPERTY_NAME = "xmpp.nio.coalesce.enabled";
+
+    /**
+     * Connections with queued stanzas that will be flushed at the end of the burst of the
+     * current thread. Null when the thread is not processing a received stanza.
+     */
+    private static final ThreadLocal<Burst> bursts = new ThreadLocal<Burst>();
+
+    private static final AtomicLong flushes = new AtomicLong();
+    private static final AtomicLong stanzas = new AtomicLong();
+
+    private static volatile boolean enabled;
+
+    static {
+        enabled = JiveGlobals.getBooleanProperty(ENABLED_PROPERTY_NAME, false);
+        // Listen for changes to this property
+        PropertyEventDispatcher.addListener(new PropertyListener());
+    }
+
+    private WriteCoalescer() {
+    }
+
+    /**
+     * Returns true if the stanzas delivered to NIO connections should be queued and written
+     * together.
+     *
+     * @return true if write coalescing is enabled.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Marks the beginning of the processing of a received stanza by the current thread.
+     * Every call must be followed by a call to {@link #endBurst()}.
+     */
+    public static void startBurst() {
+        Burst burst = bursts.get();
+        if (burst == null) {
+            burst = new Burst();
+            bursts.set(burst);
+        }
+        burst.depth++;
+    }
+
+    /**
+     * Marks the end of the processing of a received stanza by the current thread and
+     * flushes the connections that got stanzas during the processing.
+     */
+    public static void endBurst() {
+        Burst burst = bursts.get();
+        if (burst == null || --burst.depth > 0) {
+            return;
+        }
+        // Connections scheduled while flushing are flushed by the loop too
+        for (int i = 0; i < burst.connections.size(); i++) {
+            flush(burst.connections.get(i));
+        }
+        burst.connections.clear();
+    }
+
+    /**
+     * Returns true if the current thread is processing a received stanza, so the stanzas
+     * that it delivers are flushed at the end of its burst.
+     *
+     * @return true if the current thread is inside a burst.
+     */
+    static boolean isInBurst() {
+        Burst burst = bursts.get();
+        return burst != null && burst.depth > 0;
+    }
+
+    /**
+     * Schedules the flush of a connection that has queued stanzas. The connection is
+     * flushed at the end of the burst of the current thread, or right away when the current
+     * thread is not processing a received stanza.
+     *
+     * @param connection the connection to flush.
+     */
+    static void schedule(NIOConnection connection) {
+        if (isInBurst()) {
+            bursts.get().connections.add(connection);
+            return;
+        }
+        flush(connection);
+    }
+
+    /**
+     * Writes the queued stanzas of a connection with the current thread.
+     *
+     * @param connection the connection to flush.
+     */
+    static void flush(NIOConnection connection) {
+        try {
+            int count = connection.flushPendingWrites();
+            if (count > 0) {
+                flushes.incrementAndGet();
+                stanzas.addAndGet(count);
+            }
+        }
+        catch (Exception e) {
+            Log.error("Error flushing queued stanzas of connection " + connection, e);
+        }
+    }
+
+    /**
+     * Creates and adds the write coalescing statistics to the statistic manager.
+     */
+    public static void initStatistics() {
+        StatisticsManager.getInstance().addStatistic(stanzasStatKey,
+                new i18nStatistic("nio.coalesce.stanzas", Statistic.Type.count) {
+                    public double sample() {
+                        long count = flushes.getAndSet(0);
+                        long total = stanzas.getAndSet(0);
+                        return count == 0 ? 0 : (double) total / count;
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+    }
+
+    private static class PropertyListener implements PropertyEventListener {
+        public void propertySet(String property, Map<String, Object> params) {
+            if (ENABLED_PROPERTY_NAME.equals(property)) {
+                enabled = JiveGlobals.getBooleanProperty(ENABLED_PROPERTY_NAME, false);
+            }
+        }
+
+        public void propertyDeleted(String property, Map<String, Object> params) {
+            if (ENABLED_PROPERTY_NAME.equals(property)) {
+                enabled = false;
+            }
+        }
+
+        public void xmlPropertySet(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+
+        public void xmlPropertyDeleted(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+    }
+
+    private static class Burst {
+
+        private final List<NIOConnection> connections = new ArrayList<NIOConnection>();
+        private int depth;
+    }
+}
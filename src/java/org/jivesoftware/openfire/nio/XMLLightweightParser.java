@@ -391,6 +391,16 @@ class XMLLightweightParser {
         }
     }
 
+    /**
+     * Returns the maximum number of bytes or chars of a stanza that can be queued while
+     * waiting for the rest of the stanza. Connections that exceed this limit are closed.
+     *
+     * @return the maximum size of a pending stanza.
+     */
+    static int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
 	/**
 	 * This method verifies if the provided argument contains at least one numeric character reference (
 	 * <code>CharRef	   ::=   	'&#' [0-9]+ ';' | '&#x' [0-9a-fA-F]+ ';</code>) for which the decimal or hexidecimal
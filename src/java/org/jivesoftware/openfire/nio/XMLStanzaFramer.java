@@ -0,0 +1,427 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.nio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+
+/**
+ * Finds the boundaries of XML stanzas by scanning UTF-8 encoded bytes.<p>
+ *
+ * The framer works directly on the cumulative buffer of the {@link XMPPDecoder}: it does
+ * not copy the received bytes, and bytes of a stanza that is not complete yet are left
+ * in the buffer so that MINA keeps them until more data arrives. The scanning state is
+ * kept between invocations so that bytes are never scanned twice. Since every byte of a
+ * multi-byte UTF-8 sequence is greater than 0x7F, markup characters can be found without
+ * decoding the text. Only complete stanzas are decoded into a String.<p>
+ *
+ * Elements are tracked by depth, and CDATA sections, comments, processing instructions
+ * and quoted attribute values are skipped so that markup characters inside them are not
+ * taken into account. Numeric character references and control characters are validated
+ * in the same pass.<p>
+ *
+ * Like {@link XMLLightweightParser}, the stream header, the XML declaration and the
+ * end of the stream are returned as separate messages.
+ */
+class XMLStanzaFramer {
+
+    private static final Charset UTF8 = Charset.forName(ConnectionHandler.CHARSET);
+
+    private static final byte[] STREAM_NAME = {'s', 't', 'r', 'e', 'a', 'm', ':', 's', 't', 'r', 'e', 'a', 'm'};
+    private static final byte[] FLASH_STREAM_NAME = {'f', 'l', 'a', 's', 'h', ':', 's', 't', 'r', 'e', 'a', 'm'};
+    // Bytes that follow "<!" at the start of a comment or a CDATA section
+    private static final byte[] COMMENT_START = {'-', '-'};
+    private static final byte[] CDATA_START = {'[', 'C', 'D', 'A', 'T', 'A', '['};
+
+    private static final String STREAM_END = "</stream:stream>";
+
+    // ---- Scanner status -------
+    // Outside of any element, looking for '<'
+    private static final int SEEK = 0;
+    // Found '<', the next byte tells which kind of markup starts
+    private static final int TAG_OPEN = 1;
+    // Inside a start tag
+    private static final int START_TAG = 2;
+    // Inside a quoted attribute value of a start tag
+    private static final int ATTRIBUTE_VALUE = 3;
+    // Inside an end tag
+    private static final int END_TAG = 4;
+    // Inside the content of an element
+    private static final int TEXT = 5;
+    // Found "<!", matching the start of a comment or a CDATA section
+    private static final int MARKUP_DECLARATION = 6;
+    // Inside a "<!" declaration that is neither a comment nor a CDATA section
+    private static final int DECLARATION = 7;
+    private static final int COMMENT = 8;
+    private static final int CDATA = 9;
+    private static final int PROCESSING_INSTRUCTION = 10;
+
+    // ---- Character reference status -------
+    private static final int REF_NONE = 0;
+    // Found '&'
+    private static final int REF_AMPERSAND = 1;
+    // Found "&#"
+    private static final int REF_HASH = 2;
+    // Found "&#" and decimal digits
+    private static final int REF_DECIMAL = 3;
+    // Found "&#x"
+    private static final int REF_HEX_START = 4;
+    // Found "&#x" and hexadecimal digits
+    private static final int REF_HEX = 5;
+
+    private int status = SEEK;
+    // Number of elements of the current stanza that are open
+    private int depth = 0;
+    // Number of bytes of the current stanza that were already scanned
+    private int scanned = 0;
+    // Quote character that closes the current attribute value
+    private byte quote;
+    // True if the last byte of the current start tag was '/'
+    private boolean slash;
+    // Number of bytes matched of the delimiter being looked for
+    private int matched = 0;
+    // Delimiter being matched in MARKUP_DECLARATION status
+    private byte[] declaration;
+
+    private int refStatus = REF_NONE;
+    private int refValue;
+
+    // True if an error was found. Remaining data is discarded.
+    private boolean failed = false;
+
+    // Used to decode stanzas from buffers without an accessible array
+    private byte[] copyBuffer = new byte[0];
+
+    /**
+     * Returns the next complete stanza found in the buffer or <tt>null</tt> if the buffer does
+     * not contain a complete stanza. The position of the buffer is moved after the returned
+     * stanza, or to the beginning of the incomplete stanza when <tt>null</tt> is returned.
+     *
+     * @param in the buffer with the received bytes.
+     * @return the next complete stanza or null if none was found.
+     * @throws Exception if the received data is not well-formed or exceeds the maximum size.
+     */
+    public String read(IoBuffer in) throws Exception {
+        if (failed) {
+            // exception was thrown before, avoid duplicate exception(s)
+            // "read" and discard remaining data
+            in.position(in.limit());
+            return null;
+        }
+        final ByteBuffer buf = in.buf();
+        final int limit = in.limit();
+        int start = in.position();
+        int i = start + scanned;
+        for (; i < limit; i++) {
+            final byte ch = buf.get(i);
+            if (ch >= 0 && ch < 0x20 && ch != 0x9 && ch != 0xA && ch != 0xD && ch != 0x0) {
+                // Unicode characters in the range 0x0000-0x001F other than 9, A, and D are not allowed in XML
+                // We need to allow the NULL character, however, for Flash XMLSocket clients to work.
+                failed = true;
+                throw new XMLNotWellFormedException("Character is invalid in: " + ch);
+            }
+            switch (status) {
+                case SEEK:
+                    if (ch == '<') {
+                        status = TAG_OPEN;
+                        start = i;
+                    }
+                    else {
+                        // Skip whitespace and other characters between stanzas
+                        start = i + 1;
+                    }
+                    break;
+                case TAG_OPEN:
+                    if (ch == '/') {
+                        status = END_TAG;
+                    }
+                    else if (ch == '!') {
+                        status = MARKUP_DECLARATION;
+                        matched = 0;
+                    }
+                    else if (ch == '?') {
+                        status = PROCESSING_INSTRUCTION;
+                        matched = 0;
+                    }
+                    else {
+                        status = START_TAG;
+                        slash = false;
+                    }
+                    break;
+                case START_TAG:
+                    if (ch == '"' || ch == '\'') {
+                        status = ATTRIBUTE_VALUE;
+                        quote = ch;
+                        slash = false;
+                    }
+                    else if (ch == '>') {
+                        if (!slash) {
+                            depth++;
+                        }
+                        if (depth == 0 || (depth == 1 && isStreamHeader(buf, start))) {
+                            return found(in, start, i + 1);
+                        }
+                        status = TEXT;
+                    }
+                    else {
+                        slash = ch == '/';
+                    }
+                    break;
+                case ATTRIBUTE_VALUE:
+                    if (ch == quote) {
+                        refStatus = REF_NONE;
+                        status = START_TAG;
+                    }
+                    else {
+                        checkCharacterReference(ch);
+                    }
+                    break;
+                case END_TAG:
+                    if (ch == '>') {
+                        depth--;
+                        if (depth < 0 && isStreamEnd(buf, start)) {
+                            in.position(i + 1);
+                            reset();
+                            return STREAM_END;
+                        }
+                        if (depth <= 0) {
+                            return found(in, start, i + 1);
+                        }
+                        status = TEXT;
+                    }
+                    break;
+                case TEXT:
+                    if (ch == '<') {
+                        refStatus = REF_NONE;
+                        status = TAG_OPEN;
+                    }
+                    else {
+                        checkCharacterReference(ch);
+                    }
+                    break;
+                case MARKUP_DECLARATION:
+                    if (matched == 0) {
+                        declaration = ch == '-' ? COMMENT_START : CDATA_START;
+                    }
+                    if (ch == declaration[matched]) {
+                        matched++;
+                        if (matched == declaration.length) {
+                            status = declaration == COMMENT_START ? COMMENT : CDATA;
+                            matched = 0;
+                        }
+                    }
+                    else {
+                        status = DECLARATION;
+                    }
+                    break;
+                case DECLARATION:
+                    if (ch == '>') {
+                        if (depth > 0) {
+                            status = TEXT;
+                        }
+                        else {
+                            // Discard declarations between stanzas
+                            status = SEEK;
+                            start = i + 1;
+                        }
+                    }
+                    break;
+                case COMMENT:
+                    if (ch == '-') {
+                        matched = Math.min(matched + 1, 2);
+                    }
+                    else if (ch == '>' && matched == 2) {
+                        matched = 0;
+                        if (depth > 0) {
+                            status = TEXT;
+                        }
+                        else {
+                            // Discard comments between stanzas
+                            status = SEEK;
+                            start = i + 1;
+                        }
+                    }
+                    else {
+                        matched = 0;
+                    }
+                    break;
+                case CDATA:
+                    if (ch == ']') {
+                        matched = Math.min(matched + 1, 2);
+                    }
+                    else if (ch == '>' && matched == 2) {
+                        matched = 0;
+                        status = TEXT;
+                    }
+                    else {
+                        matched = 0;
+                    }
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    if (ch == '>' && matched == 1) {
+                        matched = 0;
+                        if (depth == 0) {
+                            // Found the XML declaration or another processing instruction
+                            return found(in, start, i + 1);
+                        }
+                        status = TEXT;
+                    }
+                    else {
+                        matched = ch == '?' ? 1 : 0;
+                    }
+                    break;
+            }
+        }
+        // No complete stanza was found. Leave the incomplete stanza in the buffer.
+        in.position(start);
+        scanned = i - start;
+        // Check that the pending stanza is not bigger than the max buffer size. For security
+        // reasons we will abort parsing when 1 Mega of queued bytes was found.
+        if (scanned > XMLLightweightParser.getMaxBufferSize()) {
+            failed = true;
+            // processing the exception takes quite long
+            final ProtocolDecoderException ex = new ProtocolDecoderException("Stopped parsing never ending stanza");
+            ex.setHexdump("(redacted hex dump of never ending stanza)");
+            throw ex;
+        }
+        return null;
+    }
+
+    /**
+     * Decodes the stanza found between start and end, moves the position of the buffer
+     * after the stanza and resets the scanner.
+     */
+    private String found(IoBuffer in, int start, int end) {
+        final String stanza;
+        if (in.hasArray()) {
+            stanza = new String(in.array(), in.arrayOffset() + start, end - start, UTF8);
+        }
+        else {
+            final int length = end - start;
+            if (copyBuffer.length < length) {
+                copyBuffer = new byte[Math.max(length, copyBuffer.length * 2)];
+            }
+            final ByteBuffer slice = in.buf().duplicate();
+            slice.limit(end).position(start);
+            slice.get(copyBuffer, 0, length);
+            stanza = new String(copyBuffer, 0, length, UTF8);
+        }
+        in.position(end);
+        reset();
+        return stanza;
+    }
+
+    private void reset() {
+        status = SEEK;
+        depth = 0;
+        scanned = 0;
+        matched = 0;
+        refStatus = REF_NONE;
+    }
+
+    /**
+     * Validates numeric character references (<code>'&#' [0-9]+ ';' | '&#x' [0-9a-fA-F]+ ';</code>)
+     * as they are scanned. Character references that are not complete are ignored, as done by
+     * {@link XMLLightweightParser#hasIllegalCharacterReferences(String)}.
+     */
+    private void checkCharacterReference(byte ch) throws XMLNotWellFormedException {
+        switch (refStatus) {
+            case REF_AMPERSAND:
+                refStatus = ch == '#' ? REF_HASH : REF_NONE;
+                break;
+            case REF_HASH:
+                if (ch == 'x' || ch == 'X') {
+                    refStatus = REF_HEX_START;
+                }
+                else if (ch >= '0' && ch <= '9') {
+                    refStatus = REF_DECIMAL;
+                    refValue = ch - '0';
+                }
+                else {
+                    refStatus = REF_NONE;
+                }
+                break;
+            case REF_DECIMAL:
+                if (ch >= '0' && ch <= '9') {
+                    refValue = addDigit(refValue, 10, ch - '0');
+                }
+                else {
+                    refStatus = REF_NONE;
+                    if (ch == ';') {
+                        validateCharacterReference();
+                    }
+                }
+                break;
+            case REF_HEX_START:
+            case REF_HEX:
+                int digit = Character.digit(ch, 16);
+                if (digit >= 0) {
+                    refValue = refStatus == REF_HEX_START ? digit : addDigit(refValue, 16, digit);
+                    refStatus = REF_HEX;
+                }
+                else {
+                    if (ch == ';' && refStatus == REF_HEX) {
+                        validateCharacterReference();
+                    }
+                    refStatus = REF_NONE;
+                }
+                break;
+        }
+        if (refStatus == REF_NONE && ch == '&') {
+            refStatus = REF_AMPERSAND;
+        }
+    }
+
+    private static int addDigit(int value, int radix, int digit) {
+        // Values beyond the last unicode code point are all equally illegal
+        return Math.min(value * radix + digit, 0x110000);
+    }
+
+    private void validateCharacterReference() throws XMLNotWellFormedException {
+        if (!XMLLightweightParser.isLegalXmlCharacter(refValue)) {
+            failed = true;
+            throw new XMLNotWellFormedException("Illegal character reference found: &#" + refValue + ";");
+        }
+    }
+
+    private static boolean isStreamHeader(ByteBuffer buf, int start) {
+        return hasName(buf, start + 1, STREAM_NAME) || hasName(buf, start + 1, FLASH_STREAM_NAME);
+    }
+
+    private static boolean isStreamEnd(ByteBuffer buf, int start) {
+        return hasName(buf, start + 2, STREAM_NAME) || hasName(buf, start + 2, FLASH_STREAM_NAME);
+    }
+
+    /**
+     * Returns true if the tag name found at the specified index is equal to name.
+     */
+    private static boolean hasName(ByteBuffer buf, int index, byte[] name) {
+        if (index + name.length >= buf.limit()) {
+            return false;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (buf.get(index + i) != name[i]) {
+                return false;
+            }
+        }
+        byte next = buf.get(index + name.length);
+        return next == '>' || next == '/' || next == ' ' || next == '\t' || next == '\r' || next == '\n';
+    }
+}
@@ -35,8 +35,20 @@ public class XMPPDecoder extends CumulativeProtocolDecoder {
     @Override
 	protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out)
             throws Exception {
+        Object xmlParser = session.getAttribute(ConnectionHandler.XML_PARSER);
+        if (xmlParser instanceof XMLStanzaFramer) {
+            XMLStanzaFramer framer = (XMLStanzaFramer) xmlParser;
+            // Frame as many stanzas as possible from the received data
+            String stanza;
+            while ((stanza = framer.read(in)) != null) {
+                out.write(stanza);
+            }
+            // Bytes of an incomplete stanza are left in the buffer and kept by MINA
+            // until more data is received
+            return false;
+        }
         // Get the XML light parser from the IoSession
-        XMLLightweightParser parser = (XMLLightweightParser) session.getAttribute(ConnectionHandler.XML_PARSER);
+        XMLLightweightParser parser = (XMLLightweightParser) xmlParser;
         // Parse as many stanzas as possible from the received data
         parser.read(in);
 
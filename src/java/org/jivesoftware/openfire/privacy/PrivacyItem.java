@@ -36,7 +36,7 @@ import java.util.Collections;
  *
  * @author Gaston Dombiak
  */
-class PrivacyItem implements Cacheable, Comparable {
+class PrivacyItem implements Cacheable, Comparable<PrivacyItem> {
 
     private int order;
     private boolean allow;
@@ -114,11 +114,8 @@ class PrivacyItem implements Cacheable, Comparable {
         return type == Type.group || type == Type.subscription;
     }
 
-    public int compareTo(Object object) {
-        if (object instanceof PrivacyItem) {
-            return this.order - ((PrivacyItem) object).order;
-        }
-        return getClass().getName().compareTo(object.getClass().getName());
+    public int compareTo(PrivacyItem item) {
+        return this.order - item.order;
     }
 
     /**
@@ -141,6 +138,42 @@ class PrivacyItem implements Cacheable, Comparable {
         return allow;
     }
 
+    boolean isFallThrough() {
+        return type == null;
+    }
+
+    JID getJIDValue() {
+        return jidValue;
+    }
+
+    String getGroupValue() {
+        return groupValue;
+    }
+
+    RosterItem.SubType getSubscriptionValue() {
+        return subscriptionValue;
+    }
+
+    boolean isFilterEverything() {
+        return filterEverything;
+    }
+
+    boolean isFilterIQ() {
+        return filterIQ;
+    }
+
+    boolean isFilterMessage() {
+        return filterMessage;
+    }
+
+    boolean isFilterPresenceIn() {
+        return filterPresence_in;
+    }
+
+    boolean isFilterPresenceOut() {
+        return filterPresence_out;
+    }
+
     private boolean matchesPacketSenderCondition(Packet packet, Roster roster, JID userJID) {
         if (type == null) {
             // This is the "fall-through" case
@@ -93,6 +93,7 @@ public class PrivacyList implements Cacheable, Externalizable {
     private String name;
     private boolean isDefault;
     private List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+    private PrivacyListIndex index = new PrivacyListIndex(items);
 
     /**
      * Constructor added for Externalizable. Do not use this constructor.
@@ -162,21 +163,18 @@ public class PrivacyList implements Cacheable, Externalizable {
             // Sender is the server so it's not denied
             return false;
         }
-        // Iterate over the rules and check each rule condition
-        Roster roster = getRoster();
-        for (PrivacyItem item : items) {
-            if (item.matchesCondition(packet, roster, userJID)) {
-                if (item.isAllow()) {
-                    return false;
-                }
-                if (Log.isDebugEnabled()) {
-                    Log.debug("PrivacyList: Packet was blocked: " + packet);
-                }
-                return true;
-            }
+        // Find the first rule whose condition matches
+        PrivacyListIndex index = this.index;
+        Roster roster = index.isRosterRequired() ? getRoster() : null;
+        PrivacyItem item = index.getMatchingItem(packet, roster, userJID);
+        if (item == null || item.isAllow()) {
+            // If no rule blocked the communication then allow the packet to flow
+            return false;
+        }
+        if (Log.isDebugEnabled()) {
+            Log.debug("PrivacyList: Packet was blocked: " + packet);
         }
-        // If no rule blocked the communication then allow the packet to flow
-        return false;
+        return true;
     }
 
     /**
@@ -215,7 +213,7 @@ public class PrivacyList implements Cacheable, Externalizable {
      */
     private void updateList(Element listElement, boolean notify) {
         // Reset the list of items of this list
-        items = new ArrayList<PrivacyItem>();
+        List<PrivacyItem> items = new ArrayList<PrivacyItem>();
 
         List<Element> itemsElements = listElement.elements("item");
         for (Element itemElement : itemsElements) {
@@ -233,6 +231,8 @@ public class PrivacyList implements Cacheable, Externalizable {
         }
         // Sort items collections
         Collections.sort(items);
+        this.index = new PrivacyListIndex(items);
+        this.items = items;
         if (notify) {
             // Trigger event that this list has been modified
             PrivacyListManager.getInstance().dispatchModifiedEvent(this);
@@ -257,6 +257,7 @@ public class PrivacyList implements Cacheable, Externalizable {
         size += CacheSizes.sizeOfString(name);                  // name
         size += CacheSizes.sizeOfBoolean();                     // isDefault
         size += CacheSizes.sizeOfCollection(items);             // items of the list
+        size += index.getCachedSize();                          // index of the items
         return size;
     }
 
@@ -0,0 +1,275 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.privacy;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.openfire.roster.Roster;
+import org.jivesoftware.openfire.roster.RosterItem;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.jivesoftware.util.cache.CacheSizes;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * The items of a privacy list compiled for evaluation. Items are indexed by the full JID,
+ * bare JID, domain, roster group or subscription state that they match, so finding the
+ * first item that matches a packet takes a few hash lookups and a single roster lookup
+ * instead of evaluating every item.<p>
+ *
+ * Whether an item applies to a packet also depends on the kind of packet (message, IQ,
+ * incoming or outgoing presence) and on whether the sender or the recipient of the packet
+ * is checked. Every combination is a context and every indexed item keeps a mask of the
+ * contexts it applies to, which gives the same result as {@link PrivacyItem#matchesCondition}.
+ * The roster is read when packets are evaluated, so changes to the roster don't require
+ * compiling the list again.
+ */
+final class PrivacyListIndex {
+
+    // Kinds of packets
+    private static final int MESSAGE = 0;
+    private static final int IQ_PACKET = 1;
+    private static final int PRESENCE_IN = 2;
+    private static final int PRESENCE_OUT = 3;
+    private static final int OTHER = 4;
+    private static final int KINDS = 5;
+
+    // JID of the packet that is checked
+    private static final int FROM = 0;
+    private static final int TO = 1;
+    private static final int NONE = 2;
+    private static final int SOURCES = 3;
+
+    private static final Entry[] NO_ENTRIES = new Entry[0];
+
+    private final PrivacyItem[] items;
+    private final Map<JID, Entry[]> fullJIDs = new HashMap<JID, Entry[]>();
+    private final Map<String, Entry[]> bareJIDs = new HashMap<String, Entry[]>();
+    private final Map<String, Entry[]> domains = new HashMap<String, Entry[]>();
+    private final Map<String, Entry[]> groups = new HashMap<String, Entry[]>();
+    private final Map<RosterItem.SubType, Entry[]> subscriptions = new HashMap<RosterItem.SubType, Entry[]>();
+    private Entry[] fallThrough = NO_ENTRIES;
+
+    /**
+     * Compiles the items of a privacy list.
+     *
+     * @param items the items of the list, sorted by order.
+     */
+    PrivacyListIndex(List<PrivacyItem> items) {
+        this.items = items.toArray(new PrivacyItem[items.size()]);
+        for (int i = 0; i < this.items.length; i++) {
+            PrivacyItem item = this.items[i];
+            Entry entry = new Entry(i, getContexts(item));
+            if (entry.contexts == 0) {
+                continue;
+            }
+            if (item.isFallThrough()) {
+                fallThrough = append(fallThrough, entry);
+            }
+            else if (item.getJIDValue() != null) {
+                JID jid = item.getJIDValue();
+                if (jid.getResource() != null) {
+                    add(fullJIDs, jid, entry);
+                }
+                else if (jid.getNode() != null) {
+                    add(bareJIDs, jid.toBareJID(), entry);
+                }
+                else {
+                    add(domains, jid.getDomain(), entry);
+                }
+            }
+            else if (item.getGroupValue() != null) {
+                add(groups, item.getGroupValue(), entry);
+            }
+            else if (item.getSubscriptionValue() != null) {
+                add(subscriptions, item.getSubscriptionValue(), entry);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the roster of the list owner is needed to evaluate packets.
+     *
+     * @return true if the roster of the list owner is needed to evaluate packets.
+     */
+    boolean isRosterRequired() {
+        return !groups.isEmpty() || !subscriptions.isEmpty();
+    }
+
+    /**
+     * Returns the first item of the list that matches the packet or null if none matches.
+     * The packet must have a sender.
+     *
+     * @param packet the packet to analyze.
+     * @param roster the roster of the owner of the list or null if not required.
+     * @param userJID the JID of the owner of the list.
+     * @return the first item that matches the packet or null.
+     */
+    PrivacyItem getMatchingItem(Packet packet, Roster roster, JID userJID) {
+        String userBareJID = userJID.toBareJID();
+        boolean incoming = !userBareJID.equals(packet.getFrom().toBareJID());
+        boolean isPresence = packet.getClass().equals(Presence.class);
+
+        int kind = OTHER;
+        Class<? extends Packet> packetClass = packet.getClass();
+        if (Message.class.equals(packetClass)) {
+            kind = MESSAGE;
+        }
+        else if (isPresence) {
+            Presence.Type presenceType = ((Presence) packet).getType();
+            if (presenceType == null || presenceType == Presence.Type.unavailable) {
+                JID to = packet.getTo();
+                kind = to != null && to.toBareJID().equals(userBareJID) ? PRESENCE_IN : PRESENCE_OUT;
+            }
+        }
+        else if (IQ.class.equals(packetClass)) {
+            kind = IQ_PACKET;
+        }
+
+        // Incoming packets are analyzed based on their sender and outgoing presences based
+        // on their recipient. Only fall-through items apply to other outgoing packets.
+        JID jid = null;
+        int source = NONE;
+        if (incoming) {
+            jid = packet.getFrom();
+            source = FROM;
+        }
+        else if (isPresence) {
+            jid = packet.getTo();
+            source = TO;
+        }
+        int context = 1 << (kind * SOURCES + source);
+
+        int first = first(fallThrough, context, items.length);
+        if (jid != null) {
+            first = first(fullJIDs.get(jid), context, first);
+            first = first(bareJIDs.get(jid.toBareJID()), context, first);
+            first = first(domains.get(jid.getDomain()), context, first);
+            if (isRosterRequired()) {
+                List<String> contactGroups = null;
+                RosterItem.SubType contactSubscription = RosterItem.SUB_NONE;
+                if (roster != null) {
+                    try {
+                        RosterItem item = roster.getRosterItem(jid);
+                        contactGroups = item.getGroups();
+                        contactSubscription = item.getSubStatus();
+                    }
+                    catch (UserNotFoundException e) {
+                        // Contact is not in the user's roster
+                    }
+                }
+                if (contactGroups != null && !groups.isEmpty()) {
+                    for (String group : contactGroups) {
+                        first = first(groups.get(group), context, first);
+                    }
+                }
+                first = first(subscriptions.get(contactSubscription), context, first);
+            }
+        }
+        return first < items.length ? items[first] : null;
+    }
+
+    /**
+     * Returns the approximate size of the index in bytes.
+     *
+     * @return the approximate size of the index in bytes.
+     */
+    int getCachedSize() {
+        int size = CacheSizes.sizeOfObject();
+        // Map entries and index entries
+        size += items.length * (3 * CacheSizes.sizeOfObject() + 2 * CacheSizes.sizeOfInt());
+        return size;
+    }
+
+    /**
+     * Returns the position of the first entry that applies to the context if it's before
+     * the given position, or the given position otherwise.
+     */
+    private static int first(Entry[] entries, int context, int position) {
+        if (entries != null) {
+            for (Entry entry : entries) {
+                if (entry.index >= position) {
+                    break;
+                }
+                if ((entry.contexts & context) != 0) {
+                    return entry.index;
+                }
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Returns the mask of the contexts where the item applies.
+     */
+    private static int getContexts(PrivacyItem item) {
+        boolean everything = item.isFilterEverything();
+        boolean checksSender = everything || item.isFilterPresenceIn() || item.isFilterIQ() ||
+                item.isFilterMessage();
+        boolean checksRecipient = everything || item.isFilterPresenceOut();
+        int contexts = 0;
+        for (int kind = 0; kind < KINDS; kind++) {
+            boolean filtered;
+            switch (kind) {
+                case MESSAGE: filtered = item.isFilterMessage(); break;
+                case IQ_PACKET: filtered = item.isFilterIQ(); break;
+                case PRESENCE_IN: filtered = item.isFilterPresenceIn(); break;
+                case PRESENCE_OUT: filtered = item.isFilterPresenceOut(); break;
+                default: filtered = false;
+            }
+            if (!everything && !filtered) {
+                continue;
+            }
+            for (int source = 0; source < SOURCES; source++) {
+                boolean applies = item.isFallThrough() || (source == FROM && checksSender) ||
+                        (source == TO && checksRecipient);
+                if (applies) {
+                    contexts |= 1 << (kind * SOURCES + source);
+                }
+            }
+        }
+        return contexts;
+    }
+
+    private static <K> void add(Map<K, Entry[]> map, K key, Entry entry) {
+        Entry[] entries = map.get(key);
+        map.put(key, entries == null ? new Entry[] { entry } : append(entries, entry));
+    }
+
+    private static Entry[] append(Entry[] entries, Entry entry) {
+        Entry[] result = Arrays.copyOf(entries, entries.length + 1);
+        result[entries.length] = entry;
+        return result;
+    }
+
+    private static final class Entry {
+
+        private final int index;
+        private final int contexts;
+
+        Entry(int index, int contexts) {
+            this.index = index;
+            this.contexts = contexts;
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Published items and item deletions that have not been written to the database yet.<p>
+ *
+ * The buffer is split in shards and all the items of a node belong to the same shard, so
+ * shards can be written to the database in parallel. Changes to the same item are coalesced:
+ * only the last change of an item is kept, so an item that is published many times is only
+ * written once, and an item that is published and deleted before being written is only
+ * deleted.<p>
+ *
+ * Changes that are being written to the database remain visible to readers until the write
+ * completes, so readers that merge the buffer with the database never miss a change.
+ */
+final class ItemWriteBuffer {
+
+    /**
+     * The last change of an item that has not been written to the database.
+     */
+    static final class PendingItem {
+
+        private final PublishedItem item;
+        private final boolean deleted;
+        private int retryCount;
+
+        PendingItem(PublishedItem item, boolean deleted) {
+            this.item = item;
+            this.deleted = deleted;
+        }
+
+        /**
+         * Returns the published item, or the item that was deleted.
+         *
+         * @return the published or deleted item.
+         */
+        PublishedItem getItem() {
+            return item;
+        }
+
+        /**
+         * Returns true if the item was deleted.
+         *
+         * @return true if the item was deleted.
+         */
+        boolean isDeleted() {
+            return deleted;
+        }
+
+        /**
+         * Returns the number of times the item could not be written to the database.
+         *
+         * @return the number of failed writes.
+         */
+        int getRetryCount() {
+            return retryCount;
+        }
+    }
+
+    /**
+     * The items of a node that have not been written to the database.
+     */
+    static final class NodeItems {
+
+        private final List<PublishedItem> published;
+        private final Set<String> changedIDs;
+
+        NodeItems(List<PublishedItem> published, Set<String> changedIDs) {
+            this.published = published;
+            this.changedIDs = changedIDs;
+        }
+
+        /**
+         * Returns the items that were published to the node, from the oldest to the newest.
+         *
+         * @return the published items.
+         */
+        List<PublishedItem> getPublished() {
+            return published;
+        }
+
+        /**
+         * Returns the IDs of the items of the node that were published or deleted. The
+         * database may have older versions of these items.
+         *
+         * @return the IDs of the changed items.
+         */
+        Set<String> getChangedIDs() {
+            return changedIDs;
+        }
+    }
+
+    private static class Shard {
+
+        /**
+         * Changes waiting to be written. Key: node key, Value: changes by item ID, from the
+         * oldest to the newest.
+         */
+        Map<String, LinkedHashMap<String, PendingItem>> pending =
+                new HashMap<String, LinkedHashMap<String, PendingItem>>();
+        /**
+         * Changes being written to the database.
+         */
+        Map<String, LinkedHashMap<String, PendingItem>> writing =
+                new HashMap<String, LinkedHashMap<String, PendingItem>>();
+        /**
+         * Held while the changes of the shard are written to the database.
+         */
+        final Lock writeLock = new ReentrantLock();
+    }
+
+    private final Shard[] shards;
+    private final AtomicInteger size = new AtomicInteger();
+
+    ItemWriteBuffer(int shardCount) {
+        shards = new Shard[Math.max(1, shardCount)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Adds a published item to the buffer, replacing any pending change of the same item.
+     *
+     * @param item the published item.
+     */
+    void publish(PublishedItem item) {
+        put(new PendingItem(item, false));
+    }
+
+    /**
+     * Adds the deletion of an item to the buffer, replacing any pending change of the item.
+     *
+     * @param item the deleted item.
+     */
+    void delete(PublishedItem item) {
+        put(new PendingItem(item, true));
+    }
+
+    /**
+     * Returns a change that could not be written to the database to the buffer, unless the
+     * item changed again in the meantime.
+     *
+     * @param pendingItem the change that could not be written.
+     * @param retryCount the number of failed writes of the change.
+     */
+    void retry(PendingItem pendingItem, int retryCount) {
+        PublishedItem item = pendingItem.getItem();
+        Shard shard = getShard(item.getServiceID(), item.getNodeID());
+        synchronized (shard) {
+            Map<String, PendingItem> items = shard.pending.get(getNodeKey(item));
+            if (items != null && items.containsKey(item.getID())) {
+                // A newer change replaces the one that failed
+                return;
+            }
+            PendingItem retry = new PendingItem(item, pendingItem.isDeleted());
+            retry.retryCount = retryCount;
+            add(shard, retry);
+        }
+    }
+
+    private void put(PendingItem pendingItem) {
+        PublishedItem item = pendingItem.getItem();
+        Shard shard = getShard(item.getServiceID(), item.getNodeID());
+        synchronized (shard) {
+            add(shard, pendingItem);
+        }
+    }
+
+    private void add(Shard shard, PendingItem pendingItem) {
+        String nodeKey = getNodeKey(pendingItem.getItem());
+        LinkedHashMap<String, PendingItem> items = shard.pending.get(nodeKey);
+        if (items == null) {
+            items = new LinkedHashMap<String, PendingItem>();
+            shard.pending.put(nodeKey, items);
+        }
+        // Remove the previous change so that the item moves to the end of the list
+        if (items.remove(pendingItem.getItem().getID()) == null) {
+            size.incrementAndGet();
+        }
+        items.put(pendingItem.getItem().getID(), pendingItem);
+    }
+
+    /**
+     * Returns the pending change of an item or <tt>null</tt> if the item did not change
+     * since it was last written to the database.
+     *
+     * @param serviceID the ID of the pubsub service of the node.
+     * @param nodeID the ID of the node.
+     * @param itemID the ID of the item.
+     * @return the pending change of the item or null.
+     */
+    PendingItem get(String serviceID, String nodeID, String itemID) {
+        Shard shard = getShard(serviceID, nodeID);
+        String nodeKey = getNodeKey(serviceID, nodeID);
+        synchronized (shard) {
+            Map<String, PendingItem> items = shard.pending.get(nodeKey);
+            PendingItem pendingItem = items == null ? null : items.get(itemID);
+            if (pendingItem == null) {
+                items = shard.writing.get(nodeKey);
+                pendingItem = items == null ? null : items.get(itemID);
+            }
+            return pendingItem;
+        }
+    }
+
+    /**
+     * Returns the items of a node that have not been written to the database, including the
+     * items that are being written.
+     *
+     * @param serviceID the ID of the pubsub service of the node.
+     * @param nodeID the ID of the node.
+     * @return the unwritten items of the node.
+     */
+    NodeItems getNodeItems(String serviceID, String nodeID) {
+        Shard shard = getShard(serviceID, nodeID);
+        String nodeKey = getNodeKey(serviceID, nodeID);
+        Map<String, PendingItem> changes = new LinkedHashMap<String, PendingItem>();
+        synchronized (shard) {
+            addChanges(changes, shard.writing.get(nodeKey));
+            addChanges(changes, shard.pending.get(nodeKey));
+        }
+        List<PublishedItem> published = new ArrayList<PublishedItem>();
+        for (PendingItem pendingItem : changes.values()) {
+            if (!pendingItem.isDeleted()) {
+                published.add(pendingItem.getItem());
+            }
+        }
+        return new NodeItems(published, new HashSet<String>(changes.keySet()));
+    }
+
+    private static void addChanges(Map<String, PendingItem> changes, Map<String, PendingItem> items) {
+        if (items != null) {
+            for (PendingItem pendingItem : items.values()) {
+                changes.remove(pendingItem.getItem().getID());
+                changes.put(pendingItem.getItem().getID(), pendingItem);
+            }
+        }
+    }
+
+    /**
+     * Discards the pending changes of the items of a node. The caller must hold the write
+     * lock of the shard of the node so that no change of the node is being written.
+     *
+     * @param serviceID the ID of the pubsub service of the node.
+     * @param nodeID the ID of the node.
+     */
+    void discard(String serviceID, String nodeID) {
+        Shard shard = getShard(serviceID, nodeID);
+        synchronized (shard) {
+            Map<String, PendingItem> items = shard.pending.remove(getNodeKey(serviceID, nodeID));
+            if (items != null) {
+                size.addAndGet(-items.size());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of changes waiting to be written to the database.
+     *
+     * @return the number of pending changes.
+     */
+    int size() {
+        return size.get();
+    }
+
+    /**
+     * Returns the number of shards of the buffer.
+     *
+     * @return the number of shards.
+     */
+    int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Returns the lock that is held while the changes of a shard are written.
+     *
+     * @param shard the index of the shard.
+     * @return the write lock of the shard.
+     */
+    Lock getWriteLock(int shard) {
+        return shards[shard].writeLock;
+    }
+
+    /**
+     * Returns the write lock of the shard of a node.
+     *
+     * @param serviceID the ID of the pubsub service of the node.
+     * @param nodeID the ID of the node.
+     * @return the write lock of the shard of the node.
+     */
+    Lock getWriteLock(String serviceID, String nodeID) {
+        return getShard(serviceID, nodeID).writeLock;
+    }
+
+    /**
+     * Takes the pending changes of a shard so that they can be written to the database. The
+     * changes remain visible until {@link #endWrite(int)} is invoked. The caller must hold the
+     * write lock of the shard.
+     *
+     * @param shard the index of the shard.
+     * @return the changes to write.
+     */
+    Collection<PendingItem> startWrite(int shard) {
+        Shard s = shards[shard];
+        List<PendingItem> changes = new ArrayList<PendingItem>();
+        synchronized (s) {
+            s.writing = s.pending;
+            s.pending = new HashMap<String, LinkedHashMap<String, PendingItem>>();
+            for (Map<String, PendingItem> items : s.writing.values()) {
+                changes.addAll(items.values());
+            }
+            size.addAndGet(-changes.size());
+        }
+        return changes;
+    }
+
+    /**
+     * Discards the changes of a shard that were written to the database.
+     *
+     * @param shard the index of the shard.
+     */
+    void endWrite(int shard) {
+        Shard s = shards[shard];
+        synchronized (s) {
+            s.writing = new HashMap<String, LinkedHashMap<String, PendingItem>>();
+        }
+    }
+
+    private Shard getShard(String serviceID, String nodeID) {
+        return shards[(getNodeKey(serviceID, nodeID).hashCode() & Integer.MAX_VALUE) % shards.length];
+    }
+
+    private static String getNodeKey(PublishedItem item) {
+        return getNodeKey(item.getServiceID(), item.getNodeID());
+    }
+
+    private static String getNodeKey(String serviceID, String nodeID) {
+        return serviceID + '\u0000' + nodeID;
+    }
+}
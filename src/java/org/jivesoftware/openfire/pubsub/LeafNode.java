@@ -26,6 +26,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.dom4j.Element;
@@ -73,6 +74,15 @@ public class LeafNode extends Node {
      * The last item published to this node.  In a cluster this may have occurred on a different cluster node.
      */
     private PublishedItem lastPublished;
+    /**
+     * Number of groups of affiliates of the node waiting to be notified by the notification
+     * threads of the {@link NotificationDispatcher}.
+     */
+    private final AtomicInteger pendingPartitions = new AtomicInteger();
+    /**
+     * Statistics of the notifications of publications and retractions sent to affiliates.
+     */
+    private final PublishStatistics publishStatistics = new PublishStatistics();
 
     // TODO Add checking of max payload size. Return <not-acceptable> plus a application specific error condition of <payload-too-big/>.
 
@@ -218,14 +228,15 @@ public class LeafNode extends Node {
      * items is exceeded then the oldest published items will be removed.<p>
      *
      * For performance reasons the newly added published items and the deleted items (if any)
-     * are saved to the database using a background thread. Sending event notifications to
-     * node subscribers may also use another thread to ensure good performance.<p>
+     * are saved to the database using a background thread. Event notifications to the
+     * subscribers of nodes with many subscribers are sent by the threads of the
+     * {@link NotificationDispatcher}.<p>
      *
      * @param publisher the full JID of the user that sent the new published event.
      * @param itemElements list of dom4j elements that contain info about the published items.
      */
     public void publishItems(JID publisher, List<Element> itemElements) {
-        List<PublishedItem> newPublishedItems = new ArrayList<PublishedItem>();
+        final List<PublishedItem> newPublishedItems = new ArrayList<PublishedItem>();
         if (isItemRequired()) {
             String itemID;
             Element payload;
@@ -254,21 +265,31 @@ public class LeafNode extends Node {
             }
         }
 
-        // Build event notification packet to broadcast to subscribers
-        Message message = new Message();
-        Element event = message.addChildElement("event", "http://jabber.org/protocol/pubsub#event");
         // Broadcast event notification to subscribers and parent node subscribers
-        Set<NodeAffiliate> affiliatesToNotify = new HashSet<NodeAffiliate>(affiliates);
+        NotificationDispatcher.getInstance().dispatch(this, getAffiliatesToNotify(),
+                new NotificationDispatcher.Notifier() {
+                    public void send(NodeAffiliate affiliate, Message notification, Element event) {
+                        affiliate.sendPublishedNotifications(notification, event, LeafNode.this,
+                                newPublishedItems);
+                    }
+                });
+    }
+
+    /**
+     * Returns the affiliates that have subscriptions to this node or to a parent in the
+     * hierarchy of parent nodes.
+     *
+     * @return the affiliates that may be notified of publications and retractions.
+     */
+    private Set<NodeAffiliate> getAffiliatesToNotify() {
+        Set<NodeAffiliate> affiliatesToNotify = new HashSet<NodeAffiliate>(getSubscribedAffiliates());
         // Get affiliates that are subscribed to a parent in the hierarchy of parent nodes
         for (CollectionNode parentNode : getParents()) {
             for (NodeSubscription subscription : parentNode.getSubscriptions()) {
                 affiliatesToNotify.add(subscription.getAffiliate());
             }
         }
-        // TODO Use another thread for this (if # of subscribers is > X)????
-        for (NodeAffiliate affiliate : affiliatesToNotify) {
-            affiliate.sendPublishedNotifications(message, event, this, newPublishedItems);
-        }
+        return affiliatesToNotify;
     }
 
     /**
@@ -283,30 +304,21 @@ public class LeafNode extends Node {
      *
      * @param toDelete list of items that were deleted from the node.
      */
-    public void deleteItems(List<PublishedItem> toDelete) {
+    public void deleteItems(final List<PublishedItem> toDelete) {
         // Remove deleted items from the database
         for (PublishedItem item : toDelete) {
             PubSubPersistenceManager.removePublishedItem(item);
         }
         if (isNotifiedOfRetract()) {
-            // Broadcast notification deletion to subscribers
-            // Build packet to broadcast to subscribers
-            Message message = new Message();
-            Element event =
-                    message.addChildElement("event", "http://jabber.org/protocol/pubsub#event");
             // Send notification that items have been deleted to subscribers and parent node
             // subscribers
-            Set<NodeAffiliate> affiliatesToNotify = new HashSet<NodeAffiliate>(affiliates);
-            // Get affiliates that are subscribed to a parent in the hierarchy of parent nodes
-            for (CollectionNode parentNode : getParents()) {
-                for (NodeSubscription subscription : parentNode.getSubscriptions()) {
-                    affiliatesToNotify.add(subscription.getAffiliate());
-                }
-            }
-            // TODO Use another thread for this (if # of subscribers is > X)????
-            for (NodeAffiliate affiliate : affiliatesToNotify) {
-                affiliate.sendDeletionNotifications(message, event, this, toDelete);
-            }
+            NotificationDispatcher.getInstance().dispatch(this, getAffiliatesToNotify(),
+                    new NotificationDispatcher.Notifier() {
+                        public void send(NodeAffiliate affiliate, Message notification, Element event) {
+                            affiliate.sendDeletionNotifications(notification, event, LeafNode.this,
+                                    toDelete);
+                        }
+                    });
         }
     }
 
@@ -392,6 +404,26 @@ public class LeafNode extends Node {
     	return lastPublished;
     }
 
+    /**
+     * Returns the number of groups of affiliates of this node waiting to be notified of
+     * publications or retractions by the notification threads.
+     *
+     * @return the counter of pending groups of affiliates.
+     */
+    AtomicInteger getPendingPartitions() {
+        return pendingPartitions;
+    }
+
+    /**
+     * Returns the statistics of the notifications of publications and retractions sent to
+     * the affiliates of this node since the node was loaded.
+     *
+     * @return the publication statistics of this node.
+     */
+    public PublishStatistics getPublishStatistics() {
+        return publishStatistics;
+    }
+
     /**
      * Returns true if the last published item is going to be sent to new subscribers.
      *
@@ -27,7 +27,6 @@ import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.dom4j.Element;
 import org.jivesoftware.openfire.SessionManager;
@@ -172,8 +171,9 @@ public abstract class Node {
     /**
      * The JIDs of those who have an affiliation with this node. When subscriptionModel is
      * whitelist then this collection acts as the white list (unless user is an outcast)
+     * Key: JID of the affiliate, Value: the affiliate.
      */
-    protected Collection<NodeAffiliate> affiliates = new CopyOnWriteArrayList<NodeAffiliate>();
+    protected Map<JID, NodeAffiliate> affiliates = new ConcurrentHashMap<JID, NodeAffiliate>();
     /**
      * Map that contains the current subscriptions to the node. A user may have more than one
      * subscription. Each subscription is uniquely identified by its ID.
@@ -190,6 +190,10 @@ public abstract class Node {
      */
     protected Map<String, NodeSubscription> subscriptionsByJID =
             new ConcurrentHashMap<String, NodeSubscription>();
+    /**
+     * Index of the current subscriptions by owner and by presence filter.
+     */
+    private final SubscriberIndex subscriberIndex = new SubscriberIndex();
 
     Node(PubSubService service, CollectionNode parent, String nodeID, JID creator) {
         this.service = service;
@@ -360,7 +364,7 @@ public abstract class Node {
 
     private void removeAffiliation(NodeAffiliate affiliate) {
         // Remove the existing affiliate from the list in memory
-        affiliates.remove(affiliate);
+        affiliates.remove(affiliate.getJID());
         if (savedToDB) {
             // Remove the affiliate from the database
             PubSubPersistenceManager.removeAffiliation(this, affiliate);
@@ -388,13 +392,23 @@ public abstract class Node {
      * @return the list of subscriptions owned by the specified user.
      */
     public Collection<NodeSubscription> getSubscriptions(JID owner) {
-        Collection<NodeSubscription> subscriptions = new ArrayList<NodeSubscription>();
-        for (NodeSubscription subscription : subscriptionsByID.values()) {
-            if (owner.equals(subscription.getOwner())) {
-                subscriptions.add(subscription);
+        return subscriberIndex.getSubscriptions(owner);
+    }
+
+    /**
+     * Returns the affiliates that own subscriptions to the node.
+     *
+     * @return the affiliates that own subscriptions to the node.
+     */
+    Collection<NodeAffiliate> getSubscribedAffiliates() {
+        Collection<NodeAffiliate> subscribed = new ArrayList<NodeAffiliate>();
+        for (JID owner : subscriberIndex.getOwners()) {
+            NodeAffiliate affiliate = affiliates.get(owner);
+            if (affiliate != null) {
+                subscribed.add(affiliate);
             }
         }
-        return subscriptions;
+        return subscribed;
     }
 
     /**
@@ -430,12 +444,7 @@ public abstract class Node {
      * @return the NodeAffiliate of the specified JID or <tt>null</tt> if none was found.
      */
     public NodeAffiliate getAffiliate(JID jid) {
-        for (NodeAffiliate affiliate : affiliates) {
-            if (jid.equals(affiliate.getJID())) {
-                return affiliate;
-            }
-        }
-        return null;
+        return affiliates.get(jid);
     }
 
     /**
@@ -448,7 +457,7 @@ public abstract class Node {
      */
     public Collection<JID> getOwners() {
         Collection<JID> jids = new ArrayList<JID>();
-        for (NodeAffiliate affiliate : affiliates) {
+        for (NodeAffiliate affiliate : affiliates.values()) {
             if (NodeAffiliate.Affiliation.owner == affiliate.getAffiliation()) {
                 jids.add(affiliate.getJID());
             }
@@ -467,7 +476,7 @@ public abstract class Node {
      */
     public Collection<JID> getPublishers() {
         Collection<JID> jids = new ArrayList<JID>();
-        for (NodeAffiliate affiliate : affiliates) {
+        for (NodeAffiliate affiliate : affiliates.values()) {
             if (NodeAffiliate.Affiliation.publisher == affiliate.getAffiliation()) {
                 jids.add(affiliate.getJID());
             }
@@ -1294,24 +1303,12 @@ public abstract class Node {
         Collection<JID> affiliatesJID = new ArrayList<JID>();
         if (presenceBasedDelivery) {
             // Add JID of all affiliates that are susbcribed to the node
-            for (NodeAffiliate affiliate : affiliates) {
-                if (!affiliate.getSubscriptions().isEmpty()) {
-                    affiliatesJID.add(affiliate.getJID());
-                }
-            }
+            affiliatesJID.addAll(subscriberIndex.getOwners());
         }
         else {
             // Add JID of those affiliates that have a subscription that only wants to be
             // notified based on the subscriber presence
-            for (NodeAffiliate affiliate : affiliates) {
-                Collection<NodeSubscription> subscriptions = affiliate.getSubscriptions();
-                for (NodeSubscription subscription : subscriptions) {
-                    if (!subscription.getPresenceStates().isEmpty()) {
-                        affiliatesJID.add(affiliate.getJID());
-                        break;
-                    }
-                }
-            }
+            affiliatesJID.addAll(subscriberIndex.getPresenceFilteredOwners());
         }
         return affiliatesJID;
     }
@@ -1753,7 +1750,7 @@ public abstract class Node {
             // Set that the node is now in the DB
             setSavedToDB(true);
             // Save the existing node affiliates to the DB
-            for (NodeAffiliate affialiate : affiliates) {
+            for (NodeAffiliate affialiate : affiliates.values()) {
                 PubSubPersistenceManager.saveAffiliation(this, affialiate, true);
             }
             // Add new subscriptions to the database
@@ -1773,13 +1770,27 @@ public abstract class Node {
     }
 
     public void addAffiliate(NodeAffiliate affiliate) {
-        affiliates.add(affiliate);
+        affiliates.put(affiliate.getJID(), affiliate);
     }
 
     public void addSubscription(NodeSubscription subscription)
     {
-        subscriptionsByID.put(subscription.getID(), subscription);
+        NodeSubscription previous = subscriptionsByID.put(subscription.getID(), subscription);
+        if (previous != null) {
+            // The subscription was reloaded so replace the old instance in the index
+            subscriberIndex.remove(previous);
+        }
         subscriptionsByJID.put(subscription.getJID().toString(), subscription);
+        subscriberIndex.add(subscription);
+    }
+
+    /**
+     * Updates the subscriber index after a subscription was configured by its owner.
+     *
+     * @param subscription the configured subscription.
+     */
+    void subscriptionConfigured(NodeSubscription subscription) {
+        subscriberIndex.update(subscription);
     }
 
     /**
@@ -1857,6 +1868,7 @@ public abstract class Node {
             affiliates.clear();
             subscriptionsByID.clear();
             subscriptionsByJID.clear();
+            subscriberIndex.clear();
             return true;
         }
         return false;
@@ -1904,7 +1916,7 @@ public abstract class Node {
      * subscription to send notifications based on their presence show value.
      */
     private void addPresenceSubscriptions() {
-        for (NodeAffiliate affiliate : affiliates) {
+        for (NodeAffiliate affiliate : affiliates.values()) {
             if (affiliate.getAffiliation() != NodeAffiliate.Affiliation.outcast &&
                     (isPresenceBasedDelivery() || (!affiliate.getSubscriptions().isEmpty()))) {
                 service.presenceSubscriptionRequired(this, affiliate.getJID());
@@ -1937,7 +1949,7 @@ public abstract class Node {
         reply.setChildElement(childElement);
         Element affiliations = childElement.element("affiliations");
 
-        for (NodeAffiliate affiliate : affiliates) {
+        for (NodeAffiliate affiliate : affiliates.values()) {
             if (affiliate.getAffiliation() == NodeAffiliate.Affiliation.none) {
                 continue;
             }
@@ -1961,7 +1973,7 @@ public abstract class Node {
         reply.setChildElement(childElement);
         Element subscriptions = childElement.element("subscriptions");
 
-        for (NodeAffiliate affiliate : affiliates) {
+        for (NodeAffiliate affiliate : affiliates.values()) {
             for (NodeSubscription subscription : affiliate.getSubscriptions()) {
                 if (subscription.isAuthorizationPending()) {
                     continue;
@@ -2140,6 +2152,7 @@ public abstract class Node {
         // Remove subscription from memory
         subscriptionsByID.remove(subscription.getID());
         subscriptionsByJID.remove(subscription.getJID().toString());
+        subscriberIndex.remove(subscription);
         // Check if user has affiliation of type "none" and there are no more subscriptions
         NodeAffiliate affiliate = subscription.getAffiliate();
         if (affiliate != null && affiliate.getAffiliation() == NodeAffiliate.Affiliation.none &&
@@ -494,6 +494,7 @@ public class NodeSubscription {
                 }
             }
         }
+        node.subscriptionConfigured(this);
         if (savedToDB) {
             // Update the subscription in the backend store
             PubSubPersistenceManager.saveSubscription(node, this, false);
@@ -0,0 +1,229 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.dom4j.Element;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.Message;
+
+/**
+ * Notifies the affiliates of leaf nodes of published and deleted items.<p>
+ *
+ * Nodes with up to <tt>xmpp.pubsub.notification.partition</tt> affiliates to notify are
+ * notified by the publishing thread. The affiliates of bigger nodes are split in partitions
+ * that are notified in parallel by <tt>xmpp.pubsub.notification.threads</tt> threads. An
+ * affiliate always belongs to the partition of the same thread and every thread notifies its
+ * partitions in order, so affiliates get the notifications of a node in the order of the
+ * publications. A node keeps using the threads while some of its partitions are waiting,
+ * even if the next publication has few affiliates to notify.
+ */
+final class NotificationDispatcher {
+
+    private static final Logger Log = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    private static final String publishTimeStatKey = "pubsub_publish_time";
+    private static final String notificationsStatKey = "pubsub_notifications";
+
+    private static final NotificationDispatcher instance = new NotificationDispatcher(
+            JiveGlobals.getIntProperty("xmpp.pubsub.notification.threads", 4),
+            JiveGlobals.getIntProperty("xmpp.pubsub.notification.partition", 500));
+
+    private static final AtomicLong publications = new AtomicLong();
+    private static final AtomicLong publishTime = new AtomicLong();
+    private static final AtomicLong notifications = new AtomicLong();
+
+    static NotificationDispatcher getInstance() {
+        return instance;
+    }
+
+    /**
+     * Sends the notification of a publication or retraction to an affiliate.
+     */
+    interface Notifier {
+
+        /**
+         * Sends the notification to an affiliate.
+         *
+         * @param affiliate the affiliate to notify.
+         * @param notification the message to complete and send. The message is only used by
+         *        the calling thread.
+         * @param event the event element of the message.
+         */
+        void send(NodeAffiliate affiliate, Message notification, Element event);
+    }
+
+    /**
+     * Single threaded executors. Every executor notifies the affiliates of its partition.
+     */
+    private final ThreadPoolExecutor[] executors;
+    /**
+     * Max number of affiliates that are notified by the publishing thread.
+     */
+    private final int partitionSize;
+
+    NotificationDispatcher(int threads, int partitionSize) {
+        this.partitionSize = partitionSize;
+        executors = new ThreadPoolExecutor[Math.max(1, threads)];
+        for (int i = 0; i < executors.length; i++) {
+            final String name = "pubsub-notifier-" + (i + 1);
+            executors[i] = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, name);
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executors[i].allowCoreThreadTimeOut(true);
+        }
+    }
+
+    /**
+     * Creates and adds the publication statistics to the statistic manager.
+     */
+    static void initStatistics() {
+        StatisticsManager.getInstance().addStatistic(publishTimeStatKey,
+                new i18nStatistic("pubsub.publish_time", Statistic.Type.count) {
+                    public double sample() {
+                        long count = publications.getAndSet(0);
+                        long time = publishTime.getAndSet(0);
+                        return count == 0 ? 0 : (double) time / count;
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic(notificationsStatKey,
+                new i18nStatistic("pubsub.notifications", Statistic.Type.rate) {
+                    public double sample() {
+                        return notifications.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Notifies affiliates of a leaf node of a publication or retraction.
+     *
+     * @param node the node where items were published or deleted.
+     * @param affiliates the affiliates to notify.
+     * @param notifier sends the notification to each affiliate.
+     */
+    void dispatch(LeafNode node, Collection<NodeAffiliate> affiliates, final Notifier notifier) {
+        final PublishStatistics statistics = node.getPublishStatistics();
+        final AtomicInteger pendingPartitions = node.getPendingPartitions();
+        final long start = System.currentTimeMillis();
+        final int total = affiliates.size();
+        if (total == 0) {
+            return;
+        }
+        if (total <= partitionSize && pendingPartitions.get() == 0) {
+            notifyAffiliates(affiliates, notifier);
+            record(statistics, total, start);
+            return;
+        }
+        List<List<NodeAffiliate>> partitions = new ArrayList<List<NodeAffiliate>>(executors.length);
+        for (int i = 0; i < executors.length; i++) {
+            partitions.add(new ArrayList<NodeAffiliate>());
+        }
+        for (NodeAffiliate affiliate : affiliates) {
+            partitions.get(getPartition(affiliate)).add(affiliate);
+        }
+        int used = 0;
+        for (List<NodeAffiliate> partition : partitions) {
+            if (!partition.isEmpty()) {
+                used++;
+            }
+        }
+        final AtomicInteger remaining = new AtomicInteger(used);
+        pendingPartitions.addAndGet(used);
+        for (int i = 0; i < executors.length; i++) {
+            final List<NodeAffiliate> partition = partitions.get(i);
+            if (partition.isEmpty()) {
+                continue;
+            }
+            Runnable task = new Runnable() {
+                public void run() {
+                    try {
+                        notifyAffiliates(partition, notifier);
+                    }
+                    finally {
+                        pendingPartitions.decrementAndGet();
+                        if (remaining.decrementAndGet() == 0) {
+                            record(statistics, total, start);
+                        }
+                    }
+                }
+            };
+            try {
+                executors[i].execute(task);
+            }
+            catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * Returns the partition of an affiliate. The partition only depends on the JID of the
+     * affiliate so that its notifications are always sent by the same thread.
+     */
+    int getPartition(NodeAffiliate affiliate) {
+        return (affiliate.getJID().hashCode() & Integer.MAX_VALUE) % executors.length;
+    }
+
+    private void notifyAffiliates(Collection<NodeAffiliate> affiliates, Notifier notifier) {
+        Message notification = new Message();
+        Element event = notification.addChildElement("event", "http://jabber.org/protocol/pubsub#event");
+        for (NodeAffiliate affiliate : affiliates) {
+            try {
+                notifier.send(affiliate, notification, event);
+            }
+            catch (Exception e) {
+                Log.error("Error notifying affiliate " + affiliate.getJID(), e);
+            }
+        }
+    }
+
+    private static void record(PublishStatistics statistics, int affiliates, long start) {
+        long time = System.currentTimeMillis() - start;
+        statistics.record(affiliates, time);
+        publications.incrementAndGet();
+        publishTime.addAndGet(time);
+        notifications.addAndGet(affiliates);
+    }
+}
@@ -42,6 +42,7 @@ import org.jivesoftware.openfire.component.InternalComponentManager;
 import org.jivesoftware.openfire.pep.PEPService;
 import org.jivesoftware.openfire.pubsub.cluster.RefreshNodeTask;
 import org.jivesoftware.openfire.pubsub.models.AccessModel;
+import org.jivesoftware.openfire.user.RegisteredUserListener;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.util.StringUtils;
 import org.jivesoftware.util.cache.CacheFactory;
@@ -336,7 +337,8 @@ public class PubSubEngine {
             if (node == null) {
                 if (service instanceof PEPService && service.isServiceAdmin(owner)){
                     // If it is a PEP service & publisher is service owner -
-                    // auto create nodes.
+                    // auto create nodes. The owner of a PEP service is a registered
+                    // local user.
                     Element childElement = iq.getChildElement();
                     Element createElement = publishElement.element("publish");
                     CreateNodeResponse response = createNodeHelper(service, iq, childElement, createElement);
@@ -504,7 +506,7 @@ public class PubSubEngine {
         leafNode.deleteItems(items);
     }
 
-    private void subscribeNode(PubSubService service, IQ iq, Element childElement, Element subscribeElement) {
+    private void subscribeNode(final PubSubService service, final IQ iq, final Element childElement, Element subscribeElement) {
         String nodeID = subscribeElement.attributeValue("node");
         Node node;
         if (nodeID == null) {
@@ -540,7 +542,7 @@ public class PubSubEngine {
             return;
         }
         // TODO Assumed that the owner of the subscription is the bare JID of the subscription JID. Waiting StPeter answer for explicit field.
-        JID owner = subscriberJID.asBareJID();
+        final JID owner = subscriberJID.asBareJID();
         // Check if the node's access model allows the subscription to proceed
         AccessModel accessModel = node.getAccessModel();
         if (!accessModel.canSubscribe(node, owner, subscriberJID)) {
@@ -548,12 +550,25 @@ public class PubSubEngine {
                     accessModel.getSubsriptionErrorDetail());
             return;
         }
-        // Check if the subscriber is an anonymous user
-        if (!UserManager.getInstance().isRegisteredUser(subscriberJID)) {
-            // Anonymous users cannot subscribe to the node. Return forbidden error
-            sendErrorPacket(iq, PacketError.Condition.forbidden, null);
-            return;
-        }
+        // Check if the subscriber is an anonymous user. Remote subscribers are checked
+        // without waiting for their server to answer
+        final Node subscriptionNode = node;
+        UserManager.getInstance().checkRegisteredUser(subscriberJID, new RegisteredUserListener() {
+            public void registrationChecked(JID user, boolean registered) {
+                if (!registered) {
+                    // Anonymous users cannot subscribe to the node. Return forbidden error
+                    sendErrorPacket(iq, PacketError.Condition.forbidden, null);
+                    return;
+                }
+                subscribeNode(service, iq, childElement, subscriptionNode, owner, user);
+            }
+        });
+    }
+
+    private void subscribeNode(PubSubService service, IQ iq, Element childElement, Node node,
+            JID owner, JID subscriberJID) {
+        JID from = iq.getFrom();
+        AccessModel accessModel = node.getAccessModel();
         // Check if the subscription owner is a user with outcast affiliation
         NodeAffiliate nodeAffiliate = node.getAffiliate(owner);
         if (nodeAffiliate != null &&
@@ -1105,7 +1120,35 @@ public class PubSubEngine {
         leafNode.sendPublishedItems(iq, items, forceToIncludePayload);
     }
 
-    private void createNode(PubSubService service, IQ iq, Element childElement, Element createElement) {
+    private void createNode(final PubSubService service, final IQ iq, final Element childElement,
+            final Element createElement) {
+        JID from = iq.getFrom();
+        // Verify that sender has permissions to create nodes
+        if (!service.canCreateNode(from)) {
+            // The user is not allowed to create nodes so return an error
+            sendErrorPacket(iq, PacketError.Condition.forbidden, null);
+            return;
+        }
+        if (isComponent(from)) {
+            createRegisteredNode(service, iq, childElement, createElement);
+            return;
+        }
+        // Check if the sender is an anonymous user. Remote senders are checked
+        // without waiting for their server to answer
+        UserManager.getInstance().checkRegisteredUser(from, new RegisteredUserListener() {
+            public void registrationChecked(JID user, boolean registered) {
+                if (!registered) {
+                    // Anonymous users cannot create nodes. Return forbidden error
+                    sendErrorPacket(iq, PacketError.Condition.forbidden, null);
+                    return;
+                }
+                createRegisteredNode(service, iq, childElement, createElement);
+            }
+        });
+    }
+
+    private void createRegisteredNode(PubSubService service, IQ iq, Element childElement,
+            Element createElement) {
         // Call createNodeHelper and get the node creation status.
         CreateNodeResponse response = createNodeHelper(service, iq, childElement, createElement);
         if (response.newNode == null) {
@@ -1157,8 +1200,9 @@ public class PubSubEngine {
     private CreateNodeResponse createNodeHelper(PubSubService service, IQ iq, Element childElement, Element createElement) {
         // Get sender of the IQ packet
         JID from = iq.getFrom();
-        // Verify that sender has permissions to create nodes
-        if (!service.canCreateNode(from) || (!UserManager.getInstance().isRegisteredUser(from) && !isComponent(from)) ) {
+        // Verify that sender has permissions to create nodes. Callers check that the sender
+        // is a registered user or a component
+        if (!service.canCreateNode(from)) {
             // The user is not allowed to create nodes so return an error
             return new CreateNodeResponse(PacketError.Condition.forbidden, null, null);
         }
@@ -344,6 +344,7 @@ public class PubSubModule extends BasicModule implements ServerItemsProvider, Di
 
         // Listen to property events so that the template is always up to date
         PropertyEventDispatcher.addListener(this);
+        NotificationDispatcher.initStatistics();
 
         serviceEnabled = JiveGlobals.getBooleanProperty("xmpp.pubsub.enabled", true);
         serviceName = JiveGlobals.getProperty("xmpp.pubsub.service");
@@ -27,14 +27,19 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TimerTask;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.Lock;
 
 import org.jivesoftware.database.DbConnectionManager;
@@ -44,8 +49,6 @@ import org.jivesoftware.openfire.pubsub.cluster.FlushTask;
 import org.jivesoftware.openfire.pubsub.models.AccessModel;
 import org.jivesoftware.openfire.pubsub.models.PublisherModel;
 import org.jivesoftware.util.JiveGlobals;
-import org.jivesoftware.util.LinkedList;
-import org.jivesoftware.util.LinkedListNode;
 import org.jivesoftware.util.StringUtils;
 import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
@@ -236,21 +239,26 @@ public class PubSubPersistenceManager {
 	private static final int MAX_ITEM_RETRY = JiveGlobals.getIntProperty("xmpp.pubsub.item.retry", 1);
     
     /**
-     * Queue that holds the (wrapped) items that need to be added to the database.
+     * Published and deleted items that haven't been written to the database yet. The
+     * buffer is split in <tt>xmpp.pubsub.flush.shards</tt> shards that are written in
+     * parallel.
      */
-    private static LinkedList<RetryWrapper> itemsToAdd = new LinkedList<RetryWrapper>();
+    private static final ItemWriteBuffer itemsPending =
+            new ItemWriteBuffer(JiveGlobals.getIntProperty("xmpp.pubsub.flush.shards", 4));
 
     /**
-     * Queue that holds the items that need to be deleted from the database.
+     * True while a flush triggered by the size of the write buffer is waiting to run.
      */
-    private static LinkedList<PublishedItem> itemsToDelete = new LinkedList<PublishedItem>();
+    private static final AtomicBoolean flushScheduled = new AtomicBoolean();
 
     /**
-     * Keeps reference to published items that haven't been persisted yet so they 
-     * can be removed before being deleted. Note these items are wrapped via the 
-     * RetryWrapper to allow multiple persistence attempts when needed.
+     * Sorts published items from the newest to the oldest.
      */
-    private static final HashMap<String, LinkedListNode<RetryWrapper>> itemsPending = new HashMap<String, LinkedListNode<RetryWrapper>>();
+    private static final Comparator<PublishedItem> newestFirst = new Comparator<PublishedItem>() {
+        public int compare(PublishedItem item1, PublishedItem item2) {
+            return item2.getCreationDate().compareTo(item1.getCreationDate());
+        }
+    };
     
     /**
      * Cache name for recently accessed published items.
@@ -1141,56 +1149,33 @@ public class PubSubPersistenceManager {
      * <pre>
      *   "xmpp.pubsub.flush.max" - maximum items in the cache (-1 to disable cache)
      *   "xmpp.pubsub.flush.timer" - number of seconds between cache flushes
+     *   "xmpp.pubsub.flush.shards" - number of cache partitions flushed in parallel
      * </pre>
+     * Publishing an item replaces any pending write of an item with the same ID, so only
+     * the last version of an item is written to the database.
      * @param item The published item to save.
      */
     public static void savePublishedItem(PublishedItem item) {
-    	savePublishedItem(new RetryWrapper(item));
-    }
-
-    /**
-     * Creates and stores the published item in the database. 
-     * @param wrapper The published item, wrapped for retry
-     */
-    private static void savePublishedItem(RetryWrapper wrapper) {
-    	boolean firstPass = (wrapper.getRetryCount() == 0);
-    	PublishedItem item = wrapper.get();
-		String itemKey = item.getItemKey();
-		itemCache.put(itemKey, item);
-		log.debug("Added new (inbound) item to cache");
-        synchronized (itemsPending) {
-    		LinkedListNode<RetryWrapper> itemToReplace = itemsPending.remove(itemKey);
-    		if (itemToReplace != null) {
-    			itemToReplace.remove(); // remove duplicate from itemsToAdd linked list
-    		}
-    		LinkedListNode<RetryWrapper> listNode = firstPass ? 
-    							itemsToAdd.addLast(wrapper) : 
-    							itemsToAdd.addFirst(wrapper);
-    		itemsPending.put(itemKey, listNode);
-        }
-        // skip the flush step if this is a retry attempt
-		if (firstPass && itemsPending.size() > MAX_ITEMS_FLUSH) {
-			TaskEngine.getInstance().submit(new Runnable() {
-				public void run() { flushPendingItems(false); }
-			});
-		}
-    }
-    
-    /**
-     * This class is used internally to wrap PublishedItems. It adds
-     * a retry counter for the persistence exception handling logic.
-     */
-    private static class RetryWrapper {
-    	private PublishedItem item;
-        private volatile transient int retryCount = 0;
-    	public RetryWrapper(PublishedItem item) { this.item = item; }
-    	public PublishedItem get() { return item; }
-    	public int getRetryCount() { return retryCount; }
-    	public int nextRetry() { return ++retryCount; }
+        itemCache.put(item.getItemKey(), item);
+        log.debug("Added new (inbound) item to cache");
+        itemsPending.publish(item);
+        if (itemsPending.size() > MAX_ITEMS_FLUSH && flushScheduled.compareAndSet(false, true)) {
+            try {
+                TaskEngine.getInstance().submit(new Runnable() {
+                    public void run() {
+                        flushScheduled.set(false);
+                        flushPendingItems(false);
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                flushScheduled.set(false);
+            }
+        }
     }
 
     /**
-     * Flush the cache(s) of items to be persisted (itemsToAdd) and deleted (itemsToDelete).
+     * Flush the cache(s) of items to be persisted and deleted.
      */
 	public static void flushPendingItems()
     {
@@ -1198,7 +1183,8 @@ public class PubSubPersistenceManager {
     }
 
     /**
-     * Flush the cache(s) of items to be persisted (itemsToAdd) and deleted (itemsToDelete).
+     * Flush the cache(s) of items to be persisted and deleted. The shards of the write
+     * cache are written in parallel, each one in its own transaction.
      * @param sendToCluster If true, delegate to cluster members, otherwise local only
      */
     public static void flushPendingItems(boolean sendToCluster)
@@ -1208,175 +1194,167 @@ public class PubSubPersistenceManager {
             CacheFactory.doSynchronousClusterTask(new FlushTask(), false);
         }
 
-		if (itemsToAdd.getFirst() == null && itemsToDelete.getFirst() == null) {
-        	return;	 // nothing to do for this cluster member
+        if (itemsPending.size() == 0) {
+            return; // nothing to do for this cluster member
         }
-        
-		Connection con = null;
-		boolean rollback = false;
-    	LinkedList<RetryWrapper> addList = null;
-    	LinkedList<PublishedItem> delList = null;
-
-    	// Swap pending items so we can parse and save the contents from this point in time
-    	// while not blocking new entries from being cached.
-    	synchronized(itemsPending) 
-    	{
-    		addList = itemsToAdd;
-    		delList = itemsToDelete;
-
-    		itemsToAdd = new LinkedList<RetryWrapper>();
-    		itemsToDelete = new LinkedList<PublishedItem>();
-    		
-    		// Ensure pending items are available via the item read cache;
-    		// this allows the item(s) to be fetched by other request threads
-    		// while being written to the DB from this thread
-    		int copied = 0;
-    		for (String key : itemsPending.keySet()) {
-    			if (!itemCache.containsKey(key)) {
-    				itemCache.put(key, (((RetryWrapper)itemsPending.get(key).object)).get());
-    				copied++;
-    			}
-    		}
-    		if (log.isDebugEnabled() && copied > 0) {
-    			log.debug("Added " + copied + " pending items to published item cache");
-    		}
-    		itemsPending.clear();
-    	}
 
-    	// Note that we now make multiple attempts to write cached items to the DB:
-    	//   1) insert all pending items in a single batch
-    	//   2) if the batch insert fails, retry by inserting each item separately
-    	//   3) if a given item cannot be written, return it to the pending write cache
-    	// By default step 3 will be tried once per item, but this can be configured
-    	// (or disabled) using the "xmpp.pubsub.item.retry" property. In the event of
-    	// a transaction rollback, items that could not be written to the database
-    	// will be returned to the pending item write cache.
-    	try {
-			con = DbConnectionManager.getTransactionConnection();
-			writePendingItems(con, addList, delList);
-		} catch (SQLException se) {
-			log.error("Failed to flush pending items; initiating rollback", se);
-			// return new items to the write cache
-	        LinkedListNode<RetryWrapper> node = addList.getLast();
-	        while (node != null) {
-	            savePublishedItem(node.object);
-	            node.remove();
-	            node = addList.getLast();
-	        }
-			rollback = true;
-		} finally {
-			DbConnectionManager.closeTransactionConnection(con, rollback);
-		}
-	}
+        List<Future<?>> writes = new ArrayList<Future<?>>();
+        for (int i = 1; i < itemsPending.getShardCount(); i++) {
+            final int shard = i;
+            Runnable write = new Runnable() {
+                public void run() { writePendingItems(shard); }
+            };
+            try {
+                writes.add(TaskEngine.getInstance().submit(write));
+            }
+            catch (RejectedExecutionException e) {
+                write.run();
+            }
+        }
+        writePendingItems(0);
+        for (Future<?> write : writes) {
+            try {
+                write.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                log.error("Failed to flush pending items", e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Writes the pending items of a shard of the write cache to the database.
+     * @param shard The index of the shard to write
+     */
+    private static void writePendingItems(int shard)
+    {
+        Lock writeLock = itemsPending.getWriteLock(shard);
+        writeLock.lock();
+        try {
+            Collection<ItemWriteBuffer.PendingItem> changes = itemsPending.startWrite(shard);
+            if (changes.isEmpty()) {
+                return;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Flush " + changes.size() + " pending items to database");
+            }
+
+            // Note that we make multiple attempts to write pending items to the DB:
+            //   1) insert all pending items of the shard in a single batch
+            //   2) if the batch insert fails, retry by inserting each item separately
+            //   3) if a given item cannot be written, return it to the pending write cache
+            // By default step 3 will be tried once per item, but this can be configured
+            // (or disabled) using the "xmpp.pubsub.item.retry" property. In the event of
+            // a transaction rollback, items that could not be written to the database
+            // will be returned to the pending item write cache.
+            Connection con = null;
+            boolean rollback = false;
+            try {
+                con = DbConnectionManager.getTransactionConnection();
+                writePendingItems(con, changes);
+            } catch (SQLException se) {
+                log.error("Failed to flush pending items; initiating rollback", se);
+                for (ItemWriteBuffer.PendingItem change : changes) {
+                    itemsPending.retry(change, change.getRetryCount());
+                }
+                rollback = true;
+            } finally {
+                DbConnectionManager.closeTransactionConnection(con, rollback);
+            }
+        }
+        finally {
+            itemsPending.endWrite(shard);
+            writeLock.unlock();
+        }
+    }
 
     /**
-     * Loop through the lists of added and deleted items and write to the database
+     * Write the pending changes of a shard to the database.
      * @param con
-     * @param addList
-     * @param delList
+     * @param changes
      * @throws SQLException
      */
-	private static void writePendingItems(Connection con, LinkedList<RetryWrapper> addList, LinkedList<PublishedItem> delList) throws SQLException
+	private static void writePendingItems(Connection con, Collection<ItemWriteBuffer.PendingItem> changes) throws SQLException
 	{
-        LinkedListNode<RetryWrapper> addItem = addList.getFirst();
-        LinkedListNode<PublishedItem> delItem = delList.getFirst();
-        
-        // is there anything to do?
-        if ((addItem == null) && (delItem == null)) { return; }
-        
-    	if (log.isDebugEnabled()) {
-    		log.debug("Flush " + itemsPending.size() + " pending items to database");
-    	}
-
-        // ensure there are no duplicates by deleting before adding
-        if (addItem != null) {
-        	LinkedListNode<RetryWrapper> addHead = addItem.previous;
-        	while (addItem != addHead) {
-        		delList.addLast(addItem.object.get());
-        		addItem = addItem.next;
-        	}
+        List<ItemWriteBuffer.PendingItem> addList = new ArrayList<ItemWriteBuffer.PendingItem>();
+        for (ItemWriteBuffer.PendingItem change : changes) {
+            if (!change.isDeleted()) {
+                addList.add(change);
+            }
         }
 
-        // delete first (to remove possible duplicates), then add new items
-        delItem = delList.getFirst();
-        if (delItem != null) {
-            PreparedStatement pstmt = null;
-			try {
-                LinkedListNode<PublishedItem> delHead = delItem.previous;
-				pstmt = con.prepareStatement(DELETE_ITEM);
-
-                while (delItem != delHead)
-                {
-                	PublishedItem item = delItem.object;
-                    pstmt.setString(1, item.getNode().getService().getServiceID());
-                    pstmt.setString(2, encodeNodeID(item.getNode().getNodeID()));
-                    pstmt.setString(3, item.getID());
-                    pstmt.addBatch();
-
-                    delItem = delItem.next;
-                }
-				pstmt.executeBatch();
-			} catch (SQLException ex) {
-				log.error("Failed to delete published item(s) from DB", ex);
-				// do not re-throw here; continue with insert operation if possible
-			} finally {
-				DbConnectionManager.closeStatement(pstmt);
-	        }
+        // delete first (to remove deleted items and possible duplicates), then add new items
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = con.prepareStatement(DELETE_ITEM);
+            for (ItemWriteBuffer.PendingItem change : changes) {
+                PublishedItem item = change.getItem();
+                pstmt.setString(1, item.getServiceID());
+                pstmt.setString(2, encodeNodeID(item.getNodeID()));
+                pstmt.setString(3, item.getID());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        } catch (SQLException ex) {
+            log.error("Failed to delete published item(s) from DB", ex);
+            // do not re-throw here; continue with insert operation if possible
+        } finally {
+            DbConnectionManager.closeStatement(pstmt);
         }
-		
-        try { 
+
+        try {
             // first try to add the pending items as a batch
-        	writePendingItems(con, addList.getFirst(), true);
+        	writePendingItems(con, addList, true);
         } catch (SQLException ex) {
         	// retry each item individually rather than rolling back
-        	writePendingItems(con, addList.getFirst(), false);       	
+        	writePendingItems(con, addList, false);
         }
     }
-	
+
 	/**
 	 * Execute JDBC calls (optionally via batch) to persist the given published items
 	 * @param con
-	 * @param addItem
+	 * @param addList
 	 * @param batch
 	 * @throws SQLException
 	 */
-	private static void writePendingItems(Connection con, LinkedListNode<RetryWrapper> addItem, boolean batch)  throws SQLException 
-	{	
-		if (addItem == null) { return; }
-        LinkedListNode<RetryWrapper> addHead = addItem.previous;
+	private static void writePendingItems(Connection con, List<ItemWriteBuffer.PendingItem> addList, boolean batch)  throws SQLException
+	{
+		if (addList.isEmpty()) { return; }
         PreparedStatement pstmt = null;
-        RetryWrapper wrappedItem = null;
-        PublishedItem item = null;       
     	try {
 			pstmt = con.prepareStatement(ADD_ITEM);
-            while (addItem != addHead)
+            for (ItemWriteBuffer.PendingItem change : addList)
             {
-            	wrappedItem = addItem.object;
-            	item = wrappedItem.get();
-                pstmt.setString(1, item.getNode().getService().getServiceID());
+            	PublishedItem item = change.getItem();
+                pstmt.setString(1, item.getServiceID());
                 pstmt.setString(2, encodeNodeID(item.getNodeID()));
                 pstmt.setString(3, item.getID());
                 pstmt.setString(4, item.getPublisher().toString());
                 pstmt.setString(5, StringUtils.dateToMillis(item.getCreationDate()));
                 pstmt.setString(6, item.getPayloadXML());
                 if (batch) { pstmt.addBatch(); }
-                else { 
+                else {
                 	try { pstmt.execute(); }
                 	catch (SQLException se) {
         	    		// individual item could not be persisted; retry (up to MAX_ITEM_RETRY attempts)
         	    		String itemKey = item.getItemKey();
-        	    		if (wrappedItem.nextRetry() < MAX_ITEM_RETRY) {
+        	    		int retryCount = change.getRetryCount() + 1;
+        	    		if (retryCount < MAX_ITEM_RETRY) {
         	        		log.warn("Failed to persist published item (will retry): " + itemKey);
-        	                savePublishedItem(wrappedItem);
+        	        		itemsPending.retry(change, retryCount);
         	    		} else {
         	    			// all hope is lost ... item will be dropped
         	    			log.error("Published item could not be written to database: " + itemKey + "\n" + item.getPayloadXML(), se);
         	    		}
                 	}
                 }
-                addItem = addItem.next;
             }
-            if (batch) { pstmt.executeBatch(); }			
+            if (batch) { pstmt.executeBatch(); }
     	} catch (SQLException se) {
 			log.error("Failed to persist published items as batch; will retry individually", se);
 			// caught by caller; should not cause a transaction rollback
@@ -1392,15 +1370,8 @@ public class PubSubPersistenceManager {
      * @param item The published item to delete.
      */
     public static void removePublishedItem(PublishedItem item) {
-    	String itemKey = item.getItemKey();
-        itemCache.remove(itemKey);
-        synchronized (itemsPending)
-    	{
-    		itemsToDelete.addLast(item);
-			LinkedListNode<RetryWrapper> itemToAdd = itemsPending.remove(itemKey);
-			if (itemToAdd != null)
-				itemToAdd.remove();  // drop from itemsToAdd linked list
-		}
+        itemCache.remove(item.getItemKey());
+        itemsPending.delete(item);
     }
 
     /**
@@ -1566,14 +1537,11 @@ public class PubSubPersistenceManager {
      * @param node the leaf node to load its published items.
      */
     public static List<PublishedItem> getPublishedItems(LeafNode node, int maxRows) {
-        Lock itemLock = CacheFactory.getLock(ITEM_CACHE, itemCache);
-        try {
-	    	// NOTE: force other requests to wait for DB I/O to complete
-        	itemLock.lock();
-	    	flushPendingItems();
-        } finally {
-        	itemLock.unlock();
-        }
+        flushClusterMembers();
+        // Take the unwritten items before querying so that items written in the meantime
+        // are not missed
+        ItemWriteBuffer.NodeItems pending =
+                itemsPending.getNodeItems(node.getService().getServiceID(), node.getNodeID());
     	Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -1587,15 +1555,17 @@ public class PubSubPersistenceManager {
         	max = Math.min(MAX_ROWS_FETCH, maxPublished);
 
         // We don't know how many items are in the db, so we will start with an allocation of 500
-		java.util.LinkedList<PublishedItem> results = new java.util.LinkedList<PublishedItem>();
+		List<PublishedItem> results = new ArrayList<PublishedItem>(pending.getPublished());
 		boolean descending = JiveGlobals.getBooleanProperty("xmpp.pubsub.order.descending", false);
+		Set<String> changedIDs = pending.getChangedIDs();
 
 		try
 		{
             con = DbConnectionManager.getConnection();
-            // Get published items of the specified node
+            // Get published items of the specified node. Rows of items that changed since
+            // they were written are skipped, so fetch extra rows to fill the page.
             pstmt = con.prepareStatement(LOAD_ITEMS);
-            pstmt.setMaxRows(max);
+            pstmt.setMaxRows(max + changedIDs.size());
             pstmt.setString(1, node.getService().getServiceID());
             pstmt.setString(2, encodeNodeID(node.getNodeID()));
             rs = pstmt.executeQuery();
@@ -1604,6 +1574,9 @@ public class PubSubPersistenceManager {
             // Rebuild loaded published items
             while(rs.next() && (counter < max)) {
                 String itemID = rs.getString(1);
+                if (changedIDs.contains(itemID)) {
+                    continue;
+                }
                 JID publisher = new JID(rs.getString(2));
                 Date creationDate = new Date(Long.parseLong(rs.getString(3).trim()));
                 // Create the item
@@ -1612,11 +1585,7 @@ public class PubSubPersistenceManager {
                 if (rs.getString(4) != null) {
                 	item.setPayloadXML(rs.getString(4));
                 }
-                // Add the published item to the node
-				if (descending)
-					results.add(item);
-				else
-					results.addFirst(item);
+                results.add(item);
                 counter++;
             }
         }
@@ -1627,6 +1596,14 @@ public class PubSubPersistenceManager {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
 
+        // Merge the unwritten items with the loaded items
+        Collections.sort(results, newestFirst);
+        if (results.size() > max) {
+            results = new ArrayList<PublishedItem>(results.subList(0, max));
+        }
+        if (!descending) {
+            Collections.reverse(results);
+        }
         return results;
     }
 
@@ -1636,14 +1613,10 @@ public class PubSubPersistenceManager {
      * @param node the leaf node to load its last published items.
      */
     public static PublishedItem getLastPublishedItem(LeafNode node) {
-        Lock itemLock = CacheFactory.getLock(ITEM_CACHE, itemCache);
-        try {
-        	// NOTE: force other requests to wait for DB I/O to complete
-        	itemLock.lock();
-	    	flushPendingItems();
-        } finally {
-        	itemLock.unlock();
-        }
+        flushClusterMembers();
+        ItemWriteBuffer.NodeItems pending =
+                itemsPending.getNodeItems(node.getService().getServiceID(), node.getNodeID());
+        Set<String> changedIDs = pending.getChangedIDs();
         Connection con = null;
         PreparedStatement pstmt = null;
         ResultSet rs = null;
@@ -1653,14 +1626,17 @@ public class PubSubPersistenceManager {
             con = DbConnectionManager.getConnection();
             // Get published items of the specified node
             pstmt = con.prepareStatement(LOAD_LAST_ITEM);
-            pstmt.setFetchSize(1);
-            pstmt.setMaxRows(1);
+            pstmt.setFetchSize(1 + changedIDs.size());
+            pstmt.setMaxRows(1 + changedIDs.size());
             pstmt.setString(1, node.getService().getServiceID());
             pstmt.setString(2, encodeNodeID(node.getNodeID()));
             rs = pstmt.executeQuery();
             // Rebuild loaded published items
-            if (rs.next()) {
+            while (item == null && rs.next()) {
                 String itemID = rs.getString(1);
+                if (changedIDs.contains(itemID)) {
+                    continue;
+                }
                 JID publisher = new JID(rs.getString(2));
                 Date creationDate = new Date(Long.parseLong(rs.getString(3).trim()));
                 // Create the item
@@ -1677,6 +1653,12 @@ public class PubSubPersistenceManager {
         finally {
             DbConnectionManager.closeConnection(rs, pstmt, con);
         }
+        // Unwritten items are newer than the loaded item unless the clock moved backwards
+        for (PublishedItem published : pending.getPublished()) {
+            if (item == null || newestFirst.compare(published, item) < 0) {
+                item = published;
+            }
+        }
         return item;
     }
 
@@ -1693,8 +1675,14 @@ public class PubSubPersistenceManager {
             	itemLock.lock();
             	result = itemCache.get(itemKey);
             	if (result == null) {
-	            	flushPendingItems(); 
-	
+            		flushClusterMembers();
+            		ItemWriteBuffer.PendingItem pending = itemsPending.get(
+            				node.getService().getServiceID(), node.getNodeID(), itemID);
+            		if (pending != null) {
+            			// the item changed since it was written; deleted items are not loaded
+            			return pending.isDeleted() ? null : pending.getItem();
+            		}
+
 	        		// fetch item from DB
 	                Connection con = null;
 	                PreparedStatement pstmt = null;
@@ -1747,24 +1735,6 @@ public class PubSubPersistenceManager {
 			con = DbConnectionManager.getTransactionConnection();
 
 			purgeNode(leafNode, con);
-
-			// Delete all the entries from the itemsToAdd list and pending map
-			// that match this node.
-			synchronized (itemsPending)
-			{
-				Iterator<Map.Entry<String, LinkedListNode<RetryWrapper>>> pendingIt = itemsPending.entrySet().iterator();
-
-				while (pendingIt.hasNext())
-				{
-					LinkedListNode<RetryWrapper> itemNode = pendingIt.next().getValue();
-
-					if (itemNode.object.get().getNodeID().equals(leafNode.getNodeID()))
-					{
-						itemNode.remove();
-						pendingIt.remove();
-					}
-				}
-			}
 		}
 		catch (SQLException exc)
 		{
@@ -1779,12 +1749,16 @@ public class PubSubPersistenceManager {
 
 	private static void purgeNode(LeafNode leafNode, Connection con) throws SQLException
 	{
-		flushPendingItems();
-        // Remove published items of the node being deleted
+        String serviceID = leafNode.getService().getServiceID();
+        // Wait for pending writes of the node and drop the items that weren't written yet
+        Lock writeLock = itemsPending.getWriteLock(serviceID, leafNode.getNodeID());
         PreparedStatement pstmt = null;
 
+		writeLock.lock();
 		try
 		{
+            itemsPending.discard(serviceID, leafNode.getNodeID());
+            // Remove published items of the node being deleted
             pstmt = con.prepareStatement(DELETE_ITEMS);
             pstmt.setString(1, leafNode.getService().getServiceID());
             pstmt.setString(2, encodeNodeID(leafNode.getNodeID()));
@@ -1793,6 +1767,7 @@ public class PubSubPersistenceManager {
 		finally
 		{
 			DbConnectionManager.closeStatement(pstmt);
+			writeLock.unlock();
 		}
 
 		// drop cached items for purged node
@@ -1808,6 +1783,24 @@ public class PubSubPersistenceManager {
 		}
 	}
 
+    /**
+     * Writes the pending items of the other cluster members to the database so that they
+     * can be read from this member. Items that are pending on this member are read from the
+     * write cache.
+     */
+    private static void flushClusterMembers() {
+        if (ClusterManager.isClusteringEnabled()) {
+            Lock itemLock = CacheFactory.getLock(ITEM_CACHE, itemCache);
+            try {
+                // NOTE: force other requests to wait for DB I/O to complete
+                itemLock.lock();
+                CacheFactory.doSynchronousClusterTask(new FlushTask(), false);
+            } finally {
+                itemLock.unlock();
+            }
+        }
+    }
+
 	private static String encodeWithComma(Collection<String> strings) {
         StringBuilder sb = new StringBuilder(90);
         for (String group : strings) {
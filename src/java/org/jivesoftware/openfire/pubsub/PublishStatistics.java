@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.pubsub;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publication statistics of a leaf node since the node was loaded: how many publications
+ * and retractions notified the affiliates of the node, how many affiliates were notified and
+ * how long it took to notify them.
+ */
+public class PublishStatistics {
+
+    private final AtomicLong publications = new AtomicLong();
+    private final AtomicLong notifiedAffiliates = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();
+    private final AtomicLong maxTime = new AtomicLong();
+
+    /**
+     * Records that the affiliates of the node were notified of a publication or retraction.
+     *
+     * @param affiliates the number of notified affiliates.
+     * @param time the milliseconds that it took to notify the affiliates.
+     */
+    void record(int affiliates, long time) {
+        publications.incrementAndGet();
+        notifiedAffiliates.addAndGet(affiliates);
+        totalTime.addAndGet(time);
+        long max = maxTime.get();
+        while (time > max && !maxTime.compareAndSet(max, time)) {
+            max = maxTime.get();
+        }
+    }
+
+    /**
+     * Returns the number of publications and retractions whose affiliates were notified.
+     *
+     * @return the number of publications and retractions.
+     */
+    public long getPublicationCount() {
+        return publications.get();
+    }
+
+    /**
+     * Returns the number of affiliates that were notified of publications and retractions.
+     *
+     * @return the number of notified affiliates.
+     */
+    public long getNotifiedAffiliatesCount() {
+        return notifiedAffiliates.get();
+    }
+
+    /**
+     * Returns the average milliseconds that it took to notify the affiliates of a
+     * publication or retraction.
+     *
+     * @return the average notification time in milliseconds.
+     */
+    public double getAverageNotificationTime() {
+        long count = publications.get();
+        return count == 0 ? 0 : (double) totalTime.get() / count;
+    }
+
+    /**
+     * Returns the maximum milliseconds that it took to notify the affiliates of a
+     * publication or retraction.
+     *
+     * @return the maximum notification time in milliseconds.
+     */
+    public long getMaxNotificationTime() {
+        return maxTime.get();
+    }
+}
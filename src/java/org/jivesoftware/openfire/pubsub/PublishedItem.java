@@ -127,6 +127,15 @@ public class PublishedItem implements Serializable {
         return nodeId;
     }
 
+    /**
+     * Returns the id of the pubsub service of the node where this item was published.
+     *
+     * @return the ID of the pubsub service of the leaf node.
+     */
+    String getServiceID() {
+        return serviceId;
+    }
+
     /**
      * Returns the {@link LeafNode} where this item was published.
      *
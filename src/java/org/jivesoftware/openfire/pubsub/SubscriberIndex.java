@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.pubsub;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.xmpp.packet.JID;
+
+/**
+ * Index of the subscriptions of a node by subscription owner and by presence filter. The
+ * index lets the node find the subscriptions of an affiliate and the affiliates that have
+ * subscriptions without scanning all the subscriptions of the node.<p>
+ *
+ * Lookups don't lock. Changes to the index are synchronized so that the subscriptions of an
+ * owner are never lost when subscriptions of the same owner are added and removed at the
+ * same time.
+ */
+final class SubscriberIndex {
+
+    /**
+     * Subscriptions of the node grouped by owner. Owners without subscriptions are removed.
+     */
+    private final ConcurrentMap<JID, List<NodeSubscription>> subscriptionsByOwner =
+            new ConcurrentHashMap<JID, List<NodeSubscription>>();
+    /**
+     * Subscriptions that are configured to get notifications based on the presence show
+     * values of the subscriber.
+     */
+    private final Set<NodeSubscription> presenceFiltered =
+            Collections.newSetFromMap(new ConcurrentHashMap<NodeSubscription, Boolean>());
+
+    /**
+     * Adds a subscription to the index.
+     *
+     * @param subscription the subscription to add.
+     */
+    synchronized void add(NodeSubscription subscription) {
+        List<NodeSubscription> subscriptions = subscriptionsByOwner.get(subscription.getOwner());
+        if (subscriptions == null) {
+            subscriptions = new CopyOnWriteArrayList<NodeSubscription>();
+            subscriptionsByOwner.put(subscription.getOwner(), subscriptions);
+        }
+        subscriptions.add(subscription);
+        update(subscription);
+    }
+
+    /**
+     * Removes a subscription from the index.
+     *
+     * @param subscription the subscription to remove.
+     */
+    synchronized void remove(NodeSubscription subscription) {
+        List<NodeSubscription> subscriptions = subscriptionsByOwner.get(subscription.getOwner());
+        if (subscriptions != null) {
+            subscriptions.remove(subscription);
+            if (subscriptions.isEmpty()) {
+                subscriptionsByOwner.remove(subscription.getOwner());
+            }
+        }
+        presenceFiltered.remove(subscription);
+    }
+
+    /**
+     * Updates the filters of a subscription that was configured by its owner.
+     *
+     * @param subscription the configured subscription.
+     */
+    synchronized void update(NodeSubscription subscription) {
+        List<NodeSubscription> subscriptions = subscriptionsByOwner.get(subscription.getOwner());
+        if (subscriptions == null || !subscriptions.contains(subscription)
+                || subscription.getPresenceStates().isEmpty()) {
+            presenceFiltered.remove(subscription);
+        }
+        else {
+            presenceFiltered.add(subscription);
+        }
+    }
+
+    /**
+     * Removes all the subscriptions from the index.
+     */
+    synchronized void clear() {
+        subscriptionsByOwner.clear();
+        presenceFiltered.clear();
+    }
+
+    /**
+     * Returns a snapshot of the subscriptions owned by the specified entity.
+     *
+     * @param owner the owner of the subscriptions.
+     * @return the subscriptions owned by the entity.
+     */
+    Collection<NodeSubscription> getSubscriptions(JID owner) {
+        List<NodeSubscription> subscriptions = subscriptionsByOwner.get(owner);
+        if (subscriptions == null) {
+            return new ArrayList<NodeSubscription>();
+        }
+        return new ArrayList<NodeSubscription>(subscriptions);
+    }
+
+    /**
+     * Returns the owners of the subscriptions of the node.
+     *
+     * @return the owners of the subscriptions.
+     */
+    Collection<JID> getOwners() {
+        return subscriptionsByOwner.keySet();
+    }
+
+    /**
+     * Returns the owners of subscriptions that get notifications based on the presence show
+     * values of the subscriber.
+     *
+     * @return the owners of subscriptions filtered by presence.
+     */
+    Collection<JID> getPresenceFilteredOwners() {
+        Set<JID> owners = new LinkedHashSet<JID>();
+        for (NodeSubscription subscription : presenceFiltered) {
+            owners.add(subscription.getOwner());
+        }
+        return owners;
+    }
+}
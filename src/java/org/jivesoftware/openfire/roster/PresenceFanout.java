@@ -0,0 +1,386 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.roster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.openfire.RoutingTable;
+import org.jivesoftware.openfire.privacy.PrivacyList;
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Presence;
+
+/**
+ * Delivers the presence broadcasts of rosters to the subscribers of the roster owners.<p>
+ *
+ * The routes of all the subscribers are resolved before anything is delivered and then
+ * grouped by destination: sessions hosted by this JVM get the presence first, followed by
+ * sessions hosted by other cluster nodes and finally by other domains. Every subscriber
+ * gets the same presence with its bare JID as the recipient, so all the sessions of a
+ * subscriber receive the same XML.<p>
+ *
+ * Broadcasts to many subscribers are delivered by a pool of threads so that the thread
+ * that processed the presence of the user is not blocked by the fan-out. Broadcasts of a
+ * user are delivered one at a time in the order they were made, so subscribers never
+ * receive an old presence after a newer one. Broadcasts to less than
+ * <tt>xmpp.presence.fanout.threshold</tt> subscribers are delivered by the calling thread
+ * unless older broadcasts of the user are still waiting.
+ */
+final class PresenceFanout {
+
+    private static final Logger Log = LoggerFactory.getLogger(PresenceFanout.class);
+
+    private static final String sizeStatKey = "presence_fanout_size";
+    private static final String timeStatKey = "presence_fanout_time";
+    private static final String queueStatKey = "presence_fanout_queue";
+
+    /**
+     * Maximum number of broadcasts of a user that a thread delivers before letting the
+     * broadcasts of other users go first.
+     */
+    private static final int MAX_BROADCASTS_PER_RUN = 10;
+
+    private final RoutingTable routingTable;
+    private final String serverName;
+    private final int asyncThreshold;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Broadcasts waiting to be delivered by the thread pool, grouped by user. A user has a
+     * queue only while some of its broadcasts are waiting or being delivered.
+     */
+    private final ConcurrentMap<String, UserQueue> queues = new ConcurrentHashMap<String, UserQueue>();
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    private final AtomicLong broadcasts = new AtomicLong();
+    private final AtomicLong recipients = new AtomicLong();
+    private final AtomicLong timedBroadcasts = new AtomicLong();
+    private final AtomicLong time = new AtomicLong();
+
+    /**
+     * Creates a new fan-out engine.
+     *
+     * @param routingTable the routing table used to find the sessions of subscribers.
+     * @param serverName the domain of the server.
+     * @param threads the number of threads that deliver broadcasts.
+     * @param asyncThreshold the minimum number of subscribers of a broadcast that is
+     *        delivered by the thread pool.
+     */
+    PresenceFanout(RoutingTable routingTable, String serverName, int threads, int asyncThreshold) {
+        this.routingTable = routingTable;
+        this.serverName = serverName;
+        this.asyncThreshold = asyncThreshold;
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+                    final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "Presence fan-out-" + threadNumber.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Adds the fan-out statistics to the statistic manager.
+     */
+    void start() {
+        StatisticsManager.getInstance().addStatistic(sizeStatKey,
+                new i18nStatistic("presence.fanout.size", Statistic.Type.count) {
+                    public double sample() {
+                        long count = broadcasts.getAndSet(0);
+                        long total = recipients.getAndSet(0);
+                        return count == 0 ? 0 : (double) total / count;
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic(timeStatKey,
+                new i18nStatistic("presence.fanout.time", Statistic.Type.count) {
+                    public double sample() {
+                        long count = timedBroadcasts.getAndSet(0);
+                        long total = time.getAndSet(0);
+                        return count == 0 ? 0 : (double) total / count;
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic(queueStatKey,
+                new i18nStatistic("presence.fanout.queue", Statistic.Type.count) {
+                    public double sample() {
+                        return waiting.get();
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+    }
+
+    /**
+     * Removes the fan-out statistics and stops the threads once the waiting broadcasts
+     * were delivered.
+     */
+    void stop() {
+        StatisticsManager.getInstance().removeStatistic(sizeStatKey);
+        StatisticsManager.getInstance().removeStatistic(timeStatKey);
+        StatisticsManager.getInstance().removeStatistic(queueStatKey);
+        executor.shutdown();
+    }
+
+    /**
+     * Broadcasts the presence of a user to its subscribers. The presence is copied when
+     * it is delivered by the thread pool, so the caller may keep using it.
+     *
+     * @param username the username of the user whose presence is broadcast.
+     * @param presence the presence to broadcast.
+     * @param list the privacy list that may block the presence for some subscribers or
+     *        <tt>null</tt> if none.
+     * @param subscribers the bare JIDs of the subscribers.
+     */
+    void broadcast(String username, Presence presence, PrivacyList list, Collection<JID> subscribers) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        if (subscribers.size() < asyncThreshold && !queues.containsKey(username)) {
+            deliver(presence, list, subscribers);
+            return;
+        }
+        Broadcast broadcast = new Broadcast(presence.createCopy(), list, subscribers);
+        while (true) {
+            UserQueue queue = queues.get(username);
+            if (queue == null) {
+                queue = new UserQueue(username);
+                UserQueue existing = queues.putIfAbsent(username, queue);
+                if (existing != null) {
+                    queue = existing;
+                }
+            }
+            if (queue.add(broadcast)) {
+                return;
+            }
+            // The queue was being discarded so try again with a new one
+        }
+    }
+
+    /**
+     * Delivers a presence to the sessions of the subscribers that are not blocked by the
+     * privacy list.
+     *
+     * @return the number of sessions and routes the presence was sent to.
+     */
+    int deliver(Presence presence, PrivacyList list, Collection<JID> subscribers) {
+        long start = System.currentTimeMillis();
+        // Resolve the routes of all the subscribers and group them by destination
+        List<Recipient> localSessions = new ArrayList<Recipient>();
+        List<Recipient> clusterNodes = new ArrayList<Recipient>();
+        List<Recipient> otherDomains = new ArrayList<Recipient>();
+        for (JID subscriber : subscribers) {
+            presence.setTo(subscriber);
+            if (list != null && list.shouldBlockPacket(presence)) {
+                // Outgoing presence notifications are blocked for this contact
+                continue;
+            }
+            for (JID route : routingTable.getRoutes(subscriber, null)) {
+                if (!serverName.equals(route.getDomain()) || route.getNode() == null) {
+                    otherDomains.add(new Recipient(subscriber, route, null));
+                }
+                else if (routingTable.isLocalRoute(route)) {
+                    ClientSession session = routingTable.getClientRoute(route);
+                    if (session != null) {
+                        localSessions.add(new Recipient(subscriber, route, session));
+                    }
+                }
+                else {
+                    clusterNodes.add(new Recipient(subscriber, route, null));
+                }
+            }
+        }
+        // Deliver the presence to the sessions of this JVM first since they are the cheapest
+        for (Recipient recipient : localSessions) {
+            presence.setTo(recipient.subscriber);
+            try {
+                recipient.session.process(presence);
+            }
+            catch (Exception e) {
+                // Theoretically only happens if session has been closed.
+                Log.debug(e.getMessage(), e);
+            }
+        }
+        route(presence, clusterNodes);
+        route(presence, otherDomains);
+
+        int count = localSessions.size() + clusterNodes.size() + otherDomains.size();
+        broadcasts.incrementAndGet();
+        recipients.addAndGet(count);
+        timedBroadcasts.incrementAndGet();
+        time.addAndGet(System.currentTimeMillis() - start);
+        return count;
+    }
+
+    private void route(Presence presence, List<Recipient> recipients) {
+        for (Recipient recipient : recipients) {
+            presence.setTo(recipient.subscriber);
+            try {
+                routingTable.routePacket(recipient.route, presence, false);
+            }
+            catch (Exception e) {
+                // Theoretically only happens if session has been closed.
+                Log.debug(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of broadcasts waiting to be delivered by the thread pool.
+     *
+     * @return the number of waiting broadcasts.
+     */
+    int getWaitingBroadcasts() {
+        return waiting.get();
+    }
+
+    /**
+     * A session of a subscriber and the route to reach it.
+     */
+    private static class Recipient {
+
+        final JID subscriber;
+        final JID route;
+        final ClientSession session;
+
+        Recipient(JID subscriber, JID route, ClientSession session) {
+            this.subscriber = subscriber;
+            this.route = route;
+            this.session = session;
+        }
+    }
+
+    /**
+     * A presence waiting to be delivered by the thread pool.
+     */
+    private static class Broadcast {
+
+        final Presence presence;
+        final PrivacyList list;
+        final Collection<JID> subscribers;
+
+        Broadcast(Presence presence, PrivacyList list, Collection<JID> subscribers) {
+            this.presence = presence;
+            this.list = list;
+            this.subscribers = subscribers;
+        }
+    }
+
+    /**
+     * The broadcasts of a user, delivered by at most one thread at a time. A queue that
+     * becomes empty is discarded and no broadcast can be added to it afterwards.
+     */
+    private class UserQueue implements Runnable {
+
+        private final String username;
+        private final Queue<Broadcast> broadcasts = new LinkedList<Broadcast>();
+        private boolean scheduled;
+        private boolean discarded;
+
+        UserQueue(String username) {
+            this.username = username;
+        }
+
+        /**
+         * Adds a broadcast to the queue and schedules the queue if no thread is delivering
+         * its broadcasts.
+         *
+         * @return false if the queue was discarded and the broadcast was not added.
+         */
+        boolean add(Broadcast broadcast) {
+            synchronized (this) {
+                if (discarded) {
+                    return false;
+                }
+                broadcasts.add(broadcast);
+                waiting.incrementAndGet();
+                if (scheduled) {
+                    return true;
+                }
+                scheduled = true;
+            }
+            schedule();
+            return true;
+        }
+
+        public void run() {
+            for (int i = 0; i < MAX_BROADCASTS_PER_RUN; i++) {
+                Broadcast broadcast;
+                synchronized (this) {
+                    broadcast = broadcasts.poll();
+                    if (broadcast == null) {
+                        scheduled = false;
+                        discarded = true;
+                        queues.remove(username, this);
+                        return;
+                    }
+                }
+                waiting.decrementAndGet();
+                try {
+                    deliver(broadcast.presence, broadcast.list, broadcast.subscribers);
+                }
+                catch (Exception e) {
+                    Log.error("Error broadcasting presence of " + username, e);
+                }
+            }
+            // Let the broadcasts of other users go first
+            schedule();
+        }
+
+        private void schedule() {
+            try {
+                executor.execute(this);
+            }
+            catch (RejectedExecutionException e) {
+                // The server is shutting down so deliver the broadcasts in this thread
+                run();
+            }
+        }
+    }
+}
@@ -28,7 +28,9 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -42,6 +44,7 @@ import org.jivesoftware.openfire.SharedGroupException;
 import org.jivesoftware.openfire.XMPPServer;
 import org.jivesoftware.openfire.group.Group;
 import org.jivesoftware.openfire.group.GroupManager;
+import org.jivesoftware.openfire.group.GroupNotFoundException;
 import org.jivesoftware.openfire.privacy.PrivacyList;
 import org.jivesoftware.openfire.privacy.PrivacyListManager;
 import org.jivesoftware.openfire.session.ClientSession;
@@ -80,10 +83,23 @@ public class Roster implements Cacheable, Externalizable {
      */
     protected ConcurrentHashMap<String, RosterItem> rosterItems = new ConcurrentHashMap<String, RosterItem>();
     /**
-     * Contacts with subscription FROM that only exist due to shared groups
+     * Contacts with subscription FROM that only exist due to shared groups and that were added
+     * after the roster was loaded. Contacts that could see the groups when the roster was loaded
+     * are answered from {@link #implicitFromRosters}.
      * key: jabberid string; value: groups why the implicit roster item exists (aka invisibleSharedGroups).
      */
     protected ConcurrentHashMap<String, Set<String>> implicitFrom = new ConcurrentHashMap<String, Set<String>>();
+    /**
+     * Projections of the shared groups where this user is a group user. The users that may see
+     * these groups without being group users have a subscription FROM to this user. They are
+     * looked up in the projections instead of being copied to this roster.
+     */
+    private volatile List<SharedGroupRoster> implicitFromRosters = Collections.emptyList();
+    /**
+     * Contacts whose subscription FROM due to shared groups was removed from this roster.
+     */
+    private final Set<String> removedImplicitFrom =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     private RosterItemProvider rosterItemProvider;
     private String username;
@@ -124,86 +140,104 @@ public class Roster implements Cacheable, Externalizable {
         routingTable = XMPPServer.getInstance().getRoutingTable();
         this.username = username;
 
-        // Get the shared groups of this user
+        // Get the shared groups of this user and their projections on the rosters
         Collection<Group> sharedGroups = rosterManager.getSharedGroups(username);
-        //Collection<Group> userGroups = GroupManager.getInstance().getGroups(getUserJID());
+        List<SharedGroupRoster> sharedRosters = new ArrayList<SharedGroupRoster>(sharedGroups.size());
+        for (Group group : sharedGroups) {
+            sharedRosters.add(rosterManager.getSharedGroupRoster(group));
+        }
 
-        // Add RosterItems that belong to the personal roster
+        // Add RosterItems that belong to the personal roster and to the shared groups
         rosterItemProvider = RosterManager.getRosterItemProvider();
-        Iterator<RosterItem> items = rosterItemProvider.getItems(username);
+        loadItems(rosterItemProvider.getItems(username), sharedGroups, sharedRosters, getUserJID(),
+                sessionManager.getSessionCount(username) > 0);
+        // Fire event indicating that a roster has just been loaded
+        RosterEventDispatcher.rosterLoaded(this);
+    }
+
+    /**
+     * Adds the items of the personal roster of this user and the items that only exist due to
+     * the shared groups of this user.
+     *
+     * @param items the items of the personal roster.
+     * @param sharedGroups the shared groups of this user.
+     * @param sharedRosters the projections of the shared groups of this user.
+     * @param userJID the bare JID of this user.
+     * @param push true if the items that only exist due to shared groups are pushed to the
+     *        connected resources of this user.
+     */
+    void loadItems(Iterator<RosterItem> items, Collection<Group> sharedGroups,
+            List<SharedGroupRoster> sharedRosters, JID userJID, boolean push) {
         while (items.hasNext()) {
             RosterItem item = items.next();
             // Check if the item (i.e. contact) belongs to a shared group of the user. Add the
             // shared group (if any) to this item
-            for (Group group : sharedGroups) {
-                if (group.isUser(item.getJid())) {
+            for (SharedGroupRoster sharedRoster : sharedRosters) {
+                if (sharedRoster.isUser(item.getJid())) {
                     // TODO Group name conflicts are not being considered (do we need this?)
-                    item.addSharedGroup(group);
+                    item.addSharedGroup(sharedRoster.getGroup());
                     item.setSubStatus(RosterItem.SUB_BOTH);
                 }
             }
             rosterItems.put(item.getJid().toBareJID(), item);
         }
-        // Add RosterItems that belong only to shared groups
-        Map<JID, List<Group>> sharedUsers = getSharedUsers(sharedGroups);
+        // Add RosterItems that belong only to shared groups. Nicknames come from the
+        // projections of the groups so they are not looked up for every roster
+        Map<JID, List<Group>> sharedUsers = getSharedUsers(sharedRosters, userJID);
         for (Map.Entry<JID, List<Group>> entry : sharedUsers.entrySet()) {
             JID jid = entry.getKey();
             List<Group> groups = entry.getValue();
-            try {
-                Collection<Group> itemGroups = new ArrayList<Group>();
-                String nickname = "";
-                RosterItem item = new RosterItem(jid, RosterItem.SUB_TO, RosterItem.ASK_NONE,
-                        RosterItem.RECV_NONE, nickname, null);
-                // Add the shared groups to the new roster item
-                for (Group group : groups) {
-                    if (group.isUser(jid)) {
-                        item.addSharedGroup(group);
-                        itemGroups.add(group);
-                        item.setNickname(UserNameManager.getUserName(jid));
-                        broadcast(item, true);
-                    } else {
-                        item.addInvisibleSharedGroup(group);
-                    }
+            String nickname = null;
+            for (SharedGroupRoster sharedRoster : sharedRosters) {
+                if (groups.contains(sharedRoster.getGroup())) {
+                    nickname = sharedRoster.getUsers().get(jid);
+                    break;
                 }
-                // Set subscription type to BOTH if the roster user belongs to a shared group
-                // that is mutually visible with a shared group of the new roster item
-                if (rosterManager.hasMutualVisibility(username, sharedGroups, jid, itemGroups)) {
-                    item.setSubStatus(RosterItem.SUB_BOTH);
-                } else {
-                    // Set subscription type to FROM if the contact does not belong to any of
-                    // the associated shared groups
-                    boolean belongsToGroup = false;
-                    for (Group group : groups) {
-                        if (group.isUser(jid)) {
-                            belongsToGroup = true;
-                        }
-                    }
-                    if (!belongsToGroup) {
-                        item.setSubStatus(RosterItem.SUB_FROM);
+            }
+            if (nickname == null) {
+                // The contact is a non-existent local user
+                continue;
+            }
+            RosterItem item = new RosterItem(jid, RosterItem.SUB_TO, RosterItem.ASK_NONE,
+                    RosterItem.RECV_NONE, nickname, null);
+            // Add the shared groups to the new roster item
+            for (Group group : groups) {
+                item.addSharedGroup(group);
+            }
+            // Set subscription type to BOTH if the roster user belongs to a shared group
+            // that is mutually visible with a shared group of the new roster item
+            if (rosterManager.hasMutualVisibility(username, sharedGroups, jid, groups)) {
+                item.setSubStatus(RosterItem.SUB_BOTH);
+            }
+            rosterItems.put(item.getJid().toBareJID(), item);
+            if (push) {
+                broadcast(item, true);
+            }
+        }
+        // Keep the projections of the groups that contacts may see without being group users.
+        // Roster items with subscription type FROM that exist only because of shared
+        // groups will be recreated on demand in #getRosterItem(JID) and #isRosterItem()
+        // but will never be stored in memory nor in the database. This is an important
+        // optimization to reduce objects in memory and avoid loading users in memory
+        // to get their nicknames that will never be shown. The viewers of the groups are
+        // not copied since groups shown to everybody are seen by all the users
+        List<SharedGroupRoster> fromRosters = new ArrayList<SharedGroupRoster>();
+        for (SharedGroupRoster sharedRoster : sharedRosters) {
+            if (!sharedRoster.isUser(userJID)) {
+                continue;
+            }
+            fromRosters.add(sharedRoster);
+            for (JID jid : sharedUsers.keySet()) {
+                if (!sharedRoster.isUser(jid) && sharedRoster.isViewer(jid)) {
+                    // Contact that this user can see in another shared group
+                    RosterItem item = rosterItems.get(jid.toBareJID());
+                    if (item != null) {
+                        item.addInvisibleSharedGroup(sharedRoster.getGroup());
                     }
                 }
-                // Set nickname and store in memory only if subscription type is not FROM.
-                // Roster items with subscription type FROM that exist only because of shared
-                // groups will be recreated on demand in #getRosterItem(JID) and #isRosterItem()
-                // but will never be stored in memory nor in the database. This is an important
-                // optimization to reduce objects in memory and avoid loading users in memory
-                // to get their nicknames that will never be shown
-                if (item.getSubStatus() != RosterItem.SUB_FROM) {
-                    item.setNickname(UserNameManager.getUserName(jid));
-                    rosterItems.put(item.getJid().toBareJID(), item);
-                } else {
-                    // Cache information about shared contacts with subscription status FROM
-                    implicitFrom
-                            .put(item.getJid().toBareJID(), item.getInvisibleSharedGroupsNames());
-                }
-            } catch (UserNotFoundException e) {
-                Log.error("Groups (" + groups + ") include non-existent username (" +
-                        jid.getNode() +
-                        ")");
             }
         }
-        // Fire event indicating that a roster has just been loaded
-        RosterEventDispatcher.rosterLoaded(this);
+        implicitFromRosters = fromRosters;
     }
 
     /**
@@ -263,6 +297,9 @@ public class Roster implements Cacheable, Externalizable {
      */
     private RosterItem getImplicitRosterItem(JID user) {
         Set<String> invisibleSharedGroups = implicitFrom.get(user.toBareJID());
+        if (invisibleSharedGroups == null) {
+            invisibleSharedGroups = getImplicitSharedGroups(user);
+        }
         if (invisibleSharedGroups != null) {
             RosterItem rosterItem = new RosterItem(user, RosterItem.SUB_FROM, RosterItem.ASK_NONE,
                     RosterItem.RECV_NONE, "", null);
@@ -272,6 +309,31 @@ public class Roster implements Cacheable, Externalizable {
         return null;
     }
 
+    /**
+     * Returns the names of the shared groups of this user that the contact may see without
+     * being a group user, according to the projections of the groups, or <tt>null</tt> if
+     * there are none. Contacts of the roster and removed contacts are not included.
+     *
+     * @param contact the contact to check.
+     * @return the names of the groups or null if the contact may not see any group.
+     */
+    private Set<String> getImplicitSharedGroups(JID contact) {
+        String bareJID = contact.toBareJID();
+        if (rosterItems.containsKey(bareJID) || removedImplicitFrom.contains(bareJID)) {
+            return null;
+        }
+        Set<String> groupNames = null;
+        for (SharedGroupRoster sharedRoster : implicitFromRosters) {
+            if (!sharedRoster.isUser(contact) && sharedRoster.isViewer(contact)) {
+                if (groupNames == null) {
+                    groupNames = new HashSet<String>();
+                }
+                groupNames.add(sharedRoster.getGroup().getName());
+            }
+        }
+        return groupNames;
+    }
+
     /**
      * Create a new item to the roster. Roster items may not be created that contain the same user
      * address as an existing item.
@@ -377,7 +439,8 @@ public class Roster implements Cacheable, Externalizable {
      */
     public void updateRosterItem(RosterItem item) throws UserNotFoundException {
         // Check if we need to convert an implicit roster item into an explicit one
-        if (implicitFrom.remove(item.getJid().toBareJID()) != null) {
+        if (implicitFrom.remove(item.getJid().toBareJID()) != null ||
+                getImplicitSharedGroups(item.getJid()) != null) {
             // Ensure that the item is an explicit roster item
             rosterItems.put(item.getJid().toBareJID(), item);
             // Fire event indicating that a roster item has been updated
@@ -472,6 +535,8 @@ public class Roster implements Cacheable, Externalizable {
             RosterItem item = rosterItems.remove(user.toBareJID());
 
             if (item != null) {
+                // The contact is no longer subscribed due to the shared groups of this user
+                removedImplicitFrom.add(user.toBareJID());
                 // Delete the item from the provider if the item is persistent. RosteItems that only
                 // belong to shared groups won't be persistent
                 if (item.getID() > 0) {
@@ -495,6 +560,7 @@ public class Roster implements Cacheable, Externalizable {
             RosterItem item = getImplicitRosterItem(user);
             if (item != null) {
                 implicitFrom.remove(user.toBareJID());
+                removedImplicitFrom.add(user.toBareJID());
                 // If the contact being removed is not a local user then ACK unsubscription
                 if (!server.isLocal(user)) {
                     Presence presence = new Presence();
@@ -571,7 +637,9 @@ public class Roster implements Cacheable, Externalizable {
 
     /**
      * <p>Broadcast the presence update to all subscribers of the roter.</p>
-     * <p>Any presence change typically results in a broadcast to the roster members.</p>
+     * <p>Any presence change typically results in a broadcast to the roster members.
+     * Broadcasts to many subscribers are delivered in the background, so the subscribers
+     * may receive the presence after this method returns.</p>
      *
      * @param packet The presence packet to broadcast
      */
@@ -595,26 +663,29 @@ public class Roster implements Cacheable, Externalizable {
             // No privacy list was found (based on the session) so check if there is a default list
             list = PrivacyListManager.getInstance().getDefaultPrivacyList(username);
         }
-        // Broadcast presence to subscribed entities
+        XMPPServer.getInstance().getRosterManager().getPresenceFanout().broadcast(username, packet,
+                list, getPresenceSubscribers());
+        if (from != null) {
+            // Broadcast presence to other user's resources
+            sessionManager.broadcastPresenceToOtherResources(from, packet);
+        }
+    }
+
+    /**
+     * Returns the entities subscribed to the presence of this user: the contacts with a
+     * subscription of type BOTH or FROM and the shared contacts whose subscription status is
+     * FROM. The users that may see the shared groups of this user are taken from the
+     * projections of the groups.
+     *
+     * @return the bare JIDs of the entities subscribed to the presence of this user.
+     */
+    List<JID> getPresenceSubscribers() {
+        Set<JID> subscribers = new LinkedHashSet<JID>(rosterItems.size() + implicitFrom.size());
         for (RosterItem item : rosterItems.values()) {
             if (item.getSubStatus() == RosterItem.SUB_BOTH || item.getSubStatus() == RosterItem.SUB_FROM) {
-                packet.setTo(item.getJid());
-                if (list != null && list.shouldBlockPacket(packet)) {
-                    // Outgoing presence notifications are blocked for this contact
-                    continue;
-                }
-                JID searchNode = new JID(item.getJid().getNode(), item.getJid().getDomain(), null, true);
-                for (JID jid : routingTable.getRoutes(searchNode, null)) {
-                    try {
-                        routingTable.routePacket(jid, packet, false);
-                    } catch (Exception e) {
-                        // Theoretically only happens if session has been closed.
-                        Log.debug(e.getMessage(), e);
-                    }
-                }
+                subscribers.add(new JID(item.getJid().getNode(), item.getJid().getDomain(), null, true));
             }
         }
-        // Broadcast presence to shared contacts whose subscription status is FROM
         for (String contact : implicitFrom.keySet()) {
             if (contact.contains("@")) {
                 String node = contact.substring(0, contact.lastIndexOf("@"));
@@ -622,44 +693,35 @@ public class Roster implements Cacheable, Externalizable {
                 node = JID.escapeNode(node);
                 contact = new JID(node, domain, null).toBareJID();
             }
-
-            packet.setTo(contact);
-            if (list != null && list.shouldBlockPacket(packet)) {
-                // Outgoing presence notifications are blocked for this contact
-                continue;
-            }
-            for (JID jid : routingTable.getRoutes(new JID(contact), null)) {
-                try {
-                    routingTable.routePacket(jid, packet, false);
-                } catch (Exception e) {
-                    // Theoretically only happens if session has been closed.
-                    Log.debug(e.getMessage(), e);
+            subscribers.add(new JID(contact));
+        }
+        for (SharedGroupRoster sharedRoster : implicitFromRosters) {
+            for (JID jid : sharedRoster.getViewers()) {
+                String bareJID = jid.toBareJID();
+                if (!sharedRoster.isUser(jid) && !rosterItems.containsKey(bareJID) &&
+                        !removedImplicitFrom.contains(bareJID)) {
+                    subscribers.add(jid);
                 }
             }
         }
-        if (from != null) {
-            // Broadcast presence to other user's resources
-            sessionManager.broadcastPresenceToOtherResources(from, packet);
-        }
+        return new ArrayList<JID>(subscribers);
     }
 
     /**
-     * Returns the list of users that belong ONLY to a shared group of this user. If the contact
-     * belongs to the personal roster and a shared group then it wont' be included in the answer.
+     * Returns the users that belong ONLY to a shared group of this user and the shared groups
+     * of this user where they belong. If the contact belongs to the personal roster and a
+     * shared group then it won't be included in the answer.
      *
-     * @param sharedGroups the shared groups of this user.
-     * @return the list of users that belong ONLY to a shared group of this user.
+     * @param sharedRosters the projections of the shared groups of this user.
+     * @param userJID the bare JID of this user.
+     * @return the users that belong ONLY to a shared group of this user.
      */
-    private Map<JID, List<Group>> getSharedUsers(Collection<Group> sharedGroups) {
+    private Map<JID, List<Group>> getSharedUsers(Collection<SharedGroupRoster> sharedRosters, JID userJID) {
         // Get the users to process from the shared groups. Users that belong to different groups
         // will have one entry in the map associated with all the groups
         Map<JID, List<Group>> sharedGroupUsers = new HashMap<JID, List<Group>>();
-        for (Group group : sharedGroups) {
-            // Get all the users that should be in this roster
-            Collection<JID> users = rosterManager.getSharedUsersForRoster(group, this);
-            // Add the users of the group to the general list of users to process
-            JID userJID = getUserJID();
-            for (JID jid : users) {
+        for (SharedGroupRoster sharedRoster : sharedRosters) {
+            for (JID jid : sharedRoster.getUsers().keySet()) {
                 // Add the user to the answer if the user doesn't belong to the personal roster
                 // (since we have already added the user to the answer)
                 boolean isRosterItem = rosterItems.containsKey(jid.toBareJID());
@@ -669,7 +731,7 @@ public class Roster implements Cacheable, Externalizable {
                         groups = new ArrayList<Group>();
                         sharedGroupUsers.put(jid, groups);
                     }
-                    groups.add(group);
+                    groups.add(sharedRoster.getGroup());
                 }
             }
         }
@@ -741,6 +803,7 @@ public class Roster implements Cacheable, Externalizable {
             size += CacheSizes.sizeOfString(entry.getKey());
             size += CacheSizes.sizeOfCollection(entry.getValue());
         }
+        size += CacheSizes.sizeOfCollection(removedImplicitFrom);
 
         return size;
     }
@@ -1117,6 +1180,12 @@ public class Roster implements Cacheable, Externalizable {
         ExternalizableUtil.getInstance().writeSafeUTF(out, username);
         ExternalizableUtil.getInstance().writeExternalizableMap(out, rosterItems);
         ExternalizableUtil.getInstance().writeStringsMap(out, implicitFrom);
+        List<String> groupNames = new ArrayList<String>();
+        for (SharedGroupRoster sharedRoster : implicitFromRosters) {
+            groupNames.add(sharedRoster.getGroup().getName());
+        }
+        ExternalizableUtil.getInstance().writeStrings(out, groupNames);
+        ExternalizableUtil.getInstance().writeStrings(out, removedImplicitFrom);
     }
 
     public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
@@ -1129,5 +1198,18 @@ public class Roster implements Cacheable, Externalizable {
         username = ExternalizableUtil.getInstance().readSafeUTF(in);
         ExternalizableUtil.getInstance().readExternalizableMap(in, rosterItems, getClass().getClassLoader());
         ExternalizableUtil.getInstance().readStringsMap(in, implicitFrom);
+        List<String> groupNames = new ArrayList<String>();
+        ExternalizableUtil.getInstance().readStrings(in, groupNames);
+        List<SharedGroupRoster> fromRosters = new ArrayList<SharedGroupRoster>(groupNames.size());
+        for (String groupName : groupNames) {
+            try {
+                fromRosters.add(rosterManager.getSharedGroupRoster(GroupManager.getInstance().getGroup(groupName)));
+            }
+            catch (GroupNotFoundException e) {
+                // Do nothing since the group was deleted
+            }
+        }
+        implicitFromRosters = fromRosters;
+        ExternalizableUtil.getInstance().readStrings(in, removedImplicitFrom);
     }
 }
@@ -35,6 +35,7 @@ import org.jivesoftware.openfire.user.User;
 import org.jivesoftware.openfire.user.UserManager;
 import org.jivesoftware.openfire.user.UserNotFoundException;
 import org.jivesoftware.util.ClassUtils;
+import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.PropertyEventDispatcher;
 import org.jivesoftware.util.PropertyEventListener;
@@ -46,6 +47,8 @@ import org.xmpp.packet.JID;
 import org.xmpp.packet.Presence;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A simple service that allows components to retrieve a roster based solely on the ID
@@ -66,6 +69,26 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     private XMPPServer server;
     private RoutingTable routingTable;
     private RosterItemProvider provider;
+    /**
+     * Projections of the shared groups on the rosters of their users. Key: group name.
+     */
+    private final ConcurrentMap<String, SharedGroupRoster> sharedGroupRosters =
+            new ConcurrentHashMap<String, SharedGroupRoster>();
+    /**
+     * Bare JIDs of all the local users, loaded when a group shown to everybody is used.
+     */
+    private volatile Set<JID> localUsers;
+    /**
+     * Time in milliseconds when the local users were loaded.
+     */
+    private volatile long localUsersLoadTime;
+    /**
+     * Max age in milliseconds of the local users and of the projections of the shared groups.
+     * User and group providers may not fire events when their data changes, so the users and
+     * nicknames are loaded again after this time. Defaults to the lifetime of the user cache.
+     */
+    private volatile long sharedGroupLifetime;
+    private PresenceFanout presenceFanout;
 
     /**
      * Returns true if the roster service is enabled. When disabled it is not possible to
@@ -82,14 +105,22 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         rosterCache = CacheFactory.createCache("Roster");
 
         initProvider();
+        initSharedGroupLifetime();
 
         PropertyEventDispatcher.addListener(new PropertyEventListener() {
             public void propertySet(String property, Map params) {
                 if (property.equals("provider.roster.className")) {
                     initProvider();
                 }
+                else if (property.equals("xmpp.roster.sharedgroup.lifetime")) {
+                    initSharedGroupLifetime();
+                }
+            }
+            public void propertyDeleted(String property, Map params) {
+                if (property.equals("xmpp.roster.sharedgroup.lifetime")) {
+                    initSharedGroupLifetime();
+                }
             }
-            public void propertyDeleted(String property, Map params) {}
             public void xmlPropertySet(String property, Map params) {}
             public void xmlPropertyDeleted(String property, Map params) {}
         });
@@ -267,6 +298,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     }
 
     public void groupDeleting(Group group, Map params) {
+        sharedGroupRosters.remove(group.getName());
         // Get group members
         Collection<JID> users = new HashSet<JID>(group.getMembers());
         users.addAll(group.getAdmins());
@@ -279,6 +311,11 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     }
 
     public void groupModified(Group group, Map params) {
+        // Compute the projection of the group again when it is used
+        sharedGroupRosters.remove(group.getName());
+        if ("nameModified".equals(params.get("type"))) {
+            sharedGroupRosters.remove((String) params.get("originalValue"));
+        }
         // Do nothing if no group property has been modified
         if ("propertyDeleted".equals(params.get("type"))) {
              return;
@@ -365,6 +402,9 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         super.initialize(server);
         this.server = server;
         this.routingTable = server.getRoutingTable();
+        presenceFanout = new PresenceFanout(routingTable, server.getServerInfo().getXMPPDomain(),
+                JiveGlobals.getIntProperty("xmpp.presence.fanout.threads", 4),
+                JiveGlobals.getIntProperty("xmpp.presence.fanout.threshold", 100));
 
         RosterEventDispatcher.addListener(new RosterEventListener() {
             public void rosterLoaded(Roster roster) {
@@ -428,6 +468,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     public void memberAdded(Group group, Map params) {
         JID addedUser = new JID((String) params.get("member"));
+        updateSharedGroupRoster(group, addedUser);
         // Do nothing if the user was an admin that became a member
         if (group.getAdmins().contains(addedUser)) {
             return;
@@ -451,6 +492,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
             return;
         }
         JID deletedUser = new JID(member);
+        updateSharedGroupRoster(group, deletedUser);
         // Do nothing if the user is still an admin
         if (group.getAdmins().contains(deletedUser)) {
             return;
@@ -470,6 +512,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     public void adminAdded(Group group, Map params) {
         JID addedUser = new JID((String) params.get("admin"));
+        updateSharedGroupRoster(group, addedUser);
         // Do nothing if the user was a member that became an admin
         if (group.getMembers().contains(addedUser)) {
             return;
@@ -489,6 +532,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
 
     public void adminRemoved(Group group, Map params) {
         JID deletedUser = new JID((String) params.get("admin"));
+        updateSharedGroupRoster(group, deletedUser);
         // Do nothing if the user is still a member
         if (group.getMembers().contains(deletedUser)) {
             return;
@@ -517,6 +561,10 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
      */
     public void userCreated(User newUser, Map<String,Object> params) {
         JID newUserJID = server.createJID(newUser.getUsername(), null);
+        Set<JID> localUsers = this.localUsers;
+        if (localUsers != null) {
+            localUsers.add(newUserJID);
+        }
         // Shared public groups that are public should have a presence subscription
         // of type FROM for the new user
         for (Group group : getPublicSharedGroups()) {
@@ -555,6 +603,10 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         // Shared public groups that have a presence subscription of type FROM
         // for the deleted user should no longer have a reference to the deleted user
         JID userJID = server.createJID(user.getUsername(), null);
+        Set<JID> localUsers = this.localUsers;
+        if (localUsers != null) {
+            localUsers.remove(userJID);
+        }
         // Shared public groups that are public should have a presence subscription
         // of type FROM for the new user
         for (Group group : getPublicSharedGroups()) {
@@ -592,7 +644,81 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
     }
 
     public void userModified(User user, Map<String,Object> params) {
-        //Do nothing
+        // Update the nickname of the user in the projections of the shared groups
+        JID userJID = server.createJID(user.getUsername(), null);
+        for (SharedGroupRoster sharedRoster : sharedGroupRosters.values()) {
+            if (sharedRoster.isUser(userJID)) {
+                updateSharedGroupRoster(sharedRoster.getGroup(), userJID);
+            }
+        }
+    }
+
+    /**
+     * Returns the projection of a shared group on the rosters of its users. The projection
+     * is computed the first time it is requested and shared by all the rosters that include
+     * the group.
+     *
+     * @param group the shared group.
+     * @return the projection of the shared group.
+     */
+    SharedGroupRoster getSharedGroupRoster(Group group) {
+        SharedGroupRoster sharedRoster = sharedGroupRosters.get(group.getName());
+        // Groups that were reloaded by the group manager may have new users, and users of
+        // expired projections may have new nicknames
+        if (sharedRoster == null || sharedRoster.getGroup() != group ||
+                sharedRoster.isExpired(System.currentTimeMillis(), sharedGroupLifetime)) {
+            Collection<Group> groupList = parseGroups(group.getProperties().get("sharedRoster.groupList"));
+            Set<JID> users = isPublicSharedGroup(group) ? getLocalUsers() : Collections.<JID>emptySet();
+            sharedRoster = new SharedGroupRoster(group, groupList, users);
+            sharedGroupRosters.put(group.getName(), sharedRoster);
+        }
+        return sharedRoster;
+    }
+
+    /**
+     * Updates the projection of a shared group (if any) after a user was added to or
+     * removed from the group.
+     *
+     * @param group the group.
+     * @param user the user that was added or removed.
+     */
+    private void updateSharedGroupRoster(Group group, JID user) {
+        SharedGroupRoster sharedRoster = sharedGroupRosters.get(group.getName());
+        if (sharedRoster == null) {
+            return;
+        }
+        if (sharedRoster.getGroup() != group ||
+                !sharedGroupRosters.replace(group.getName(), sharedRoster, sharedRoster.update(user))) {
+            // The projection is outdated or was concurrently updated so compute it again
+            // when it is used
+            sharedGroupRosters.remove(group.getName());
+        }
+    }
+
+    /**
+     * Returns the bare JIDs of all the local users. The users are loaded the first time and
+     * kept up to date when users are created or deleted. Since user providers may not fire
+     * those events, the users are loaded again once they are older than the lifetime of
+     * the shared groups.
+     *
+     * @return the bare JIDs of all the local users.
+     */
+    private Set<JID> getLocalUsers() {
+        Set<JID> users = localUsers;
+        if (users == null || System.currentTimeMillis() - localUsersLoadTime >= sharedGroupLifetime) {
+            synchronized (this) {
+                users = localUsers;
+                if (users == null || System.currentTimeMillis() - localUsersLoadTime >= sharedGroupLifetime) {
+                    users = Collections.newSetFromMap(new ConcurrentHashMap<JID, Boolean>());
+                    for (String username : UserManager.getInstance().getUsernames()) {
+                        users.add(server.createJID(username, null, true));
+                    }
+                    localUsers = users;
+                    localUsersLoadTime = System.currentTimeMillis();
+                }
+            }
+        }
+        return users;
     }
 
     /**
@@ -809,9 +935,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         // Check if anyone can see this shared group
         if ("everybody".equals(showInRoster)) {
             // Add all users in the system
-            for (String username : UserManager.getInstance().getUsernames()) {
-                users.add(server.createJID(username, null, true));
-            }
+            users.addAll(getLocalUsers());
             // Add all logged users. We don't need to add all users in the system since only the
             // logged ones will be affected.
             //users.addAll(SessionManager.getInstance().getSessionUsers());
@@ -827,41 +951,6 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         return users;
     }
 
-    Collection<JID> getSharedUsersForRoster(Group group, Roster roster) {
-        String showInRoster = group.getProperties().get("sharedRoster.showInRoster");
-        String groupNames = group.getProperties().get("sharedRoster.groupList");
-
-        // Answer an empty collection if the group is not being shown in users' rosters
-        if (!"onlyGroup".equals(showInRoster) && !"everybody".equals(showInRoster)) {
-            return new ArrayList<JID>();
-        }
-
-        // Add the users of the group
-        Collection<JID> users = new HashSet<JID>(group.getMembers());
-        users.addAll(group.getAdmins());
-
-        // If the user of the roster belongs to the shared group then we should return
-        // users that need to be in the roster with subscription "from"
-        if (group.isUser(roster.getUsername())) {
-            // Check if anyone can see this shared group
-            if ("everybody".equals(showInRoster)) {
-                // Add all users in the system
-                for (String username : UserManager.getInstance().getUsernames()) {
-                    users.add(server.createJID(username, null, true));
-                }
-            }
-            else {
-                // Add the users that may see the group
-                Collection<Group> groupList = parseGroups(groupNames);
-                for (Group groupInList : groupList) {
-                    users.addAll(groupInList.getMembers());
-                    users.addAll(groupInList.getAdmins());
-                }
-            }
-        }
-        return users;
-    }
-
     /**
      * Returns true if a group in the first collection may mutually see a group of the
      * second collection. More precisely, return true if both collections contain a public
@@ -946,6 +1035,7 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         UserEventDispatcher.addListener(this);
         // Add the new instance as a listener of group events
         GroupEventDispatcher.addListener(this);
+        presenceFanout.start();
     }
 
     @Override
@@ -955,12 +1045,27 @@ public class RosterManager extends BasicModule implements GroupEventListener, Us
         UserEventDispatcher.removeListener(this);
         // Remove this module as a listener of group events
         GroupEventDispatcher.removeListener(this);
+        presenceFanout.stop();
+    }
+
+    /**
+     * Returns the engine that delivers the presence broadcasts of rosters.
+     *
+     * @return the engine that delivers the presence broadcasts of rosters.
+     */
+    PresenceFanout getPresenceFanout() {
+        return presenceFanout;
     }
 
     public static RosterItemProvider getRosterItemProvider() {
         return XMPPServer.getInstance().getRosterManager().provider;
     }
 
+    private void initSharedGroupLifetime() {
+        sharedGroupLifetime = JiveGlobals.getLongProperty("xmpp.roster.sharedgroup.lifetime",
+                JiveConstants.MINUTE * 30);
+    }
+
     private void initProvider() {
         JiveGlobals.migrateProperty("provider.roster.className");
         String className = JiveGlobals.getProperty("provider.roster.className",
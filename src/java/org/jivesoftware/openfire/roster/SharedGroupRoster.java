@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.roster;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.openfire.user.UserNameManager;
+import org.jivesoftware.openfire.user.UserNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * The part of the rosters of users that comes from a shared group: the group users with
+ * their nicknames and the users that may see the group. The projection of a group is
+ * computed once and used to load the rosters of all the users that see the group, so the
+ * nicknames of the group users are not looked up again for every roster.<p>
+ *
+ * Projections are immutable. The {@link RosterManager} replaces the projection of a group
+ * when group events add or remove group users and discards it when the group is modified.
+ * Since user and group providers such as LDAP don't fire events when their data changes,
+ * projections are also computed again once they expire.
+ */
+final class SharedGroupRoster {
+
+    private static final Logger Log = LoggerFactory.getLogger(SharedGroupRoster.class);
+
+    private final Group group;
+    /**
+     * Bare JIDs of the group users and their nicknames. The nickname is null for local users
+     * that don't exist.
+     */
+    private final Map<JID, String> users;
+    /**
+     * Groups whose users may see the group when the group is only shown to some groups.
+     */
+    private final Collection<Group> groupList;
+    /**
+     * All the local users of the server, who may see the group if it is shown to everybody.
+     */
+    private final Set<JID> localUsers;
+    private final boolean everybody;
+    /**
+     * Time in milliseconds when the nicknames of the group users were looked up.
+     */
+    private final long creationTime;
+
+    /**
+     * Creates the projection of a shared group.
+     *
+     * @param group the shared group.
+     * @param groupList the groups whose users may see the group.
+     * @param localUsers the bare JIDs of all the local users.
+     */
+    SharedGroupRoster(Group group, Collection<Group> groupList, Set<JID> localUsers) {
+        this(group, groupList, localUsers, new HashMap<JID, String>(), System.currentTimeMillis());
+        for (JID user : group.getMembers()) {
+            users.put(user, getNickname(user));
+        }
+        for (JID user : group.getAdmins()) {
+            users.put(user, getNickname(user));
+        }
+    }
+
+    /**
+     * Creates the projection of a shared group with the given group users.
+     *
+     * @param group the shared group.
+     * @param groupList the groups whose users may see the group.
+     * @param localUsers the bare JIDs of all the local users.
+     * @param users the bare JIDs of the group users mapped to their nicknames.
+     * @param creationTime the time in milliseconds when the nicknames were looked up.
+     */
+    SharedGroupRoster(Group group, Collection<Group> groupList, Set<JID> localUsers,
+            Map<JID, String> users, long creationTime)
+    {
+        this.group = group;
+        this.groupList = groupList;
+        this.localUsers = localUsers;
+        this.users = users;
+        this.creationTime = creationTime;
+        everybody = RosterManager.isPublicSharedGroup(group);
+    }
+
+    /**
+     * Returns the group of this projection.
+     *
+     * @return the group of this projection.
+     */
+    Group getGroup() {
+        return group;
+    }
+
+    /**
+     * Returns true if the projection is older than the given lifetime and has to be computed
+     * again.
+     *
+     * @param now the current time in milliseconds.
+     * @param lifetime the max age in milliseconds of a projection.
+     * @return true if the projection expired.
+     */
+    boolean isExpired(long now, long lifetime) {
+        return now - creationTime >= lifetime;
+    }
+
+    /**
+     * Returns true if the user was a group user when the projection was computed.
+     *
+     * @param user the user to check.
+     * @return true if the user is a group user.
+     */
+    boolean isUser(JID user) {
+        return users.containsKey(user.getResource() == null ? user : user.asBareJID());
+    }
+
+    /**
+     * Returns the bare JIDs of the group users mapped to their nicknames. The nickname
+     * is null for local users that don't exist.
+     *
+     * @return the group users and their nicknames.
+     */
+    Map<JID, String> getUsers() {
+        return Collections.unmodifiableMap(users);
+    }
+
+    /**
+     * Returns the users that may see the group in their rosters. Group users see these
+     * users in their rosters with a subscription of type FROM unless they are also group
+     * users.
+     *
+     * @return the users that may see the group.
+     */
+    Collection<JID> getViewers() {
+        if (everybody) {
+            return localUsers;
+        }
+        Collection<JID> viewers = new ArrayList<JID>();
+        for (Group groupInList : groupList) {
+            viewers.addAll(groupInList.getMembers());
+            viewers.addAll(groupInList.getAdmins());
+        }
+        return viewers;
+    }
+
+    /**
+     * Returns true if the user may see the group in the roster. Unlike {@link #getViewers()},
+     * the users of groups shown to everybody are not copied.
+     *
+     * @param user the user to check.
+     * @return true if the user may see the group.
+     */
+    boolean isViewer(JID user) {
+        JID bareJID = user.getResource() == null ? user : user.asBareJID();
+        if (everybody) {
+            return localUsers.contains(bareJID);
+        }
+        for (Group groupInList : groupList) {
+            if (groupInList.isUser(bareJID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a projection where the given user is a group user if the user belongs to the
+     * group, or is not a group user otherwise. The nickname of the user is looked up again.
+     * The updated projection expires when this projection expires.
+     *
+     * @param user the bare JID of the user that was added to or removed from the group, or
+     *        whose name was modified.
+     * @return the updated projection.
+     */
+    SharedGroupRoster update(JID user) {
+        Map<JID, String> updatedUsers = new HashMap<JID, String>(users);
+        if (group.isUser(user)) {
+            updatedUsers.put(user, getNickname(user));
+        }
+        else {
+            updatedUsers.remove(user);
+        }
+        return new SharedGroupRoster(group, groupList, localUsers, updatedUsers, creationTime);
+    }
+
+    private String getNickname(JID user) {
+        try {
+            return UserNameManager.getUserName(user);
+        }
+        catch (UserNotFoundException e) {
+            Log.error("Group (" + group.getName() + ") includes non-existent username (" +
+                    user.getNode() + ")");
+            return null;
+        }
+    }
+}
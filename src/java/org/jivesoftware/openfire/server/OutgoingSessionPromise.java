@@ -21,24 +21,32 @@
 package org.jivesoftware.openfire.server;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 import org.jivesoftware.openfire.RoutableChannelHandler;
 import org.jivesoftware.openfire.RoutingTable;
 import org.jivesoftware.openfire.XMPPServer;
+import org.jivesoftware.openfire.net.DNSUtil;
 import org.jivesoftware.openfire.session.ConnectionSettings;
 import org.jivesoftware.openfire.session.LocalOutgoingServerSession;
 import org.jivesoftware.openfire.spi.RoutingTableImpl;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.TaskEngine;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -55,10 +63,18 @@ import org.xmpp.packet.Presence;
  * When looking for a route to a remote server that does not have an existing connection, a session
  * promise is returned.
  *
- * This class will queue packets and process them in another thread. The processing thread will
- * use a pool of thread that will actually do the hard work. The threads in the pool will try
- * to connect to remote servers and deliver the packets. If an error occurred while establishing
- * the connection or sending the packet an error will be returned to the sender of the packet.
+ * This class will queue packets in a queue per remote domain. When a domain gets packets, its
+ * queue is handed to a pool of threads that will actually do the hard work. The threads in the
+ * pool will try to connect to remote servers and deliver the packets. If an error occurred while
+ * establishing the connection or sending the packet an error will be returned to the sender of
+ * the packet. Since only one thread processes the queue of a domain at any time, a slow remote
+ * server only delays the packets sent to its own domain.<p>
+ *
+ * The queue of each domain can hold up to <tt>xmpp.server.outgoing.queue.domain</tt> packets.
+ * Packets for a domain whose queue is full are returned to their senders with a
+ * <tt>resource-constraint</tt> error, or silently dropped if the
+ * <tt>xmpp.server.outgoing.queue.overflow</tt> property is set to <tt>drop</tt>. The thread
+ * that routes a packet only queues it, and never connects to the remote server itself.
  *
  * @author Gaston Dombiak
  */
@@ -66,12 +82,23 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
 
 	private static final Logger Log = LoggerFactory.getLogger(OutgoingSessionPromise.class);
 
-    private static OutgoingSessionPromise instance = new OutgoingSessionPromise();
+    private static final String queueSizeStatKey = "s2s_queue_size";
+    private static final String overflowStatKey = "s2s_queue_overflow";
+    private static final String connectTimeStatKey = "s2s_connect_time";
 
     /**
-     * Queue that holds the packets pending to be sent to remote servers.
+     * Number of packets that a processor sends before letting the processors of other
+     * domains use its thread.
      */
-    private BlockingQueue<Packet> packets = new LinkedBlockingQueue<Packet>(10000);
+    private static final int BATCH_SIZE = 100;
+
+    /**
+     * Time in milliseconds after which the processor of a domain with no queued packets
+     * is discarded.
+     */
+    private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+    private static OutgoingSessionPromise instance = new OutgoingSessionPromise();
 
     /**
      * Pool of threads that will create outgoing sessions to remote servers and send
@@ -79,17 +106,31 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
      */
     private ThreadPoolExecutor threadPool;
 
-    private Map<String, PacketsProcessor> packetsProcessors = new HashMap<String, PacketsProcessor>();
+    /**
+     * Processors of the packets queued for each remote domain. Key: remote domain.
+     */
+    private ConcurrentMap<String, PacketsProcessor> packetsProcessors = new ConcurrentHashMap<String, PacketsProcessor>();
+
+    /**
+     * Number of packets that were bounced or dropped because the queue of their domain was full.
+     */
+    private final AtomicLong overflows = new AtomicLong();
+    /**
+     * Total time in milliseconds spent creating outgoing sessions since the last sample.
+     */
+    private final AtomicLong connectTime = new AtomicLong();
+    /**
+     * Number of outgoing sessions created since the last sample.
+     */
+    private final AtomicLong connects = new AtomicLong();
+
+    private TimerTask cleanupTask;
 
     /**
      * Cache (unlimited, never expire) that holds outgoing sessions to remote servers from this server.
      * Key: server domain, Value: nodeID
      */
     private Cache<String, byte[]> serversCache;
-    /**
-     * Flag that indicates if the process that consumed the queued packets should stop.
-     */
-    private boolean shutdown = false;
     private RoutingTable routingTable;
 
     private OutgoingSessionPromise() {
@@ -100,66 +141,37 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
     private void init() {
         serversCache = CacheFactory.createCache(RoutingTableImpl.S2S_CACHE_NAME);
         routingTable = XMPPServer.getInstance().getRoutingTable();
-        // Create a pool of threads that will process queued packets.
+        // Create a pool of threads that will process queued packets. Each domain with pending
+        // packets is processed by a thread of the pool (when available). If an error occurs
+        // while creating the remote session or sending the packet then a packet with error 502
+        // will be sent to the sender of the packet
         int maxThreads = JiveGlobals.getIntProperty(ConnectionSettings.Server.QUEUE_MAX_THREADS, 20);
-        int queueSize = JiveGlobals.getIntProperty(ConnectionSettings.Server.QUEUE_SIZE, 50);
         if (maxThreads < 10) {
             // Ensure that the max number of threads in the pool is at least 10
             maxThreads = 10;
         }
+        // Domains are queued at most once so the queue of the pool holds at most one processor
+        // for each remote domain, and the packets of each domain are bounded by its own queue
         threadPool =
-                new ThreadPoolExecutor(maxThreads/4, maxThreads, 60, TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<Runnable>(queueSize),
-                        new ThreadPoolExecutor.CallerRunsPolicy());
+                new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>());
+        threadPool.allowCoreThreadTimeOut(true);
 
-        // Start the thread that will consume the queued packets. Each pending packet will
-        // be actually processed by a thread of the pool (when available). If an error occurs
-        // while creating the remote session or sending the packet then a packet with error 502
-        // will be sent to the sender of the packet
-        Thread thread = new Thread(new Runnable() {
+        // Discard the processors of domains that did not get packets for a while
+        cleanupTask = new TimerTask() {
+            @Override
             public void run() {
-                while (!shutdown) {
-                    try {
-                        if (threadPool.getActiveCount() < threadPool.getMaximumPoolSize()) {
-                            // Wait until a packet is available
-                            final Packet packet = packets.take();
-
-                            boolean newProcessor = false;
-                            PacketsProcessor packetsProcessor;
-                            String domain = packet.getTo().getDomain();
-                            synchronized (domain.intern()) {
-                                packetsProcessor = packetsProcessors.get(domain);
-                                if (packetsProcessor == null) {
-                                    packetsProcessor =
-                                            new PacketsProcessor(OutgoingSessionPromise.this, domain);
-                                    packetsProcessors.put(domain, packetsProcessor);
-                                    newProcessor = true;
-                                }
-                                packetsProcessor.addPacket(packet);
-                            }
-
-                            if (newProcessor) {
-                                // Process the packet in another thread
-                                threadPool.execute(packetsProcessor);
-                            }
-                        }
-                        else {
-                            // No threads are available so take a nap :)
-                            Thread.sleep(200);
-                        }
-                    }
-                    catch (InterruptedException e) {
-                        // Do nothing
-                    }
-                    catch (Exception e) {
-                        Log.error(e.getMessage(), e);
+                long now = System.currentTimeMillis();
+                for (PacketsProcessor processor : packetsProcessors.values()) {
+                    if (now - processor.getLastActivity() > IDLE_TIMEOUT && processor.close()) {
+                        packetsProcessors.remove(processor.getDomain(), processor);
                     }
                 }
             }
-        }, "Queued Packets Processor");
-        thread.setDaemon(true);
-        thread.start();
+        };
+        TaskEngine.getInstance().schedule(cleanupTask, IDLE_TIMEOUT, IDLE_TIMEOUT);
 
+        addStatistics();
     }
 
     public static OutgoingSessionPromise getInstance() {
@@ -167,12 +179,14 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
     }
 
     /**
-     * Shuts down the thread that consumes the queued packets and also stops the pool
-     * of threads that actually send the packets to the remote servers.
+     * Stops the pool of threads that actually send the packets to the remote servers.
      */
     public void shutdown() {
         threadPool.shutdown();
-        shutdown = true;
+        cleanupTask.cancel();
+        StatisticsManager.getInstance().removeStatistic(queueSizeStatKey);
+        StatisticsManager.getInstance().removeStatistic(overflowStatKey);
+        StatisticsManager.getInstance().removeStatistic(connectTimeStatKey);
     }
 
     public JID getAddress() {
@@ -181,26 +195,116 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
     }
 
     public void process(Packet packet) {
-        // Queue the packet. Another process will process the queued packets.
-        packets.add(packet.createCopy());
-    }
-
-    private void processorDone(PacketsProcessor packetsProcessor) {
-        synchronized(packetsProcessor.getDomain().intern()) {
-            if (packetsProcessor.isDone()) {
-                packetsProcessors.remove(packetsProcessor.getDomain());
+        // Queue the packet. A thread of the pool will process the queued packets.
+        Packet copy = packet.createCopy();
+        String domain = packet.getTo().getDomain();
+        while (true) {
+            PacketsProcessor packetsProcessor = packetsProcessors.get(domain);
+            if (packetsProcessor == null) {
+                packetsProcessor = new PacketsProcessor(this, domain);
+                PacketsProcessor existing = packetsProcessors.putIfAbsent(domain, packetsProcessor);
+                if (existing != null) {
+                    packetsProcessor = existing;
+                }
+                else {
+                    // Look up the remote server while the packet waits for a thread
+                    DNSUtil.prefetchXMPPDomain(domain);
+                }
             }
-            else {
-                threadPool.execute(packetsProcessor);
+            if (packetsProcessor.addPacket(copy)) {
+                return;
             }
+            // The processor was discarded after being idle, so use a new one
+            packetsProcessors.remove(domain, packetsProcessor);
         }
     }
 
+    /**
+     * Returns the remote domains that have a queue of packets.
+     *
+     * @return the remote domains that have a queue of packets.
+     */
+    public Collection<String> getQueuedDomains() {
+        return Collections.unmodifiableCollection(packetsProcessors.keySet());
+    }
+
+    /**
+     * Returns the number of packets waiting to be sent to a remote domain.
+     *
+     * @param domain the remote domain.
+     * @return the number of packets waiting to be sent to the domain.
+     */
+    public int getQueueSize(String domain) {
+        PacketsProcessor packetsProcessor = packetsProcessors.get(domain);
+        return packetsProcessor == null ? 0 : packetsProcessor.getQueueSize();
+    }
+
+    /**
+     * Returns the time in milliseconds that it took to create the last outgoing session to
+     * a remote domain, or -1 if no session was created while the domain had a queue.
+     *
+     * @param domain the remote domain.
+     * @return the time in milliseconds that it took to create the last outgoing session.
+     */
+    public long getConnectTime(String domain) {
+        PacketsProcessor packetsProcessor = packetsProcessors.get(domain);
+        return packetsProcessor == null ? -1 : packetsProcessor.getConnectTime();
+    }
+
+    private void addStatistics() {
+        StatisticsManager.getInstance().addStatistic(queueSizeStatKey,
+                new i18nStatistic("s2s.queue.size", Statistic.Type.count) {
+                    public double sample() {
+                        int size = 0;
+                        for (PacketsProcessor processor : packetsProcessors.values()) {
+                            size += processor.getQueueSize();
+                        }
+                        return size;
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic(overflowStatKey,
+                new i18nStatistic("s2s.queue.overflow", Statistic.Type.rate) {
+                    public double sample() {
+                        return overflows.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic(connectTimeStatKey,
+                new i18nStatistic("s2s.connect_time", Statistic.Type.count) {
+                    public double sample() {
+                        long count = connects.getAndSet(0);
+                        long time = connectTime.getAndSet(0);
+                        return count == 0 ? 0 : (double) time / count;
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
+    }
+
     private class PacketsProcessor implements Runnable {
 
         private OutgoingSessionPromise promise;
         private String domain;
-        private Queue<Packet> packetQueue = new ConcurrentLinkedQueue<Packet>();
+        private LinkedBlockingQueue<Packet> packetQueue;
+        /**
+         * True while the processor is queued in or run by the thread pool.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        /**
+         * True once the processor was discarded. Guarded by this.
+         */
+        private boolean closed = false;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private volatile long lastConnectTime = -1;
         /**
          * Keep track of the last time s2s failed. Once a packet failed to be sent to a
          * remote server this stamp will be used so that for the next 5 seconds future packets
@@ -214,41 +318,67 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
         public PacketsProcessor(OutgoingSessionPromise promise, String domain) {
             this.promise = promise;
             this.domain = domain;
+            packetQueue = new LinkedBlockingQueue<Packet>(
+                    JiveGlobals.getIntProperty(ConnectionSettings.Server.QUEUE_DOMAIN_SIZE, 1000));
         }
 
         public void run() {
-            while (!isDone()) {
-                Packet packet = packetQueue.poll();
-                if (packet != null) {
-                    // Check if s2s already failed
-                    if (failureTimestamp > 0) {
-                        // Check if enough time has passed to attempt a new s2s
-                        if (System.currentTimeMillis() - failureTimestamp < 5000) {
-                            returnErrorToSender(packet);
-                            Log.debug(
-                                    "OutgoingSessionPromise: Error sending packet to remote server (fast discard): " +
-                                            packet);
-                            continue;
-                        }
-                        else {
-                            // Reset timestamp of last failure since we are ready to try again doing a s2s
-                            failureTimestamp = -1;
-                        }
-                    }
-                    try {
-                        sendPacket(packet);
-                    }
-                    catch (Exception e) {
+            try {
+                sendPackets();
+            }
+            finally {
+                scheduled.set(false);
+                // A packet may have been queued after the last poll and before the flag was cleared
+                if (!packetQueue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+        private void sendPackets() {
+            int sent = 0;
+            Packet packet;
+            while (sent++ < BATCH_SIZE && (packet = packetQueue.poll()) != null) {
+                lastActivity = System.currentTimeMillis();
+                // Check if s2s already failed
+                if (failureTimestamp > 0) {
+                    // Check if enough time has passed to attempt a new s2s
+                    if (System.currentTimeMillis() - failureTimestamp < 5000) {
                         returnErrorToSender(packet);
                         Log.debug(
-                                "OutgoingSessionPromise: Error sending packet to remote server: " + packet,
-                                e);
-                        // Mark the time when s2s failed
-                        failureTimestamp = System.currentTimeMillis();
+                                "OutgoingSessionPromise: Error sending packet to remote server (fast discard): " +
+                                        packet);
+                        continue;
+                    }
+                    else {
+                        // Reset timestamp of last failure since we are ready to try again doing a s2s
+                        failureTimestamp = -1;
                     }
                 }
+                try {
+                    sendPacket(packet);
+                }
+                catch (Exception e) {
+                    returnErrorToSender(packet);
+                    Log.debug(
+                            "OutgoingSessionPromise: Error sending packet to remote server: " + packet,
+                            e);
+                    // Mark the time when s2s failed
+                    failureTimestamp = System.currentTimeMillis();
+                }
+            }
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                try {
+                    promise.threadPool.execute(this);
+                }
+                catch (RejectedExecutionException e) {
+                    // The pool was shut down
+                    scheduled.set(false);
+                }
             }
-            promise.processorDone(this);
         }
 
         private void sendPacket(Packet packet) throws Exception {
@@ -257,6 +387,8 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
             // Make sure that only one cluster node is creating the outgoing connection
             // TODO: Evaluate why removing the oss part causes nasty s2s and lockup issues.
             Lock lock = CacheFactory.getLock(domain+"oss", serversCache);
+            boolean connecting = !routingTable.hasServerRoute(packet.getTo());
+            long start = System.currentTimeMillis();
             try {
                 lock.lock();
                 created = LocalOutgoingServerSession
@@ -264,6 +396,11 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
             } finally {
                 lock.unlock();
             }
+            if (created && connecting) {
+                lastConnectTime = System.currentTimeMillis() - start;
+                promise.connectTime.addAndGet(lastConnectTime);
+                promise.connects.incrementAndGet();
+            }
             if (created) {
                 if (!routingTable.hasServerRoute(packet.getTo())) {
                     throw new Exception("Route created but not found!!!");
@@ -277,6 +414,10 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
         }
 
         private void returnErrorToSender(Packet packet) {
+            returnErrorToSender(packet, PacketError.Condition.remote_server_not_found);
+        }
+
+        private void returnErrorToSender(Packet packet, PacketError.Condition condition) {
             XMPPServer server = XMPPServer.getInstance();
             JID from = packet.getFrom();
             JID to = packet.getTo();
@@ -296,7 +437,7 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
                     reply.setTo(from);
                     reply.setFrom(to);
                     reply.setChildElement(((IQ) packet).getChildElement().createCopy());
-                    reply.setError(PacketError.Condition.remote_server_not_found);
+                    reply.setError(condition);
                     routingTable.routePacket(reply.getTo(), reply, true);
                 }
                 else if (packet instanceof Presence) {
@@ -314,7 +455,7 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
 	                    reply.setID(packet.getID());
 	                    reply.setTo(route);
 	                    reply.setFrom(to);
-	                    reply.setError(PacketError.Condition.remote_server_not_found);
+	                    reply.setError(condition);
 	                    routingTable.routePacket(reply.getTo(), reply, true);
                 	}
                 }
@@ -325,7 +466,7 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
                     reply.setFrom(to);
                     reply.setType(((Message)packet).getType());
                     reply.setThread(((Message)packet).getThread());
-                    reply.setError(PacketError.Condition.remote_server_not_found);
+                    reply.setError(condition);
                     routingTable.routePacket(reply.getTo(), reply, true);
                 }
             }
@@ -334,16 +475,63 @@ public class OutgoingSessionPromise implements RoutableChannelHandler {
             }
         }
 
-        public void addPacket(Packet packet) {
-            packetQueue.add(packet);
+        /**
+         * Queues a packet for the domain. If the queue is full the packet is returned to its
+         * sender or dropped.
+         *
+         * @param packet the packet to queue.
+         * @return false if the processor was discarded and the packet was not queued.
+         */
+        public boolean addPacket(Packet packet) {
+            boolean queued;
+            synchronized (this) {
+                if (closed) {
+                    return false;
+                }
+                queued = packetQueue.offer(packet);
+            }
+            if (queued) {
+                schedule();
+            }
+            else {
+                promise.overflows.incrementAndGet();
+                if ("drop".equals(JiveGlobals.getProperty(ConnectionSettings.Server.QUEUE_OVERFLOW))) {
+                    Log.debug("OutgoingSessionPromise: Queue of " + domain + " is full, dropping packet: " + packet);
+                }
+                else {
+                    Log.debug("OutgoingSessionPromise: Queue of " + domain + " is full, bouncing packet: " + packet);
+                    returnErrorToSender(packet, PacketError.Condition.resource_constraint);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Discards the processor if it has no queued packets.
+         *
+         * @return true if the processor was discarded.
+         */
+        public synchronized boolean close() {
+            if (packetQueue.isEmpty() && !scheduled.get()) {
+                closed = true;
+            }
+            return closed;
         }
 
         public String getDomain() {
             return domain;
         }
 
-        public boolean isDone() {
-            return packetQueue.isEmpty();
+        public int getQueueSize() {
+            return packetQueue.size();
+        }
+
+        public long getLastActivity() {
+            return lastActivity;
+        }
+
+        public long getConnectTime() {
+            return lastConnectTime;
         }
     }
 }
@@ -41,6 +41,8 @@ public final class ConnectionSettings {
 
         public static final String QUEUE_MAX_THREADS = "xmpp.server.outgoing.max.threads";
         public static final String QUEUE_SIZE = "xmpp.server.outgoing.queue";
+        public static final String QUEUE_DOMAIN_SIZE = "xmpp.server.outgoing.queue.domain";
+        public static final String QUEUE_OVERFLOW = "xmpp.server.outgoing.queue.overflow";
 
         public static final String DIALBACK_ENABLED = "xmpp.server.dialback.enabled";
         public static final String TLS_ENABLED = "xmpp.server.tls.enabled";
@@ -32,6 +32,9 @@ import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -79,6 +82,8 @@ import org.jivesoftware.openfire.net.StalledSessionsFilter;
 import org.jivesoftware.openfire.nio.ClientConnectionHandler;
 import org.jivesoftware.openfire.nio.ComponentConnectionHandler;
 import org.jivesoftware.openfire.nio.MultiplexerConnectionHandler;
+import org.jivesoftware.openfire.nio.QueueWaitTracker;
+import org.jivesoftware.openfire.nio.SessionOrderedExecutor;
 import org.jivesoftware.openfire.nio.XMPPCodecFactory;
 import org.jivesoftware.openfire.session.ConnectionSettings;
 import org.jivesoftware.util.CertificateEventListener;
@@ -239,12 +244,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
             // Create SocketAcceptor with correct number of processors
             multiplexerSocketAcceptor = buildSocketAcceptor(MULTIPLEXER_SOCKET_ACCEPTOR_NAME);
             // Customize Executor that will be used by processors to process incoming stanzas
-            int maxPoolSize = JiveGlobals.getIntProperty("xmpp.multiplex.processing.threads", 16);
-            ExecutorFilter executorFilter = new ExecutorFilter(getCorePoolSize(maxPoolSize), maxPoolSize, 60, TimeUnit.SECONDS);
-            ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)executorFilter.getExecutor();
-            ThreadFactory threadFactory = eventExecutor.getThreadFactory();
-            threadFactory = new DelegatingThreadFactory("Multiplexer-Thread-", threadFactory);
-            eventExecutor.setThreadFactory(threadFactory);
+            ExecutorFilter executorFilter = buildExecutorFilter(MULTIPLEXER_SOCKET_ACCEPTOR_NAME, "xmpp.multiplex.processing.threads", "Multiplexer-Thread-");
             multiplexerSocketAcceptor.getFilterChain().addFirst(EXECUTOR_FILTER_NAME, executorFilter);
             // Add the XMPP codec filter
             multiplexerSocketAcceptor.getFilterChain().addAfter(EXECUTOR_FILTER_NAME, XMPP_CODEC_FILTER_NAME, new ProtocolCodecFilter(new XMPPCodecFactory()));
@@ -287,6 +287,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     private void stopConnectionManagerListener() {
         if (multiplexerSocketAcceptor != null) {
             multiplexerSocketAcceptor.unbind();
+            shutdownExecutor(multiplexerSocketAcceptor);
             for (ServerPort port : ports) {
                 if (port.isConnectionManagerPort()) {
                     ports.remove(port);
@@ -302,12 +303,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         if (isComponentListenerEnabled() && componentAcceptor == null) {
             // Create SocketAcceptor with correct number of processors
             componentAcceptor = buildSocketAcceptor(COMPONENT_SOCKET_ACCEPTOR_NAME);
-            int maxPoolSize = JiveGlobals.getIntProperty("xmpp.component.processing.threads", 16);
-            ExecutorFilter executorFilter = new ExecutorFilter(getCorePoolSize(maxPoolSize), maxPoolSize, 60, TimeUnit.SECONDS);
-            ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)executorFilter.getExecutor();
-            ThreadFactory threadFactory = eventExecutor.getThreadFactory();
-            threadFactory = new DelegatingThreadFactory("Component-Thread-", threadFactory);
-            eventExecutor.setThreadFactory(threadFactory);
+            ExecutorFilter executorFilter = buildExecutorFilter(COMPONENT_SOCKET_ACCEPTOR_NAME, "xmpp.component.processing.threads", "Component-Thread-");
             componentAcceptor.getFilterChain().addFirst(EXECUTOR_FILTER_NAME, executorFilter);
             // Add the XMPP codec filter
             componentAcceptor.getFilterChain().addAfter(EXECUTOR_FILTER_NAME, XMPP_CODEC_FILTER_NAME, new ProtocolCodecFilter(new XMPPCodecFactory()));
@@ -349,6 +345,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     private void stopComponentListener() {
         if (componentAcceptor != null) {
             componentAcceptor.unbind();
+            shutdownExecutor(componentAcceptor);
             for (ServerPort port : ports) {
                 if (port.isComponentPort()) {
                     ports.remove(port);
@@ -365,12 +362,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
             // Create SocketAcceptor with correct number of processors
             socketAcceptor = buildSocketAcceptor(CLIENT_SOCKET_ACCEPTOR_NAME);
             // Customize Executor that will be used by processors to process incoming stanzas
-            int maxPoolSize = JiveGlobals.getIntProperty(ConnectionSettings.Client.MAX_THREADS, 16);
-            ExecutorFilter executorFilter = new ExecutorFilter(getCorePoolSize(maxPoolSize), maxPoolSize, 60, TimeUnit.SECONDS);
-            ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)executorFilter.getExecutor();
-            ThreadFactory threadFactory = eventExecutor.getThreadFactory();
-            threadFactory = new DelegatingThreadFactory("C2S-Thread-", threadFactory);
-            eventExecutor.setThreadFactory(threadFactory);
+            ExecutorFilter executorFilter = buildExecutorFilter(CLIENT_SOCKET_ACCEPTOR_NAME, ConnectionSettings.Client.MAX_THREADS, "C2S-Thread-");
 
             // Add the XMPP codec filter
             socketAcceptor.getFilterChain().addFirst(EXECUTOR_FILTER_NAME, executorFilter);
@@ -419,6 +411,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     private void stopClientListeners() {
         if (socketAcceptor != null) {
             socketAcceptor.unbind();
+            shutdownExecutor(socketAcceptor);
             for (ServerPort port : ports) {
                 if (port.isClientPort() && !port.isSecure()) {
                     ports.remove(port);
@@ -436,12 +429,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
             String algorithm = JiveGlobals.getProperty(ConnectionSettings.Client.TLS_ALGORITHM, "TLS");
             try {
                 // Customize Executor that will be used by processors to process incoming stanzas
-                int maxPoolSize = JiveGlobals.getIntProperty(ConnectionSettings.Client.MAX_THREADS_SSL, 16);
-                ExecutorFilter executorFilter = new ExecutorFilter(getCorePoolSize(maxPoolSize), maxPoolSize, 60, TimeUnit.SECONDS);
-                ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)executorFilter.getExecutor();
-                ThreadFactory threadFactory = eventExecutor.getThreadFactory();
-                threadFactory = new DelegatingThreadFactory("LegacySSL-Thread-", threadFactory);
-                eventExecutor.setThreadFactory(threadFactory);
+                ExecutorFilter executorFilter = buildExecutorFilter(CLIENT_SSL_SOCKET_ACCEPTOR_NAME, ConnectionSettings.Client.MAX_THREADS_SSL, "LegacySSL-Thread-");
                 
                 // Create SocketAcceptor with correct number of processors
                 sslSocketAcceptor = buildSocketAcceptor(CLIENT_SSL_SOCKET_ACCEPTOR_NAME);
@@ -521,6 +509,7 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
     private void stopClientSSLListeners() {
         if (sslSocketAcceptor != null) {
             sslSocketAcceptor.unbind();
+            shutdownExecutor(sslSocketAcceptor);
             for (ServerPort port : ports) {
                 if (port.isClientPort() && port.isSecure()) {
                     ports.remove(port);
@@ -906,6 +895,62 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
 		return (maxPoolSize/4)+1;
 	}
 
+    /**
+     * Creates the filter that processes the events of the sessions of a listener. The
+     * processing mode of the listener is set by the property with the name of its threads
+     * property ending in <tt>mode</tt> instead of <tt>threads</tt> (e.g.
+     * <tt>xmpp.client.processing.mode</tt>). In <tt>pool</tt> mode, the default, all
+     * sessions share a pool of threads whose size is set by the threads property. In
+     * <tt>session</tt> mode every session with pending events gets its own thread, up to
+     * the number of threads set by the property ending in <tt>session.threads</tt>, so
+     * that sessions waiting on slow operations don't delay other sessions. In both modes
+     * the events of a session are processed in order.
+     *
+     * @param listener the name of the listener.
+     * @param threadsProperty the property that sets the size of the pool of threads.
+     * @param threadNamePrefix the prefix of the names of the processing threads.
+     * @return the filter that processes the events of the sessions of the listener.
+     */
+    private ExecutorFilter buildExecutorFilter(String listener, String threadsProperty, String threadNamePrefix) {
+        String propertyPrefix = threadsProperty.substring(0, threadsProperty.lastIndexOf('.') + 1);
+        // Keep track of the time that events wait for a processing thread
+        QueueWaitTracker queueWaitTracker = new QueueWaitTracker(listener);
+        queueWaitTracker.addStatistic();
+        if ("session".equals(JiveGlobals.getProperty(propertyPrefix + "mode", "pool"))) {
+            int maxThreads = JiveGlobals.getIntProperty(propertyPrefix + "session.threads", 1000);
+            ThreadFactory threadFactory = new DelegatingThreadFactory(threadNamePrefix, Executors.defaultThreadFactory());
+            return new ExecutorFilter(new SessionOrderedExecutor(maxThreads, threadFactory, queueWaitTracker));
+        }
+        int maxPoolSize = JiveGlobals.getIntProperty(threadsProperty, 16);
+        ExecutorFilter executorFilter = new ExecutorFilter(getCorePoolSize(maxPoolSize), maxPoolSize, 60,
+                TimeUnit.SECONDS, queueWaitTracker);
+        ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)executorFilter.getExecutor();
+        ThreadFactory threadFactory = eventExecutor.getThreadFactory();
+        threadFactory = new DelegatingThreadFactory(threadNamePrefix, threadFactory);
+        eventExecutor.setThreadFactory(threadFactory);
+        return executorFilter;
+    }
+
+    /**
+     * Stops the threads that process the events of the sessions of an acceptor. Events
+     * that were already queued are still processed.
+     *
+     * @param acceptor the acceptor that was unbound.
+     */
+    private void shutdownExecutor(NioSocketAcceptor acceptor) {
+        ExecutorFilter executorFilter = (ExecutorFilter) acceptor.getFilterChain().get(EXECUTOR_FILTER_NAME);
+        if (executorFilter == null) {
+            return;
+        }
+        Executor executor = executorFilter.getExecutor();
+        if (executor instanceof SessionOrderedExecutor) {
+            ((SessionOrderedExecutor) executor).shutdown();
+        }
+        else if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
 	// #####################################################################
     // Module management
     // #####################################################################
@@ -927,6 +972,10 @@ public class ConnectionManagerImpl extends BasicModule implements ConnectionMana
         stopComponentListener();
         stopConnectionManagerListener();
         stopServerListener();
+        QueueWaitTracker.removeStatistic(CLIENT_SOCKET_ACCEPTOR_NAME);
+        QueueWaitTracker.removeStatistic(CLIENT_SSL_SOCKET_ACCEPTOR_NAME);
+        QueueWaitTracker.removeStatistic(COMPONENT_SOCKET_ACCEPTOR_NAME);
+        QueueWaitTracker.removeStatistic(MULTIPLEXER_SOCKET_ACCEPTOR_NAME);
         HttpBindManager.getInstance().stop();
         SocketSendingTracker.getInstance().shutdown();
         CertificateManager.removeListener(this);
@@ -0,0 +1,187 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.spi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.openfire.session.ClientSession;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Presence;
+
+/**
+ * Sessions of a user in the order used to deliver messages sent to the bare JID of the
+ * user. Available sessions are sorted by presence priority (highest first) and then by show
+ * value, so that {@link RoutingTableImpl} can find the sessions that should get a message
+ * without sorting them for every message. Plans are created when a message is sent to a
+ * user and discarded every time a session of the user is added, removed or changes its
+ * presence.<p>
+ *
+ * The priority and show value of each session are captured when the plan is created. The
+ * state that changes without a presence update, like the last activity of a session or
+ * whether it has been initialized, is read when a message is delivered.
+ *
+ * @see RoutingTableImpl#routeToSessions(List, Message, boolean, boolean, boolean)
+ */
+class DeliveryPlan {
+
+    /**
+     * Sorts sessions by priority (highest first) and then by show value.
+     */
+    private static final Comparator<ClientSession> PLAN_ORDER = new Comparator<ClientSession>() {
+        public int compare(ClientSession o1, ClientSession o2) {
+            int priority1 = o1.getPresence().getPriority();
+            int priority2 = o2.getPresence().getPriority();
+            if (priority1 != priority2) {
+                return priority1 > priority2 ? -1 : 1;
+            }
+            int show1 = getShowValue(o1.getPresence().getShow());
+            int show2 = getShowValue(o2.getPresence().getShow());
+            return (show1<show2 ? -1 : (show1==show2 ? 0 : 1));
+        }
+    };
+
+    private final ClientSession[] sessions;
+    private final int[] priorities;
+    private final int[] showValues;
+    private final JID[] unavailableSessions;
+
+    DeliveryPlan(Collection<? extends ClientSession> userSessions) {
+        List<ClientSession> available = new ArrayList<ClientSession>(userSessions.size());
+        List<JID> unavailable = new ArrayList<JID>();
+        for (ClientSession session : userSessions) {
+            if (session.getPresence().isAvailable()) {
+                available.add(session);
+            }
+            else {
+                unavailable.add(session.getAddress());
+            }
+        }
+        sessions = available.toArray(new ClientSession[available.size()]);
+        Arrays.sort(sessions, PLAN_ORDER);
+        priorities = new int[sessions.length];
+        showValues = new int[sessions.length];
+        for (int i = 0; i < sessions.length; i++) {
+            Presence presence = sessions[i].getPresence();
+            priorities[i] = presence.getPriority();
+            showValues[i] = getShowValue(presence.getShow());
+        }
+        unavailableSessions = unavailable.toArray(new JID[unavailable.size()]);
+    }
+
+    /**
+     * Priorities are: chat, available, away, xa, dnd.
+     */
+    static int getShowValue(Presence.Show show) {
+        if (show == Presence.Show.chat) {
+            return 1;
+        }
+        else if (show == null) {
+            return 2;
+        }
+        else if (show == Presence.Show.away) {
+            return 3;
+        }
+        else if (show == Presence.Show.xa) {
+            return 4;
+        }
+        else {
+            return 5;
+        }
+    }
+
+    /**
+     * Returns the addresses of the sessions of the user that are not available. These sessions
+     * are not part of the plan but may still receive messages from entities they have sent
+     * directed presences to.
+     *
+     * @return the addresses of the sessions of the user that are not available.
+     */
+    JID[] getUnavailableSessions() {
+        return unavailableSessions;
+    }
+
+    /**
+     * Delivers a message sent to the bare JID of the user. The message is delivered the same
+     * way {@link RoutingTableImpl#routeToSessions(List, Message, boolean, boolean, boolean)}
+     * does with the initialized available sessions of the user.
+     *
+     * @param packet the message to deliver.
+     * @param isPrivate true if the message must not be copied to message carbons enabled sessions.
+     * @param reallyAllResources true if every session with non-negative priority should get the message.
+     * @param allResources true if every session with the highest priority should get the message.
+     * @return false if no session with non-negative priority was found.
+     */
+    boolean deliver(Message packet, boolean isPrivate, boolean reallyAllResources, boolean allResources) {
+        // Sessions with non-negative priority are at the beginning of the plan
+        int first = -1;
+        for (int i = 0; i < sessions.length && priorities[i] >= 0; i++) {
+            ClientSession session = sessions[i];
+            if (!session.isInitialized()) {
+                continue;
+            }
+            if (first < 0) {
+                first = i;
+            }
+            // Deliver to each session, if is message carbons enabled or if property
+            // route.really-all-resources is true (in case client does not support carbons)
+            if (RoutingTableImpl.shouldCarbonCopyToResource(session, packet, isPrivate) || reallyAllResources) {
+                session.process(packet);
+            }
+        }
+        if (first < 0) {
+            return false;
+        }
+
+        // The sessions with the highest priority follow the first initialized session. Among
+        // them, look for the one with the best show value and most recent activity
+        ClientSession target = null;
+        Date targetActivity = null;
+        for (int i = first; i < sessions.length && priorities[i] == priorities[first]; i++) {
+            ClientSession session = sessions[i];
+            if (!session.isInitialized()) {
+                continue;
+            }
+            if (allResources) {
+                // Make sure, we don't send the packet again, if it has already been sent by message carbons.
+                if (!RoutingTableImpl.shouldCarbonCopyToResource(session, packet, isPrivate)) {
+                    session.process(packet);
+                }
+            }
+            else if (showValues[i] == showValues[first]) {
+                Date activity = session.getLastActiveDate();
+                if (target == null || activity.compareTo(targetActivity) > 0) {
+                    target = session;
+                    targetActivity = activity;
+                }
+            }
+        }
+        if (target != null) {
+            // Make sure, we don't send the packet again, if it has already been sent by message carbons.
+            if (!RoutingTableImpl.shouldCarbonCopyToResource(target, packet, isPrivate)) {
+                // Deliver stanza to session with highest priority, highest show value and most recent activity
+                target.process(packet);
+            }
+        }
+        return true;
+    }
+}
@@ -34,8 +34,12 @@ import org.jivesoftware.openfire.forward.Forwarded;
 import org.jivesoftware.openfire.handler.PresenceUpdateHandler;
 import org.jivesoftware.openfire.server.OutgoingSessionPromise;
 import org.jivesoftware.openfire.session.*;
+import org.jivesoftware.openfire.user.PresenceEventDispatcher;
+import org.jivesoftware.openfire.user.PresenceEventListener;
 import org.jivesoftware.util.ConcurrentHashSet;
 import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.PropertyEventDispatcher;
+import org.jivesoftware.util.PropertyEventListener;
 import org.jivesoftware.util.cache.Cache;
 import org.jivesoftware.util.cache.CacheFactory;
 import org.slf4j.Logger;
@@ -43,6 +47,9 @@ import org.slf4j.LoggerFactory;
 import org.xmpp.packet.*;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 
 /**
@@ -61,7 +68,7 @@ import java.util.concurrent.locks.Lock;
  *
  * @author Gaston Dombiak
  */
-public class RoutingTableImpl extends BasicModule implements RoutingTable, ClusterEventListener {
+public class RoutingTableImpl extends BasicModule implements RoutingTable, ClusterEventListener, PresenceEventListener {
 
 	private static final Logger Log = LoggerFactory.getLogger(RoutingTableImpl.class);
 	
@@ -71,6 +78,26 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
     public static final String COMPONENT_CACHE_NAME = "Routing Components Cache";
     public static final String C2S_SESSION_NAME = "Routing User Sessions";
 
+    /**
+     * Sorts sessions by show value (e.g. away, xa).
+     */
+    private static final Comparator<ClientSession> showComparator = new Comparator<ClientSession>() {
+        public int compare(ClientSession o1, ClientSession o2) {
+            int thisVal = DeliveryPlan.getShowValue(o1.getPresence().getShow());
+            int anotherVal = DeliveryPlan.getShowValue(o2.getPresence().getShow());
+            return (thisVal<anotherVal ? -1 : (thisVal==anotherVal ? 0 : 1));
+        }
+    };
+
+    /**
+     * Sorts sessions by last activity (most recent first).
+     */
+    private static final Comparator<ClientSession> lastActivityComparator = new Comparator<ClientSession>() {
+        public int compare(ClientSession o1, ClientSession o2) {
+            return o2.getLastActiveDate().compareTo(o1.getLastActiveDate());
+        }
+    };
+
     /**
      * Cache (unlimited, never expire) that holds outgoing sessions to remote servers from this server.
      * Key: server domain, Value: nodeID
@@ -97,6 +124,21 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
      * Key: bare JID, Value: list of full JIDs of the user
      */
     private Cache<String, Collection<String>> usersSessions;
+    /**
+     * Delivery plans of local users that received messages sent to their bare JID. Plans are
+     * not used when running in a cluster.
+     * Key: bare JID, Value: sessions of the user sorted by priority and show value
+     */
+    private final ConcurrentMap<String, DeliveryPlan> deliveryPlans = new ConcurrentHashMap<String, DeliveryPlan>();
+    /**
+     * Number of times that sessions were modified. Used to detect changes while creating a plan.
+     */
+    private final AtomicLong deliveryPlanModifications = new AtomicLong();
+    /**
+     * Values of the route.really-all-resources and route.all-resources properties.
+     */
+    private volatile boolean reallyAllResources;
+    private volatile boolean allResources;
 
     private String serverName;
     private XMPPServer server;
@@ -205,6 +247,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 }
             }
         }
+        invalidateDeliveryPlan(route);
         return added;
     }
 
@@ -526,6 +569,16 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
      * @return true if at least one target session was found
      */
     private boolean routeToBareJID(JID recipientJID, Message packet, boolean isPrivate) {
+        DeliveryPlan plan = getDeliveryPlan(recipientJID, packet.getFrom());
+        if (plan != null) {
+            if (!plan.deliver(packet, isPrivate, reallyAllResources, allResources)) {
+                // No session is available so store offline
+                Log.debug("Unable to route packet. No session is available so store offline. {} ", packet.toXML());
+                return false;
+            }
+            return true;
+        }
+
         List<ClientSession> sessions = new ArrayList<ClientSession>();
         // Get existing AVAILABLE sessions of this user or AVAILABLE to the sender of the packet
         for (JID address : getRoutes(recipientJID, packet.getFrom())) {
@@ -534,7 +587,24 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 sessions.add(session);
             }
         }
+        return routeToSessions(sessions, packet, isPrivate, reallyAllResources, allResources);
+    }
 
+    /**
+     * Delivers a message sent to the bare JID of a user to the sessions of the user that should
+     * get it. Sessions with message carbons enabled get a copy of the message. Otherwise the
+     * message is delivered to the session with highest priority, highest show value and most
+     * recent activity unless the <tt>route.all-resources</tt> property is true.
+     *
+     * @param sessions the initialized sessions of the user that are available to the sender.
+     * @param packet the message to deliver.
+     * @param isPrivate true if the message must not be copied to message carbons enabled sessions.
+     * @param reallyAllResources true if every session with non-negative priority should get the message.
+     * @param allResources true if every session with the highest priority should get the message.
+     * @return false if no session with non-negative priority was found.
+     */
+    static boolean routeToSessions(List<ClientSession> sessions, Message packet, boolean isPrivate,
+            boolean reallyAllResources, boolean allResources) {
         // Get the sessions with non-negative priority for message carbons processing.
         List<ClientSession> nonNegativePrioritySessions = getNonNegativeSessions(sessions, 0);
 
@@ -551,7 +621,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 session.process(packet);
             // Deliver to each session if property route.really-all-resources is true
             // (in case client does not support carbons)
-            } else if (JiveGlobals.getBooleanProperty("route.really-all-resources", false)) {
+            } else if (reallyAllResources) {
                 session.process(packet);
             }
         }
@@ -567,38 +637,9 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         }
         else {
             // Many sessions have the highest priority (be smart now) :)
-            if (!JiveGlobals.getBooleanProperty("route.all-resources", false)) {
+            if (!allResources) {
                 // Sort sessions by show value (e.g. away, xa)
-                Collections.sort(highestPrioritySessions, new Comparator<ClientSession>() {
-
-                    public int compare(ClientSession o1, ClientSession o2) {
-                        int thisVal = getShowValue(o1);
-                        int anotherVal = getShowValue(o2);
-                        return (thisVal<anotherVal ? -1 : (thisVal==anotherVal ? 0 : 1));
-                    }
-
-                    /**
-                     * Priorities are: chat, available, away, xa, dnd.
-                     */
-                    private int getShowValue(ClientSession session) {
-                        Presence.Show show = session.getPresence().getShow();
-                        if (show == Presence.Show.chat) {
-                            return 1;
-                        }
-                        else if (show == null) {
-                            return 2;
-                        }
-                        else if (show == Presence.Show.away) {
-                            return 3;
-                        }
-                        else if (show == Presence.Show.xa) {
-                            return 4;
-                        }
-                        else {
-                            return 5;
-                        }
-                    }
-                });
+                Collections.sort(highestPrioritySessions, showComparator);
 
                 // Get same sessions with same max show value
                 List<ClientSession> targets = new ArrayList<ClientSession>();
@@ -613,11 +654,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
                 }
 
                 // Get session with most recent activity (and highest show value)
-                Collections.sort(targets, new Comparator<ClientSession>() {
-                    public int compare(ClientSession o1, ClientSession o2) {
-                        return o2.getLastActiveDate().compareTo(o1.getLastActiveDate());
-                    }
-                });
+                Collections.sort(targets, lastActivityComparator);
 
                 // Make sure, we don't send the packet again, if it has already been sent by message carbons.
                 ClientSession session = targets.get(0);
@@ -638,7 +675,64 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         return true;
     }
 
-    private boolean shouldCarbonCopyToResource(ClientSession session, Message message, boolean isPrivate) {
+    /**
+     * Returns the delivery plan of a local user, creating it if needed. No plan is returned
+     * when running in a cluster, when some session of the user is hosted by another cluster
+     * node, or when an unavailable session of the user has sent a directed presence to the
+     * sender of the message. The sessions of the user have to be looked up in those cases.
+     *
+     * @param recipientJID the bare JID of the user.
+     * @param requester the sender of the message.
+     * @return the delivery plan of the user or null if none can be used.
+     */
+    private DeliveryPlan getDeliveryPlan(JID recipientJID, JID requester) {
+        if (ClusterManager.isClusteringStarted()) {
+            return null;
+        }
+        String bareJID = recipientJID.toBareJID();
+        DeliveryPlan plan = deliveryPlans.get(bareJID);
+        if (plan == null) {
+            long modifications = deliveryPlanModifications.get();
+            Collection<String> jids = usersSessions.get(bareJID);
+            if (jids == null) {
+                return null;
+            }
+            List<ClientSession> sessions = new ArrayList<ClientSession>(jids.size());
+            for (String jid : jids) {
+                RoutableChannelHandler route = localRoutingTable.getRoute(jid);
+                if (!(route instanceof LocalClientSession)) {
+                    return null;
+                }
+                sessions.add((LocalClientSession) route);
+            }
+            plan = new DeliveryPlan(sessions);
+            deliveryPlans.put(bareJID, plan);
+            if (deliveryPlanModifications.get() != modifications) {
+                // Sessions were modified while the plan was created
+                deliveryPlans.remove(bareJID, plan);
+            }
+        }
+        // Unavailable sessions that sent a directed presence to the sender also get the message
+        for (JID address : plan.getUnavailableSessions()) {
+            if (presenceUpdateHandler.hasDirectPresence(address, requester)) {
+                return null;
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Discards the delivery plan of a user after one of its sessions was added, removed or
+     * changed its presence.
+     *
+     * @param route the address of the session that was modified.
+     */
+    private void invalidateDeliveryPlan(JID route) {
+        deliveryPlanModifications.incrementAndGet();
+        deliveryPlans.remove(route.toBareJID());
+    }
+
+    static boolean shouldCarbonCopyToResource(ClientSession session, Message message, boolean isPrivate) {
         return !isPrivate && session.isMessageCarbonsEnabled() && message.getType() == Message.Type.chat;
     }
 
@@ -649,7 +743,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
      * @return the sessions that had the highest presence non-negative priority or empty collection
      *         if all were negative.
      */
-    private List<ClientSession> getHighestPrioritySessions(List<ClientSession> sessions) {
+    private static List<ClientSession> getHighestPrioritySessions(List<ClientSession> sessions) {
         int highest = Integer.MIN_VALUE;
         // Get the highest priority amongst the sessions
         for (ClientSession session : sessions) {
@@ -669,7 +763,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
      * @param min      The minimal priority.
      * @return The filtered sessions.
      */
-    private List<ClientSession> getNonNegativeSessions(List<ClientSession> sessions, int min) {
+    private static List<ClientSession> getNonNegativeSessions(List<ClientSession> sessions, int min) {
         if (min < 0) {
             return Collections.emptyList();
         }
@@ -879,6 +973,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
             }
         }
         localRoutingTable.removeRoute(address);
+        invalidateDeliveryPlan(route);
         return clientRoute != null;
     }
 
@@ -937,8 +1032,13 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         messageRouter = server.getMessageRouter();
         presenceRouter = server.getPresenceRouter();
         presenceUpdateHandler = server.getPresenceUpdateHandler();
+        reallyAllResources = JiveGlobals.getBooleanProperty("route.really-all-resources", false);
+        allResources = JiveGlobals.getBooleanProperty("route.all-resources", false);
+        PropertyEventDispatcher.addListener(new PropertyListener());
         // Listen to cluster events
         ClusterManager.addListener(this);
+        // Listen to presence changes that modify delivery plans
+        PresenceEventDispatcher.addListener(this);
     }
 
     @Override
@@ -955,6 +1055,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
 
     public void joinedCluster() {
         restoreCacheContent();
+        deliveryPlans.clear();
 
         // Broadcast presence of local sessions to remote sessions when subscribed to presence
         // Probe presences of remote sessions when subscribed to presence of local session
@@ -979,6 +1080,7 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
             // Add local sessions to caches
             restoreCacheContent();
         }
+        deliveryPlans.clear();
     }
 
     public void leftCluster(byte[] nodeID) {
@@ -1068,4 +1170,52 @@ public class RoutingTableImpl extends BasicModule implements RoutingTable, Clust
         }
     }
 
+    public void availableSession(ClientSession session, Presence presence) {
+        invalidateDeliveryPlan(session.getAddress());
+    }
+
+    public void unavailableSession(ClientSession session, Presence presence) {
+        invalidateDeliveryPlan(session.getAddress());
+    }
+
+    public void presenceChanged(ClientSession session, Presence presence) {
+        // Priority or show value may have changed
+        invalidateDeliveryPlan(session.getAddress());
+    }
+
+    public void subscribedToPresence(JID subscriberJID, JID authorizerJID) {
+        // Do nothing
+    }
+
+    public void unsubscribedToPresence(JID unsubscriberJID, JID recipientJID) {
+        // Do nothing
+    }
+
+    private class PropertyListener implements PropertyEventListener {
+        public void propertySet(String property, Map<String, Object> params) {
+            if ("route.really-all-resources".equals(property)) {
+                reallyAllResources = Boolean.valueOf((String) params.get("value"));
+            }
+            else if ("route.all-resources".equals(property)) {
+                allResources = Boolean.valueOf((String) params.get("value"));
+            }
+        }
+
+        public void propertyDeleted(String property, Map<String, Object> params) {
+            if ("route.really-all-resources".equals(property)) {
+                reallyAllResources = false;
+            }
+            else if ("route.all-resources".equals(property)) {
+                allResources = false;
+            }
+        }
+
+        public void xmlPropertySet(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+
+        public void xmlPropertyDeleted(String property, Map<String, Object> params) {
+            // Do nothing
+        }
+    }
 }
@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.user;
+
+import org.xmpp.packet.JID;
+
+/**
+ * Interface to listen for the result of checking whether a JID belongs to a registered
+ * user. Use {@link UserManager#checkRegisteredUser(JID, RegisteredUserListener)} to check a
+ * JID without waiting for the answer of the remote server.
+ */
+public interface RegisteredUserListener {
+
+    /**
+     * Notification message indicating whether a JID belongs to a registered user. The
+     * listener is invoked by the thread that checked the JID when the result was known, or
+     * by the thread that processed the answer of the remote server.
+     *
+     * @param user the checked JID.
+     * @param registered true if the JID belongs to a registered user. False if the user is
+     *        anonymous, does not exist or the remote server did not answer in time.
+     */
+    public void registrationChecked(JID user, boolean registered);
+}
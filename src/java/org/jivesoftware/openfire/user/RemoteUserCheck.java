@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.user;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * The result of checking whether a JID belongs to a registered user. Checks of remote users
+ * complete when the remote server answers the disco#info request or when the request times
+ * out. All the checks of the same bare JID that are requested while the request is pending
+ * share the same instance.
+ */
+class RemoteUserCheck implements Future<Boolean> {
+
+    private static final Logger Log = LoggerFactory.getLogger(RemoteUserCheck.class);
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Listener> listeners = new ArrayList<Listener>();
+    private volatile boolean registered;
+
+    private static class Listener {
+
+        final JID user;
+        final RegisteredUserListener listener;
+
+        Listener(JID user, RegisteredUserListener listener) {
+            this.user = user;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Returns a check that already completed.
+     *
+     * @param registered true if the user is registered.
+     * @return the completed check.
+     */
+    static RemoteUserCheck completed(boolean registered) {
+        RemoteUserCheck check = new RemoteUserCheck();
+        check.complete(registered);
+        return check;
+    }
+
+    /**
+     * Adds a listener that is invoked when the check completes. If the check already
+     * completed then the listener is invoked by the calling thread.
+     *
+     * @param user the JID to report to the listener.
+     * @param listener the listener to invoke.
+     */
+    void addListener(JID user, RegisteredUserListener listener) {
+        synchronized (listeners) {
+            if (!isDone()) {
+                listeners.add(new Listener(user, listener));
+                return;
+            }
+        }
+        notify(new Listener(user, listener));
+    }
+
+    /**
+     * Sets the result of the check and invokes the listeners. The first result wins.
+     *
+     * @param registered true if the user is registered.
+     */
+    void complete(boolean registered) {
+        List<Listener> toNotify;
+        synchronized (listeners) {
+            if (isDone()) {
+                return;
+            }
+            this.registered = registered;
+            done.countDown();
+            toNotify = new ArrayList<Listener>(listeners);
+            listeners.clear();
+        }
+        for (Listener listener : toNotify) {
+            notify(listener);
+        }
+    }
+
+    private void notify(Listener listener) {
+        try {
+            listener.listener.registrationChecked(listener.user, registered);
+        }
+        catch (Exception e) {
+            Log.error("Error notifying registration check of " + listener.user, e);
+        }
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public Boolean get() throws InterruptedException {
+        done.await();
+        return registered;
+    }
+
+    public Boolean get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return registered;
+    }
+}
@@ -28,6 +28,11 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.dom4j.Element;
 import org.jivesoftware.openfire.XMPPServer;
@@ -86,12 +91,21 @@ public class UserManager implements IQResultListener {
     private Cache<String, User> userCache;
     /** Cache if a local or remote user exists. */
     private Cache<String, Boolean> remoteUsersCache;
+    /** Cache of remote users that are not registered or that did not answer in time. */
+    private Cache<String, Boolean> remoteUnregisteredUsersCache;
+    /** Pending checks of remote users. Key: bare JID, Value: the check. */
+    private final ConcurrentMap<String, RemoteUserCheck> remoteUserChecks =
+            new ConcurrentHashMap<String, RemoteUserCheck>();
+    /** Bare JIDs of the pending checks of remote users. Key: IQ ID, Value: bare JID. */
+    private final ConcurrentMap<String, String> remoteUserCheckIDs =
+            new ConcurrentHashMap<String, String>();
     private UserProvider provider;
 
     private UserManager() {
         // Initialize caches.
         userCache = CacheFactory.createCache("User");
         remoteUsersCache = CacheFactory.createCache("Remote Users Existence");
+        remoteUnregisteredUsersCache = CacheFactory.createCache("Remote Users Non-existence");
 
         // Load a user provider.
         initProvider();
@@ -379,67 +393,115 @@ public class UserManager implements IQResultListener {
     /**
      * Returns true if the specified JID belongs to a local or remote registered user. For
      * remote users (i.e. domain does not match local domain) a disco#info request is going
-     * to be sent to the bare JID of the user.
+     * to be sent to the bare JID of the user and the calling thread waits for the answer.
+     * Threads that process packets should use
+     * {@link #checkRegisteredUser(JID, RegisteredUserListener)} instead.
      *
      * @param user to JID of the user to check it it's a registered user.
      * @return true if the specified JID belongs to a local or remote registered user.
      */
     public boolean isRegisteredUser(JID user) {
+        try {
+            return getRegisteredUserCheck(user).get(getRemoteUserCheckTimeout(), TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch (TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks if the specified JID belongs to a local or remote registered user without
+     * waiting for remote servers. For remote users a disco#info request is going to be sent
+     * to the bare JID of the user unless the result is cached or a request for the same bare
+     * JID is pending. Users that are not registered and users whose server did not answer
+     * within <tt>xmpp.user.remote.check.timeout</tt> milliseconds are cached separately, for
+     * a shorter time than registered users.
+     *
+     * @param user the JID of the user to check.
+     * @param listener the listener to invoke when the result is known, or <tt>null</tt>.
+     * @return the future result of the check.
+     */
+    public Future<Boolean> checkRegisteredUser(JID user, RegisteredUserListener listener) {
+        RemoteUserCheck check = getRegisteredUserCheck(user);
+        if (listener != null) {
+            check.addListener(user, listener);
+        }
+        return check;
+    }
+
+    private RemoteUserCheck getRegisteredUserCheck(JID user) {
+        if (XMPPServer.getInstance().isLocal(user)) {
+            return RemoteUserCheck.completed(isRegisteredUser(user.getNode()));
+        }
+        if (Boolean.TRUE.equals(remoteUsersCache.get(user.toBareJID()))) {
+            return RemoteUserCheck.completed(true);
+        }
+        if (remoteUnregisteredUsersCache.get(user.toBareJID()) != null) {
+            return RemoteUserCheck.completed(false);
+        }
+        return getRemoteUserCheck(user.toBareJID());
+    }
+
+    /**
+     * Returns the pending check of a remote user. A disco#info request is sent to the bare
+     * JID of the user if no check is pending.
+     */
+    private RemoteUserCheck getRemoteUserCheck(String bareJID) {
+        RemoteUserCheck check = remoteUserChecks.get(bareJID);
+        if (check != null) {
+            return check;
+        }
+        RemoteUserCheck newCheck = new RemoteUserCheck();
+        check = remoteUserChecks.putIfAbsent(bareJID, newCheck);
+        if (check != null) {
+            return check;
+        }
         XMPPServer server = XMPPServer.getInstance();
-        if (server.isLocal(user)) {
-            try {
-                getUser(user.getNode());
-                return true;
-            }
-            catch (UserNotFoundException e) {
-                return false;
-            }
+        // A disco#info is going to be sent to the bare JID of the user. This packet
+        // is going to be handled by the remote server.
+        IQ iq = new IQ(IQ.Type.get);
+        iq.setFrom(server.getServerInfo().getXMPPDomain());
+        iq.setTo(bareJID);
+        iq.setChildElement("query", "http://jabber.org/protocol/disco#info");
+        // Send the disco#info request to the remote server. The reply will be
+        // processed by the IQResultListener (interface that this class implements)
+        remoteUserCheckIDs.put(iq.getID(), bareJID);
+        server.getIQRouter().addIQResultListener(iq.getID(), this, getRemoteUserCheckTimeout());
+        server.getIQRouter().route(iq);
+        return newCheck;
+    }
+
+    private long getRemoteUserCheckTimeout() {
+        return JiveGlobals.getLongProperty("xmpp.user.remote.check.timeout", 60000);
+    }
+
+    /**
+     * Caches and reports the result of checking a remote user.
+     */
+    private void completeRemoteUserCheck(String bareJID, boolean registered) {
+        if (registered) {
+            remoteUsersCache.put(bareJID, Boolean.TRUE);
         }
         else {
-            // Look up in the cache using the full JID
-            Boolean isRegistered = remoteUsersCache.get(user.toString());
-            if (isRegistered == null) {
-                // Check if the bare JID of the user is cached
-                isRegistered = remoteUsersCache.get(user.toBareJID());
-                if (isRegistered == null) {
-                    // No information is cached so check user identity and cache it
-                    // A disco#info is going to be sent to the bare JID of the user. This packet
-                    // is going to be handled by the remote server.
-                    IQ iq = new IQ(IQ.Type.get);
-                    iq.setFrom(server.getServerInfo().getXMPPDomain());
-                    iq.setTo(user.toBareJID());
-                    iq.setChildElement("query", "http://jabber.org/protocol/disco#info");
-                    // Send the disco#info request to the remote server. The reply will be
-                    // processed by the IQResultListener (interface that this class implements)
-                    server.getIQRouter().addIQResultListener(iq.getID(), this);
-                    synchronized (user.toBareJID().intern()) {
-                        server.getIQRouter().route(iq);
-                        // Wait for the reply to be processed. Time out in 1 minute.
-                        try {
-                            user.toBareJID().intern().wait(60000);
-                        }
-                        catch (InterruptedException e) {
-                            // Do nothing
-                        }
-                    }
-                    // Get the discovered result
-                    isRegistered = remoteUsersCache.get(user.toBareJID());
-                    if (isRegistered == null) {
-                        // Disco failed for some reason (i.e. we timed out before getting a result)
-                        // so assume that user is not anonymous and cache result
-                        isRegistered = Boolean.FALSE;
-                        remoteUsersCache.put(user.toString(), isRegistered);
-                    }
-                }
-            }
-            return isRegistered;
+            remoteUnregisteredUsersCache.put(bareJID, Boolean.FALSE);
+        }
+        RemoteUserCheck check = remoteUserChecks.remove(bareJID);
+        if (check != null) {
+            check.complete(registered);
         }
     }
 
     public void receivedAnswer(IQ packet) {
-        JID from = packet.getFrom();
+        String bareJID = remoteUserCheckIDs.remove(packet.getID());
+        if (bareJID == null) {
+            bareJID = packet.getFrom().toBareJID();
+        }
         // Assume that the user is not a registered user
-        Boolean isRegistered = Boolean.FALSE;
+        boolean isRegistered = false;
         // Analyze the disco result packet
         if (IQ.Type.result == packet.getType()) {
             Element child = packet.getChildElement();
@@ -448,23 +510,23 @@ public class UserManager implements IQResultListener {
                     Element identity = (Element) it.next();
                     String accountType = identity.attributeValue("type");
                     if ("registered".equals(accountType) || "admin".equals(accountType)) {
-                        isRegistered = Boolean.TRUE;
+                        isRegistered = true;
                         break;
                     }
                 }
             }
         }
-        // Update cache of remote registered users
-        remoteUsersCache.put(from.toBareJID(), isRegistered);
-
-        // Wake up waiting thread
-        synchronized (from.toBareJID().intern()) {
-            from.toBareJID().intern().notifyAll();
-        }
+        // Update cache of remote registered users and wake up waiting checks
+        completeRemoteUserCheck(bareJID, isRegistered);
     }
 
     public void answerTimeout(String packetId) {
         Log.warn("An answer to a previously sent IQ stanza was never received. Packet id: " + packetId);
+        String bareJID = remoteUserCheckIDs.remove(packetId);
+        if (bareJID != null) {
+            // Disco failed for some reason so assume that user is not registered
+            completeRemoteUserCheck(bareJID, false);
+        }
     }
 
     private void initProvider() {
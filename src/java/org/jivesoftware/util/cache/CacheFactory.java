@@ -107,6 +107,7 @@ public class CacheFactory {
         cacheNames.put("Offline Presence Cache", "offlinePresence");
         cacheNames.put("Privacy Lists", "listsCache");
         cacheNames.put("Remote Users Existence", "remoteUsersCache");
+        cacheNames.put("Remote Users Non-existence", "remoteUnregisteredUsersCache");
         cacheNames.put("Roster", "username2roster");
         cacheNames.put("User", "userCache");
         cacheNames.put("Locked Out Accounts", "lockOutCache");
@@ -115,6 +116,9 @@ public class CacheFactory {
         cacheNames.put("File Transfer", "transferProxy");
         cacheNames.put("POP3 Authentication", "pop3");
         cacheNames.put("LDAP Authentication", "ldap");
+        cacheNames.put("LDAP UserDN", "ldapUserDN");
+        cacheNames.put("LDAP GroupDN", "ldapGroupDN");
+        cacheNames.put("LDAP Member Usernames", "ldapMemberUsernames");
         cacheNames.put("Routing Servers Cache", "routeServer");
         cacheNames.put("Routing Components Cache", "routeComponent");
         cacheNames.put("Routing Users Cache", "routeUser");
@@ -158,6 +162,12 @@ public class CacheFactory {
         cacheProps.put("cache.javascript.maxLifetime", 3600 * 24 * 10l);
         cacheProps.put("cache.ldap.size", 512 * 1024l);
         cacheProps.put("cache.ldap.maxLifetime", JiveConstants.HOUR * 2);
+        cacheProps.put("cache.ldapUserDN.size", 512 * 1024l);
+        cacheProps.put("cache.ldapUserDN.maxLifetime", JiveConstants.MINUTE * 15);
+        cacheProps.put("cache.ldapGroupDN.size", 128 * 1024l);
+        cacheProps.put("cache.ldapGroupDN.maxLifetime", JiveConstants.MINUTE * 15);
+        cacheProps.put("cache.ldapMemberUsernames.size", 512 * 1024l);
+        cacheProps.put("cache.ldapMemberUsernames.maxLifetime", JiveConstants.MINUTE * 15);
         cacheProps.put("cache.listsCache.size", 512 * 1024l);
         cacheProps.put("cache.offlinePresence.size", 512 * 1024l);
         cacheProps.put("cache.lastActivity.size", 128 * 1024l);
@@ -165,6 +175,8 @@ public class CacheFactory {
         cacheProps.put("cache.userCache.maxLifetime", JiveConstants.MINUTE * 30);
         cacheProps.put("cache.remoteUsersCache.size", 512 * 1024l);
         cacheProps.put("cache.remoteUsersCache.maxLifetime", JiveConstants.MINUTE * 30);
+        cacheProps.put("cache.remoteUnregisteredUsersCache.size", 128 * 1024l);
+        cacheProps.put("cache.remoteUnregisteredUsersCache.maxLifetime", JiveConstants.MINUTE * 5);
         cacheProps.put("cache.vcardCache.size", 512 * 1024l);
         cacheProps.put("cache.faviconHits.size", 128 * 1024l);
         cacheProps.put("cache.faviconMisses.size", 128 * 1024l);
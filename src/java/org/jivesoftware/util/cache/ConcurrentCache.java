@@ -0,0 +1,526 @@
+/**
+ * Copyright (C) 2004-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.util.cache;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-distributed implementation of the Cache interface that does not serialize
+ * readers and writers on a single monitor. Objects are kept in a
+ * ConcurrentHashMap and the bookkeeping that {@link DefaultCache} keeps in two
+ * linked lists is replaced by a pair of timestamps stored in every entry:<ul>
+ *
+ * <li> The creation time of the entry, used to expire entries lazily. An expired
+ * entry is removed the moment it is read, and bulk operations such as
+ * {@link #size()} or {@link #keySet()} periodically sweep the map for expired entries.
+ * <li> The last access time of the entry, used to approximate LRU eviction. When
+ * the cache becomes too full a small sample of entries is inspected and the least
+ * recently used entry of the sample is removed, until enough room has been freed.</ul><p>
+ *
+ * Reads only touch the hash table and the entry being read, so they scale with the
+ * number of cores. Eviction and sweeping are done by one thread at a time; other
+ * threads never wait for them.
+ *
+ * @see ConcurrentLocalCacheStrategy
+ */
+public class ConcurrentCache<K, V> implements Cache<K, V> {
+
+    private static final Logger Log = LoggerFactory.getLogger(ConcurrentCache.class);
+
+    /**
+     * Number of entries inspected to pick an entry to evict.
+     */
+    private static final int EVICTION_SAMPLE_SIZE = 8;
+
+    /**
+     * Minimum amount of milliseconds between two sweeps of expired entries.
+     */
+    private static final long MAX_SWEEP_INTERVAL = 1000;
+
+    /**
+     * The map the keys and values are stored in.
+     */
+    private final ConcurrentHashMap<K, CacheObject<V>> map;
+
+    /**
+     * Maximum size in bytes that the cache can grow to.
+     */
+    private volatile long maxCacheSize;
+
+    /**
+     * Maintains the current size of the cache in bytes.
+     */
+    private final AtomicInteger cacheSize = new AtomicInteger();
+
+    /**
+     * Maximum length of time objects can exist in cache before expiring.
+     */
+    private volatile long maxLifetime;
+
+    /**
+     * Cache hits and misses. Counters are striped by thread so that threads reading
+     * from the cache at the same time do not update the same memory location.
+     */
+    private final StripedCounter cacheHits = new StripedCounter();
+    private final StripedCounter cacheMisses = new StripedCounter();
+
+    /**
+     * Lock held by the thread that is evicting or sweeping entries. Threads that
+     * fail to acquire it simply skip the cleanup.
+     */
+    private final ReentrantLock cleanupLock = new ReentrantLock();
+
+    /**
+     * Iterator used to sample entries for eviction. Continuing from where the
+     * previous sample ended spreads samples over the whole table.
+     */
+    private Iterator<Map.Entry<K, CacheObject<V>>> evictionIterator;
+
+    /**
+     * Time of the last sweep of expired entries.
+     */
+    private volatile long lastSweep = System.currentTimeMillis();
+
+    /**
+     * The name of the cache.
+     */
+    private String name;
+
+    /**
+     * Create a new concurrent cache and specify the maximum size of for the cache in
+     * bytes, and the maximum lifetime of objects.
+     *
+     * @param name a name for the cache.
+     * @param maxSize the maximum size of the cache in bytes. -1 means the cache
+     *      has no max size.
+     * @param maxLifetime the maximum amount of time objects can exist in
+     *      cache before being deleted. -1 means objects never expire.
+     */
+    public ConcurrentCache(String name, long maxSize, long maxLifetime) {
+        this.name = name;
+        this.maxCacheSize = maxSize;
+        this.maxLifetime = maxLifetime;
+        map = new ConcurrentHashMap<K, CacheObject<V>>(103);
+    }
+
+    public V put(K key, V value) {
+        int objectSize = 1;
+        try {
+             objectSize = CacheSizes.sizeOfAnything(value);
+        }
+        catch (CannotCalculateSizeException e) {
+             Log.warn(e.getMessage(), e);
+        }
+
+        // If the object is bigger than the entire cache, simply don't add it.
+        if (maxCacheSize > 0 && objectSize > maxCacheSize * .90) {
+            Log.warn("Cache: " + name + " -- object with key " + key +
+                    " is too large to fit in cache. Size is " + objectSize);
+            remove(key);
+            return value;
+        }
+
+        CacheObject<V> cacheObject = new CacheObject<V>(value, objectSize, System.currentTimeMillis());
+        CacheObject<V> old = map.put(key, cacheObject);
+        if (old == null) {
+            cacheSize.addAndGet(objectSize);
+        }
+        else {
+            cacheSize.addAndGet(objectSize - old.size);
+        }
+
+        // If cache is too full, remove least used cache entries until it is
+        // not too full.
+        cullCache();
+
+        return old == null || isExpired(old, cacheObject.creationTime) ? null : old.object;
+    }
+
+    public V get(Object key) {
+        CacheObject<V> cacheObject = map.get(key);
+        if (cacheObject != null) {
+            long now = System.currentTimeMillis();
+            if (isExpired(cacheObject, now)) {
+                removeEntry(key, cacheObject);
+            }
+            else {
+                cacheHits.increment();
+                // Avoid writing to a shared entry when it was already read this millisecond
+                if (cacheObject.lastAccessed != now) {
+                    cacheObject.lastAccessed = now;
+                }
+                return cacheObject.object;
+            }
+        }
+        cacheMisses.increment();
+        return null;
+    }
+
+    public V remove(Object key) {
+        CacheObject<V> cacheObject = map.remove(key);
+        // If the object is not in cache, stop trying to remove it.
+        if (cacheObject == null) {
+            return null;
+        }
+        // removed the object, so subtract its size from the total.
+        cacheSize.addAndGet(-cacheObject.size);
+        return isExpired(cacheObject, System.currentTimeMillis()) ? null : cacheObject.object;
+    }
+
+    public void clear() {
+        for (K key : map.keySet()) {
+            remove(key);
+        }
+        cacheHits.reset();
+        cacheMisses.reset();
+    }
+
+    public int size() {
+        // First, clear all entries that have been in cache longer than the
+        // maximum defined age.
+        deleteExpiredEntries();
+
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        // First, clear all entries that have been in cache longer than the
+        // maximum defined age.
+        deleteExpiredEntries();
+
+        return map.isEmpty();
+    }
+
+    public Collection<V> values() {
+        long now = System.currentTimeMillis();
+        List<V> values = new ArrayList<V>(map.size());
+        for (CacheObject<V> cacheObject : map.values()) {
+            if (!isExpired(cacheObject, now)) {
+                values.add(cacheObject.object);
+            }
+        }
+        return Collections.unmodifiableList(values);
+    }
+
+    public boolean containsKey(Object key) {
+        CacheObject<V> cacheObject = map.get(key);
+        if (cacheObject == null) {
+            return false;
+        }
+        if (isExpired(cacheObject, System.currentTimeMillis())) {
+            removeEntry(key, cacheObject);
+            return false;
+        }
+        return true;
+    }
+
+    public void putAll(Map<? extends K, ? extends V> map) {
+        for (Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public boolean containsValue(Object value) {
+        for (V object : values()) {
+            if (value == null ? object == null : value.equals(object)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public Set<Entry<K, V>> entrySet() {
+        long now = System.currentTimeMillis();
+        final Map<K, V> result = new HashMap<K, V>();
+        for (final Entry<K, CacheObject<V>> entry : map.entrySet()) {
+            if (!isExpired(entry.getValue(), now)) {
+                result.put(entry.getKey(), entry.getValue().object);
+            }
+        }
+        return result.entrySet();
+    }
+
+    public Set<K> keySet() {
+        long now = System.currentTimeMillis();
+        final Set<K> result = new HashSet<K>();
+        for (final Entry<K, CacheObject<V>> entry : map.entrySet()) {
+            if (!isExpired(entry.getValue(), now)) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the name of this cache. The name is completely arbitrary
+     * and used only for display to administrators.
+     *
+     * @return the name of this cache.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Sets the name of this cache.
+     *
+     * @param name the name of this cache.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public int getCacheSize() {
+        return cacheSize.get();
+    }
+
+    public long getMaxCacheSize() {
+        return maxCacheSize;
+    }
+
+    public void setMaxCacheSize(int maxCacheSize) {
+        this.maxCacheSize = maxCacheSize;
+        CacheFactory.setMaxSizeProperty(name, maxCacheSize);
+        // It's possible that the new max size is smaller than our current cache
+        // size. If so, we need to delete infrequently used items.
+        cullCache();
+    }
+
+    public long getMaxLifetime() {
+        return maxLifetime;
+    }
+
+    public void setMaxLifetime(long maxLifetime) {
+        this.maxLifetime = maxLifetime;
+        CacheFactory.setMaxLifetimeProperty(name, maxLifetime);
+    }
+
+    /**
+     * Returns true if the cache object is older than the maximum defined age.
+     *
+     * @param cacheObject the cache object to check.
+     * @param now the current time in milliseconds.
+     * @return true if the object has expired.
+     */
+    private boolean isExpired(CacheObject<V> cacheObject, long now) {
+        long lifetime = maxLifetime;
+        return lifetime > 0 && now - cacheObject.creationTime > lifetime;
+    }
+
+    /**
+     * Removes the entry of a key only if it is still mapped to the specified cache object.
+     * Used when the entry was found to be expired or was picked for eviction, so that
+     * a value put by another thread in the meantime is not lost.
+     *
+     * @param key the key of the entry.
+     * @param cacheObject the cache object that the key is expected to map to.
+     */
+    private void removeEntry(Object key, CacheObject<V> cacheObject) {
+        if (map.remove(key, cacheObject)) {
+            cacheSize.addAndGet(-cacheObject.size);
+        }
+    }
+
+    /**
+     * Clears all entries out of cache where the entries are older than the
+     * maximum defined age. Sweeps are throttled; entries that expire in between
+     * are removed when they are read.
+     */
+    protected void deleteExpiredEntries() {
+        // Check if expiration is turned on.
+        long lifetime = maxLifetime;
+        if (lifetime <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastSweep < Math.min(lifetime, MAX_SWEEP_INTERVAL) || !cleanupLock.tryLock()) {
+            return;
+        }
+        try {
+            lastSweep = now;
+            for (Entry<K, CacheObject<V>> entry : map.entrySet()) {
+                if (isExpired(entry.getValue(), now)) {
+                    removeEntry(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        finally {
+            cleanupLock.unlock();
+        }
+    }
+
+    /**
+     * Removes objects from cache if the cache is too full. "Too full" is
+     * defined as within 3% of the maximum cache size. Whenever the cache is
+     * is too big, entries are sampled and the least recently used entry of each
+     * sample is deleted until the cache is at least 10% empty.
+     */
+    protected final void cullCache() {
+        // Check if a max cache size is defined.
+        long maxSize = maxCacheSize;
+        if (maxSize < 0) {
+            return;
+        }
+
+        // See if the cache size is within 3% of being too big. If so, clean out
+        // cache until it's 10% free. If another thread is already doing so there
+        // is no need to wait for it.
+        if (cacheSize.get() < (int) (maxSize * .97) || !cleanupLock.tryLock()) {
+            return;
+        }
+        try {
+            int desiredSize = (int) (maxSize * .90);
+            if (cacheSize.get() <= desiredSize) {
+                return;
+            }
+            long t = System.currentTimeMillis();
+            // Expired entries found while sampling are removed before live ones.
+            while (cacheSize.get() > desiredSize && !map.isEmpty()) {
+                evictSampledEntry(t);
+            }
+            t = System.currentTimeMillis() - t;
+            Log.warn("Cache " + name + " was full, shrinked to 90% in " + t + "ms.");
+        }
+        finally {
+            cleanupLock.unlock();
+        }
+    }
+
+    /**
+     * Inspects a sample of entries and removes every expired entry of the sample or,
+     * when none has expired, the least recently used one. Must be invoked while
+     * holding the cleanup lock.
+     *
+     * @param now the current time in milliseconds.
+     */
+    private void evictSampledEntry(long now) {
+        K candidateKey = null;
+        CacheObject<V> candidate = null;
+        boolean expiredFound = false;
+        for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+            if (evictionIterator == null || !evictionIterator.hasNext()) {
+                evictionIterator = map.entrySet().iterator();
+                if (!evictionIterator.hasNext()) {
+                    break;
+                }
+            }
+            Entry<K, CacheObject<V>> entry = evictionIterator.next();
+            CacheObject<V> cacheObject = entry.getValue();
+            if (isExpired(cacheObject, now)) {
+                removeEntry(entry.getKey(), cacheObject);
+                expiredFound = true;
+            }
+            else if (candidate == null || cacheObject.lastAccessed < candidate.lastAccessed) {
+                candidateKey = entry.getKey();
+                candidate = cacheObject;
+            }
+        }
+        if (!expiredFound && candidate != null) {
+            removeEntry(candidateKey, candidate);
+        }
+    }
+
+    /**
+     * Wrapper for all objects put into cache. Keeps the size of the object and the
+     * timestamps used for expiration and eviction.
+     */
+    private static class CacheObject<V> {
+
+        /**
+         * Underlying object wrapped by the CacheObject.
+         */
+        final V object;
+
+        /**
+         * The size of the Cacheable object. The size of the Cacheable
+         * object is only computed once when it is added to the cache.
+         */
+        final int size;
+
+        /**
+         * The time when the object was added to the cache.
+         */
+        final long creationTime;
+
+        /**
+         * The last time the object was read from the cache. Written without
+         * synchronization; a lost update only makes eviction slightly less precise.
+         */
+        volatile long lastAccessed;
+
+        CacheObject(V object, int size, long creationTime) {
+            this.object = object;
+            this.size = size;
+            this.creationTime = creationTime;
+            this.lastAccessed = creationTime;
+        }
+    }
+
+    /**
+     * Counter spread over several slots so that concurrent increments from
+     * different threads rarely touch the same cache line.
+     */
+    private static class StripedCounter {
+
+        private static final int STRIPES = 16;
+        // Slots are spaced apart so that each one sits in its own cache line
+        private static final int PADDING = 8;
+
+        private final AtomicLongArray counts = new AtomicLongArray(STRIPES * PADDING);
+
+        void increment() {
+            int stripe = (int) (Thread.currentThread().getId() & (STRIPES - 1));
+            counts.incrementAndGet(stripe * PADDING);
+        }
+
+        long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += counts.get(i * PADDING);
+            }
+            return sum;
+        }
+
+        void reset() {
+            for (int i = 0; i < STRIPES; i++) {
+                counts.set(i * PADDING, 0);
+            }
+        }
+    }
+}
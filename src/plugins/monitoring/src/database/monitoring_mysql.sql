@@ -1,7 +1,7 @@
 # $Revision$
 # $Date$
 
-INSERT INTO ofVersion (name, version) VALUES ('monitoring', 3);
+INSERT INTO ofVersion (name, version) VALUES ('monitoring', 4);
 
 CREATE TABLE ofConversation (
   conversationID        BIGINT        NOT NULL,
@@ -37,7 +37,17 @@ CREATE TABLE ofMessageArchive (
    sentDate          BIGINT           NOT NULL,
    stanza			 TEXT			  NULL,
    body              TEXT,
-   INDEX ofMessageArchive_con_idx (conversationID)
+   INDEX ofMessageArchive_con_idx (conversationID),
+   INDEX ofMessageArchive_msg_idx (messageID)
+);
+
+CREATE TABLE ofMessageIndex (
+   ownerJID          VARCHAR(200)     NOT NULL,
+   withJID           VARCHAR(255)     NOT NULL,
+   sentDate          BIGINT           NOT NULL,
+   messageID         BIGINT           NOT NULL,
+   PRIMARY KEY (ownerJID, messageID),
+   INDEX ofMessageIndex_with_idx (ownerJID(100), withJID(100), messageID)
 );
 
 CREATE TABLE ofRRDs (
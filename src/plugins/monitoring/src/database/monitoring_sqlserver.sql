@@ -1,7 +1,7 @@
 /* $Revision$   */
 /* $Date$       */
 
-INSERT INTO ofVersion (name, version) VALUES ('monitoring', 3);
+INSERT INTO ofVersion (name, version) VALUES ('monitoring', 4);
 
 CREATE TABLE ofConversation (
   conversationID        BIGINT         NOT NULL,
@@ -39,6 +39,16 @@ CREATE TABLE ofMessageArchive (
    body              NVARCHAR(MAX)
 );
 CREATE INDEX ofMessageArchive_con_idx ON ofMessageArchive (conversationID);
+CREATE INDEX ofMessageArchive_msg_idx ON ofMessageArchive (messageID);
+
+CREATE TABLE ofMessageIndex (
+   ownerJID          NVARCHAR(255)    NOT NULL,
+   withJID           NVARCHAR(1024)   NOT NULL,
+   sentDate          BIGINT           NOT NULL,
+   messageID         BIGINT           NOT NULL,
+   CONSTRAINT ofMessageIndex_pk PRIMARY KEY (ownerJID, messageID)
+);
+CREATE INDEX ofMessageIndex_with_idx ON ofMessageIndex (ownerJID, withJID, messageID);
 
 CREATE TABLE ofRRDs (
    id            NVARCHAR(100)        NOT NULL,
@@ -0,0 +1,36 @@
+-- $Revision$
+-- $Date$
+
+-- Give every archived message its own ID. Older versions counted the archived messages to
+-- get the next ID, which reused IDs once conversations were purged.
+CREATE SEQUENCE ofMessageArchive_seq START WITH 1;
+UPDATE ofMessageArchive SET messageID = NEXT VALUE FOR ofMessageArchive_seq;
+DROP SEQUENCE ofMessageArchive_seq;
+
+-- Continue the message IDs of the renumbered archive
+INSERT INTO ofID (idType, id) SELECT 601, COALESCE(MAX(messageID), 0) + 1 FROM ofMessageArchive;
+
+CREATE INDEX ofMessageArchive_msg_idx ON ofMessageArchive (messageID);
+
+CREATE TABLE ofMessageIndex (
+   ownerJID          VARCHAR(255)     NOT NULL,
+   withJID           VARCHAR(1024)    NOT NULL,
+   sentDate          BIGINT           NOT NULL,
+   messageID         BIGINT           NOT NULL,
+   CONSTRAINT ofMessageIndex_pk PRIMARY KEY (ownerJID, messageID)
+);
+CREATE INDEX ofMessageIndex_with_idx ON ofMessageIndex (ownerJID, withJID, messageID);
+
+-- Index the messages archived so far
+INSERT INTO ofMessageIndex (ownerJID, withJID, sentDate, messageID)
+  SELECT DISTINCT ofConParticipant.bareJID,
+    CASE WHEN ofConversation.room IS NOT NULL THEN ofConversation.room
+         WHEN ofConParticipant.bareJID = ofMessageArchive.fromJID THEN ofMessageArchive.toJID
+         ELSE ofMessageArchive.fromJID END,
+    ofMessageArchive.sentDate, ofMessageArchive.messageID
+  FROM ofMessageArchive
+  INNER JOIN ofConversation ON ofMessageArchive.conversationID = ofConversation.conversationID
+  INNER JOIN ofConParticipant ON ofMessageArchive.conversationID = ofConParticipant.conversationID;
+
+-- Update database version
+UPDATE ofVersion SET version = 4 WHERE name = 'monitoring';
\ No newline at end of file
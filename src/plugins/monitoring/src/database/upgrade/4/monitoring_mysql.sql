@@ -0,0 +1,36 @@
+-- $Revision$
+-- $Date$
+
+-- Give every archived message its own ID. Older versions counted the archived messages to
+-- get the next ID, which reused IDs once conversations were purged.
+SET @messageID := 0;
+UPDATE ofMessageArchive SET messageID = (@messageID := @messageID + 1)
+  ORDER BY sentDate, conversationID, messageID;
+
+-- Continue the message IDs of the renumbered archive
+INSERT INTO ofID (idType, id) SELECT 601, COALESCE(MAX(messageID), 0) + 1 FROM ofMessageArchive;
+
+ALTER TABLE ofMessageArchive ADD INDEX ofMessageArchive_msg_idx (messageID);
+
+CREATE TABLE ofMessageIndex (
+   ownerJID          VARCHAR(200)     NOT NULL,
+   withJID           VARCHAR(255)     NOT NULL,
+   sentDate          BIGINT           NOT NULL,
+   messageID         BIGINT           NOT NULL,
+   PRIMARY KEY (ownerJID, messageID),
+   INDEX ofMessageIndex_with_idx (ownerJID(100), withJID(100), messageID)
+);
+
+-- Index the messages archived so far
+INSERT INTO ofMessageIndex (ownerJID, withJID, sentDate, messageID)
+  SELECT DISTINCT ofConParticipant.bareJID,
+    CASE WHEN ofConversation.room IS NOT NULL THEN ofConversation.room
+         WHEN ofConParticipant.bareJID = ofMessageArchive.fromJID THEN ofMessageArchive.toJID
+         ELSE ofMessageArchive.fromJID END,
+    ofMessageArchive.sentDate, ofMessageArchive.messageID
+  FROM ofMessageArchive
+  INNER JOIN ofConversation ON ofMessageArchive.conversationID = ofConversation.conversationID
+  INNER JOIN ofConParticipant ON ofMessageArchive.conversationID = ofConParticipant.conversationID;
+
+-- Update database version
+UPDATE ofVersion SET version = 4 WHERE name = 'monitoring';
\ No newline at end of file
@@ -126,6 +126,25 @@ public class JdbcPersistenceManager implements PersistenceManager {
 			+ "FROM ofMessageArchive "
 			+ "INNER JOIN ofConParticipant ON ofMessageArchive.conversationID = ofConParticipant.conversationID ";
 
+	/**
+	 * Selects the messages of a user from the per-owner message index, which is filled when messages are archived.
+	 */
+	public static final String SELECT_INDEXED_MESSAGES = "SELECT "
+			+ "ofMessageArchive.fromJID, " + "ofMessageArchive.toJID, " + "ofMessageArchive.sentDate, "
+			+ "ofMessageArchive.stanza, " + "ofMessageArchive.messageID "
+			+ "FROM ofMessageIndex "
+			+ "INNER JOIN ofMessageArchive ON ofMessageIndex.messageID = ofMessageArchive.messageID ";
+
+	public static final String COUNT_INDEXED_MESSAGES = "SELECT COUNT(*) FROM ofMessageIndex ";
+
+	public static final String INDEX_OWNER_JID = "ofMessageIndex.ownerJID";
+
+	public static final String INDEX_WITH_JID = "ofMessageIndex.withJID";
+
+	public static final String INDEX_SENT_DATE = "ofMessageIndex.sentDate";
+
+	public static final String INDEX_MESSAGE_ID = "ofMessageIndex.messageID";
+
 	public boolean createMessage(ArchivedMessage message) {
 		/* read only */
 		return false;
@@ -362,6 +381,10 @@ public class JdbcPersistenceManager implements PersistenceManager {
 	public Collection<ArchivedMessage> findMessages(Date startDate,
 			Date endDate, String ownerJid, String withJid, XmppResultSet xmppResultSet) {
 
+		if (ownerJid != null && JiveGlobals.getBooleanProperty("archive.messageIndex.enabled", true)) {
+			return findIndexedMessages(startDate, endDate, ownerJid, withJid, xmppResultSet);
+		}
+
 		final StringBuilder querySB;
 		final StringBuilder whereSB;
 		final StringBuilder limitSB;
@@ -479,6 +502,157 @@ public class JdbcPersistenceManager implements PersistenceManager {
 		return archivedMessages.values();
 	}
 
+	/**
+	 * Finds the messages of a user in the per-owner message index. Result pages after or before a message ID are read with keyset
+	 * pagination, so a page reads only as many index rows as it returns, however large the archive of the user is. The total count
+	 * comes from the index alone, and the index of the first message in the set is only reported when it is known without counting
+	 * again, so it is omitted for pages in the middle of the set.
+	 */
+	private Collection<ArchivedMessage> findIndexedMessages(Date startDate, Date endDate, String ownerJid, String withJid,
+			XmppResultSet xmppResultSet) {
+
+		final TreeMap<Long, ArchivedMessage> archivedMessages = new TreeMap<Long, ArchivedMessage>();
+		final StringBuilder querySB = new StringBuilder(SELECT_INDEXED_MESSAGES);
+		final StringBuilder whereSB = new StringBuilder();
+
+		startDate = getAuditedStartDate(startDate);
+		appendWhere(whereSB, INDEX_OWNER_JID, " = ?");
+		if (withJid != null) {
+			appendWhere(whereSB, INDEX_WITH_JID, " = ?");
+		}
+		if (startDate != null) {
+			appendWhere(whereSB, INDEX_SENT_DATE, " >= ?");
+		}
+		if (endDate != null) {
+			appendWhere(whereSB, INDEX_SENT_DATE, " <= ?");
+		}
+
+		int max = DEFAULT_MAX;
+		Integer index = null;
+		Long after = null;
+		Long before = null;
+		if (xmppResultSet != null) {
+			max = xmppResultSet.getMax() != null ? xmppResultSet.getMax() : DEFAULT_MAX;
+			index = xmppResultSet.getIndex();
+			if (index == null) {
+				after = xmppResultSet.getAfter();
+				before = after == null ? xmppResultSet.getBefore() : null;
+			}
+		}
+
+		querySB.append(" WHERE ").append(whereSB);
+		if (after != null) {
+			querySB.append(" AND ").append(INDEX_MESSAGE_ID).append(" > ?");
+		} else if (before != null) {
+			querySB.append(" AND ").append(INDEX_MESSAGE_ID).append(" < ?");
+		}
+		// Pages before a message are read backwards from that message
+		querySB.append(" ORDER BY ").append(INDEX_MESSAGE_ID).append(before != null ? " DESC" : "");
+
+		boolean more = false;
+		Connection con = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			con = DbConnectionManager.getConnection();
+			int startIndex = index != null ? index : 0;
+			if (startIndex > 0) {
+				pstmt = DbConnectionManager.createScrollablePreparedStatement(con, querySB.toString());
+			} else {
+				pstmt = con.prepareStatement(querySB.toString());
+			}
+			int parameterIndex = bindIndexParameters(startDate, endDate, ownerJid, withJid, pstmt);
+			if (after != null) {
+				pstmt.setLong(parameterIndex, after);
+			} else if (before != null) {
+				pstmt.setLong(parameterIndex, before);
+			}
+			// Read one more row than requested to know whether this is the last page
+			DbConnectionManager.limitRowsAndFetchSize(pstmt, startIndex, max + 1);
+
+			rs = pstmt.executeQuery();
+			Log.debug("findMessages: SELECT_INDEXED_MESSAGES: " + pstmt.toString());
+			if (startIndex > 0) {
+				DbConnectionManager.scrollResultSet(rs, startIndex);
+			}
+			while (rs.next()) {
+				if (archivedMessages.size() == max) {
+					more = true;
+					break;
+				}
+				Date time = millisToDate(rs.getLong("sentDate"));
+				ArchivedMessage archivedMessage = new ArchivedMessage(time, null, null, null);
+				archivedMessage.setId(rs.getLong("messageID"));
+				archivedMessage.setStanza(rs.getString("stanza"));
+
+				archivedMessages.put(archivedMessage.getId(), archivedMessage);
+			}
+		} catch (SQLException sqle) {
+			Log.error("Error selecting messages", sqle);
+		} finally {
+			DbConnectionManager.closeConnection(rs, pstmt, con);
+		}
+
+		if (xmppResultSet != null) {
+			int count = countIndexedMessages(startDate, endDate, ownerJid, withJid, whereSB.toString());
+			xmppResultSet.setCount(count);
+			if (index != null) {
+				xmppResultSet.setFirstIndex(index);
+			} else if (after == null && before == null || before != null && !more) {
+				// The page starts the set
+				xmppResultSet.setFirstIndex(0);
+			} else if (after != null && !more || before != null && before == Long.MAX_VALUE) {
+				// The page ends the set
+				xmppResultSet.setFirstIndex(Math.max(0, count - archivedMessages.size()));
+			}
+			xmppResultSet.setComplete(!more);
+			if (archivedMessages.size() > 0) {
+				xmppResultSet.setFirst(archivedMessages.firstKey());
+				xmppResultSet.setLast(archivedMessages.lastKey());
+			}
+		}
+		return archivedMessages.values();
+	}
+
+	private int countIndexedMessages(Date startDate, Date endDate, String ownerJid, String withJid, String whereClause) {
+		Connection con = null;
+		PreparedStatement pstmt = null;
+		ResultSet rs = null;
+		try {
+			con = DbConnectionManager.getConnection();
+			pstmt = con.prepareStatement(COUNT_INDEXED_MESSAGES + " WHERE " + whereClause);
+			bindIndexParameters(startDate, endDate, ownerJid, withJid, pstmt);
+			rs = pstmt.executeQuery();
+			if (rs.next()) {
+				return rs.getInt(1);
+			} else {
+				return 0;
+			}
+		} catch (SQLException sqle) {
+			Log.error("Error counting messages", sqle);
+			return 0;
+		} finally {
+			DbConnectionManager.closeConnection(rs, pstmt, con);
+		}
+	}
+
+	private int bindIndexParameters(Date startDate, Date endDate, String ownerJid, String withJid, PreparedStatement pstmt)
+			throws SQLException {
+		int parameterIndex = 1;
+
+		pstmt.setString(parameterIndex++, ownerJid);
+		if (withJid != null) {
+			pstmt.setString(parameterIndex++, withJid);
+		}
+		if (startDate != null) {
+			pstmt.setLong(parameterIndex++, dateToMillis(startDate));
+		}
+		if (endDate != null) {
+			pstmt.setLong(parameterIndex++, dateToMillis(endDate));
+		}
+		return parameterIndex;
+	}
+
 	private Integer countMessages(Date startDate, Date endDate,
 			String ownerJid, String withJid, String whereClause) {
 
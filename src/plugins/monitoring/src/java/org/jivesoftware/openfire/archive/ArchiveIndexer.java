@@ -29,16 +29,20 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TimerTask;
 import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,8 +50,8 @@ import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.DateTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
-import org.apache.lucene.index.IndexModifier;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.store.Directory;
@@ -57,7 +61,9 @@ import org.dom4j.io.OutputFormat;
 import org.dom4j.io.XMLWriter;
 import org.jivesoftware.database.DbConnectionManager;
 import org.jivesoftware.openfire.reporting.util.TaskEngine;
-import org.jivesoftware.util.JiveConstants;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.XMLProperties;
 import org.picocontainer.Startable;
@@ -69,9 +75,16 @@ import org.xmpp.packet.JID;
  * Indexes archived conversations. If conversation archiving is not enabled,
  * this class does nothing. The search index is maintained in the <tt>monitoring/search</tt>
  * directory of the Openfire home directory. It's automatically updated with the latest
- * conversation content as long as conversation archiving is enabled. The index update
- * interval is controllec by the Jive property "conversation.search.updateInterval" and
- * the default value is 15 minutes.
+ * conversation content as long as conversation archiving is enabled.<p>
+ *
+ * Messages are indexed by a dedicated thread as soon as the {@link ConversationManager}
+ * writes them to the database. Each conversation is a single document, which is indexed
+ * again from the database when new messages of the conversation are archived, so that
+ * searches match the whole conversation. Searches use near-real-time readers of the index
+ * writer, so new messages are searchable without waiting for the index to be committed. The index
+ * is committed every "conversation.search.commitInterval" seconds (default 60) and
+ * segments are merged in the background. Messages archived while the indexer was not
+ * running are indexed from the database when the indexer starts.
  *
  * @see ArchiveSearcher
  * @author Matt Tucker
@@ -95,16 +108,44 @@ public class ArchiveIndexer implements Startable {
     private ConversationManager conversationManager;
     private XMLProperties indexProperties;
     private Directory directory;
+    private IndexWriter writer;
     private IndexSearcher searcher;
+    /**
+     * Number of changes to the index when the searcher was opened.
+     */
+    private long searcherGeneration = -1;
+    /**
+     * Number of changes to the index. Searchers are reopened when the index changes.
+     */
+    private final AtomicLong generation = new AtomicLong();
     private Lock writerLock;
-    private boolean stopped = false;
+    private volatile boolean stopped = false;
+
+    /**
+     * Archived messages waiting to be indexed.
+     */
+    private final BlockingQueue<ArchivedMessage> messageQueue =
+            new LinkedBlockingQueue<ArchivedMessage>(
+                    JiveGlobals.getIntProperty("conversation.search.queueSize", 100000));
+    private Thread indexingThread;
+    private final AtomicLong indexedMessages = new AtomicLong();
+    /**
+     * Sent date of the newest message that was indexed but not committed yet.
+     */
+    private long newestIndexedDate = -1;
+    /**
+     * Sent date of the oldest message that was not queued because the queue was full, or -1
+     * if no message was left out. Such messages are indexed from the database later.
+     */
+    private final AtomicLong oldestSkippedDate = new AtomicLong(-1);
 
-    private boolean rebuildInProgress = false;
+    private volatile boolean rebuildInProgress = false;
     private RebuildFuture rebuildFuture;
 
     private long lastModified = 0;
 
-    private TimerTask indexUpdater;
+    public static final String INDEXED_KEY = "archive_indexed";
+    public static final String INDEX_LAG_KEY = "archive_index_lag";
 
     /**
      * Constructs a new archive indexer.
@@ -153,6 +194,14 @@ public class ArchiveIndexer implements Startable {
         catch (IOException ioe) {
             Log.error(ioe.getMessage(), ioe);
         }
+        // Keep a writer open so that searches can use near-real-time readers.
+        try {
+            writer = new IndexWriter(directory, new StandardAnalyzer(), indexCreated,
+                    IndexWriter.MaxFieldLength.LIMITED);
+        }
+        catch (IOException ioe) {
+            Log.error(ioe.getMessage(), ioe);
+        }
 
         String modified = indexProperties.getProperty("lastModified");
         if (modified != null) {
@@ -163,37 +212,86 @@ public class ArchiveIndexer implements Startable {
                 // Ignore.
             }
         }
-        // If the index has never been updated, build it from scratch.
-        if (lastModified == 0 || indexCreated) {
-            taskEngine.submit(new Runnable() {
-                public void run() {
+        // If the index has never been updated, build it from scratch. Otherwise index
+        // the messages that were archived while the indexer was not running.
+        final boolean rebuild = lastModified == 0 || indexCreated;
+        taskEngine.submit(new Runnable() {
+            public void run() {
+                if (rebuild) {
                     rebuildIndex();
                 }
-            });
-        }
-
-        indexUpdater = new TimerTask() {
-            @Override
-			public void run() {
-                updateIndex();
+                else {
+                    updateIndex();
+                }
             }
-        };
-        int updateInterval = JiveGlobals.getIntProperty("conversation.search.updateInterval", 15);
-        taskEngine.scheduleAtFixedRate(indexUpdater, JiveConstants.MINUTE * 5,
-                JiveConstants.MINUTE * updateInterval);
+        });
+
+        indexingThread = new Thread(new IndexingTask(), "Archive indexer");
+        indexingThread.setDaemon(true);
+        indexingThread.start();
+        conversationManager.setArchiveIndexer(this);
+
+        StatisticsManager.getInstance().addStatistic(INDEXED_KEY,
+                new i18nStatistic(INDEXED_KEY, MonitoringConstants.NAME, Statistic.Type.rate) {
+                    public double sample() {
+                        return indexedMessages.getAndSet(0);
+                    }
+
+                    public boolean isPartialSample() {
+                        return true;
+                    }
+                });
+        StatisticsManager.getInstance().addStatistic(INDEX_LAG_KEY,
+                new i18nStatistic(INDEX_LAG_KEY, MonitoringConstants.NAME, Statistic.Type.count) {
+                    public double sample() {
+                        return getIndexLag();
+                    }
+
+                    public boolean isPartialSample() {
+                        return false;
+                    }
+                });
     }
 
     public void stop() {
         stopped = true;
-        indexUpdater.cancel();
-        if (searcher != null) {
-            try {
-                searcher.close();
+        conversationManager.setArchiveIndexer(null);
+        StatisticsManager.getInstance().removeStatistic(INDEXED_KEY);
+        StatisticsManager.getInstance().removeStatistic(INDEX_LAG_KEY);
+        // Index the queued messages before closing the index.
+        try {
+            indexingThread.join(JiveGlobals.getIntProperty("conversation.search.stopTimeout", 30000));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        indexingThread = null;
+        synchronized (this) {
+            if (searcher != null) {
+                try {
+                    // Searches that are still running keep the reader open until they are done.
+                    searcher.close();
+                    searcher.getIndexReader().decRef();
+                }
+                catch (Exception e) {
+                    Log.error(e.getMessage(), e);
+                }
+                searcher = null;
             }
-            catch (Exception e) {
-                Log.error(e.getMessage(), e);
+        }
+        writerLock.lock();
+        try {
+            if (writer != null) {
+                commit();
+                writer.close();
             }
-            searcher = null;
+        }
+        catch (Exception e) {
+            Log.error(e.getMessage(), e);
+        }
+        finally {
+            writer = null;
+            writerLock.unlock();
         }
         try {
             directory.close();
@@ -235,8 +333,8 @@ public class ArchiveIndexer implements Startable {
      * Updates the search index with all new conversation data since the last index update.
      */
     public void updateIndex() {
-        // Immediately return if the service has been stopped.
-        if (stopped) {
+        // Immediately return if the service has been stopped or the index can't be written.
+        if (stopped || writer == null) {
             return;
         }
         // Do nothing if archiving is disabled.
@@ -248,9 +346,7 @@ public class ArchiveIndexer implements Startable {
             return;
         }
         writerLock.lock();
-        IndexModifier writer = null;
         try {
-            writer = new IndexModifier(directory, new StandardAnalyzer(), false);
             List<Long> conversationIDs = new ArrayList<Long>();
             Connection con = null;
             PreparedStatement pstmt = null;
@@ -278,48 +374,21 @@ public class ArchiveIndexer implements Startable {
             }
 
             // Load meta-data for each conversation.
-            Map<Long, Boolean> externalMetaData = new HashMap<Long, Boolean>();
-            for (long conversationID : conversationIDs) {
-                try {
-                    con = DbConnectionManager.getConnection();
-                    pstmt = con.prepareStatement(CONVERSATION_METADATA);
-                    pstmt.setLong(1, conversationID);
-                    rs = pstmt.executeQuery();
-                    while (rs.next()) {
-                        externalMetaData.put(conversationID, rs.getInt(1) == 1);
-                    }
-                }
-                catch (SQLException sqle) {
-                    Log.error(sqle.getMessage(), sqle);
-                }
-                finally {
-                    DbConnectionManager.closeConnection(rs, pstmt, con);
-                }
-            }
+            Map<Long, Boolean> externalMetaData = loadExternalMetaData(conversationIDs);
 
             // Now index all the new conversations.
             long newestDate = indexConversations(conversationIDs, externalMetaData, writer, false);
 
-            writer.optimize();
-
             // Done indexing so store a last modified date.
-            if (newestDate != -1) {
-                lastModified = newestDate;
-                indexProperties.setProperty("lastModified", Long.toString(lastModified));
+            if (newestDate > newestIndexedDate) {
+                newestIndexedDate = newestDate;
             }
+            commit();
         }
         catch (IOException ioe) {
             Log.error(ioe.getMessage(), ioe);
         }
         finally {
-            if (writer != null) {
-                try {
-                    writer.close();
-                }
-                catch (Exception e) {
-                    Log.error(e.getMessage(), e);
-                }
-            }
             writerLock.unlock();
         }
     }
@@ -335,8 +404,8 @@ public class ArchiveIndexer implements Startable {
      *      rebuilding the index is not possible.
      */
     public synchronized Future<Integer> rebuildIndex() {
-        // Immediately return if the service has been stopped.
-        if (stopped) {
+        // Immediately return if the service has been stopped or the index can't be written.
+        if (stopped || writer == null) {
             return null;
         }
         // If a rebuild is already happening, return.
@@ -381,31 +450,21 @@ public class ArchiveIndexer implements Startable {
                 if (!conversationIDs.isEmpty()) {
                     // Index the conversations.
                     writerLock.lock();
-                    IndexModifier writer = null;
                     try {
-                        writer = new IndexModifier(directory, new StandardAnalyzer(), true);
+                        writer.deleteAll();
                         long newestDate = indexConversations(conversationIDs, externalMetaData,
                                 writer, true);
-                        writer.optimize();
 
                         // Done indexing so store a last modified date.
-                        if (newestDate != -1) {
-                            lastModified = newestDate;
-                            indexProperties.setProperty("lastModified", Long.toString(lastModified));
+                        if (newestDate > newestIndexedDate) {
+                            newestIndexedDate = newestDate;
                         }
+                        commit();
                     }
                     catch (IOException ioe) {
                         Log.error(ioe.getMessage(), ioe);
                     }
                     finally {
-                        if (writer != null) {
-                            try {
-                                writer.close();
-                            }
-                            catch (Exception e) {
-                                Log.error(e.getMessage(), e);
-                            }
-                        }
                         writerLock.unlock();
                     }
                 }
@@ -434,18 +493,19 @@ public class ArchiveIndexer implements Startable {
 
     /**
      * Indexes a set of conversations. Each conversation is stored as a single Lucene document
-     * by appending message bodies together. The date of the newest message indexed is
+     * by appending message bodies together, which replaces the existing document of the
+     * conversation. The date of the newest message indexed is
      * returned, or -1 if no conversations are indexed.
      *
      * @param conversationIDs the ID's of the conversations to index.
      * @param externalMetaData meta-data about whether each conversation involves a participant on
      *      an external server.
-     * @param writer an IndexModifier to add the documents to.
+     * @param writer an IndexWriter to add the documents to.
      * @param indexRebuild true if this is an index rebuild operation.
      * @return the date of the newest message archived.
      */
     private long indexConversations(List<Long> conversationIDs, Map<Long, Boolean> externalMetaData,
-            IndexModifier writer, boolean indexRebuild) throws IOException
+            IndexWriter writer, boolean indexRebuild) throws IOException
     {
         if (conversationIDs.isEmpty()) {
             return -1;
@@ -457,10 +517,7 @@ public class ArchiveIndexer implements Startable {
         long newestDate = -1;
         // Index 250 items at a time.
         final int OP_SIZE = 250;
-        int n = ((conversationIDs.size() - 1) / OP_SIZE);
-        if (n == 0) {
-            n = 1;
-        }
+        int n = (conversationIDs.size() + OP_SIZE - 1) / OP_SIZE;
         for (int i = 0; i < n; i++) {
             StringBuilder inSQL = new StringBuilder();
             inSQL.append(" (");
@@ -493,8 +550,9 @@ public class ArchiveIndexer implements Startable {
                     if (id != conversationID) {
                         if (conversationID != -1) {
                             // Index the previously defined doc.
-                            boolean external = externalMetaData.get(conversationID);
-                            indexDocument(writer, conversationID, external, date, jids, text.toString());
+                            boolean external = Boolean.TRUE.equals(externalMetaData.get(conversationID));
+                            writer.updateDocument(new Term("conversationID", Long.toString(conversationID)),
+                                    createDocument(conversationID, external, date, jids, text.toString()));
                         }
                         // Reset the variables to index the next conversation.
                         conversationID = id;
@@ -522,8 +580,9 @@ public class ArchiveIndexer implements Startable {
                 // Finally, index the last document found.
                 if (conversationID != -1) {
                     // Index the previously defined doc.
-                    boolean external = externalMetaData.get(conversationID);
-                    indexDocument(writer, conversationID, external, date, jids, text.toString());
+                    boolean external = Boolean.TRUE.equals(externalMetaData.get(conversationID));
+                    writer.updateDocument(new Term("conversationID", Long.toString(conversationID)),
+                            createDocument(conversationID, external, date, jids, text.toString()));
                 }
                 // If this is an index rebuild, we need to track the percentage done.
                 if (indexRebuild) {
@@ -542,18 +601,17 @@ public class ArchiveIndexer implements Startable {
     }
 
     /**
-     * Indexes a single conversation.
+     * Creates a document of a conversation.
      *
-     * @param writer the index modifier.
      * @param conversationID the ID of the conversation to index.
      * @param external true if the conversation has a participant from an external server.
      * @param date the date the conversation was started.
      * @param jids the JIDs of the users in the conversation.
      * @param text the full text of the conversation.
-     * @throws IOException if an IOException occurs.
+     * @return the document of the conversation.
      */
-    private void indexDocument(IndexModifier writer, long conversationID, boolean external,
-            long date, Set<String> jids, String text) throws IOException
+    private Document createDocument(long conversationID, boolean external,
+            long date, Set<String> jids, String text)
     {
         Document document = new Document();
         document.add(new Field("conversationID", String.valueOf(conversationID),
@@ -566,28 +624,155 @@ public class ArchiveIndexer implements Startable {
             document.add(new Field("jid", jid, Field.Store.YES, Field.Index.TOKENIZED));
         }
         document.add(new Field("text", text, Field.Store.NO, Field.Index.TOKENIZED));
-        writer.addDocument(document);
+        return document;
     }
 
     /**
-     * Returns an IndexSearcher to search the archive index.
+     * Returns an IndexSearcher to search the archive index. The reader of the searcher stays
+     * open until the caller releases it with {@link #releaseSearcher(IndexSearcher)}, even if
+     * a newer searcher is opened in the meantime.
      *
      * @return an IndexSearcher.
      * @throws IOException if an IOException occurs.
      */
     synchronized IndexSearcher getSearcher() throws IOException {
-        // If the searcher hasn't been instantiated, create it.
-        if (searcher == null) {
-            searcher = new IndexSearcher(directory);
-        }
-        // See if the searcher needs to be closed due to the index being updated.
-        else if (!searcher.getIndexReader().isCurrent()) {
-            searcher.close();
-            searcher = new IndexSearcher(directory);
+        // Open a near-real-time reader if the index changed since the searcher was created.
+        long currentGeneration = generation.get();
+        if (searcher == null || searcherGeneration != currentGeneration) {
+            IndexReader reader;
+            writerLock.lock();
+            try {
+                reader = writer != null ? writer.getReader() : IndexReader.open(directory, true);
+            }
+            finally {
+                writerLock.unlock();
+            }
+            if (searcher != null) {
+                // The reader is closed once the searches that use it release it.
+                searcher.close();
+                searcher.getIndexReader().decRef();
+            }
+            searcher = new IndexSearcher(reader);
+            searcherGeneration = currentGeneration;
         }
+        searcher.getIndexReader().incRef();
         return searcher;
     }
 
+    /**
+     * Releases a searcher returned by {@link #getSearcher()} once its search is done.
+     *
+     * @param searcher the searcher to release.
+     */
+    void releaseSearcher(IndexSearcher searcher) {
+        try {
+            searcher.getIndexReader().decRef();
+        }
+        catch (IOException ioe) {
+            Log.error(ioe.getMessage(), ioe);
+        }
+    }
+
+    /**
+     * Queues messages that were written to the database so that they are indexed by the
+     * indexing thread. The calling thread never waits: messages that do not fit in the queue
+     * are left out, and the indexing thread indexes them from the database once it catches up.
+     *
+     * @param messages the archived messages.
+     */
+    void messagesArchived(Collection<ArchivedMessage> messages) {
+        for (ArchivedMessage message : messages) {
+            if (!messageQueue.offer(message)) {
+                long sentDate = message.getSentDate().getTime();
+                long oldest = oldestSkippedDate.get();
+                while ((oldest < 0 || sentDate < oldest) && !oldestSkippedDate.compareAndSet(oldest, sentDate)) {
+                    oldest = oldestSkippedDate.get();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the milliseconds since the oldest message waiting to be indexed was sent, or 0
+     * if all archived messages are indexed.
+     *
+     * @return the index lag in milliseconds.
+     */
+    public long getIndexLag() {
+        ArchivedMessage oldest = messageQueue.peek();
+        return oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest.getSentDate().getTime());
+    }
+
+    /**
+     * Indexes the conversations of the messages again from the database, so that each
+     * conversation stays a single document. The caller must hold the writer lock.
+     *
+     * @param messages the messages to index.
+     * @throws IOException if an IOException occurs.
+     */
+    private void indexMessages(List<ArchivedMessage> messages) throws IOException {
+        Set<Long> conversationIDs = new LinkedHashSet<Long>();
+        for (ArchivedMessage message : messages) {
+            conversationIDs.add(message.getConversationID());
+        }
+        List<Long> changed = new ArrayList<Long>(conversationIDs);
+        // Documents are replaced, so a conversation that changed again is not indexed twice.
+        long newestDate = indexConversations(changed, loadExternalMetaData(changed), writer, false);
+        if (newestDate > newestIndexedDate) {
+            newestIndexedDate = newestDate;
+        }
+        indexedMessages.addAndGet(messages.size());
+        generation.incrementAndGet();
+    }
+
+    /**
+     * Returns whether each conversation has a participant from an external server.
+     */
+    private Map<Long, Boolean> loadExternalMetaData(List<Long> conversationIDs) {
+        Map<Long, Boolean> externalMetaData = new HashMap<Long, Boolean>();
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(CONVERSATION_METADATA);
+            for (long conversationID : conversationIDs) {
+                pstmt.setLong(1, conversationID);
+                rs = pstmt.executeQuery();
+                externalMetaData.put(conversationID, rs.next() && rs.getInt(1) == 1);
+                rs.close();
+            }
+        }
+        catch (SQLException sqle) {
+            Log.error(sqle.getMessage(), sqle);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        return externalMetaData;
+    }
+
+    /**
+     * Commits the index and stores the date of the newest indexed message. The caller must
+     * hold the writer lock.
+     *
+     * @throws IOException if an IOException occurs.
+     */
+    private void commit() throws IOException {
+        writer.commit();
+        generation.incrementAndGet();
+        // Messages that were left out must still be found by the next update of the index
+        long newestDate = newestIndexedDate;
+        long skippedDate = oldestSkippedDate.get();
+        if (skippedDate >= 0) {
+            newestDate = Math.min(newestDate, skippedDate - 1);
+        }
+        if (newestDate > lastModified) {
+            lastModified = newestDate;
+            indexProperties.setProperty("lastModified", Long.toString(lastModified));
+        }
+    }
+
     /**
      * Loads a property manager for search properties if it isn't already
      * loaded. If an XML file for the search properties isn't already
@@ -628,6 +813,62 @@ public class ArchiveIndexer implements Startable {
         indexProperties = new XMLProperties(indexPropertiesFile);
     }
 
+    /**
+     * Indexes the archived messages as they are queued and commits the index periodically.
+     */
+    private class IndexingTask implements Runnable {
+
+        public void run() {
+            long commitInterval = JiveGlobals.getIntProperty("conversation.search.commitInterval", 60) * 1000L;
+            int batchSize = JiveGlobals.getIntProperty("conversation.search.batchSize", 1000);
+            long lastCommit = System.currentTimeMillis();
+            boolean uncommitted = false;
+            List<ArchivedMessage> messages = new ArrayList<ArchivedMessage>(batchSize);
+            while (!stopped || !messageQueue.isEmpty()) {
+                try {
+                    ArchivedMessage first = messageQueue.poll(1, TimeUnit.SECONDS);
+                    if (first != null) {
+                        messages.add(first);
+                        messageQueue.drainTo(messages, batchSize - 1);
+                    }
+                }
+                catch (InterruptedException e) {
+                    // Index what is queued and check if the indexer is still running.
+                }
+                if (writer == null) {
+                    messages.clear();
+                    continue;
+                }
+                writerLock.lock();
+                try {
+                    if (!messages.isEmpty()) {
+                        indexMessages(messages);
+                        uncommitted = true;
+                    }
+                    if (uncommitted && System.currentTimeMillis() - lastCommit >= commitInterval) {
+                        commit();
+                        uncommitted = false;
+                        lastCommit = System.currentTimeMillis();
+                    }
+                }
+                catch (Exception e) {
+                    Log.error("Failed to index " + messages.size() + " archived messages", e);
+                }
+                finally {
+                    writerLock.unlock();
+                    messages.clear();
+                }
+                if (messageQueue.isEmpty() && oldestSkippedDate.get() >= 0 && !rebuildInProgress) {
+                    // Index the messages that were left out while the queue was full.
+                    oldestSkippedDate.set(-1);
+                    updateIndex();
+                    uncommitted = false;
+                    lastCommit = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
     /**
      * A Future class to track the status of index rebuilding.
      */
@@ -40,7 +40,6 @@ import org.apache.lucene.queryParser.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Filter;
-import org.apache.lucene.search.Hit;
 import org.apache.lucene.search.Hits;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
@@ -115,9 +114,32 @@ public class ArchiveSearcher implements Startable {
      * @return the collection of conversations that match the search.
      */
     private Collection<Conversation> luceneSearch(ArchiveSearch search) {
+        IndexSearcher searcher;
         try {
-            IndexSearcher searcher = archiveIndexer.getSearcher();
+            searcher = archiveIndexer.getSearcher();
+        }
+        catch (IOException ioe) {
+            Log.error(ioe.getMessage(), ioe);
+            return Collections.emptySet();
+        }
+        try {
+            return luceneSearch(searcher, search);
+        }
+        finally {
+            archiveIndexer.releaseSearcher(searcher);
+        }
+    }
 
+    /**
+     * Searches the Lucene index with the specified searcher. The results are read before
+     * returning so that the reader of the searcher can be released.
+     *
+     * @param searcher the searcher.
+     * @param search the search.
+     * @return the collection of conversations that match the search.
+     */
+    private Collection<Conversation> luceneSearch(IndexSearcher searcher, ArchiveSearch search) {
+        try {
             final StandardAnalyzer analyzer = new StandardAnalyzer();
 
             // Create the query based on the search terms.
@@ -491,30 +513,34 @@ public class ArchiveSearcher implements Startable {
      */
     private class LuceneQueryResults extends AbstractCollection<Conversation> {
 
-        private Hits hits;
-        private int index;
-        private int endIndex;
+        private final List<Long> conversationIDs = new ArrayList<Long>();
+        private final int size;
 
         /**
-         * Constructs a new query results object.
+         * Constructs a new query results object. The IDs of the conversations are read
+         * right away since the reader of the hits is released after the search.
          *
          * @param hits the search hits.
          * @param startIndex the starting index that results should be returned from.
          * @param endIndex the ending index that results should be returned to.
+         * @throws IOException if an IOException occurs.
          */
-        public LuceneQueryResults(Hits hits, int startIndex, int endIndex) {
-            this.hits = hits;
-            this.index = startIndex;
-            this.endIndex = endIndex;
+        public LuceneQueryResults(Hits hits, int startIndex, int endIndex) throws IOException {
+            this.size = hits.length();
+            for (int i = startIndex; i < endIndex && i < size; i++) {
+                String value = hits.doc(i).get("conversationID");
+                try {
+                    conversationIDs.add(Long.valueOf(value));
+                }
+                catch (NumberFormatException e) {
+                    Log.error("Invalid conversation ID in the archive index: " + value, e);
+                }
+            }
         }
 
         @Override
 		public Iterator<Conversation> iterator() {
-            final Iterator<Hit> hitsIterator = hits.iterator();
-            // Advance the iterator until we hit the index.
-            for (int i=0; i<index; i++) {
-                hitsIterator.next();
-            }
+            final Iterator<Long> idIterator = conversationIDs.iterator();
             return new Iterator<Conversation>() {
 
                 private Conversation nextElement = null;
@@ -549,21 +575,9 @@ public class ArchiveSearcher implements Startable {
                 }
 
                 private Conversation getNextElement() {
-                    if (!hitsIterator.hasNext()) {
-                        return null;
-                    }
-                    // If we've reached the end index, stop iterating.
-                    else if (index >= endIndex) {
-                        return null;
-                    }
-                    while (hitsIterator.hasNext()) {
+                    while (idIterator.hasNext()) {
                         try {
-                            Hit hit = hitsIterator.next();
-                            // Advance the index.
-                            index++;
-
-                            long conversationID = Long.parseLong(hit.get("conversationID"));
-                            return new Conversation(conversationManager, conversationID);
+                            return new Conversation(conversationManager, idIterator.next());
                         }
                         catch (Exception e) {
                             Log.error(e.getMessage(), e);
@@ -576,7 +590,7 @@ public class ArchiveSearcher implements Startable {
 
         @Override
 		public int size() {
-            return hits.length();
+            return size;
         }
     }
 }
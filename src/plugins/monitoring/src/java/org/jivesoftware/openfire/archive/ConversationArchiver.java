@@ -0,0 +1,563 @@
+/**
+ * Copyright (C) 2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.openfire.archive;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.database.SequenceManager;
+import org.jivesoftware.openfire.stats.Statistic;
+import org.jivesoftware.openfire.stats.StatisticsManager;
+import org.jivesoftware.openfire.stats.i18nStatistic;
+import org.jivesoftware.util.JiveGlobals;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xmpp.packet.JID;
+
+/**
+ * Writes archived messages, conversation updates and room participants to the database from a dedicated thread.
+ * <p>
+ *
+ * Threads that route messages only add the data to bounded queues. The archiving thread writes the queued data in batches of up to
+ * <tt>conversation.archive.batchSize</tt> messages, one transaction per batch, as soon as messages are queued or at least every
+ * <tt>conversation.archive.flushInterval</tt> milliseconds. Updates of the same conversation are coalesced so that each batch updates a
+ * conversation once. When the message queue (<tt>conversation.archive.queueSize</tt> messages) is full, new messages are not archived instead of
+ * blocking the routing threads.
+ * <p>
+ *
+ * Queued items are only discarded once they were committed. When a batch fails, its items are written one by one, each in its own
+ * transaction, so that a single bad row does not discard the whole batch. Items that still fail are written again with the next batches,
+ * and discarded after they failed <tt>MAX_ATTEMPTS</tt> times.
+ * <p>
+ *
+ * Every message is also added to the <tt>ofMessageIndex</tt> table once for each user whose archive it belongs to, so that archive queries
+ * of a user read an index of that user instead of joining the whole archive. Message IDs come from the {@link SequenceManager}, so that
+ * they stay unique when another cluster member becomes the senior member and archives messages too.
+ */
+class ConversationArchiver implements Runnable {
+
+	private static final Logger Log = LoggerFactory.getLogger(ConversationArchiver.class);
+
+	private static final String INSERT_MESSAGE = "INSERT INTO ofMessageArchive(messageID, conversationID, fromJID, fromJIDResource, toJID, toJIDResource, sentDate, body, stanza) "
+			+ "VALUES (?,?,?,?,?,?,?,?,?)";
+	private static final String INSERT_MESSAGE_INDEX = "INSERT INTO ofMessageIndex(ownerJID, withJID, sentDate, messageID) VALUES (?,?,?,?)";
+	private static final String UPDATE_CONVERSATION = "UPDATE ofConversation SET lastActivity=?, messageCount=? WHERE conversationID=?";
+	private static final String UPDATE_PARTICIPANT = "UPDATE ofConParticipant SET leftDate=? WHERE conversationID=? AND bareJID=? AND jidResource=? AND joinedDate=?";
+
+	public static final String INGEST_KEY = "archive_ingest";
+	public static final String BACKLOG_KEY = "archive_backlog";
+	public static final String COMMIT_TIME_KEY = "archive_commit_time";
+
+	/**
+	 * Sequence type of the message IDs, which is the type of the messages returned by message archive queries.
+	 *
+	 * @see com.reucon.openfire.plugin.archive.model.ArchivedMessage
+	 */
+	private static final int MESSAGE_ID_TYPE = 601;
+
+	/**
+	 * Number of times that the archiver tries to write an item before discarding it.
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+
+	private final BlockingQueue<QueuedMessage> messageQueue;
+	/**
+	 * Conversations whose meta-data changed since it was last written. Key: conversation ID.
+	 */
+	private final ConcurrentMap<Long, Conversation> conversationQueue = new ConcurrentHashMap<Long, Conversation>();
+	/**
+	 * Queue of participants that left a group conversation.
+	 */
+	private final BlockingQueue<RoomParticipant> participantQueue;
+	/**
+	 * Messages and participants that failed to be written and are written again before the queued ones. Only used by the archiving thread.
+	 */
+	private final List<QueuedMessage> retryMessages = new ArrayList<QueuedMessage>();
+	private final List<RoomParticipant> retryParticipants = new ArrayList<RoomParticipant>();
+	/**
+	 * Number of failed attempts to write the conversations that are queued again. Only used by the archiving thread.
+	 */
+	private final Map<Long, Integer> conversationAttempts = new HashMap<Long, Integer>();
+	/**
+	 * Number of messages and participants waiting to be written again.
+	 */
+	private volatile int retryBacklog;
+	private final int batchSize;
+	private final long flushInterval;
+
+	private final AtomicLong ingested = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong commitTime = new AtomicLong();
+
+	private volatile boolean running;
+	private Thread thread;
+	private volatile ArchiveIndexer indexer;
+
+	ConversationArchiver() {
+		int queueSize = JiveGlobals.getIntProperty("conversation.archive.queueSize", 100000);
+		messageQueue = new LinkedBlockingQueue<QueuedMessage>(queueSize);
+		participantQueue = new LinkedBlockingQueue<RoomParticipant>(queueSize);
+		batchSize = Math.max(1, JiveGlobals.getIntProperty("conversation.archive.batchSize", 500));
+		flushInterval = Math.max(10, JiveGlobals.getIntProperty("conversation.archive.flushInterval", 1000));
+		// Reserve the IDs of a whole batch at once
+		SequenceManager.setBlockSize(MESSAGE_ID_TYPE, batchSize);
+	}
+
+	/**
+	 * Starts the archiving thread and registers the archiving statistics.
+	 */
+	void start() {
+		running = true;
+		thread = new Thread(this, "Conversation archiver");
+		thread.setDaemon(true);
+		thread.start();
+
+		StatisticsManager.getInstance().addStatistic(INGEST_KEY,
+				new i18nStatistic(INGEST_KEY, MonitoringConstants.NAME, Statistic.Type.rate) {
+					public double sample() {
+						return ingested.getAndSet(0);
+					}
+
+					public boolean isPartialSample() {
+						return true;
+					}
+				});
+		StatisticsManager.getInstance().addStatistic(BACKLOG_KEY,
+				new i18nStatistic(BACKLOG_KEY, MonitoringConstants.NAME, Statistic.Type.count) {
+					public double sample() {
+						return getBacklog();
+					}
+
+					public boolean isPartialSample() {
+						return false;
+					}
+				});
+		StatisticsManager.getInstance().addStatistic(COMMIT_TIME_KEY,
+				new i18nStatistic(COMMIT_TIME_KEY, MonitoringConstants.NAME, Statistic.Type.count) {
+					public double sample() {
+						long count = commits.getAndSet(0);
+						long time = commitTime.getAndSet(0);
+						return count == 0 ? 0 : (double) time / count;
+					}
+
+					public boolean isPartialSample() {
+						return false;
+					}
+				});
+	}
+
+	/**
+	 * Stops the archiving thread after it wrote everything that was queued and removes the archiving statistics.
+	 */
+	void stop() {
+		StatisticsManager.getInstance().removeStatistic(INGEST_KEY);
+		StatisticsManager.getInstance().removeStatistic(BACKLOG_KEY);
+		StatisticsManager.getInstance().removeStatistic(COMMIT_TIME_KEY);
+		running = false;
+		try {
+			thread.join(JiveGlobals.getIntProperty("conversation.archive.stopTimeout", 30000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (thread.isAlive()) {
+			Log.warn("Conversation archiver did not finish writing; " + getBacklog() + " items were not archived.");
+		}
+		thread = null;
+	}
+
+	/**
+	 * Queues a message to archive.
+	 *
+	 * @param message
+	 *            the message to archive.
+	 * @param owners
+	 *            the users whose archive the message belongs to.
+	 * @param room
+	 *            the room where the message was sent, or null if the message was sent in a one-to-one chat.
+	 */
+	void archiveMessage(ArchivedMessage message, Collection<JID> owners, JID room) {
+		if (messageQueue.offer(new QueuedMessage(message, owners, room))) {
+			ingested.incrementAndGet();
+		} else if (dropped.getAndIncrement() % 10000 == 0) {
+			Log.warn("Conversation archive queue is full; messages are not being archived. Dropped so far: " + dropped.get());
+		}
+	}
+
+	/**
+	 * Queues the update of the meta-data of a conversation.
+	 *
+	 * @param conversation
+	 *            the updated conversation.
+	 */
+	void archiveConversation(Conversation conversation) {
+		conversationQueue.put(conversation.getConversationID(), conversation);
+	}
+
+	/**
+	 * Queues the update of a participant that left a group conversation.
+	 *
+	 * @param conversationID
+	 *            the ID of the conversation.
+	 * @param user
+	 *            the participant.
+	 * @param joined
+	 *            date when the participant joined the conversation.
+	 * @param left
+	 *            date when the participant left the conversation.
+	 */
+	void archiveParticipantLeft(long conversationID, JID user, Date joined, Date left) {
+		RoomParticipant participant = new RoomParticipant();
+		participant.conversationID = conversationID;
+		participant.user = user;
+		participant.joined = joined;
+		participant.left = left;
+		if (!participantQueue.offer(participant)) {
+			Log.warn("Conversation archive queue is full; participant not archived: " + user);
+		}
+	}
+
+	/**
+	 * Sets the indexer that is handed the messages of every committed batch.
+	 *
+	 * @param indexer
+	 *            the archive indexer, or null if messages are not indexed as they are archived.
+	 */
+	void setIndexer(ArchiveIndexer indexer) {
+		this.indexer = indexer;
+	}
+
+	/**
+	 * Returns the number of messages, conversation updates and participants waiting to be written.
+	 *
+	 * @return the number of queued items.
+	 */
+	int getBacklog() {
+		return messageQueue.size() + conversationQueue.size() + participantQueue.size() + retryBacklog;
+	}
+
+	public void run() {
+		List<QueuedMessage> messages = new ArrayList<QueuedMessage>(batchSize);
+		while (running || getBacklog() > 0) {
+			if (!retryMessages.isEmpty()) {
+				// Messages that failed are written first so that they keep their order
+				messages.addAll(retryMessages);
+				retryMessages.clear();
+				messageQueue.drainTo(messages, Math.max(0, batchSize - messages.size()));
+			} else {
+				try {
+					QueuedMessage first = messageQueue.poll(flushInterval, TimeUnit.MILLISECONDS);
+					if (first != null) {
+						messages.add(first);
+						messageQueue.drainTo(messages, batchSize - 1);
+					}
+				} catch (InterruptedException e) {
+					// Write what is queued and check if the archiver is still running.
+				}
+			}
+			if (!messages.isEmpty() || !conversationQueue.isEmpty() || !participantQueue.isEmpty() || !retryParticipants.isEmpty()) {
+				boolean written = write(messages);
+				messages.clear();
+				retryBacklog = retryMessages.size() + retryParticipants.size();
+				if (!written && getBacklog() > 0) {
+					// Give the database some time to recover before writing again
+					try {
+						Thread.sleep(flushInterval);
+					} catch (InterruptedException e) {
+						// Check if the archiver is still running.
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a batch of messages and the queued conversation and participant updates in one transaction. If the transaction fails, the
+	 * items are written one by one and the items that still fail are kept to be written again.
+	 *
+	 * @return true if the batch was written in one transaction.
+	 */
+	private boolean write(List<QueuedMessage> messages) {
+		List<Conversation> conversations = new ArrayList<Conversation>();
+		for (Long conversationID : conversationQueue.keySet()) {
+			Conversation conversation = conversationQueue.remove(conversationID);
+			if (conversation != null) {
+				conversations.add(conversation);
+			}
+		}
+		List<RoomParticipant> participants = new ArrayList<RoomParticipant>(retryParticipants);
+		retryParticipants.clear();
+		participantQueue.drainTo(participants);
+
+		long start = System.currentTimeMillis();
+		boolean written = writeTransaction(messages, conversations, participants);
+		commits.incrementAndGet();
+		commitTime.addAndGet(System.currentTimeMillis() - start);
+
+		List<QueuedMessage> archived = messages;
+		if (written) {
+			for (Conversation conversation : conversations) {
+				conversationAttempts.remove(conversation.getConversationID());
+			}
+		} else {
+			Log.warn("Failed to archive a batch of " + messages.size() + " messages, " + conversations.size() + " conversations and "
+					+ participants.size() + " participants; writing them one by one.");
+			archived = writeOneByOne(messages, conversations, participants);
+		}
+
+		ArchiveIndexer indexer = this.indexer;
+		if (indexer != null && !archived.isEmpty()) {
+			List<ArchivedMessage> archivedMessages = new ArrayList<ArchivedMessage>(archived.size());
+			for (QueuedMessage queuedMessage : archived) {
+				archivedMessages.add(queuedMessage.message);
+			}
+			indexer.messagesArchived(archivedMessages);
+		}
+		return written;
+	}
+
+	/**
+	 * Writes each item in its own transaction. Items that fail are kept to be written again, unless they already failed
+	 * <tt>MAX_ATTEMPTS</tt> times.
+	 *
+	 * @return the messages that were written.
+	 */
+	private List<QueuedMessage> writeOneByOne(List<QueuedMessage> messages, List<Conversation> conversations, List<RoomParticipant> participants) {
+		List<QueuedMessage> archived = new ArrayList<QueuedMessage>(messages.size());
+		List<Conversation> noConversations = Collections.emptyList();
+		List<RoomParticipant> noParticipants = Collections.emptyList();
+		List<QueuedMessage> noMessages = Collections.emptyList();
+		for (QueuedMessage message : messages) {
+			if (writeTransaction(Collections.singletonList(message), noConversations, noParticipants)) {
+				archived.add(message);
+			} else if (++message.attempts < MAX_ATTEMPTS) {
+				retryMessages.add(message);
+			} else {
+				Log.error("Discarding message of conversation " + message.message.getConversationID() + " that could not be archived.");
+			}
+		}
+		for (Conversation conversation : conversations) {
+			Long conversationID = conversation.getConversationID();
+			if (writeTransaction(noMessages, Collections.singletonList(conversation), noParticipants)) {
+				conversationAttempts.remove(conversationID);
+				continue;
+			}
+			Integer attempts = conversationAttempts.get(conversationID);
+			attempts = attempts == null ? 1 : attempts + 1;
+			if (attempts < MAX_ATTEMPTS) {
+				conversationAttempts.put(conversationID, attempts);
+				// A newer update of the conversation that was queued in the meantime replaces this one
+				conversationQueue.putIfAbsent(conversationID, conversation);
+			} else {
+				conversationAttempts.remove(conversationID);
+				Log.error("Discarding update of conversation " + conversationID + " that could not be archived.");
+			}
+		}
+		for (RoomParticipant participant : participants) {
+			if (!writeTransaction(noMessages, noConversations, Collections.singletonList(participant))) {
+				if (++participant.attempts < MAX_ATTEMPTS) {
+					retryParticipants.add(participant);
+				} else {
+					Log.error("Discarding participant " + participant.user + " of conversation " + participant.conversationID
+							+ " that could not be archived.");
+				}
+			}
+		}
+		return archived;
+	}
+
+	/**
+	 * Writes messages, conversation updates and participant updates in one transaction.
+	 *
+	 * @return true if the transaction was committed.
+	 */
+	private boolean writeTransaction(List<QueuedMessage> messages, List<Conversation> conversations, List<RoomParticipant> participants) {
+		Connection con = null;
+		boolean abortTransaction = false;
+		try {
+			con = DbConnectionManager.getTransactionConnection();
+			writeMessages(con, messages);
+			writeConversations(con, conversations);
+			writeParticipants(con, participants);
+			// Commit here since closing the connection does not report a failed commit
+			if (!con.getAutoCommit()) {
+				con.commit();
+			}
+		} catch (Exception e) {
+			Log.error("Failed to archive " + messages.size() + " messages", e);
+			abortTransaction = true;
+		} finally {
+			if (con != null) {
+				DbConnectionManager.closeTransactionConnection(con, abortTransaction);
+			}
+		}
+		return !abortTransaction;
+	}
+
+	private void writeMessages(Connection con, List<QueuedMessage> messages) throws SQLException {
+		if (messages.isEmpty()) {
+			return;
+		}
+		PreparedStatement pstmt = null;
+		PreparedStatement indexStmt = null;
+		try {
+			pstmt = con.prepareStatement(INSERT_MESSAGE);
+			indexStmt = con.prepareStatement(INSERT_MESSAGE_INDEX);
+			for (QueuedMessage queuedMessage : messages) {
+				ArchivedMessage message = queuedMessage.message;
+				long messageID = SequenceManager.nextID(MESSAGE_ID_TYPE);
+				pstmt.setLong(1, messageID);
+				pstmt.setLong(2, message.getConversationID());
+				pstmt.setString(3, message.getFromJID().toBareJID());
+				pstmt.setString(4, message.getFromJID().getResource());
+				pstmt.setString(5, message.getToJID().toBareJID());
+				pstmt.setString(6, message.getToJID().getResource());
+				pstmt.setLong(7, message.getSentDate().getTime());
+				DbConnectionManager.setLargeTextField(pstmt, 8, message.getBody());
+				DbConnectionManager.setLargeTextField(pstmt, 9, message.getStanza());
+				execute(pstmt);
+
+				for (Map.Entry<String, String> owner : queuedMessage.getOwners().entrySet()) {
+					indexStmt.setString(1, owner.getKey());
+					indexStmt.setString(2, owner.getValue());
+					indexStmt.setLong(3, message.getSentDate().getTime());
+					indexStmt.setLong(4, messageID);
+					execute(indexStmt);
+				}
+			}
+			executeBatch(pstmt);
+			executeBatch(indexStmt);
+		} finally {
+			DbConnectionManager.closeStatement(pstmt);
+			DbConnectionManager.closeStatement(indexStmt);
+		}
+	}
+
+	private void writeConversations(Connection con, List<Conversation> conversations) throws SQLException {
+		if (conversations.isEmpty()) {
+			return;
+		}
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = con.prepareStatement(UPDATE_CONVERSATION);
+			for (Conversation conversation : conversations) {
+				pstmt.setLong(1, conversation.getLastActivity().getTime());
+				pstmt.setInt(2, conversation.getMessageCount());
+				pstmt.setLong(3, conversation.getConversationID());
+				execute(pstmt);
+			}
+			executeBatch(pstmt);
+		} finally {
+			DbConnectionManager.closeStatement(pstmt);
+		}
+	}
+
+	private void writeParticipants(Connection con, List<RoomParticipant> participants) throws SQLException {
+		if (participants.isEmpty()) {
+			return;
+		}
+		PreparedStatement pstmt = null;
+		try {
+			pstmt = con.prepareStatement(UPDATE_PARTICIPANT);
+			for (RoomParticipant participant : participants) {
+				pstmt.setLong(1, participant.left.getTime());
+				pstmt.setLong(2, participant.conversationID);
+				pstmt.setString(3, participant.user.toBareJID());
+				pstmt.setString(4, participant.user.getResource() == null ? " " : participant.user.getResource());
+				pstmt.setLong(5, participant.joined.getTime());
+				execute(pstmt);
+			}
+			executeBatch(pstmt);
+		} finally {
+			DbConnectionManager.closeStatement(pstmt);
+		}
+	}
+
+	private static void execute(PreparedStatement pstmt) throws SQLException {
+		if (DbConnectionManager.isBatchUpdatesSupported()) {
+			pstmt.addBatch();
+		} else {
+			pstmt.execute();
+		}
+	}
+
+	private static void executeBatch(PreparedStatement pstmt) throws SQLException {
+		if (DbConnectionManager.isBatchUpdatesSupported()) {
+			pstmt.executeBatch();
+		}
+	}
+
+	/**
+	 * A queued message and the users whose archive it belongs to.
+	 */
+	private static class QueuedMessage {
+		private final ArchivedMessage message;
+		private final Collection<JID> owners;
+		private final JID room;
+		/**
+		 * Number of failed attempts to write the message.
+		 */
+		private int attempts;
+
+		QueuedMessage(ArchivedMessage message, Collection<JID> owners, JID room) {
+			this.message = message;
+			this.owners = owners;
+			this.room = room;
+		}
+
+		/**
+		 * Returns the bare JIDs of the owners of the message and the JID they conversed with. Members of a room conversed with the room.
+		 */
+		Map<String, String> getOwners() {
+			String from = message.getFromJID().toBareJID();
+			String to = message.getToJID().toBareJID();
+			Map<String, String> result = new HashMap<String, String>();
+			for (JID owner : owners) {
+				String ownerJID = owner.toBareJID();
+				if (room != null) {
+					result.put(ownerJID, room.toBareJID());
+				} else {
+					result.put(ownerJID, ownerJID.equals(from) ? to : from);
+				}
+			}
+			return result;
+		}
+	}
+
+	private static class RoomParticipant {
+		private long conversationID = -1;
+		private JID user;
+		private Date joined;
+		private Date left;
+		private int attempts;
+	}
+}
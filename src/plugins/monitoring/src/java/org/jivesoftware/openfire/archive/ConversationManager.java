@@ -31,10 +31,8 @@ import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -83,12 +81,10 @@ public class ConversationManager implements Startable, ComponentEventListener {
 
 	private static final Logger Log = LoggerFactory.getLogger(ConversationManager.class);
 
-	private static final String UPDATE_CONVERSATION = "UPDATE ofConversation SET lastActivity=?, messageCount=? WHERE conversationID=?";
-	private static final String UPDATE_PARTICIPANT = "UPDATE ofConParticipant SET leftDate=? WHERE conversationID=? AND bareJID=? AND jidResource=? AND joinedDate=?";
-	private static final String INSERT_MESSAGE = "INSERT INTO ofMessageArchive(messageID, conversationID, fromJID, fromJIDResource, toJID, toJIDResource, sentDate, body, stanza) "
-			+ "VALUES ((SELECT COUNT(*) FROM ofMessageArchive),?,?,?,?,?,?,?,?)";
 	private static final String CONVERSATION_COUNT = "SELECT COUNT(*) FROM ofConversation";
 	private static final String MESSAGE_COUNT = "SELECT COUNT(*) FROM ofMessageArchive";
+	private static final String DELETE_CONVERSATION_INDEX = "DELETE FROM ofMessageIndex WHERE messageID IN "
+			+ "(SELECT messageID FROM ofMessageArchive WHERE conversationID=?)";
 	private static final String DELETE_CONVERSATION_1 = "DELETE FROM ofMessageArchive WHERE conversationID=?";
 	private static final String DELETE_CONVERSATION_2 = "DELETE FROM ofConParticipant WHERE conversationID=?";
 	private static final String DELETE_CONVERSATION_3 = "DELETE FROM ofConversation WHERE conversationID=?";
@@ -124,16 +120,19 @@ public class ConversationManager implements Startable, ComponentEventListener {
 	private long maxRetrievable;
 	private PropertyEventListener propertyListener;
 
-	private Queue<Conversation> conversationQueue;
-	private Queue<ArchivedMessage> messageQueue;
 	/**
-	 * Queue of participants that joined or left a conversation. This queue is processed by the ArchivingTask.
+	 * Writes archived messages and conversation updates to the database.
 	 */
-	private Queue<RoomParticipant> participantQueue;
-
-	private boolean archivingRunning = false;
+	private ConversationArchiver archiver;
+	/**
+	 * Indexes the archived messages, or null if the indexer is not running.
+	 */
+	private volatile ArchiveIndexer archiveIndexer;
+	/**
+	 * Locks that serialize the messages of a conversation. Conversation keys are spread over the locks by hash.
+	 */
+	private final Object[] conversationLocks;
 
-	private TimerTask archiveTask;
 	private TimerTask cleanupTask;
 
 	private TimerTask maxAgeTask;
@@ -151,6 +150,10 @@ public class ConversationManager implements Startable, ComponentEventListener {
 		this.gateways = new CopyOnWriteArrayList<String>();
 		this.serverInfo = XMPPServer.getInstance().getServerInfo();
 		this.conversationEventsQueue = new ConversationEventsQueue(this, taskEngine);
+		this.conversationLocks = new Object[Math.max(1, JiveGlobals.getIntProperty("conversation.lockStripes", 256))];
+		for (int i = 0; i < conversationLocks.length; i++) {
+			conversationLocks[i] = new Object();
+		}
 	}
 
 	public void start() {
@@ -176,20 +179,12 @@ public class ConversationManager implements Startable, ComponentEventListener {
 		propertyListener = new ConversationPropertyListener();
 		PropertyEventDispatcher.addListener(propertyListener);
 
-		conversationQueue = new ConcurrentLinkedQueue<Conversation>();
-		messageQueue = new ConcurrentLinkedQueue<ArchivedMessage>();
-		participantQueue = new ConcurrentLinkedQueue<RoomParticipant>();
-
 		conversationListeners = new CopyOnWriteArraySet<ConversationListener>();
 
-		// Schedule a task to do conversation archiving.
-		archiveTask = new TimerTask() {
-			@Override
-			public void run() {
-				new ArchivingTask().run();
-			}
-		};
-		taskEngine.scheduleAtFixedRate(archiveTask, JiveConstants.MINUTE, JiveConstants.MINUTE);
+		// Start the thread that does conversation archiving.
+		archiver = new ConversationArchiver();
+		archiver.setIndexer(archiveIndexer);
+		archiver.start();
 
 		// Schedule a task to do conversation cleanup.
 		cleanupTask = new TimerTask() {
@@ -213,11 +208,13 @@ public class ConversationManager implements Startable, ComponentEventListener {
 				if (maxAge > 0) {
 					// Delete conversations older than maxAge days
 					Connection con = null;
+					PreparedStatement pstmt0 = null;
 					PreparedStatement pstmt1 = null;
 					PreparedStatement pstmt2 = null;
 					PreparedStatement pstmt3 = null;
 					try {
 						con = DbConnectionManager.getConnection();
+						pstmt0 = con.prepareStatement(DELETE_CONVERSATION_INDEX);
 						pstmt1 = con.prepareStatement(DELETE_CONVERSATION_1);
 						pstmt2 = con.prepareStatement(DELETE_CONVERSATION_2);
 						pstmt3 = con.prepareStatement(DELETE_CONVERSATION_3);
@@ -232,6 +229,8 @@ public class ConversationManager implements Startable, ComponentEventListener {
 						for (Conversation conversation : conversations) {
 							Log.debug("Deleting: " + conversation.getConversationID() + " with date: " + conversation.getStartDate()
 									+ " older than: " + maxAgeDate);
+							pstmt0.setLong(1, conversation.getConversationID());
+							pstmt0.execute();
 							pstmt1.setLong(1, conversation.getConversationID());
 							pstmt1.execute();
 							pstmt2.setLong(1, conversation.getConversationID());
@@ -246,6 +245,7 @@ public class ConversationManager implements Startable, ComponentEventListener {
 					} catch (Exception e) {
 						Log.error(e.getMessage(), e);
 					} finally {
+						DbConnectionManager.closeConnection(pstmt0, con);
 						DbConnectionManager.closeConnection(pstmt1, con);
 						DbConnectionManager.closeConnection(pstmt2, con);
 						DbConnectionManager.closeConnection(pstmt3, con);
@@ -287,8 +287,6 @@ public class ConversationManager implements Startable, ComponentEventListener {
 	}
 
 	public void stop() {
-		archiveTask.cancel();
-		archiveTask = null;
 		cleanupTask.cancel();
 		cleanupTask = null;
 
@@ -301,13 +299,8 @@ public class ConversationManager implements Startable, ComponentEventListener {
 		conversations = null;
 
 		// Archive anything remaining in the queue before quitting.
-		new ArchivingTask().run();
-
-		conversationQueue.clear();
-		conversationQueue = null;
-
-		messageQueue.clear();
-		messageQueue = null;
+		archiver.stop();
+		archiver = null;
 
 		conversationListeners.clear();
 		conversationListeners = null;
@@ -639,6 +632,20 @@ public class ConversationManager implements Startable, ComponentEventListener {
 		conversationListeners.remove(listener);
 	}
 
+	/**
+	 * Sets the indexer that is handed the messages as soon as they are written to the database.
+	 *
+	 * @param archiveIndexer
+	 *            the archive indexer, or null to stop handing messages to the indexer.
+	 */
+	void setArchiveIndexer(ArchiveIndexer archiveIndexer) {
+		this.archiveIndexer = archiveIndexer;
+		ConversationArchiver archiver = this.archiver;
+		if (archiver != null) {
+			archiver.setIndexer(archiveIndexer);
+		}
+	}
+
 	/**
 	 * Processes an incoming message of a one-to-one chat. The message will mapped to a conversation and then queued for storage if archiving is
 	 * turned on.
@@ -656,7 +663,7 @@ public class ConversationManager implements Startable, ComponentEventListener {
 	 */
 	void processMessage(JID sender, JID receiver, String body, String stanza, Date date) {
 		String conversationKey = getConversationKey(sender, receiver);
-		synchronized (conversationKey.intern()) {
+		synchronized (getConversationLock(conversationKey)) {
 			Conversation conversation = conversations.get(conversationKey);
 			// Create a new conversation if necessary.
 			if (conversation == null) {
@@ -703,12 +710,13 @@ public class ConversationManager implements Startable, ComponentEventListener {
 			// Record the newly received message.
 			conversation.messageReceived(sender, date);
 			if (metadataArchivingEnabled) {
-				conversationQueue.add(conversation);
+				archiver.archiveConversation(conversation);
 			}
 			if (messageArchivingEnabled) {
 				if (body != null) {
 					/* OF-677 - Workaround to prevent null messages being archived */
-					messageQueue.add(new ArchivedMessage(conversation.getConversationID(), sender, receiver, date, body, stanza, false));
+					archiver.archiveMessage(new ArchivedMessage(conversation.getConversationID(), sender, receiver, date, body, stanza, false),
+							conversation.getParticipants(), null);
 				}
 			}
 			// Notify listeners of the conversation update.
@@ -734,7 +742,7 @@ public class ConversationManager implements Startable, ComponentEventListener {
 	 */
 	void processRoomMessage(JID roomJID, JID sender, String nickname, String body, Date date) {
 		String conversationKey = getRoomConversationKey(roomJID);
-		synchronized (conversationKey.intern()) {
+		synchronized (getConversationLock(conversationKey)) {
 			Conversation conversation = conversations.get(conversationKey);
 			// Create a new conversation if necessary.
 			if (conversation == null) {
@@ -764,13 +772,14 @@ public class ConversationManager implements Startable, ComponentEventListener {
 			// Record the newly received message.
 			conversation.messageReceived(sender, date);
 			if (metadataArchivingEnabled) {
-				conversationQueue.add(conversation);
+				archiver.archiveConversation(conversation);
 			}
 			if (roomArchivingEnabled && (roomsArchived.isEmpty() || roomsArchived.contains(roomJID.getNode()))) {
 				JID jid = new JID(roomJID + "/" + nickname);
 				if (body != null) {
 					/* OF-677 - Workaround to prevent null messages being archived */
-					messageQueue.add(new ArchivedMessage(conversation.getConversationID(), sender, jid, date, body, "", false));
+					archiver.archiveMessage(new ArchivedMessage(conversation.getConversationID(), sender, jid, date, body, "", false),
+							conversation.getParticipants(), roomJID);
 				}
 			}
 			// Notify listeners of the conversation update.
@@ -952,113 +961,18 @@ public class ConversationManager implements Startable, ComponentEventListener {
 	}
 
 	void queueParticipantLeft(Conversation conversation, JID user, ConversationParticipation participation) {
-		RoomParticipant updatedParticipant = new RoomParticipant();
-		updatedParticipant.conversationID = conversation.getConversationID();
-		updatedParticipant.user = user;
-		updatedParticipant.joined = participation.getJoined();
-		updatedParticipant.left = participation.getLeft();
-		participantQueue.add(updatedParticipant);
+		archiver.archiveParticipantLeft(conversation.getConversationID(), user, participation.getJoined(), participation.getLeft());
 	}
 
 	/**
-	 * A task that persists conversation meta-data and messages to the database.
+	 * Returns the lock that serializes the messages of a conversation.
+	 *
+	 * @param conversationKey
+	 *            the key of the conversation.
+	 * @return the lock of the conversation.
 	 */
-	private class ArchivingTask implements Runnable {
-
-		public void run() {
-			synchronized (this) {
-				if (archivingRunning) {
-					return;
-				}
-				archivingRunning = true;
-			}
-			if (!messageQueue.isEmpty() || !conversationQueue.isEmpty() || !participantQueue.isEmpty()) {
-				Connection con = null;
-				PreparedStatement pstmt = null;
-				try {
-					con = DbConnectionManager.getConnection();
-
-					pstmt = con.prepareStatement(INSERT_MESSAGE);
-					ArchivedMessage message;
-					int count = 0;
-					while ((message = messageQueue.poll()) != null) {
-						pstmt.setLong(1, message.getConversationID());
-						pstmt.setString(2, message.getFromJID().toBareJID());
-						pstmt.setString(3, message.getFromJID().getResource());
-						pstmt.setString(4, message.getToJID().toBareJID());
-						pstmt.setString(5, message.getToJID().getResource());
-						pstmt.setLong(6, message.getSentDate().getTime());
-						DbConnectionManager.setLargeTextField(pstmt, 7, message.getBody());
-						DbConnectionManager.setLargeTextField(pstmt, 8, message.getStanza());
-						if (DbConnectionManager.isBatchUpdatesSupported()) {
-							pstmt.addBatch();
-						} else {
-							pstmt.execute();
-						}
-						// Only batch up to 500 items at a time.
-						if (count % 500 == 0 && DbConnectionManager.isBatchUpdatesSupported()) {
-							pstmt.executeBatch();
-						}
-						count++;
-					}
-					if (DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.executeBatch();
-					}
-
-					pstmt = con.prepareStatement(UPDATE_CONVERSATION);
-					Conversation conversation;
-					count = 0;
-					while ((conversation = conversationQueue.poll()) != null) {
-						pstmt.setLong(1, conversation.getLastActivity().getTime());
-						pstmt.setInt(2, conversation.getMessageCount());
-						pstmt.setLong(3, conversation.getConversationID());
-						if (DbConnectionManager.isBatchUpdatesSupported()) {
-							pstmt.addBatch();
-						} else {
-							pstmt.execute();
-						}
-						// Only batch up to 500 items at a time.
-						if (count % 500 == 0 && DbConnectionManager.isBatchUpdatesSupported()) {
-							pstmt.executeBatch();
-						}
-						count++;
-					}
-					if (DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.executeBatch();
-					}
-
-					pstmt = con.prepareStatement(UPDATE_PARTICIPANT);
-					RoomParticipant particpiant;
-					count = 0;
-					while ((particpiant = participantQueue.poll()) != null) {
-						pstmt.setLong(1, particpiant.left.getTime());
-						pstmt.setLong(2, particpiant.conversationID);
-						pstmt.setString(3, particpiant.user.toBareJID());
-						pstmt.setString(4, particpiant.user.getResource() == null ? " " : particpiant.user.getResource());
-						pstmt.setLong(5, particpiant.joined.getTime());
-						if (DbConnectionManager.isBatchUpdatesSupported()) {
-							pstmt.addBatch();
-						} else {
-							pstmt.execute();
-						}
-						// Only batch up to 500 items at a time.
-						if (count % 500 == 0 && DbConnectionManager.isBatchUpdatesSupported()) {
-							pstmt.executeBatch();
-						}
-						count++;
-					}
-					if (DbConnectionManager.isBatchUpdatesSupported()) {
-						pstmt.executeBatch();
-					}
-				} catch (Exception e) {
-					Log.error(e.getMessage(), e);
-				} finally {
-					DbConnectionManager.closeConnection(pstmt, con);
-				}
-			}
-			// Set archiving running back to false.
-			archivingRunning = false;
-		}
+	private Object getConversationLock(String conversationKey) {
+		return conversationLocks[(conversationKey.hashCode() & Integer.MAX_VALUE) % conversationLocks.length];
 	}
 
 	/**
@@ -1152,11 +1066,4 @@ public class ConversationManager implements Startable, ComponentEventListener {
 			// Ignore.
 		}
 	}
-
-	private static class RoomParticipant {
-		private long conversationID = -1;
-		private JID user;
-		private Date joined;
-		private Date left;
-	}
 }
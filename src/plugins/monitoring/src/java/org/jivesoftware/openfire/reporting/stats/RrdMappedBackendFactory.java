@@ -0,0 +1,336 @@
+/**
+ * Copyright (C) 2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jivesoftware.openfire.reporting.stats;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.openfire.cluster.ClusterManager;
+import org.jrobin.core.RrdBackend;
+import org.jrobin.core.RrdBackendFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the RRDs of the statistics in memory-mapped files of the <tt>monitoring/stats</tt>
+ * directory, so that sampling statistics and rendering graphs do not access the database.
+ * The RRDs are loaded from the <tt>ofRRDs</tt> table when they are first opened, and the RRDs
+ * that changed are written back to the table by {@link #checkpoint()}, which the
+ * {@link StatsEngine} calls every "stats.checkpointInterval" minutes and when it stops.
+ * Callers must not update the RRDs while they are checkpointed, since a checkpoint could
+ * otherwise store a partly written update.<p>
+ *
+ * Only the senior cluster member samples statistics. The other members read the RRDs from
+ * the database through a {@link RrdSqlBackend}. A member that is no longer the senior member
+ * discards the changes that it did not write to the database yet, so that it never overwrites
+ * the RRDs written by the new senior member.
+ */
+public class RrdMappedBackendFactory extends RrdBackendFactory {
+
+    private static final Logger Log = LoggerFactory.getLogger(RrdMappedBackendFactory.class);
+
+    // name of the factory
+    public static final String NAME = "MAPPED";
+
+    private static final String FILE_SUFFIX = ".map";
+
+    private final File directory;
+    /**
+     * RRDs mapped in memory. Key: id of the RRD.
+     */
+    private final Map<String, MappedRrd> rrds = new HashMap<String, MappedRrd>();
+
+    RrdMappedBackendFactory(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    protected RrdBackend open(String path, boolean readOnly) throws IOException {
+        if (!ClusterManager.isSeniorClusterMember()) {
+            // Release RRDs mapped while this member was the senior member, since they will
+            // be updated by another member from now on.
+            release(true);
+            return new RrdSqlBackend(path, readOnly);
+        }
+        return new MappedBackend(path, getRrd(path), readOnly);
+    }
+
+    @Override
+    protected boolean exists(String path) throws IOException {
+        if (ClusterManager.isSeniorClusterMember()) {
+            synchronized (this) {
+                if (rrds.containsKey(path) || getFile(path).exists()) {
+                    return true;
+                }
+            }
+        }
+        return RrdSqlBackend.exists(path);
+    }
+
+    // returns factory name
+    @Override
+    public String getFactoryName() {
+        return NAME;
+    }
+
+    /**
+     * Writes the RRDs that changed since the last checkpoint to the database. If this member
+     * is no longer the senior member the changes are discarded instead.
+     */
+    public void checkpoint() {
+        if (!ClusterManager.isSeniorClusterMember()) {
+            release(true);
+            return;
+        }
+        Map<String, byte[]> changes = new HashMap<String, byte[]>();
+        List<MappedRrd> changed = new ArrayList<MappedRrd>();
+        synchronized (this) {
+            for (Map.Entry<String, MappedRrd> entry : rrds.entrySet()) {
+                byte[] bytes = entry.getValue().getChanges();
+                if (bytes != null) {
+                    changes.put(entry.getKey(), bytes);
+                    changed.add(entry.getValue());
+                }
+            }
+        }
+        for (Map.Entry<String, byte[]> change : changes.entrySet()) {
+            long checkpointTime = RrdSqlBackend.save(change.getKey(), change.getValue());
+            if (checkpointTime > 0) {
+                // The local file is not newer than the database until it is modified again
+                getFile(change.getKey()).setLastModified(checkpointTime);
+            }
+        }
+        for (MappedRrd rrd : changed) {
+            rrd.force();
+        }
+    }
+
+    /**
+     * Writes the changed RRDs to the database and releases the memory-mapped files. If this
+     * member is no longer the senior member the changes are discarded instead.
+     */
+    public void close() {
+        boolean senior = ClusterManager.isSeniorClusterMember();
+        if (senior) {
+            checkpoint();
+        }
+        release(!senior);
+    }
+
+    /**
+     * Releases the memory-mapped files.
+     *
+     * @param discardChanges true to delete the files of the RRDs that changed since they were
+     *        last written to the database, so that they are loaded from the database again.
+     */
+    private synchronized void release(boolean discardChanges) {
+        for (Map.Entry<String, MappedRrd> entry : rrds.entrySet()) {
+            MappedRrd rrd = entry.getValue();
+            rrd.close();
+            if (discardChanges && rrd.isChanged()) {
+                File file = getFile(entry.getKey());
+                Log.warn("Discarding changes to RRD " + entry.getKey() + " that were not written to the database");
+                if (!file.delete()) {
+                    Log.error("Error deleting RRD file " + file);
+                }
+            }
+        }
+        rrds.clear();
+    }
+
+    private File getFile(String id) {
+        return new File(directory, id + FILE_SUFFIX);
+    }
+
+    /**
+     * Returns the memory-mapped RRD with the given id. The local file is used unless the RRD
+     * was written to the database after the file was last modified, which happens when another
+     * cluster member was sampling statistics.
+     */
+    private synchronized MappedRrd getRrd(String id) throws IOException {
+        MappedRrd rrd = rrds.get(id);
+        if (rrd != null) {
+            return rrd;
+        }
+        File file = getFile(id);
+        byte[] bytes = null;
+        Connection con = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        try {
+            con = DbConnectionManager.getConnection();
+            pstmt = con.prepareStatement(RrdSqlBackend.JDBC_SELECT_UPDATED);
+            pstmt.setString(1, id);
+            rs = pstmt.executeQuery();
+            if (rs.next() && (!file.exists() || rs.getLong("updatedDate") > file.lastModified())) {
+                bytes = rs.getBytes("bytes");
+            }
+        }
+        catch (SQLException e) {
+            Log.error("Error while accessing information in database: " + e);
+        }
+        finally {
+            DbConnectionManager.closeConnection(rs, pstmt, con);
+        }
+        if (bytes != null || !file.exists()) {
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                if (bytes != null) {
+                    out.write(bytes);
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        rrd = new MappedRrd(file);
+        rrds.put(id, rrd);
+        return rrd;
+    }
+
+    /**
+     * An RRD file mapped in memory.
+     */
+    private static class MappedRrd {
+
+        private final RandomAccessFile file;
+        private MappedByteBuffer buffer;
+        /**
+         * True if the RRD changed since it was last written to the database.
+         */
+        private boolean changed;
+
+        MappedRrd(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "rw");
+            map();
+        }
+
+        private void map() throws IOException {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+        }
+
+        synchronized long getLength() {
+            return buffer.capacity();
+        }
+
+        synchronized void setLength(long length) throws IOException {
+            file.setLength(length);
+            map();
+            changed = true;
+        }
+
+        synchronized void read(long offset, byte[] b) {
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) offset);
+            view.get(b);
+        }
+
+        synchronized void write(long offset, byte[] b) {
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) offset);
+            view.put(b);
+            changed = true;
+        }
+
+        /**
+         * Returns the content of the RRD if it changed since this method was last called, or
+         * <tt>null</tt> if it did not change.
+         */
+        synchronized byte[] getChanges() {
+            if (!changed) {
+                return null;
+            }
+            changed = false;
+            byte[] bytes = new byte[buffer.capacity()];
+            ByteBuffer view = buffer.duplicate();
+            view.position(0);
+            view.get(bytes);
+            return bytes;
+        }
+
+        synchronized boolean isChanged() {
+            return changed;
+        }
+
+        synchronized void force() {
+            buffer.force();
+        }
+
+        synchronized void close() {
+            buffer.force();
+            try {
+                file.close();
+            }
+            catch (IOException e) {
+                Log.error("Error closing RRD file", e);
+            }
+        }
+    }
+
+    /**
+     * Backend of an RRD opened by JRobin. Reads and writes go to the memory-mapped file.
+     */
+    private static class MappedBackend extends RrdBackend {
+
+        private final MappedRrd rrd;
+        private final boolean readOnly;
+
+        MappedBackend(String path, MappedRrd rrd, boolean readOnly) {
+            super(path);
+            this.rrd = rrd;
+            this.readOnly = readOnly;
+        }
+
+        @Override
+        protected void write(long offset, byte[] b) {
+            if (!readOnly) {
+                rrd.write(offset, b);
+            }
+        }
+
+        @Override
+        protected void read(long offset, byte[] b) {
+            rrd.read(offset, b);
+        }
+
+        @Override
+        public long getLength() {
+            return rrd.getLength();
+        }
+
+        @Override
+        protected void setLength(long length) throws IOException {
+            rrd.setLength(length);
+        }
+    }
+}
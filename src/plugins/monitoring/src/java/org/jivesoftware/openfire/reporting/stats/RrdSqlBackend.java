@@ -37,6 +37,7 @@ public class RrdSqlBackend extends RrdBackend {
 	
     // SQL prepared statements
     static final String JDBC_SELECT = "SELECT bytes from ofRRDs where id = ?";
+    static final String JDBC_SELECT_UPDATED = "SELECT bytes, updatedDate from ofRRDs where id = ?";
     static final String JDBC_INSERT = "INSERT INTO ofRRDs (id, updatedDate, bytes) VALUES (?, ?, ?)";
     static final String JDBC_UPDATE = "UPDATE ofRRDs SET bytes = ?, updatedDate=? WHERE id = ?";
     static final String JDBC_DELETE = "DELETE FROM ofRRDs WHERE id = ?";
@@ -181,24 +182,40 @@ public class RrdSqlBackend extends RrdBackend {
     // sends bytes in memory to the database
     protected void sync() throws IOException {
     	// RRD id is here
-        String id = super.getPath();
+        save(super.getPath(), buffer);
+    }
+
+    // stores the bytes of the RRD with the given id in the database, adding the
+    // RRD if it does not exist yet. Returns the update date or 0 if saving failed.
+    // used from RrdMappedBackendFactory class
+    static long save(String id, byte[] bytes) {
+        long updatedDate = System.currentTimeMillis();
         Connection con = null;
         PreparedStatement pstmt = null;
-        ResultSet rs = null;
+        PreparedStatement insertStmt = null;
         try {
             con = DbConnectionManager.getConnection();
             pstmt = con.prepareStatement(JDBC_UPDATE);
-            pstmt.setBytes(1, buffer);
-            pstmt.setLong(2, System.currentTimeMillis());
+            pstmt.setBytes(1, bytes);
+            pstmt.setLong(2, updatedDate);
             pstmt.setString(3, id);
-            pstmt.executeUpdate();
+            if (pstmt.executeUpdate() == 0) {
+                insertStmt = con.prepareStatement(JDBC_INSERT);
+                insertStmt.setString(1, id);
+                insertStmt.setLong(2, updatedDate);
+                insertStmt.setBytes(3, bytes);
+                insertStmt.executeUpdate();
+            }
+            return updatedDate;
         }
         catch (Exception e) {
             Log.error("Error while updating information in database: " + e);
         }
         finally {
-            DbConnectionManager.closeConnection(rs, pstmt, con);
+            DbConnectionManager.closeStatement(insertStmt);
+            DbConnectionManager.closeConnection(pstmt, con);
         }
+        return 0;
     }
 
     // checks if RRD with the given id already exists in the database
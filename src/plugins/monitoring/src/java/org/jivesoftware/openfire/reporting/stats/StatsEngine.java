@@ -72,6 +72,8 @@ public class StatsEngine implements Startable {
 
     private SampleTask samplingTask = new SampleTask();
 
+    private RrdMappedBackendFactory backendFactory;
+
     /**
      * The default constructor used by the plugin container.
      *
@@ -84,8 +86,9 @@ public class StatsEngine implements Startable {
 
     public void start() {
         try {
-            // Set that RRD files will be stored in the database
-            RrdBackendFactory.registerAndSetAsDefaultFactory(new RrdSqlBackendFactory());
+            // Set that RRD files will be kept in memory-mapped files and stored in the database
+            backendFactory = new RrdMappedBackendFactory(new File(getStatsDirectroy()));
+            RrdBackendFactory.registerAndSetAsDefaultFactory(backendFactory);
 
             // After 10 milliseconds begin sampling in 60 second intervals. Note: We need to start
             // asap so that the UI can access this info upon start up
@@ -99,6 +102,10 @@ public class StatsEngine implements Startable {
     public void stop() {
         // Clean-up sampling task
         samplingTask.cancel();
+        // Store the latest samples in the database
+        if (backendFactory != null) {
+            samplingTask.close();
+        }
     }
 
     private void checkDatabase(StatDefinition[] def) throws RrdException, IOException {
@@ -119,7 +126,7 @@ public class StatsEngine implements Startable {
         }
 
         // check if the rrd exists
-        if (!RrdSqlBackend.exists(def[0].getDbPath())) {
+        if (!backendFactory.exists(def[0].getDbPath())) {
             RrdDb db = null;
             try {
                 RrdDef rrdDef = new RrdDef(def[0].getDbPath(), STAT_RESOULUTION);
@@ -298,9 +305,32 @@ public class StatsEngine implements Startable {
      */
     private class SampleTask extends TimerTask {
         private long lastSampleTime = 0;
+        private long lastCheckpointTime = System.currentTimeMillis();
 
+        /**
+         * Samples the statistics and writes the RRDs that changed to the database every
+         * "stats.checkpointInterval" minutes. The RRDs are only copied to the database after
+         * all samples were written, so that they are never copied during an update.
+         */
         @Override
-		public void run() {
+		public synchronized void run() {
+            sample();
+            long checkpointInterval = JiveGlobals.getIntProperty("stats.checkpointInterval", 5) * 60000L;
+            if (System.currentTimeMillis() - lastCheckpointTime >= checkpointInterval) {
+                backendFactory.checkpoint();
+                lastCheckpointTime = System.currentTimeMillis();
+            }
+        }
+
+        /**
+         * Writes the changed RRDs to the database and releases them once the sampling that
+         * may be running is done.
+         */
+        synchronized void close() {
+            backendFactory.close();
+        }
+
+        private void sample() {
             if (!ClusterManager.isSeniorClusterMember()) {
                 // Create statistics definitions but do not sample them since we are not the senior cluster member
                 for (Map.Entry<String, Statistic> statisticEntry : statsManager.getAllStatistics()) {
@@ -0,0 +1,118 @@
+package com.reucon.openfire.plugin.archive.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.jivesoftware.database.ConnectionProvider;
+import org.jivesoftware.database.DbConnectionManager;
+
+/**
+ * Connection provider of an in-memory HSQLDB database with the schema of the monitoring
+ * plugin, used to run <tt>JdbcPersistenceManager</tt> against a real database. The schema is
+ * created from <tt>monitoring_hsqldb.sql</tt>, which the build copies to
+ * <tt>resources/database</tt> of the test directory, and the database is shut down when the
+ * provider is destroyed.
+ */
+class EmbeddedArchiveDatabase implements ConnectionProvider {
+
+    private static final String SCHEMA = "./resources/database/monitoring_hsqldb.sql";
+
+    private final String url;
+
+    private EmbeddedArchiveDatabase(String name) {
+        this.url = "jdbc:hsqldb:mem:" + name;
+    }
+
+    /**
+     * Creates an empty archive database and makes it the database of <tt>DbConnectionManager</tt>.
+     *
+     * @param name the name of the in-memory database.
+     */
+    static void start(String name) throws Exception {
+        Class.forName("org.hsqldb.jdbcDriver");
+        EmbeddedArchiveDatabase database = new EmbeddedArchiveDatabase(name);
+        Connection con = database.getConnection();
+        try {
+            Statement stmt = con.createStatement();
+            try {
+                // Core tables used by the plugin schema and by JiveGlobals
+                stmt.execute("CREATE TABLE ofVersion (name VARCHAR(50) NOT NULL, version INTEGER NOT NULL, "
+                        + "CONSTRAINT ofVersion_pk PRIMARY KEY (name))");
+                stmt.execute("CREATE TABLE ofProperty (name VARCHAR(100) NOT NULL, propValue VARCHAR(4000) NOT NULL, "
+                        + "CONSTRAINT ofProperty_pk PRIMARY KEY (name))");
+                for (String command : readSchema()) {
+                    stmt.execute(command);
+                }
+            }
+            finally {
+                stmt.close();
+            }
+        }
+        finally {
+            con.close();
+        }
+        DbConnectionManager.setConnectionProvider(database);
+    }
+
+    /**
+     * Shuts down the database of <tt>DbConnectionManager</tt>.
+     */
+    static void stop() {
+        DbConnectionManager.destroyConnectionProvider();
+    }
+
+    private static String[] readSchema() throws IOException {
+        StringBuilder script = new StringBuilder();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(new File(SCHEMA)), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.trim().startsWith("//")) {
+                    script.append(line).append('\n');
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        return script.toString().trim().split(";\\s*");
+    }
+
+    public boolean isPooled() {
+        return false;
+    }
+
+    public Connection getConnection() throws SQLException {
+        return DriverManager.getConnection(url, "sa", "");
+    }
+
+    public void start() {
+    }
+
+    public void restart() {
+    }
+
+    public void destroy() {
+        try {
+            Connection con = getConnection();
+            try {
+                Statement stmt = con.createStatement();
+                stmt.execute("SHUTDOWN");
+                stmt.close();
+            }
+            finally {
+                con.close();
+            }
+        }
+        catch (SQLException e) {
+            // Nothing else to release
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.reucon.openfire.plugin.archive.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.jivesoftware.database.DbConnectionManager;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.reucon.openfire.plugin.archive.model.ArchivedMessage;
+import com.reucon.openfire.plugin.archive.xep0059.XmppResultSet;
+
+/**
+ * Pages through the message index of a user with <tt>JdbcPersistenceManager</tt> against an
+ * in-memory HSQLDB database. The owner has ten messages, with IDs 10 to 100, interleaved with
+ * messages of another user that must never be returned.
+ */
+public class JdbcPersistenceManagerTest {
+
+    private static final String OWNER = "owner@example.com";
+    private static final String OTHER = "other@example.com";
+    private static final String FRIEND = "friend@example.com";
+    private static final String COLLEAGUE = "colleague@example.com";
+    private static final int MAX = 3;
+
+    private final JdbcPersistenceManager manager = new JdbcPersistenceManager();
+
+    @BeforeClass
+    public static void createArchive() throws Exception {
+        EmbeddedArchiveDatabase.start("JdbcPersistenceManagerTest");
+        Connection con = DbConnectionManager.getConnection();
+        PreparedStatement message = con.prepareStatement("INSERT INTO ofMessageArchive (messageID, "
+                + "conversationID, fromJID, toJID, sentDate, stanza, body) VALUES (?,?,?,?,?,?,?)");
+        PreparedStatement index = con.prepareStatement("INSERT INTO ofMessageIndex (ownerJID, withJID, "
+                + "sentDate, messageID) VALUES (?,?,?,?)");
+        try {
+            long time = System.currentTimeMillis() - 1000000;
+            for (long id = 10; id <= 100; id += 5) {
+                // Messages of the owner alternate between two contacts
+                String owner = id % 10 == 0 ? OWNER : OTHER;
+                String with = id % 20 == 0 ? FRIEND : COLLEAGUE;
+                message.setLong(1, id);
+                message.setLong(2, id % 10 == 0 ? 1 : 2);
+                message.setString(3, owner);
+                message.setString(4, with);
+                message.setLong(5, time + id);
+                message.setString(6, "<message><body>Message " + id + "</body></message>");
+                message.setString(7, "Message " + id);
+                message.executeUpdate();
+                index.setString(1, owner);
+                index.setString(2, with);
+                index.setLong(3, time + id);
+                index.setLong(4, id);
+                index.executeUpdate();
+            }
+        }
+        finally {
+            DbConnectionManager.closeStatement(message);
+            DbConnectionManager.closeConnection(index, con);
+        }
+    }
+
+    @AfterClass
+    public static void destroyArchive() {
+        EmbeddedArchiveDatabase.stop();
+    }
+
+    @Test
+    public void testFirstPage() {
+        XmppResultSet resultSet = resultSet(null, null);
+        assertEquals(Arrays.asList(10L, 20L, 30L), find(null, resultSet));
+        assertEquals(10, resultSet.getCount().intValue());
+        assertFalse(resultSet.isComplete());
+        assertPage(resultSet, 10L, 30L, "0");
+    }
+
+    @Test
+    public void testMiddlePageAfter() {
+        XmppResultSet resultSet = resultSet("after", "30");
+        assertEquals(Arrays.asList(40L, 50L, 60L), find(null, resultSet));
+        assertFalse(resultSet.isComplete());
+        // The index of a page in the middle of the set is not counted
+        assertPage(resultSet, 40L, 60L, null);
+    }
+
+    @Test
+    public void testLastPageAfter() {
+        XmppResultSet resultSet = resultSet("after", "70");
+        assertEquals(Arrays.asList(80L, 90L, 100L), find(null, resultSet));
+        assertTrue(resultSet.isComplete());
+        assertPage(resultSet, 80L, 100L, "7");
+    }
+
+    @Test
+    public void testShortLastPageAfter() {
+        XmppResultSet resultSet = resultSet("after", "90");
+        assertEquals(Arrays.asList(100L), find(null, resultSet));
+        assertTrue(resultSet.isComplete());
+        assertPage(resultSet, 100L, 100L, "9");
+    }
+
+    @Test
+    public void testNothingAfterLastMessage() {
+        XmppResultSet resultSet = resultSet("after", "100");
+        assertTrue(find(null, resultSet).isEmpty());
+        assertTrue(resultSet.isComplete());
+        assertEquals(10, resultSet.getCount().intValue());
+        assertNull(resultSet.createResultElement().element("first"));
+    }
+
+    @Test
+    public void testEmptyBeforeReturnsLastPage() {
+        XmppResultSet resultSet = resultSet("before", "");
+        // Read backwards from the end of the set, so the newest messages are returned
+        assertEquals(Arrays.asList(80L, 90L, 100L), find(null, resultSet));
+        assertFalse(resultSet.isComplete());
+        assertPage(resultSet, 80L, 100L, "7");
+    }
+
+    @Test
+    public void testMiddlePageBefore() {
+        XmppResultSet resultSet = resultSet("before", "70");
+        assertEquals(Arrays.asList(40L, 50L, 60L), find(null, resultSet));
+        assertFalse(resultSet.isComplete());
+        assertPage(resultSet, 40L, 60L, null);
+    }
+
+    @Test
+    public void testFirstPageBefore() {
+        XmppResultSet resultSet = resultSet("before", "40");
+        assertEquals(Arrays.asList(10L, 20L, 30L), find(null, resultSet));
+        assertTrue(resultSet.isComplete());
+        assertPage(resultSet, 10L, 30L, "0");
+    }
+
+    @Test
+    public void testShortFirstPageBefore() {
+        XmppResultSet resultSet = resultSet("before", "30");
+        assertEquals(Arrays.asList(10L, 20L), find(null, resultSet));
+        assertTrue(resultSet.isComplete());
+        assertPage(resultSet, 10L, 20L, "0");
+    }
+
+    @Test
+    public void testPageAtIndex() {
+        XmppResultSet resultSet = resultSet("index", "4");
+        assertEquals(Arrays.asList(50L, 60L, 70L), find(null, resultSet));
+        assertFalse(resultSet.isComplete());
+        assertPage(resultSet, 50L, 70L, "4");
+    }
+
+    @Test
+    public void testPagesWithContact() {
+        XmppResultSet resultSet = resultSet(null, null);
+        assertEquals(Arrays.asList(20L, 40L, 60L), find(FRIEND, resultSet));
+        assertEquals(5, resultSet.getCount().intValue());
+        assertFalse(resultSet.isComplete());
+
+        resultSet = resultSet("after", "60");
+        assertEquals(Arrays.asList(80L, 100L), find(FRIEND, resultSet));
+        assertTrue(resultSet.isComplete());
+        assertPage(resultSet, 80L, 100L, "3");
+    }
+
+    private List<Long> find(String withJid, XmppResultSet resultSet) {
+        Collection<ArchivedMessage> messages = manager.findMessages(null, null, OWNER, withJid, resultSet);
+        List<Long> ids = new ArrayList<Long>();
+        for (ArchivedMessage message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    private static XmppResultSet resultSet(String name, String value) {
+        Element set = DocumentHelper.createElement(QName.get("set", XmppResultSet.NAMESPACE));
+        set.addElement("max").setText(Integer.toString(MAX));
+        if (name != null) {
+            set.addElement(name).setText(value);
+        }
+        return new XmppResultSet(set);
+    }
+
+    private static void assertPage(XmppResultSet resultSet, Long first, Long last, String firstIndex) {
+        Element set = resultSet.createResultElement();
+        assertEquals(first.toString(), set.elementText("first"));
+        assertEquals(firstIndex, set.element("first").attributeValue("index"));
+        assertEquals(last.toString(), set.elementText("last"));
+    }
+}
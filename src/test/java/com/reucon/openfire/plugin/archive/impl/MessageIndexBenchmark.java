@@ -0,0 +1,157 @@
+package com.reucon.openfire.plugin.archive.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Random;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.QName;
+import org.jivesoftware.database.DbConnectionManager;
+import org.jivesoftware.util.JiveGlobals;
+
+import com.reucon.openfire.plugin.archive.model.ArchivedMessage;
+import com.reucon.openfire.plugin.archive.xep0059.XmppResultSet;
+
+/**
+ * Compares the time needed by <tt>JdbcPersistenceManager</tt> to page through the archive of a
+ * user with the queries that join <tt>ofConParticipant</tt> and <tt>ofMessageArchive</tt> and
+ * use offsets, as done before the message index existed, and with the keyset queries over
+ * <tt>ofMessageIndex</tt>. A synthetic archive of one-to-one conversations is created in an
+ * in-memory embedded database.<p>
+ *
+ * This is not a unit test. Run it from the test directory with
+ * <tt>java com.reucon.openfire.plugin.archive.impl.MessageIndexBenchmark [messages] [pageSize] [pages]</tt>
+ * using the test dependencies in the classpath.
+ */
+public class MessageIndexBenchmark {
+
+    private static final int USERS = 500;
+    private static final int MESSAGES_PER_CONVERSATION = 50;
+    private static final String OWNER = "user0@example.com";
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        int pages = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+        EmbeddedArchiveDatabase.start("MessageIndexBenchmark");
+        try {
+            Connection con = DbConnectionManager.getConnection();
+            int owned;
+            try {
+                owned = populate(con, messages);
+            }
+            finally {
+                DbConnectionManager.closeConnection(con);
+            }
+            System.out.println("Messages: " + messages + ", messages of " + OWNER + ": " + owned
+                    + ", page size: " + pageSize);
+
+            // Warm up both paths before measuring.
+            page(false, pageSize, pages);
+            page(true, pageSize, pages);
+
+            long start = System.nanoTime();
+            long legacyLast = page(false, pageSize, pages);
+            long legacyTime = System.nanoTime() - start;
+            start = System.nanoTime();
+            long indexedLast = page(true, pageSize, pages);
+            long indexedTime = System.nanoTime() - start;
+            if (legacyLast != indexedLast) {
+                throw new IllegalStateException("Paging returned different messages: " + legacyLast
+                        + " and " + indexedLast);
+            }
+            System.out.println("Pages  Join/offset (ms/page)  Index/keyset (ms/page)");
+            System.out.printf("%5d  %21.2f  %22.2f%n", pages,
+                    legacyTime / 1000000.0 / pages, indexedTime / 1000000.0 / pages);
+        }
+        finally {
+            EmbeddedArchiveDatabase.stop();
+        }
+    }
+
+    /**
+     * Creates conversations between random pairs of users, where one conversation in ten
+     * involves {@link #OWNER}, and returns the number of messages of {@link #OWNER}.
+     */
+    private static int populate(Connection con, int messages) throws SQLException {
+        PreparedStatement participant = con.prepareStatement("INSERT INTO ofConParticipant "
+                + "(conversationID, joinedDate, bareJID, jidResource) VALUES (?,?,?,?)");
+        PreparedStatement message = con.prepareStatement("INSERT INTO ofMessageArchive (messageID, "
+                + "conversationID, fromJID, toJID, sentDate, stanza, body) VALUES (?,?,?,?,?,?,?)");
+        PreparedStatement index = con.prepareStatement("INSERT INTO ofMessageIndex (ownerJID, withJID, "
+                + "sentDate, messageID) VALUES (?,?,?,?)");
+        Random random = new Random(42);
+        long time = System.currentTimeMillis() - messages * 1000L;
+        int owned = 0;
+        try {
+            long messageID = 0;
+            for (long conversationID = 1; messageID < messages; conversationID++) {
+                int first = conversationID % 10 == 0 ? 0 : 1 + random.nextInt(USERS - 1);
+                int second = 1 + (first + random.nextInt(USERS - 2)) % (USERS - 1);
+                String user1 = "user" + first + "@example.com";
+                String user2 = "user" + second + "@example.com";
+                for (String user : new String[] {user1, user2}) {
+                    participant.setLong(1, conversationID);
+                    participant.setLong(2, time);
+                    participant.setString(3, user);
+                    participant.setString(4, "home");
+                    participant.executeUpdate();
+                }
+                for (int i = 0; i < MESSAGES_PER_CONVERSATION && messageID < messages; i++, messageID++) {
+                    String from = i % 2 == 0 ? user1 : user2;
+                    String to = i % 2 == 0 ? user2 : user1;
+                    time += 1000;
+                    message.setLong(1, messageID);
+                    message.setLong(2, conversationID);
+                    message.setString(3, from);
+                    message.setString(4, to);
+                    message.setLong(5, time);
+                    message.setString(6, "<message from=\"" + from + "\" to=\"" + to + "\"><body>Message "
+                            + messageID + "</body></message>");
+                    message.setString(7, "Message " + messageID);
+                    message.executeUpdate();
+                    for (String owner : new String[] {from, to}) {
+                        index.setString(1, owner);
+                        index.setString(2, owner.equals(from) ? to : from);
+                        index.setLong(3, time);
+                        index.setLong(4, messageID);
+                        index.executeUpdate();
+                    }
+                    if (user1.equals(OWNER)) {
+                        owned++;
+                    }
+                }
+            }
+        }
+        finally {
+            participant.close();
+            message.close();
+            index.close();
+        }
+        return owned;
+    }
+
+    /**
+     * Pages through the archive of {@link #OWNER} with <tt>JdbcPersistenceManager</tt>, using the
+     * message index or not. Returns the ID of the last message read.
+     */
+    private static long page(boolean indexed, int pageSize, int pages) {
+        JiveGlobals.setProperty("archive.messageIndex.enabled", Boolean.toString(indexed));
+        JdbcPersistenceManager manager = new JdbcPersistenceManager();
+        Long after = null;
+        for (int page = 0; page < pages; page++) {
+            Element set = DocumentHelper.createElement(QName.get("set", XmppResultSet.NAMESPACE));
+            set.addElement("max").setText(Integer.toString(pageSize));
+            if (after != null) {
+                set.addElement("after").setText(after.toString());
+            }
+            for (ArchivedMessage message : manager.findMessages(null, null, OWNER, null, new XmppResultSet(set))) {
+                after = message.getId();
+            }
+        }
+        return after;
+    }
+}
@@ -0,0 +1,69 @@
+package org.jivesoftware.openfire;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.dom4j.io.SAXReader;
+import org.xmpp.packet.Message;
+
+/**
+ * Measures how many offline messages per second can be loaded when a user with a flood of
+ * offline messages logs in, for messages stored as XML and for messages stored with the
+ * compact encoding of {@link OfflineMessageCodec}. Only the decoding of the stored stanzas
+ * is measured, database access is not included.<p>
+ *
+ * This is not a unit test. Run it with <tt>java org.jivesoftware.openfire.OfflineMessageCodecBenchmark</tt>
+ * using the test and server classes in the classpath.
+ */
+public class OfflineMessageCodecBenchmark {
+
+    private static final int MESSAGES = 500;
+    private static final int LOGINS = 400;
+
+    public static void main(String[] args) throws Exception {
+        List<String> xml = new ArrayList<String>(MESSAGES);
+        List<String> encoded = new ArrayList<String>(MESSAGES);
+        long xmlSize = 0;
+        long encodedSize = 0;
+        for (int i = 0; i < MESSAGES; i++) {
+            Message message = new Message();
+            message.setTo("user@example.com");
+            message.setFrom("contact" + (i % 20) + "@example.com/resource");
+            message.setType(Message.Type.chat);
+            message.setID("msg" + i);
+            message.setBody("Message number " + i + " sent while you were away. See you <soon> & later.");
+            message.addChildElement("active", "http://jabber.org/protocol/chatstates");
+            xml.add(message.getElement().asXML());
+            encoded.add(OfflineMessageCodec.encode(message.getElement()));
+            xmlSize += xml.get(i).length();
+            encodedSize += encoded.get(i).length();
+        }
+        System.out.println("Stored size of " + MESSAGES + " messages: XML " + xmlSize +
+                " chars, compact encoding " + encodedSize + " chars");
+
+        SAXReader xmlReader = new SAXReader();
+        xmlReader.setEncoding("UTF-8");
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            for (int login = 0; login < LOGINS; login++) {
+                for (String stanza : xml) {
+                    new OfflineMessage(new Date(), xmlReader.read(new StringReader(stanza)).getRootElement());
+                }
+            }
+            long xmlTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int login = 0; login < LOGINS; login++) {
+                for (String stanza : encoded) {
+                    new OfflineMessage(new Date(), OfflineMessageCodec.decode(stanza));
+                }
+            }
+            long encodedTime = System.nanoTime() - start;
+
+            System.out.printf("Round %d: XML %,.0f msg/s, compact encoding %,.0f msg/s%n", round + 1,
+                    (double) LOGINS * MESSAGES * 1e9 / xmlTime, (double) LOGINS * MESSAGES * 1e9 / encodedTime);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.jivesoftware.openfire;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.StringReader;
+
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that messages encoded with {@link OfflineMessageCodec} are decoded to the same XML.
+ */
+public class OfflineMessageCodecTest {
+
+    private static final String[] STANZAS = {
+            "<message xmlns=\"jabber:client\" to=\"user@example.com\" from=\"other@example.com/home\" type=\"chat\" id=\"a1\"><body>Hello &amp; &lt;welcome&gt;</body><active xmlns=\"http://jabber.org/protocol/chatstates\"/></message>",
+            "<message xmlns=\"jabber:client\" to=\"user@example.com\" xml:lang=\"en\"><subject>12:34</subject><body>1:2;*3; )E</body><thread>t</thread></message>",
+            "<message xmlns=\"jabber:client\" to=\"user@example.com\"><html xmlns=\"http://jabber.org/protocol/xhtml-im\"><body xmlns=\"http://www.w3.org/1999/xhtml\"><p style=\"font-weight:bold\">Hi <span>there</span></p></body></html></message>",
+            "<message xmlns=\"jabber:client\" to=\"user@example.com\"><x xmlns=\"urn:example\" xmlns:ex=\"urn:example:ext\"><ex:item ex:attr=\"v\">€ 😀</ex:item></x><body/></message>"
+    };
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        SAXReader xmlReader = new SAXReader();
+        for (String stanza : STANZAS) {
+            Element element = xmlReader.read(new StringReader(stanza)).getRootElement();
+            String encoded = OfflineMessageCodec.encode(element);
+            assertTrue(OfflineMessageCodec.isEncoded(encoded));
+            assertTrue("Encoded stanza should be smaller: " + encoded, encoded.length() < stanza.length());
+            Message decoded = new Message(OfflineMessageCodec.decode(encoded), true);
+            assertEquals(new Message(element, true).toXML(), decoded.toXML());
+        }
+    }
+
+    @Test
+    public void testXMLIsNotEncoded() {
+        for (String stanza : STANZAS) {
+            assertFalse(OfflineMessageCodec.isEncoded(stanza));
+        }
+    }
+
+    @Test
+    public void testInvalidEncodings() {
+        String[] invalid = {"#1;", "#1;E*1;*2;", "#1;E*1;*2;T5:ab)", "#1;E*99;*2;)", "#1;E*1;*2;Q)", "#1;E*1;*2;))"};
+        for (String stanza : invalid) {
+            try {
+                OfflineMessageCodec.decode(stanza);
+                fail("Stanza should not be decoded: " + stanza);
+            }
+            catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.jivesoftware.openfire.audit.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.jivesoftware.openfire.audit.AuditManager;
+import org.jivesoftware.util.FastDateFormat;
+import org.jivesoftware.util.TestUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that {@link AuditorImpl} saves audited packets to compressed audit files that
+ * can be read back, including audit files written in the uncompressed format.
+ */
+public class AuditorImplTest {
+
+    private File logDir;
+
+    @Before
+    public void setUp() throws Exception {
+        logDir = File.createTempFile("audit", "");
+        logDir.delete();
+        logDir.mkdir();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : logDir.listFiles()) {
+            file.delete();
+        }
+        logDir.delete();
+    }
+
+    @Test
+    public void testAuditedPacketsAreReadBack() throws Exception {
+        AuditorImpl auditor = createAuditor();
+        for (int i = 0; i < 3; i++) {
+            auditor.audit(createMessage("Hello " + i), null);
+        }
+        auditor.stop();
+        // Packets audited after a restart are saved to a new audit file
+        auditor = createAuditor();
+        auditor.audit(createMessage("Hello 3"), null);
+        auditor.stop();
+
+        assertTrue(new File(logDir, "jive.audit-" + today() + "-000.log.gz").exists());
+        assertTrue(new File(logDir, "jive.audit-" + today() + "-000.idx").exists());
+        assertTrue(new File(logDir, "jive.audit-" + today() + "-001.log.gz").exists());
+        List<String> packets = auditor.getAuditedPackets(null, null, 10);
+        assertEquals(4, packets.size());
+        for (int i = 0; i < packets.size(); i++) {
+            assertTrue(packets.get(i), packets.get(i).contains("<body>Hello " + i + "</body>"));
+            assertTrue(packets.get(i), packets.get(i).endsWith("</packet>"));
+        }
+        assertEquals(2, auditor.getAuditedPackets(null, null, 2).size());
+        assertEquals(0, auditor.getAuditedPackets(new Date(System.currentTimeMillis() + 60000), null, 10).size());
+        assertEquals(0, auditor.getDroppedPacketsNumber());
+    }
+
+    @Test
+    public void testUncompressedAuditFilesAreReadBack() throws Exception {
+        // Audit file that was not closed properly
+        Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(logDir, "jive.audit-20080101-000.log")), "UTF-8");
+        writer.write("<jive xmlns=\"http://www.jivesoftware.org\"><packet xmlns=\"http://www.jivesoftware.org\" " +
+                "status=\"auth\" timestamp=\"bad\"><message><body>First</body></message></packet>" +
+                "<packet xmlns=\"http://www.jivesoftware.org\" status=\"auth\" timestamp=\"bad\">" +
+                "<message><body>Second</body></message></packet>");
+        writer.close();
+
+        AuditorImpl auditor = createAuditor();
+        List<String> packets = auditor.getAuditedPackets(null, null, 10);
+        auditor.stop();
+        assertEquals(2, packets.size());
+        assertTrue(packets.get(0).contains("First"));
+        assertTrue(packets.get(1).contains("Second"));
+    }
+
+    private AuditorImpl createAuditor() {
+        AuditManager manager = TestUtils.createStub(AuditManager.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return method.getReturnType() == boolean.class ? Boolean.TRUE : null;
+            }
+        });
+        AuditorImpl auditor = new AuditorImpl(manager);
+        auditor.setMaxValues(100, 10, -1);
+        auditor.setLogDir(logDir.getPath());
+        auditor.start();
+        return auditor;
+    }
+
+    private static Message createMessage(String body) {
+        Message message = new Message();
+        message.setFrom("user@example.com/home");
+        message.setTo("friend@example.com");
+        message.setBody(body);
+        return message;
+    }
+
+    private static String today() {
+        return FastDateFormat.getInstance("yyyyMMdd", TimeZone.getTimeZone("UTC")).format(new Date());
+    }
+}
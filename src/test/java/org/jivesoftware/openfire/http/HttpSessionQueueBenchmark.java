@@ -0,0 +1,243 @@
+package org.jivesoftware.openfire.http;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput of the request bookkeeping of HTTP sessions with thousands of
+ * simulated long-poll clients, using a synchronized list of connections that is sorted by
+ * rid on every request, as done before, and using a {@link RidRing}. Every client holds one
+ * request: request threads send the next request of random clients, which answers the held
+ * request, while delivery threads answer the held request of random clients with a stanza.
+ * Every answer computes the acknowledged rid as {@link HttpSession} does.<p>
+ *
+ * The servlet and the session can't be used here since sessions need a running server, so
+ * the benchmark replays the operations that the session performs on its queues.<p>
+ *
+ * This is not a unit test. Run it with <tt>java org.jivesoftware.openfire.http.HttpSessionQueueBenchmark</tt>
+ * using the test and server classes in the classpath.
+ */
+public class HttpSessionQueueBenchmark {
+
+    private static final int MAX_REQUESTS = 2;
+    private static final long DURATION = 2000;
+
+    public static void main(String[] args) throws InterruptedException {
+        // At least one request thread and one delivery thread
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        System.out.println("Clients  Threads  Sorted list (req/s)  RID ring (req/s)");
+        for (int clients = 1000; clients <= 16000; clients *= 4) {
+            run(true, clients, threads);
+            run(false, clients, threads);
+            long sorted = run(true, clients, threads);
+            long ring = run(false, clients, threads);
+            System.out.printf("%7d  %7d  %19d  %16d%n", clients, threads, sorted * 1000 / DURATION,
+                    ring * 1000 / DURATION);
+        }
+    }
+
+    /**
+     * Runs the simulation for a while and returns the number of requests that were answered.
+     */
+    private static long run(boolean sorted, int count, int threads) throws InterruptedException {
+        final Client[] clients = new Client[count];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = sorted ? new SortedListClient() : new RidRingClient();
+            clients[i].request();
+        }
+        final AtomicLong answered = new AtomicLong();
+        final long end = System.currentTimeMillis() + DURATION;
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final boolean delivering = i % 2 == 1;
+            new Thread() {
+                @Override
+                public void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    long count = 0;
+                    while (System.currentTimeMillis() < end) {
+                        for (int j = 0; j < 1000; j++) {
+                            Client client = clients[random.nextInt(clients.length)];
+                            if (delivering ? client.deliver() : client.request()) {
+                                count++;
+                            }
+                        }
+                    }
+                    answered.addAndGet(count);
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        return answered.get();
+    }
+
+    private static class Connection {
+
+        private final long rid;
+        private volatile boolean closed;
+
+        Connection(long rid) {
+            this.rid = rid;
+        }
+    }
+
+    private static abstract class Client {
+
+        volatile long lastRequestID;
+        private long nextRequestID = 1;
+
+        /**
+         * Sends the next request of the client, answering the held request if any. Requests
+         * are serialized per client, as the servlet does.
+         */
+        synchronized boolean request() {
+            add(new Connection(nextRequestID++));
+            return answer(1);
+        }
+
+        /**
+         * Answers the oldest open request with a stanza, if any.
+         */
+        boolean deliver() {
+            return answer(0);
+        }
+
+        /**
+         * Answers the oldest open request if more than the given number of requests are open.
+         */
+        private boolean answer(int hold) {
+            Connection connection = open(lastRequestID + 1);
+            if (connection == null || openCount() <= hold) {
+                return false;
+            }
+            synchronized (connection) {
+                if (connection.closed) {
+                    return false;
+                }
+                connection.closed = true;
+            }
+            lastRequestID = connection.rid;
+            getLastAcknowledged();
+            remove(connection);
+            return true;
+        }
+
+        abstract void add(Connection connection);
+
+        abstract Connection open(long rid);
+
+        abstract int openCount();
+
+        abstract long getLastAcknowledged();
+
+        abstract void remove(Connection connection);
+    }
+
+    private static class SortedListClient extends Client {
+
+        private static final Comparator<Connection> comparator = new Comparator<Connection>() {
+            public int compare(Connection o1, Connection o2) {
+                return (int) (o1.rid - o2.rid);
+            }
+        };
+
+        private final List<Connection> connectionQueue = Collections.synchronizedList(new LinkedList<Connection>());
+
+        @Override
+        void add(Connection connection) {
+            connectionQueue.add(connection);
+            Collections.sort(connectionQueue, comparator);
+        }
+
+        @Override
+        Connection open(long rid) {
+            synchronized (connectionQueue) {
+                for (Connection connection : connectionQueue) {
+                    if (!connection.closed && connection.rid == rid) {
+                        return connection;
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        int openCount() {
+            int count = 0;
+            synchronized (connectionQueue) {
+                for (Connection connection : connectionQueue) {
+                    if (!connection.closed) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+
+        @Override
+        long getLastAcknowledged() {
+            long ack = lastRequestID;
+            Collections.sort(connectionQueue, comparator);
+            synchronized (connectionQueue) {
+                for (Connection connection : connectionQueue) {
+                    if (connection.rid == ack + 1) {
+                        ack++;
+                    }
+                }
+            }
+            return ack;
+        }
+
+        @Override
+        void remove(Connection connection) {
+            connectionQueue.remove(connection);
+        }
+    }
+
+    private static class RidRingClient extends Client {
+
+        private final RidRing<Connection> connectionQueue = new RidRing<Connection>(2 * (MAX_REQUESTS + 1));
+
+        @Override
+        void add(Connection connection) {
+            connectionQueue.put(connection.rid, connection);
+        }
+
+        @Override
+        Connection open(long rid) {
+            Connection connection = connectionQueue.get(rid);
+            return connection == null || connection.closed ? null : connection;
+        }
+
+        @Override
+        int openCount() {
+            int count = 0;
+            for (Connection connection : connectionQueue.values()) {
+                if (!connection.closed) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        @Override
+        long getLastAcknowledged() {
+            long ack = lastRequestID;
+            while (connectionQueue.get(ack + 1) != null) {
+                ack++;
+            }
+            return ack;
+        }
+
+        @Override
+        void remove(Connection connection) {
+            connectionQueue.remove(connection.rid, connection);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package org.jivesoftware.openfire.http;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Verifies that {@link RidRing} keeps the values of the latest rids and never replaces the
+ * value of a rid with the value of an older rid.
+ */
+public class RidRingTest {
+
+    @Test
+    public void testGetAndRemove() {
+        RidRing<String> ring = new RidRing<String>(4);
+        assertTrue(ring.put(10, "ten"));
+        assertTrue(ring.put(11, "eleven"));
+        assertEquals("ten", ring.get(10));
+        assertNull(ring.get(14));
+        assertFalse(ring.remove(10, "eleven"));
+        assertTrue(ring.remove(10, "ten"));
+        assertNull(ring.get(10));
+        assertEquals(1, ring.values().size());
+    }
+
+    @Test
+    public void testOlderRidDoesNotReplaceNewerRid() {
+        RidRing<String> ring = new RidRing<String>(4);
+        assertTrue(ring.put(14, "fourteen"));
+        assertFalse(ring.put(10, "ten"));
+        assertEquals("fourteen", ring.get(14));
+        assertTrue(ring.put(18, "eighteen"));
+        assertNull(ring.get(14));
+        assertEquals("eighteen", ring.get(18));
+    }
+
+    @Test
+    public void testEnsureCapacityKeepsValues() {
+        RidRing<String> ring = new RidRing<String>(2);
+        ring.put(1, "one");
+        ring.put(2, "two");
+        ring.ensureCapacity(6);
+        assertTrue(ring.put(3, "three"));
+        assertEquals("one", ring.get(1));
+        assertEquals("two", ring.get(2));
+        assertEquals("three", ring.get(3));
+    }
+}
@@ -0,0 +1,88 @@
+package org.jivesoftware.openfire.muc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.ListIterator;
+
+import org.jivesoftware.util.XMPPDateTimeFormat;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+
+/**
+ * Verifies that {@link HistoryBuffer} keeps the latest messages of a room sorted by their
+ * timestamp and preserves the latest subject change.
+ */
+public class HistoryBufferTest {
+
+    @Test
+    public void testKeepsLatestMessagesAndSubject() {
+        HistoryBuffer history = new HistoryBuffer();
+        history.add(createMessage(null, "Topic", 0), 3, true);
+        for (int i = 1; i <= 10; i++) {
+            history.add(createMessage("message " + i, null, i), 3, false);
+        }
+        assertEquals(3, history.size());
+        Iterator<Message> messages = history.snapshot().iterator(0);
+        assertEquals("Topic", messages.next().getSubject());
+        assertEquals("message 8", messages.next().getBody());
+        assertEquals("message 9", messages.next().getBody());
+        assertEquals("message 10", messages.next().getBody());
+        assertFalse(messages.hasNext());
+    }
+
+    @Test
+    public void testSortsMessagesAddedOutOfOrder() {
+        HistoryBuffer history = new HistoryBuffer();
+        history.add(createMessage("message 1", null, 1), -1, false);
+        history.add(createMessage("message 3", null, 3), -1, false);
+        history.add(createMessage("message 2", null, 2), -1, false);
+        ListIterator<Message> messages = history.snapshot().iterator(3);
+        assertEquals("message 3", messages.previous().getBody());
+        assertEquals("message 2", messages.previous().getBody());
+        assertEquals("message 1", messages.previous().getBody());
+        assertFalse(messages.hasPrevious());
+    }
+
+    @Test
+    public void testSnapshotSkipsOverwrittenMessages() {
+        HistoryBuffer history = new HistoryBuffer();
+        for (int i = 1; i <= 4; i++) {
+            history.add(createMessage("message " + i, null, i), 4, false);
+        }
+        HistoryBuffer.Snapshot snapshot = history.snapshot();
+        history.add(createMessage("message 5", null, 5), 4, false);
+        assertEquals(4, snapshot.size());
+        assertNull(snapshot.get(0));
+        assertEquals("message 2", snapshot.get(1).getMessage().getBody());
+        assertEquals(9, snapshot.get(1).getTextLength());
+    }
+
+    @Test
+    public void testClearReleasesMemory() {
+        long before = HistoryBuffer.getTotalMemory();
+        HistoryBuffer history = new HistoryBuffer();
+        for (int i = 1; i <= 100; i++) {
+            history.add(createMessage("message " + i, null, i), -1, false);
+        }
+        assertEquals(100, history.size());
+        assertEquals(before + history.getMemory(), HistoryBuffer.getTotalMemory());
+        history.clear();
+        assertEquals(0, history.getMemory());
+        assertEquals(before, HistoryBuffer.getTotalMemory());
+    }
+
+    private static Message createMessage(String body, String subject, long time) {
+        Message message = new Message();
+        message.setType(Message.Type.groupchat);
+        message.setFrom("room@conference.example.com/nick");
+        message.setBody(body);
+        message.setSubject(subject);
+        message.addChildElement("delay", "urn:xmpp:delay").addAttribute("stamp",
+                XMPPDateTimeFormat.format(new Date(time * 1000)));
+        return message;
+    }
+}
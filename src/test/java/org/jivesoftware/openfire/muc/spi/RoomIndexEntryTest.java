@@ -0,0 +1,103 @@
+package org.jivesoftware.openfire.muc.spi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.jivesoftware.openfire.muc.MUCRoom;
+import org.jivesoftware.util.TestUtils;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that the index entries of rooms that are not in memory keep the users that may
+ * discover the rooms and the fields that rooms are searched by.
+ */
+public class RoomIndexEntryTest {
+
+    private static final JID OWNER = new JID("owner@example.com");
+    private static final JID ADMIN = new JID("admin@example.com");
+    private static final JID MEMBER = new JID("member@example.com");
+    private static final JID STRANGER = new JID("stranger@example.com");
+
+    @Test
+    public void testAffiliatedUsersOfHiddenRoom() {
+        RoomIndexEntry entry = new RoomIndexEntry("room", "Room", "Subject", false, false, true, 30, false,
+                Arrays.asList(OWNER, new JID("member@example.com/resource")));
+
+        assertTrue(entry.isAffiliated(OWNER));
+        assertTrue(entry.isAffiliated(new JID("owner@example.com/desktop")));
+        assertTrue(entry.isAffiliated(MEMBER));
+        assertFalse(entry.isAffiliated(STRANGER));
+    }
+
+    @Test
+    public void testEntryOfLoadedRoom() {
+        RoomIndexEntry entry = new RoomIndexEntry(createRoom(false));
+
+        assertEquals("room", entry.getName());
+        assertEquals("Room", entry.getNaturalName());
+        assertEquals("Subject", entry.getSubject());
+        assertFalse(entry.isPublicRoom());
+        assertTrue(entry.isMembersOnly());
+        assertEquals(25, entry.getMaxUsers());
+        assertTrue(entry.isPasswordProtected());
+        assertTrue(entry.isAffiliated(OWNER));
+        assertTrue(entry.isAffiliated(ADMIN));
+        assertTrue(entry.isAffiliated(MEMBER));
+        assertFalse(entry.isAffiliated(STRANGER));
+    }
+
+    @Test
+    public void testAffiliationsOfPublicRoomAreNotKept() {
+        RoomIndexEntry entry = new RoomIndexEntry(createRoom(true));
+
+        assertTrue(entry.isPublicRoom());
+        assertFalse(entry.isAffiliated(OWNER));
+    }
+
+    private static MUCRoom createRoom(final boolean publicRoom) {
+        return TestUtils.createStub(MUCRoom.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getName")) {
+                    return "room";
+                }
+                if (name.equals("getNaturalLanguageName")) {
+                    return "Room";
+                }
+                if (name.equals("isPublicRoom")) {
+                    return publicRoom;
+                }
+                if (name.equals("getSubject")) {
+                    return "Subject";
+                }
+                if (name.equals("isMembersOnly")) {
+                    return true;
+                }
+                if (name.equals("getMaxUsers")) {
+                    return 25;
+                }
+                if (name.equals("isPasswordProtected")) {
+                    return true;
+                }
+                if (name.equals("getOwners")) {
+                    return Collections.singletonList(OWNER);
+                }
+                if (name.equals("getAdmins")) {
+                    return Collections.singletonList(ADMIN);
+                }
+                if (name.equals("getMembers")) {
+                    return Collections.singletonList(MEMBER);
+                }
+                return null;
+            }
+        });
+    }
+}
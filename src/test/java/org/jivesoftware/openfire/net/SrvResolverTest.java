@@ -0,0 +1,122 @@
+package org.jivesoftware.openfire.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jivesoftware.openfire.net.DNSUtil.WeightedHostAddress;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link SrvResolver} caches the results of the lookups, including domains
+ * without records, and that concurrent requests for a domain share a single lookup.
+ */
+public class SrvResolverTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testRecordsAreCached() throws Exception {
+        StandInLookup lookup = new StandInLookup();
+        lookup.records.put("_xmpp-server._tcp.example.com",
+                new WeightedHostAddress[] {new WeightedHostAddress("xmpp.example.com.", 5269, 10, 5)});
+        SrvResolver resolver = new SrvResolver(lookup, executor, 60000, 60000, 100);
+
+        WeightedHostAddress[] records = resolver.resolve("example.com", 5000);
+        assertEquals(1, records.length);
+        assertEquals("xmpp.example.com", records[0].getHost());
+        resolver.resolve("example.com", 5000);
+        assertEquals(1, lookup.lookups.get());
+        assertEquals(1, resolver.hits.get());
+        assertEquals(1, resolver.misses.get());
+    }
+
+    @Test
+    public void testDomainsWithoutRecordsAreCached() throws Exception {
+        StandInLookup lookup = new StandInLookup();
+        SrvResolver resolver = new SrvResolver(lookup, executor, 60000, 60000, 100);
+
+        assertEquals(0, resolver.resolve("example.org", 5000).length);
+        assertEquals(0, resolver.resolve("example.org", 5000).length);
+        // Both the _xmpp-server and the _jabber names were looked up once
+        assertEquals(2, lookup.lookups.get());
+    }
+
+    @Test
+    public void testExpiredRecordsAreLookedUpAgain() throws Exception {
+        StandInLookup lookup = new StandInLookup();
+        SrvResolver resolver = new SrvResolver(lookup, executor, 0, 0, 100);
+
+        resolver.resolve("example.org", 5000);
+        resolver.resolve("example.org", 5000);
+        assertEquals(4, lookup.lookups.get());
+    }
+
+    @Test
+    public void testConcurrentRequestsShareLookup() throws Exception {
+        StandInLookup lookup = new StandInLookup();
+        lookup.blocked = new CountDownLatch(1);
+        final SrvResolver resolver = new SrvResolver(lookup, executor, 60000, 60000, 100);
+
+        try {
+            resolver.resolve("example.net", 50);
+            fail("Lookup should still be in progress");
+        }
+        catch (TimeoutException e) {
+            // Expected
+        }
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        resolver.resolve("example.net", 5000);
+                        done.countDown();
+                    }
+                    catch (TimeoutException e) {
+                        // Not counted
+                    }
+                }
+            });
+        }
+        lookup.blocked.countDown();
+        done.await(10, TimeUnit.SECONDS);
+        assertEquals(0, done.getCount());
+        assertEquals(2, lookup.lookups.get());
+    }
+
+    private static class StandInLookup implements SrvResolver.Lookup {
+
+        private final Map<String, WeightedHostAddress[]> records = new ConcurrentHashMap<String, WeightedHostAddress[]>();
+        private final AtomicInteger lookups = new AtomicInteger();
+        private volatile CountDownLatch blocked;
+
+        public WeightedHostAddress[] lookup(String name) {
+            lookups.incrementAndGet();
+            if (blocked != null) {
+                try {
+                    blocked.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            WeightedHostAddress[] result = records.get(name);
+            return result == null ? new WeightedHostAddress[0] : result;
+        }
+    }
+}
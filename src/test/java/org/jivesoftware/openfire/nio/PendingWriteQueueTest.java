@@ -0,0 +1,105 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilterAdapter;
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.core.write.WriteRequest;
+import org.junit.Test;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+
+/**
+ * Verifies that {@link PendingWriteQueue} writes the queued stanzas in order and that the
+ * stanzas of closed sessions can still be delivered by other means.
+ */
+public class PendingWriteQueueTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testStanzasAreWrittenInOrder() {
+        DummySession session = new DummySession();
+        List<String> writes = captureWrites(session);
+        PendingWriteQueue queue = new PendingWriteQueue();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            // The fifth stanza is too big to be coalesced with the ones around it
+            String text = i == 4 ? createText(i, PendingWriteQueue.MAX_COALESCED_SIZE) : createText(i, 100);
+            queue.add(createMessage(i), createBuffer(text));
+            expected.append(text);
+        }
+        List<Packet> undelivered = new ArrayList<Packet>();
+
+        assertEquals(10, queue.write(session, undelivered));
+        assertTrue(undelivered.isEmpty());
+        assertTrue(queue.isEmpty());
+        assertEquals(3, writes.size());
+        StringBuilder written = new StringBuilder();
+        for (String write : writes) {
+            written.append(write);
+        }
+        assertEquals(expected.toString(), written.toString());
+    }
+
+    @Test
+    public void testStanzasOfClosedSessionAreNotWritten() {
+        DummySession session = new DummySession();
+        List<String> writes = captureWrites(session);
+        PendingWriteQueue queue = new PendingWriteQueue();
+        List<Packet> packets = new ArrayList<Packet>();
+        for (int i = 0; i < 3; i++) {
+            Packet packet = createMessage(i);
+            packets.add(packet);
+            queue.add(packet, createBuffer(createText(i, 100)));
+        }
+        session.close(true);
+        List<Packet> undelivered = new ArrayList<Packet>();
+
+        assertEquals(0, queue.write(session, undelivered));
+        assertTrue(writes.isEmpty());
+        assertTrue(queue.isEmpty());
+        assertEquals(packets, undelivered);
+    }
+
+    private static List<String> captureWrites(IoSession session) {
+        final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+        session.getFilterChain().addFirst("capture", new IoFilterAdapter() {
+            @Override
+            public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest) {
+                IoBuffer buffer = (IoBuffer) writeRequest.getMessage();
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.duplicate().get(bytes);
+                writes.add(new String(bytes, UTF8));
+            }
+        });
+        return writes;
+    }
+
+    private static Message createMessage(int number) {
+        Message message = new Message();
+        message.setTo("user@example.com");
+        message.setBody("Message " + number);
+        return message;
+    }
+
+    private static String createText(int number, int size) {
+        StringBuilder text = new StringBuilder("<message id='" + number + "'>");
+        while (text.length() < size) {
+            text.append('x');
+        }
+        return text.append("</message>").toString();
+    }
+
+    private static IoBuffer createBuffer(String text) {
+        return IoBuffer.wrap(text.getBytes(UTF8));
+    }
+}
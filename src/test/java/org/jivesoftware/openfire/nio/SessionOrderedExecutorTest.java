@@ -0,0 +1,137 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mina.core.session.DummySession;
+import org.apache.mina.core.session.IoEvent;
+import org.apache.mina.core.session.IoEventType;
+import org.apache.mina.core.session.IoSession;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link SessionOrderedExecutor} processes the events of a session in order
+ * and that a blocked session does not delay the events of other sessions.
+ */
+public class SessionOrderedExecutorTest {
+
+    @Test
+    public void testEventsOfSessionAreProcessedInOrder() throws Exception {
+        SessionOrderedExecutor executor = new SessionOrderedExecutor(4, Executors.defaultThreadFactory(),
+                new QueueWaitTracker("test"));
+        int sessions = 8;
+        int events = 2000;
+        CountDownLatch done = new CountDownLatch(sessions * events);
+        List<List<Integer>> processed = new ArrayList<List<Integer>>();
+        List<IoSession> ioSessions = new ArrayList<IoSession>();
+        for (int i = 0; i < sessions; i++) {
+            processed.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            ioSessions.add(new DummySession());
+        }
+        for (int event = 0; event < events; event++) {
+            for (int i = 0; i < sessions; i++) {
+                executor.execute(new RecordingEvent(ioSessions.get(i), event, processed.get(i), done, null));
+            }
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (List<Integer> sessionEvents : processed) {
+            assertEquals(events, sessionEvents.size());
+            for (int event = 0; event < events; event++) {
+                assertEquals(event, sessionEvents.get(event).intValue());
+            }
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testBlockedSessionDoesNotDelayOtherSessions() throws Exception {
+        SessionOrderedExecutor executor = new SessionOrderedExecutor(4, Executors.defaultThreadFactory(), null);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        IoSession slowSession = new DummySession();
+        executor.execute(new RecordingEvent(slowSession, 0, processed, done, blocked));
+        executor.execute(new RecordingEvent(slowSession, 1, processed, done, null));
+        CountDownLatch fast = new CountDownLatch(1);
+        executor.execute(new RecordingEvent(new DummySession(), 2, processed, fast, null));
+        assertTrue(fast.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList(2), new ArrayList<Integer>(processed));
+        blocked.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(3, processed.size());
+        assertEquals(0, processed.get(1).intValue());
+        assertEquals(1, processed.get(2).intValue());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testShutdownExecutorRejectsEvents() throws Exception {
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        SessionOrderedExecutor executor = new SessionOrderedExecutor(2, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = Executors.defaultThreadFactory().newThread(runnable);
+                threads.add(thread);
+                return thread;
+            }
+        }, null);
+        CountDownLatch done = new CountDownLatch(1);
+        List<Integer> processed = Collections.synchronizedList(new ArrayList<Integer>());
+        executor.execute(new RecordingEvent(new DummySession(), 0, processed, done, null));
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, threads.size());
+        assertTrue(threads.get(0).isDaemon());
+
+        executor.shutdown();
+        try {
+            executor.execute(new RecordingEvent(new DummySession(), 1, processed, done, null));
+            fail("Events must be rejected once the executor is shut down");
+        }
+        catch (RejectedExecutionException e) {
+            // Expected
+        }
+        threads.get(0).join(10000);
+        assertFalse(threads.get(0).isAlive());
+    }
+
+    private static class RecordingEvent extends IoEvent {
+
+        private final int number;
+        private final List<Integer> processed;
+        private final CountDownLatch done;
+        private final CountDownLatch wait;
+
+        RecordingEvent(IoSession session, int number, List<Integer> processed, CountDownLatch done,
+                CountDownLatch wait) {
+            super(IoEventType.MESSAGE_RECEIVED, session, number);
+            this.number = number;
+            this.processed = processed;
+            this.done = done;
+            this.wait = wait;
+        }
+
+        @Override
+        public void fire() {
+            if (wait != null) {
+                try {
+                    wait.await();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            processed.add(number);
+            done.countDown();
+        }
+    }
+}
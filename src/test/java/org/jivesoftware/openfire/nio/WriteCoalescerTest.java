@@ -0,0 +1,46 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Verifies that {@link WriteCoalescer} knows whether the current thread is processing a
+ * received stanza, so stanzas delivered outside of a burst are written right away.
+ */
+public class WriteCoalescerTest {
+
+    @Test
+    public void testNestedBursts() {
+        assertFalse(WriteCoalescer.isInBurst());
+        WriteCoalescer.startBurst();
+        WriteCoalescer.startBurst();
+        assertTrue(WriteCoalescer.isInBurst());
+        WriteCoalescer.endBurst();
+        assertTrue(WriteCoalescer.isInBurst());
+        WriteCoalescer.endBurst();
+        assertFalse(WriteCoalescer.isInBurst());
+    }
+
+    @Test
+    public void testBurstsAreKeptPerThread() throws Exception {
+        WriteCoalescer.startBurst();
+        try {
+            final boolean[] otherInBurst = new boolean[1];
+            Thread other = new Thread() {
+                public void run() {
+                    otherInBurst[0] = WriteCoalescer.isInBurst();
+                }
+            };
+            other.start();
+            other.join();
+
+            assertFalse(otherInBurst[0]);
+            assertTrue(WriteCoalescer.isInBurst());
+        }
+        finally {
+            WriteCoalescer.endBurst();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.jivesoftware.openfire.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.mina.core.buffer.IoBuffer;
+import org.junit.Test;
+
+/**
+ * Verifies that {@link XMLStanzaFramer} finds the same stanzas no matter how the received
+ * data is split, mimicking the way the cumulative buffer of {@link XMPPDecoder} keeps the
+ * bytes of incomplete stanzas.
+ */
+public class XMLStanzaFramerTest {
+
+    private static final String[] STANZAS = {
+            "<?xml version='1.0'?>",
+            "<stream:stream to=\"example.com\" xmlns=\"jabber:client\" xmlns:stream=\"http://etherx.jabber.org/streams\" version=\"1.0\">",
+            "<presence/>",
+            "<message to='a@example.com' title=\"a > b / c\"><body>1 &lt; 2 &#x20AC; éè 😀</body></message>",
+            "<iq type='set' id='1'><query xmlns='jabber:iq:private'><data><![CDATA[<not-a-tag> ]]] </iq>]]></data></query></iq>",
+            "<message><!-- </message> --><body>a</body><x/><y a='1'/></message>",
+            "</stream:stream>"
+    };
+
+    @Test
+    public void testStanzasInOneChunk() throws Exception {
+        StringBuilder stream = new StringBuilder();
+        for (String stanza : STANZAS) {
+            stream.append(stanza).append("\n ");
+        }
+        assertEquals(Arrays.asList(STANZAS), frame(stream.toString().getBytes("UTF-8"), -1));
+    }
+
+    @Test
+    public void testStanzasSplitAtEveryByte() throws Exception {
+        StringBuilder stream = new StringBuilder();
+        for (String stanza : STANZAS) {
+            stream.append(stanza);
+        }
+        byte[] bytes = stream.toString().getBytes("UTF-8");
+        for (int split = 1; split < bytes.length; split++) {
+            assertEquals("Split at " + split, Arrays.asList(STANZAS), frame(bytes, split));
+        }
+    }
+
+    @Test
+    public void testFlashStreamEnd() throws Exception {
+        assertEquals(Arrays.asList("</stream:stream>"), frame("</flash:stream>".getBytes("UTF-8"), -1));
+    }
+
+    @Test
+    public void testIllegalCharacterReference() throws Exception {
+        assertNotWellFormed("<message><body>&#x1;</body></message>");
+        assertNotWellFormed("<message to='&#0;'/>");
+        assertNotWellFormed("<message><body>\u0001</body></message>");
+    }
+
+    @Test
+    public void testIncompleteCharacterReferencesAreIgnored() throws Exception {
+        String stanza = "<message><body>&#x; &# &#1a; &amp;</body></message>";
+        assertEquals(Arrays.asList(stanza), frame(stanza.getBytes("UTF-8"), -1));
+    }
+
+    private static void assertNotWellFormed(String stanza) throws Exception {
+        try {
+            frame(stanza.getBytes("UTF-8"), -1);
+            fail("Stanza should not be well-formed: " + stanza);
+        }
+        catch (XMLNotWellFormedException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Frames the bytes, delivering them in two chunks if split is positive.
+     */
+    private static List<String> frame(byte[] bytes, int split) throws Exception {
+        XMLStanzaFramer framer = new XMLStanzaFramer();
+        List<String> stanzas = new ArrayList<String>();
+        IoBuffer buffer = IoBuffer.allocate(16).setAutoExpand(true);
+        int[] chunks = split > 0 ? new int[] {0, split, bytes.length} : new int[] {0, bytes.length};
+        for (int c = 1; c < chunks.length; c++) {
+            buffer.put(bytes, chunks[c - 1], chunks[c] - chunks[c - 1]);
+            buffer.flip();
+            String stanza;
+            while ((stanza = framer.read(buffer)) != null) {
+                stanzas.add(stanza);
+            }
+            // Keep the bytes of the incomplete stanza, as CumulativeProtocolDecoder does
+            buffer.compact();
+        }
+        return stanzas;
+    }
+}
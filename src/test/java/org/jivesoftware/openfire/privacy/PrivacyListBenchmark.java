@@ -0,0 +1,92 @@
+package org.jivesoftware.openfire.privacy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Compares the time needed to decide if a stanza must be blocked by a block list of 10 to
+ * 10000 JIDs by evaluating every {@link PrivacyItem} in order, as done before privacy lists
+ * were compiled, and by using a {@link PrivacyListIndex}. Half of the items block bare JIDs
+ * and half block domains, and stanzas come from contacts that are not blocked so that the
+ * whole list has to be checked.<p>
+ *
+ * This is not a unit test. Run it with <tt>java org.jivesoftware.openfire.privacy.PrivacyListBenchmark</tt>
+ * using the test and server classes in the classpath.
+ */
+public class PrivacyListBenchmark {
+
+    private static final JID USER = new JID("user@example.com/home");
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 100000;
+
+    public static void main(String[] args) {
+        Message message = new Message();
+        message.setFrom("friend@example.net/home");
+        message.setTo(USER);
+        Presence presence = new Presence();
+        presence.setFrom(USER);
+        presence.setTo("friend@example.net");
+        Packet[] packets = {message, presence};
+
+        System.out.println("Items  Linear (ns/stanza)  Index (ns/stanza)");
+        for (int size = 10; size <= 10000; size *= 10) {
+            List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+            for (int i = 0; i < size; i++) {
+                String value = i % 2 == 0 ? "blocked" + i + "@example.org" : "blocked" + i + ".example.org";
+                items.add(PrivacyListIndexTest.createItem(i, "deny", "jid", value));
+            }
+            PrivacyListIndex index = new PrivacyListIndex(items);
+
+            linear(items, packets, WARMUP_ITERATIONS);
+            indexed(index, packets, WARMUP_ITERATIONS);
+            int iterations = ITERATIONS * 10 / size + 1000;
+            long linear = linear(items, packets, iterations);
+            long indexed = indexed(index, packets, iterations);
+            System.out.printf("%5d  %18.1f  %17.1f%n", size,
+                    (double) linear / (iterations * packets.length),
+                    (double) indexed / (iterations * packets.length));
+        }
+    }
+
+    private static long linear(List<PrivacyItem> items, Packet[] packets, int iterations) {
+        int blocked = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (Packet packet : packets) {
+                for (PrivacyItem item : items) {
+                    if (item.matchesCondition(packet, null, USER)) {
+                        blocked++;
+                        break;
+                    }
+                }
+            }
+        }
+        long time = System.nanoTime() - start;
+        if (blocked > 0) {
+            throw new IllegalStateException("Stanzas should not be blocked");
+        }
+        return time;
+    }
+
+    private static long indexed(PrivacyListIndex index, Packet[] packets, int iterations) {
+        int blocked = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (Packet packet : packets) {
+                if (index.getMatchingItem(packet, null, USER) != null) {
+                    blocked++;
+                }
+            }
+        }
+        long time = System.nanoTime() - start;
+        if (blocked > 0) {
+            throw new IllegalStateException("Stanzas should not be blocked");
+        }
+        return time;
+    }
+}
@@ -0,0 +1,142 @@
+package org.jivesoftware.openfire.privacy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.junit.Test;
+import org.xmpp.packet.IQ;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that {@link PrivacyListIndex} finds the same item as evaluating every
+ * {@link PrivacyItem} of the list in order.
+ */
+public class PrivacyListIndexTest {
+
+    private static final JID USER = new JID("user@example.com/home");
+    private static final String[] STANZAS = {"message", "iq", "presence-in", "presence-out"};
+
+    @Test
+    public void testFirstMatchingItemWins() {
+        List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+        items.add(createItem(1, "allow", "jid", "friend@example.org"));
+        items.add(createItem(2, "deny", "jid", "example.org"));
+        items.add(createItem(3, "deny", null, null, "message"));
+        PrivacyListIndex index = new PrivacyListIndex(items);
+
+        assertSame(items.get(0), index.getMatchingItem(
+                createMessage("friend@example.org/a", USER.toString()), null, USER));
+        assertSame(items.get(1), index.getMatchingItem(
+                createMessage("other@example.org/a", USER.toString()), null, USER));
+        assertSame(items.get(2), index.getMatchingItem(
+                createMessage("other@example.net/a", USER.toString()), null, USER));
+        assertNull(index.getMatchingItem(createIQ("other@example.net/a", USER.toString()), null, USER));
+    }
+
+    @Test
+    public void testMatchesLinearEvaluation() {
+        Random random = new Random(42);
+        for (int list = 0; list < 50; list++) {
+            List<PrivacyItem> items = new ArrayList<PrivacyItem>();
+            int size = 1 + random.nextInt(20);
+            for (int i = 0; i < size; i++) {
+                String type = null;
+                String value = null;
+                switch (random.nextInt(4)) {
+                    case 0: type = "jid"; value = randomJID(random); break;
+                    case 1: type = "jid"; value = randomJID(random).replaceAll("/.*", ""); break;
+                    case 2: type = "jid"; value = "example" + random.nextInt(3) + ".org"; break;
+                    default: // Fall-through item
+                }
+                List<String> stanzas = new ArrayList<String>();
+                for (String stanza : STANZAS) {
+                    if (random.nextInt(3) == 0) {
+                        stanzas.add(stanza);
+                    }
+                }
+                items.add(createItem(i, random.nextBoolean() ? "allow" : "deny", type, value,
+                        stanzas.toArray(new String[stanzas.size()])));
+            }
+            Collections.sort(items);
+            PrivacyListIndex index = new PrivacyListIndex(items);
+
+            for (int i = 0; i < 200; i++) {
+                Packet packet = randomPacket(random);
+                PrivacyItem expected = null;
+                for (PrivacyItem item : items) {
+                    if (item.matchesCondition(packet, null, USER)) {
+                        expected = item;
+                        break;
+                    }
+                }
+                assertEquals(packet.toXML(), expected, index.getMatchingItem(packet, null, USER));
+            }
+        }
+    }
+
+    private static String randomJID(Random random) {
+        return "contact" + random.nextInt(5) + "@example" + random.nextInt(3) + ".org/r" + random.nextInt(2);
+    }
+
+    private static Packet randomPacket(Random random) {
+        String contact = randomJID(random);
+        boolean incoming = random.nextBoolean();
+        String from = incoming ? contact : USER.toString();
+        String to = incoming ? USER.toString() : contact;
+        switch (random.nextInt(4)) {
+            case 0:
+                return createMessage(from, to);
+            case 1:
+                return createIQ(from, to);
+            case 2:
+                Presence presence = new Presence(random.nextBoolean() ? null : Presence.Type.unavailable);
+                presence.setFrom(from);
+                presence.setTo(random.nextInt(5) == 0 ? null : to);
+                return presence;
+            default:
+                Presence subscribe = new Presence(Presence.Type.subscribe);
+                subscribe.setFrom(from);
+                subscribe.setTo(to);
+                return subscribe;
+        }
+    }
+
+    private static Message createMessage(String from, String to) {
+        Message message = new Message();
+        message.setFrom(from);
+        message.setTo(to);
+        return message;
+    }
+
+    private static IQ createIQ(String from, String to) {
+        IQ iq = new IQ(IQ.Type.get);
+        iq.setFrom(from);
+        iq.setTo(to);
+        return iq;
+    }
+
+    static PrivacyItem createItem(int order, String action, String type, String value, String... stanzas) {
+        Element element = DocumentHelper.createElement("item");
+        element.addAttribute("order", String.valueOf(order));
+        element.addAttribute("action", action);
+        if (type != null) {
+            element.addAttribute("type", type);
+            element.addAttribute("value", value);
+        }
+        for (String stanza : stanzas) {
+            element.addElement(stanza);
+        }
+        return new PrivacyItem(element);
+    }
+}
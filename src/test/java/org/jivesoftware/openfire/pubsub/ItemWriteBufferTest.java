@@ -0,0 +1,100 @@
+package org.jivesoftware.openfire.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+
+import org.jivesoftware.util.TestUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that {@link ItemWriteBuffer} coalesces changes of the same item and keeps the
+ * changes that are being written visible.
+ */
+public class ItemWriteBufferTest {
+
+    private static final JID PUBLISHER = new JID("publisher@example.com");
+
+    private LeafNode node;
+
+    @Before
+    public void setUp() {
+        PubSubService service = TestUtils.createStub(PubSubService.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getServiceID".equals(method.getName())) {
+                    return "pubsub";
+                }
+                if ("getDefaultNodeConfiguration".equals(method.getName())) {
+                    return new DefaultNodeConfiguration(true);
+                }
+                return null;
+            }
+        });
+        node = new LeafNode(service, null, "news", PUBLISHER);
+    }
+
+    @Test
+    public void testCoalescesChangesOfAnItem() {
+        ItemWriteBuffer buffer = new ItemWriteBuffer(4);
+        PublishedItem first = createItem("1");
+        PublishedItem second = createItem("2");
+        PublishedItem replacement = createItem("1");
+        buffer.publish(first);
+        buffer.publish(second);
+        buffer.publish(replacement);
+        assertEquals(2, buffer.size());
+
+        ItemWriteBuffer.NodeItems items = buffer.getNodeItems("pubsub", "news");
+        // The replaced item moves after the item that was published in the meantime
+        assertEquals(Arrays.asList(second, replacement), items.getPublished());
+
+        buffer.delete(second);
+        assertEquals(2, buffer.size());
+        assertTrue(buffer.get("pubsub", "news", "2").isDeleted());
+        items = buffer.getNodeItems("pubsub", "news");
+        assertEquals(Collections.singletonList(replacement), items.getPublished());
+        assertEquals(new HashSet<String>(Arrays.asList("1", "2")), items.getChangedIDs());
+
+        buffer.discard("pubsub", "news");
+        assertEquals(0, buffer.size());
+        assertNull(buffer.get("pubsub", "news", "1"));
+    }
+
+    @Test
+    public void testWrittenChangesStayVisibleUntilWritten() {
+        ItemWriteBuffer buffer = new ItemWriteBuffer(1);
+        PublishedItem item = createItem("1");
+        buffer.publish(item);
+
+        buffer.getWriteLock(0).lock();
+        Collection<ItemWriteBuffer.PendingItem> changes = buffer.startWrite(0);
+        assertEquals(1, changes.size());
+        assertEquals(0, buffer.size());
+        assertSame(item, buffer.get("pubsub", "news", "1").getItem());
+
+        // A write that fails is not retried when the item was deleted in the meantime
+        buffer.delete(item);
+        buffer.retry(changes.iterator().next(), 1);
+        assertTrue(buffer.get("pubsub", "news", "1").isDeleted());
+        buffer.endWrite(0);
+        buffer.getWriteLock(0).unlock();
+
+        assertEquals(1, buffer.size());
+        assertTrue(buffer.getNodeItems("pubsub", "news").getPublished().isEmpty());
+    }
+
+    private PublishedItem createItem(String id) {
+        return new PublishedItem(node, PUBLISHER, id, new Date());
+    }
+}
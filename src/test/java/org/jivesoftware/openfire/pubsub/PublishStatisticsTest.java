@@ -0,0 +1,33 @@
+package org.jivesoftware.openfire.pubsub;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Verifies the publication statistics of a node.
+ */
+public class PublishStatisticsTest {
+
+    @Test
+    public void testNoPublications() {
+        PublishStatistics statistics = new PublishStatistics();
+
+        assertEquals(0, statistics.getPublicationCount());
+        assertEquals(0, statistics.getAverageNotificationTime(), 0);
+        assertEquals(0, statistics.getMaxNotificationTime());
+    }
+
+    @Test
+    public void testRecord() {
+        PublishStatistics statistics = new PublishStatistics();
+        statistics.record(10, 4);
+        statistics.record(1000, 20);
+        statistics.record(5, 6);
+
+        assertEquals(3, statistics.getPublicationCount());
+        assertEquals(1015, statistics.getNotifiedAffiliatesCount());
+        assertEquals(10, statistics.getAverageNotificationTime(), 0);
+        assertEquals(20, statistics.getMaxNotificationTime());
+    }
+}
@@ -0,0 +1,69 @@
+package org.jivesoftware.openfire.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that {@link SubscriberIndex} keeps the subscriptions of a node by owner and by
+ * presence filter.
+ */
+public class SubscriberIndexTest {
+
+    private static final JID OWNER = new JID("owner@example.com");
+    private static final JID OTHER = new JID("other@example.com");
+
+    @Test
+    public void testSubscriptionsByOwner() {
+        SubscriberIndex index = new SubscriberIndex();
+        NodeSubscription home = createSubscription(OWNER, "home", "1");
+        NodeSubscription work = createSubscription(OWNER, "work", "2");
+        NodeSubscription other = createSubscription(OTHER, "home", "3");
+        index.add(home);
+        index.add(work);
+        index.add(other);
+
+        assertEquals(Arrays.asList(home, work), index.getSubscriptions(OWNER));
+        assertEquals(2, index.getOwners().size());
+
+        index.remove(home);
+        assertEquals(Collections.singletonList(work), index.getSubscriptions(OWNER));
+        index.remove(work);
+        assertTrue(index.getSubscriptions(OWNER).isEmpty());
+        assertFalse(index.getOwners().contains(OWNER));
+        assertEquals(Collections.singleton(OTHER), index.getOwners());
+    }
+
+    @Test
+    public void testPresenceFilteredOwners() {
+        SubscriberIndex index = new SubscriberIndex();
+        NodeSubscription filtered = createSubscription(OWNER, "home", "1");
+        filtered.setPresenceStates(Arrays.asList("chat", "online"));
+        NodeSubscription plain = createSubscription(OTHER, "home", "2");
+        index.add(filtered);
+        index.add(plain);
+        assertEquals(Collections.singleton(OWNER), index.getPresenceFilteredOwners());
+
+        // The owner of the subscription configured it to ignore presences
+        filtered.setPresenceStates(Collections.<String>emptyList());
+        index.update(filtered);
+        assertTrue(index.getPresenceFilteredOwners().isEmpty());
+
+        plain.setPresenceStates(Collections.singletonList("away"));
+        index.update(plain);
+        assertEquals(Collections.singleton(OTHER), index.getPresenceFilteredOwners());
+        index.remove(plain);
+        assertTrue(index.getPresenceFilteredOwners().isEmpty());
+    }
+
+    private static NodeSubscription createSubscription(JID owner, String resource, String id) {
+        JID jid = new JID(owner.getNode(), owner.getDomain(), resource);
+        return new NodeSubscription(null, owner, jid, NodeSubscription.State.subscribed, id);
+    }
+}
@@ -0,0 +1,133 @@
+package org.jivesoftware.openfire.roster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.jivesoftware.openfire.RoutingTable;
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.util.TestUtils;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Packet;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that {@link PresenceFanout} delivers presences to the sessions of this JVM
+ * before other cluster nodes and other domains, and that broadcasts delivered by the thread
+ * pool keep the order in which they were made.
+ */
+public class PresenceFanoutTest {
+
+    private static final String DOMAIN = "example.com";
+
+    /**
+     * Deliveries made by the routing table and the local sessions, as "route recipient status".
+     */
+    private final List<String> deliveries = Collections.synchronizedList(new ArrayList<String>());
+
+    @Test
+    public void testRecipientsAreGroupedByDestination() {
+        PresenceFanout fanout = new PresenceFanout(createRoutingTable(), DOMAIN, 1, 100);
+        List<JID> subscribers = Arrays.asList(new JID("remote@example.net"), new JID("clustered@" + DOMAIN),
+                new JID("local@" + DOMAIN));
+        int count = fanout.deliver(createPresence("away"), null, subscribers);
+
+        assertEquals(5, count);
+        assertEquals(Arrays.asList(
+                "local@example.com/local local@example.com away",
+                "clustered@example.com/other clustered@example.com away",
+                "local@example.com/other local@example.com away",
+                "remote@example.net/local remote@example.net away",
+                "remote@example.net/other remote@example.net away"), deliveries);
+    }
+
+    @Test
+    public void testAsyncBroadcastsKeepTheirOrder() throws Exception {
+        PresenceFanout fanout = new PresenceFanout(createRoutingTable(), DOMAIN, 4, 0);
+        List<JID> subscribers = Collections.singletonList(new JID("local@" + DOMAIN));
+        Presence presence = createPresence("away");
+        for (int i = 0; i < 50; i++) {
+            presence.setStatus("status" + i);
+            fanout.broadcast("user", presence, null, subscribers);
+        }
+        // The presence of the caller is copied and left untouched
+        assertNull(presence.getTo());
+        fanout.stop();
+        for (int i = 0; i < 100 && deliveries.size() < 100; i++) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(0, fanout.getWaitingBroadcasts());
+        List<String> local = new ArrayList<String>();
+        for (String delivery : deliveries) {
+            if (delivery.startsWith("local@example.com/local ")) {
+                local.add(delivery);
+            }
+        }
+        assertEquals(50, local.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("local@example.com/local local@example.com status" + i, local.get(i));
+        }
+    }
+
+    private static Presence createPresence(String status) {
+        Presence presence = new Presence();
+        presence.setFrom("user@" + DOMAIN + "/home");
+        presence.setStatus(status);
+        return presence;
+    }
+
+    /**
+     * Returns a routing table where every subscriber has a session with the resource
+     * "local" hosted by this JVM and a session with the resource "other" hosted by another
+     * cluster node, except for the subscriber "clustered" which only has the latter.
+     */
+    private RoutingTable createRoutingTable() {
+        return TestUtils.createStub(RoutingTable.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getRoutes".equals(name)) {
+                    JID subscriber = (JID) args[0];
+                    List<JID> routes = new ArrayList<JID>();
+                    if (!"clustered".equals(subscriber.getNode())) {
+                        routes.add(new JID(subscriber.getNode(), subscriber.getDomain(), "local"));
+                    }
+                    routes.add(new JID(subscriber.getNode(), subscriber.getDomain(), "other"));
+                    return routes;
+                }
+                if ("isLocalRoute".equals(name)) {
+                    return "local".equals(((JID) args[0]).getResource());
+                }
+                if ("getClientRoute".equals(name)) {
+                    return createSession((JID) args[0]);
+                }
+                if ("routePacket".equals(name)) {
+                    record((JID) args[0], (Packet) args[1]);
+                }
+                return null;
+            }
+        });
+    }
+
+    private ClientSession createSession(final JID address) {
+        return TestUtils.createStub(ClientSession.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("process".equals(method.getName())) {
+                    record(address, (Packet) args[0]);
+                }
+                return null;
+            }
+        });
+    }
+
+    private void record(JID route, Packet packet) {
+        deliveries.add(route + " " + packet.getTo() + " " + ((Presence) packet).getStatus());
+    }
+}
@@ -0,0 +1,189 @@
+package org.jivesoftware.openfire.roster;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.jivesoftware.openfire.group.Group;
+import org.jivesoftware.util.PersistableMap;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies the projections of shared groups on the rosters of their users.
+ */
+public class SharedGroupRosterTest {
+
+    private static final JID ALICE = new JID("alice@example.com");
+    private static final JID BOB = new JID("bob@example.com");
+    private static final JID CAROL = new JID("carol@example.com");
+    private static final long LIFETIME = 30 * 60 * 1000;
+
+    @Test
+    public void testProjectionExpires() {
+        SharedGroupRoster roster = createRoster(new TestGroup("group", "everybody"), 1000);
+
+        assertFalse(roster.isExpired(1000, LIFETIME));
+        assertFalse(roster.isExpired(1000 + LIFETIME - 1, LIFETIME));
+        assertTrue(roster.isExpired(1000 + LIFETIME, LIFETIME));
+    }
+
+    @Test
+    public void testUpdatedProjectionKeepsCreationTime() {
+        TestGroup group = new TestGroup("group", "everybody", ALICE);
+        SharedGroupRoster roster = createRoster(group, 1000);
+
+        // Bob was removed from the group
+        SharedGroupRoster updated = roster.update(BOB);
+
+        assertTrue(updated.isUser(ALICE));
+        assertFalse(updated.isUser(BOB));
+        assertTrue(roster.isUser(BOB));
+        assertTrue(updated.isExpired(1000 + LIFETIME, LIFETIME));
+    }
+
+    @Test
+    public void testGroupUsers() {
+        SharedGroupRoster roster = createRoster(new TestGroup("group", "onlyGroup"), 1000);
+
+        assertTrue(roster.isUser(new JID("alice@example.com/home")));
+        assertFalse(roster.isUser(CAROL));
+        assertEquals("Alice", roster.getUsers().get(ALICE));
+    }
+
+    @Test
+    public void testViewersOfGroupShownToEverybody() {
+        Set<JID> localUsers = new HashSet<JID>(Arrays.asList(ALICE, BOB, CAROL));
+        SharedGroupRoster roster = new SharedGroupRoster(new TestGroup("group", "everybody"),
+                Collections.<Group>emptyList(), localUsers, createUsers(), 1000);
+
+        assertSame(localUsers, roster.getViewers());
+    }
+
+    @Test
+    public void testViewersOfGroupShownToGroups() {
+        Group other = new TestGroup("other", "onlyGroup", CAROL);
+        SharedGroupRoster roster = new SharedGroupRoster(new TestGroup("group", "onlyGroup"),
+                Collections.singletonList(other), null, createUsers(), 1000);
+
+        assertEquals(Collections.singletonList(CAROL), roster.getViewers());
+        assertTrue(roster.isViewer(new JID("carol@example.com/home")));
+        assertFalse(roster.isViewer(ALICE));
+    }
+
+    @Test
+    public void testViewerOfGroupShownToEverybody() {
+        Set<JID> localUsers = new HashSet<JID>(Arrays.asList(ALICE, BOB));
+        SharedGroupRoster roster = new SharedGroupRoster(new TestGroup("group", "everybody"),
+                Collections.<Group>emptyList(), localUsers, createUsers(), 1000);
+
+        assertTrue(roster.isViewer(new JID("bob@example.com/home")));
+        assertFalse(roster.isViewer(CAROL));
+    }
+
+    @Test
+    public void testRosterBuiltFromProjection() throws Exception {
+        JID dave = new JID("dave@example.com");
+        Set<JID> localUsers = new HashSet<JID>(Arrays.asList(ALICE, BOB, CAROL, dave));
+        TestGroup group = new TestGroup("group", "everybody", ALICE);
+        Map<JID, String> users = new HashMap<JID, String>();
+        users.put(ALICE, "Alice");
+        SharedGroupRoster sharedRoster = new SharedGroupRoster(group, Collections.<Group>emptyList(),
+                localUsers, users, 1000);
+        RosterItem carol = new RosterItem(CAROL, RosterItem.SUB_TO, RosterItem.ASK_NONE,
+                RosterItem.RECV_NONE, "Carol", null);
+
+        Roster roster = new Roster();
+        roster.loadItems(Collections.singletonList(carol).iterator(), Collections.<Group>singletonList(group),
+                Collections.singletonList(sharedRoster), ALICE, false);
+
+        // Bob and Dave see the group of Alice without being group users
+        RosterItem bob = roster.getRosterItem(BOB);
+        assertEquals(RosterItem.SUB_FROM, bob.getSubStatus());
+        assertEquals(Collections.singleton("group"), bob.getInvisibleSharedGroupsNames());
+        assertTrue(roster.isRosterItem(dave));
+        // Carol is a contact of the personal roster and Alice is the owner of the roster
+        assertSame(carol, roster.getRosterItem(CAROL));
+        assertFalse(roster.isRosterItem(ALICE));
+        assertFalse(roster.isRosterItem(new JID("erin@example.com")));
+        assertEquals(new HashSet<JID>(Arrays.asList(BOB, dave)),
+                new HashSet<JID>(roster.getPresenceSubscribers()));
+    }
+
+    private static SharedGroupRoster createRoster(Group group, long creationTime) {
+        return new SharedGroupRoster(group, Collections.<Group>emptyList(),
+                Collections.<JID>emptySet(), createUsers(), creationTime);
+    }
+
+    private static Map<JID, String> createUsers() {
+        Map<JID, String> users = new HashMap<JID, String>();
+        users.put(ALICE, "Alice");
+        users.put(BOB, "Bob");
+        return users;
+    }
+
+    /**
+     * Group that is not backed by a group provider.
+     */
+    private static class TestGroup extends Group {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final Collection<JID> members;
+        private final PersistableMap<String, String> properties = new TestProperties();
+
+        TestGroup(String name, String showInRoster, JID... members) {
+            this.name = name;
+            this.members = Arrays.asList(members);
+            properties.put("sharedRoster.showInRoster", showInRoster);
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public PersistableMap<String, String> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public Collection<JID> getMembers() {
+            return members;
+        }
+
+        @Override
+        public Collection<JID> getAdmins() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isUser(JID user) {
+            return members.contains(user.asBareJID());
+        }
+    }
+
+    /**
+     * Group properties that are not persisted.
+     */
+    private static class TestProperties extends PersistableMap<String, String> {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public String put(String key, String value, boolean persist) {
+            return put(key, value);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.jivesoftware.openfire.spi;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jivesoftware.openfire.session.ClientSession;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Presence;
+
+/**
+ * Compares the time needed to route a message to the bare JID of a user with 1 to 10
+ * resources by sorting the sessions of the user, as done for every message before delivery
+ * plans were introduced, and by using a {@link DeliveryPlan}. Every resource has the same
+ * priority and show value so that the most recently active session has to be found.<p>
+ *
+ * This is not a unit test. Run it with <tt>java org.jivesoftware.openfire.spi.DeliveryPlanBenchmark</tt>
+ * using the test and server classes in the classpath.
+ */
+public class DeliveryPlanBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 200000;
+    private static final int ITERATIONS = 1000000;
+
+    public static void main(String[] args) {
+        Message message = new Message();
+        message.setType(Message.Type.chat);
+        message.setBody("Benchmark");
+        System.out.println("Resources  Sorted sessions (ns/msg)  Delivery plan (ns/msg)");
+        for (int resources = 1; resources <= 10; resources++) {
+            Map<ClientSession, Integer> deliveries = new HashMap<ClientSession, Integer>();
+            List<ClientSession> sessions = new ArrayList<ClientSession>();
+            for (int i = 0; i < resources; i++) {
+                Presence presence = new Presence();
+                presence.setPriority(1);
+                sessions.add(DeliveryPlanTest.createSession("user@example.com/r" + i, presence,
+                        new Date(i), true, false, deliveries));
+            }
+            Map<String, DeliveryPlan> plans = new HashMap<String, DeliveryPlan>();
+            plans.put("user@example.com", new DeliveryPlan(sessions));
+
+            sorted(sessions, message, WARMUP_ITERATIONS);
+            planned(plans, message, WARMUP_ITERATIONS);
+            long sorted = sorted(sessions, message, ITERATIONS);
+            long planned = planned(plans, message, ITERATIONS);
+            System.out.printf("%9d  %24.1f  %22.1f%n", resources, (double) sorted / ITERATIONS,
+                    (double) planned / ITERATIONS);
+        }
+    }
+
+    private static long sorted(List<ClientSession> userSessions, Message message, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            // Collect the sessions of the user as RoutingTableImpl does when plans can't be used
+            List<ClientSession> sessions = new ArrayList<ClientSession>(userSessions.size());
+            for (ClientSession session : userSessions) {
+                if (session.isInitialized()) {
+                    sessions.add(session);
+                }
+            }
+            RoutingTableImpl.routeToSessions(sessions, message, false, false, false);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long planned(Map<String, DeliveryPlan> plans, Message message, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            plans.get("user@example.com").deliver(message, false, false, false);
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,106 @@
+package org.jivesoftware.openfire.spi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.jivesoftware.openfire.session.ClientSession;
+import org.jivesoftware.util.TestUtils;
+import org.junit.Test;
+import org.xmpp.packet.JID;
+import org.xmpp.packet.Message;
+import org.xmpp.packet.Presence;
+
+/**
+ * Verifies that {@link DeliveryPlan} delivers messages to the same sessions as
+ * {@link RoutingTableImpl#routeToSessions(List, Message, boolean, boolean, boolean)}.
+ */
+public class DeliveryPlanTest {
+
+    private static final Presence.Show[] SHOWS = {null, Presence.Show.chat, Presence.Show.away,
+            Presence.Show.xa, Presence.Show.dnd};
+
+    @Test
+    public void testSameDeliveriesAsSortedSessions() {
+        Random random = new Random(42);
+        for (int run = 0; run < 5000; run++) {
+            Map<ClientSession, Integer> deliveries = new HashMap<ClientSession, Integer>();
+            List<ClientSession> sessions = new ArrayList<ClientSession>();
+            int count = 1 + random.nextInt(10);
+            for (int i = 0; i < count; i++) {
+                Presence presence = new Presence();
+                presence.setPriority(random.nextInt(4) - 1);
+                presence.setShow(SHOWS[random.nextInt(SHOWS.length)]);
+                sessions.add(createSession("user@example.com/r" + i, presence, new Date(random.nextInt(3)),
+                        random.nextInt(4) > 0, random.nextBoolean(), deliveries));
+            }
+            Message message = new Message();
+            message.setType(random.nextBoolean() ? Message.Type.chat : Message.Type.normal);
+            boolean isPrivate = random.nextInt(4) == 0;
+            boolean reallyAllResources = random.nextInt(4) == 0;
+            boolean allResources = random.nextInt(4) == 0;
+
+            List<ClientSession> initialized = new ArrayList<ClientSession>();
+            for (ClientSession session : sessions) {
+                if (session.isInitialized()) {
+                    initialized.add(session);
+                }
+            }
+            boolean expected = RoutingTableImpl.routeToSessions(initialized, message, isPrivate,
+                    reallyAllResources, allResources);
+            Map<ClientSession, Integer> expectedDeliveries = new HashMap<ClientSession, Integer>(deliveries);
+            deliveries.clear();
+
+            boolean delivered = new DeliveryPlan(sessions).deliver(message, isPrivate,
+                    reallyAllResources, allResources);
+            assertEquals("Run " + run, expected, delivered);
+            assertEquals("Run " + run, expectedDeliveries, deliveries);
+        }
+    }
+
+    /**
+     * Returns a client session that counts the packets that it processes.
+     */
+    static ClientSession createSession(String address, final Presence presence, final Date lastActive,
+            final boolean initialized, final boolean carbons, final Map<ClientSession, Integer> deliveries)
+    {
+        final JID jid = new JID(address);
+        return TestUtils.createStub(ClientSession.class, new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getPresence".equals(name)) {
+                    return presence;
+                }
+                else if ("getLastActiveDate".equals(name)) {
+                    return lastActive;
+                }
+                else if ("isInitialized".equals(name)) {
+                    return initialized;
+                }
+                else if ("isMessageCarbonsEnabled".equals(name)) {
+                    return carbons;
+                }
+                else if ("getAddress".equals(name)) {
+                    return jid;
+                }
+                else if ("process".equals(name)) {
+                    ClientSession session = (ClientSession) proxy;
+                    Integer count = deliveries.get(session);
+                    deliveries.put(session, count == null ? 1 : count + 1);
+                    return null;
+                }
+                else if ("toString".equals(name)) {
+                    return jid.toString();
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        });
+    }
+}
@@ -0,0 +1,54 @@
+package org.jivesoftware.openfire.user;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+import org.xmpp.packet.JID;
+
+/**
+ * Verifies that {@link RemoteUserCheck} reports its result once to every listener.
+ */
+public class RemoteUserCheckTest {
+
+    private static final JID HOME = new JID("user@remote.example.com/home");
+    private static final JID WORK = new JID("user@remote.example.com/work");
+
+    @Test
+    public void testListenersOfSharedCheck() throws Exception {
+        final List<String> results = new ArrayList<String>();
+        RegisteredUserListener listener = new RegisteredUserListener() {
+            public void registrationChecked(JID user, boolean registered) {
+                results.add(user.getResource() + "=" + registered);
+            }
+        };
+        RemoteUserCheck check = new RemoteUserCheck();
+        check.addListener(HOME, listener);
+        check.addListener(WORK, listener);
+        assertFalse(check.isDone());
+        assertTrue(results.isEmpty());
+
+        check.complete(true);
+        // Only the first result counts
+        check.complete(false);
+        assertTrue(check.get());
+        assertEquals(2, results.size());
+        assertTrue(results.contains("home=true"));
+        assertTrue(results.contains("work=true"));
+
+        // Listeners of completed checks are invoked right away
+        check.addListener(HOME, listener);
+        assertEquals(3, results.size());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testPendingCheckTimesOut() throws Exception {
+        new RemoteUserCheck().get(10, TimeUnit.MILLISECONDS);
+    }
+}
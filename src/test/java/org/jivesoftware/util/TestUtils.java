@@ -11,6 +11,10 @@ package org.jivesoftware.util;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 
 /**
  * A collection of utilities for test writers. <p>
@@ -20,6 +24,10 @@ import java.io.FileReader;
  *  <ul><li>{@link #createTempFile()}</li>
  *      <li>{@link #createTempFile(String, String)}</li>
  *      <li>{@link #getAsString(java.io.File)}</li></ul>
+ *
+ * Stub methods:
+ *
+ *  <ul><li>{@link #createStub(Class, InvocationHandler)}</li></ul>
  */
 public class TestUtils {
 
@@ -60,5 +68,43 @@ public class TestUtils {
     public static String prepareFilename(String filename) {
         return filename.replace('/', File.separatorChar);
     }
+
+    /**
+     * Returns an implementation of the interface that passes method invocations to the
+     * handler. Stubs are only equal to themselves. When the handler returns null, methods
+     * that return a primitive type return its default value and <tt>toString</tt> returns
+     * the name of the interface.
+     *
+     * @param type the interface to implement.
+     * @param handler the handler of the invocations.
+     * @return an implementation of the interface.
+     */
+    public static <T> T createStub(final Class<T> type, final InvocationHandler handler) {
+        Object stub = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        String name = method.getName();
+                        if ("hashCode".equals(name) && method.getParameterTypes().length == 0) {
+                            return System.identityHashCode(proxy);
+                        }
+                        if ("equals".equals(name) && method.getParameterTypes().length == 1) {
+                            return proxy == args[0];
+                        }
+                        Object result = handler.invoke(proxy, method, args);
+                        if (result != null) {
+                            return result;
+                        }
+                        Class<?> returnType = method.getReturnType();
+                        if (returnType.isPrimitive() && returnType != void.class) {
+                            return Array.get(Array.newInstance(returnType, 1), 0);
+                        }
+                        if ("toString".equals(name) && method.getParameterTypes().length == 0) {
+                            return type.getName();
+                        }
+                        return null;
+                    }
+                });
+        return type.cast(stub);
+    }
 }
 
@@ -0,0 +1,55 @@
+package org.jivesoftware.util.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ConcurrentCacheTest {
+
+    @Test
+    public void testPutGetRemove() {
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", -1, -1);
+        assertNull(cache.put("a", "value"));
+        assertEquals(CacheSizes.sizeOfString("value"), cache.getCacheSize());
+        assertEquals("value", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getCacheHits());
+        assertEquals(1, cache.getCacheMisses());
+
+        assertEquals("value", cache.put("a", "longer value"));
+        assertEquals(CacheSizes.sizeOfString("longer value"), cache.getCacheSize());
+        assertEquals(1, cache.size());
+
+        assertEquals("longer value", cache.remove("a"));
+        assertEquals(0, cache.getCacheSize());
+        assertTrue(cache.isEmpty());
+    }
+
+    @Test
+    public void testCullKeepsSizeAccounting() {
+        int entrySize = CacheSizes.sizeOfString("value00");
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", entrySize * 50, -1);
+        for (int i = 0; i < 100; i++) {
+            String suffix = i < 10 ? "0" + i : String.valueOf(i);
+            cache.put("key" + suffix, "value" + suffix);
+        }
+        assertTrue(cache.getCacheSize() <= entrySize * 50);
+        assertTrue(cache.size() < 100);
+        assertEquals(cache.size() * entrySize, cache.getCacheSize());
+    }
+
+    @Test
+    public void testExpiredEntriesAreNotReturned() throws Exception {
+        Cache<String, String> cache = new ConcurrentCache<String, String>("test", -1, 50);
+        cache.put("a", "value");
+        assertTrue(cache.containsKey("a"));
+        Thread.sleep(100);
+        assertFalse(cache.containsKey("a"));
+        assertNull(cache.get("a"));
+        assertTrue(cache.keySet().isEmpty());
+        assertEquals(0, cache.getCacheSize());
+    }
+}
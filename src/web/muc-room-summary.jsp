@@ -67,14 +67,8 @@
         webManager.setRowsPerPage("muc-room-summary", range);
     }
 
-    // Get the rooms in the server
-    List<MUCRoom> rooms = mucService.getChatRooms();
-    Collections.sort(rooms, new Comparator<MUCRoom>() {
-        public int compare(MUCRoom room1, MUCRoom room2) {
-            return room1.getName().toLowerCase().compareTo(room2.getName().toLowerCase());
-        }
-    });
-    int roomsCount = rooms.size();
+    // Get the number of rooms in the server. Only the rooms of the page are loaded.
+    int roomsCount = mucService.getNumberChatRooms();
 
     // paginator vars
     int numPages = (int)Math.ceil((double)roomsCount/(double)range);
@@ -170,7 +164,7 @@
 <tbody>
 
 <%  // Print the list of rooms
-    Iterator<MUCRoom> roomsPage = rooms.subList(start, maxRoomIndex).iterator();
+    Iterator<MUCRoom> roomsPage = mucService.getChatRooms(start, range).iterator();
     if (!roomsPage.hasNext()) {
 %>
     <tr>
@@ -48,9 +48,12 @@
     if (delete) {
         // Delete the rooms in the service
         if (muc != null) {
-            for (MUCRoom room : muc.getChatRooms()) {
-                // If the room still exists then destroy it
-                room.destroyRoom(null, reason);
+            for (String roomName : muc.getChatRoomNames()) {
+                // If the room still exists then destroy it. Rooms are loaded one at a time.
+                MUCRoom room = muc.getChatRoom(roomName);
+                if (room != null) {
+                    room.destroyRoom(null, reason);
+                }
             }
             // Log the event
             webManager.logEvent("destroyed MUC service "+mucname, "reason = "+reason);
@@ -0,0 +1,205 @@
+<%--
+  -
+  - Copyright (C) 2005-2008 Jive Software. All rights reserved.
+  -
+  - Licensed under the Apache License, Version 2.0 (the "License");
+  - you may not use this file except in compliance with the License.
+  - You may obtain a copy of the License at
+  -
+  -     http://www.apache.org/licenses/LICENSE-2.0
+  -
+  - Unless required by applicable law or agreed to in writing, software
+  - distributed under the License is distributed on an "AS IS" BASIS,
+  - WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  - See the License for the specific language governing permissions and
+  - limitations under the License.
+--%>
+
+<%@ page import="org.jivesoftware.openfire.XMPPServer,
+                 org.jivesoftware.openfire.pubsub.LeafNode,
+                 org.jivesoftware.openfire.pubsub.Node,
+                 org.jivesoftware.openfire.pubsub.PublishStatistics,
+                 org.jivesoftware.util.JiveGlobals,
+                 org.jivesoftware.util.ParamUtils,
+                 org.jivesoftware.util.StringUtils,
+                 java.text.DecimalFormat,
+                 java.util.*"
+    errorPage="error.jsp"
+%>
+
+<%@ taglib uri="http://java.sun.com/jstl/core_rt" prefix="c" %>
+<%@ taglib uri="http://java.sun.com/jstl/fmt_rt" prefix="fmt" %>
+<%!
+    final int DEFAULT_RANGE = 15;
+    final int[] RANGE_PRESETS = {15, 25, 50, 75, 100};
+%>
+
+<jsp:useBean id="webManager" class="org.jivesoftware.util.WebManager"  />
+<% webManager.init(request, response, session, application, out ); %>
+
+<%  // Get parameters
+    int start = ParamUtils.getIntParameter(request,"start",0);
+    int range = ParamUtils.getIntParameter(request,"range",webManager.getRowsPerPage("pubsub-node-summary", DEFAULT_RANGE));
+
+    if (request.getParameter("range") != null) {
+        webManager.setRowsPerPage("pubsub-node-summary", range);
+    }
+
+    // Get the leaf nodes, busiest first
+    List<LeafNode> nodes = new ArrayList<LeafNode>();
+    for (Node node : XMPPServer.getInstance().getPubSubModule().getNodes()) {
+        if (node instanceof LeafNode) {
+            nodes.add((LeafNode) node);
+        }
+    }
+    Collections.sort(nodes, new Comparator<LeafNode>() {
+        public int compare(LeafNode node1, LeafNode node2) {
+            long count1 = node1.getPublishStatistics().getPublicationCount();
+            long count2 = node2.getPublishStatistics().getPublicationCount();
+            return count1 < count2 ? 1 : (count1 == count2 ? 0 : -1);
+        }
+    });
+    int nodeCount = nodes.size();
+
+    // paginator vars
+    int numPages = (int)Math.ceil((double)nodeCount/(double)range);
+    int curPage = (start/range) + 1;
+    int maxIndex = (start+range <= nodeCount ? start+range : nodeCount);
+
+    DecimalFormat timeFormat = new DecimalFormat("#0.0");
+%>
+
+<html>
+    <head>
+        <title><fmt:message key="pubsub.node.summary.title"/></title>
+        <meta name="pageID" content="pubsub-node-summary"/>
+    </head>
+    <body>
+
+<p>
+<fmt:message key="pubsub.node.summary.info" />
+</p>
+
+<p>
+<fmt:message key="pubsub.node.summary.total" />: <b><%= nodeCount %></b>
+
+<%  if (numPages > 1) { %>
+
+    - <fmt:message key="global.showing" /> <%= (start+1) %>-<%= maxIndex %>
+
+<%  } %>
+ - <fmt:message key="pubsub.node.summary.nodes_per_page" />:
+<select size="1" onchange="location.href='pubsub-node-summary.jsp?start=0&range=' + this.options[this.selectedIndex].value;">
+
+    <% for (int aRANGE_PRESETS : RANGE_PRESETS) { %>
+
+    <option value="<%= aRANGE_PRESETS %>"
+            <%= (aRANGE_PRESETS == range ? "selected" : "") %>><%= aRANGE_PRESETS %>
+    </option>
+
+    <% } %>
+
+</select>
+</p>
+
+<%  if (numPages > 1) { %>
+
+    <p>
+    <fmt:message key="global.pages" />:
+    [
+    <%  for (int i=0; i<numPages; i++) {
+            String sep = ((i+1)<numPages) ? " " : "";
+            boolean isCurrent = (i+1) == curPage;
+    %>
+        <a href="pubsub-node-summary.jsp?start=<%= (i*range) %>"
+         class="<%= ((isCurrent) ? "jive-current" : "") %>"
+         ><%= (i+1) %></a><%= sep %>
+
+    <%  } %>
+    ]
+    </p>
+
+<%  } %>
+
+<div class="jive-table">
+<table cellpadding="0" cellspacing="0" border="0" width="100%">
+<thead>
+    <tr>
+        <th>&nbsp;</th>
+        <th nowrap><fmt:message key="pubsub.node.summary.node" /></th>
+        <th nowrap><fmt:message key="pubsub.node.summary.publications" /></th>
+        <th nowrap><fmt:message key="pubsub.node.summary.notified" /></th>
+        <th nowrap><fmt:message key="pubsub.node.summary.average_time" /></th>
+        <th nowrap><fmt:message key="pubsub.node.summary.max_time" /></th>
+    </tr>
+</thead>
+<tbody>
+
+<%  if (nodes.isEmpty()) { %>
+
+    <tr>
+        <td colspan="6">
+            <fmt:message key="pubsub.node.summary.no_nodes" />
+        </td>
+    </tr>
+
+<%  } %>
+
+<%  int i = start;
+    for (LeafNode node : nodes.subList(start, maxIndex)) {
+        i++;
+        PublishStatistics statistics = node.getPublishStatistics();
+%>
+    <tr class="jive-<%= (((i%2)==0) ? "even" : "odd") %>">
+        <td width="1%">
+            <%= i %>
+        </td>
+        <td width="47%">
+            <%= StringUtils.escapeHTMLTags(node.getNodeID()) %>
+        </td>
+        <td width="13%">
+            <%= statistics.getPublicationCount() %>
+        </td>
+        <td width="13%">
+            <%= statistics.getNotifiedAffiliatesCount() %>
+        </td>
+        <td width="13%">
+            <%= timeFormat.format(statistics.getAverageNotificationTime()) %>
+        </td>
+        <td width="13%">
+            <%= statistics.getMaxNotificationTime() %>
+        </td>
+    </tr>
+
+<%  } %>
+
+</tbody>
+</table>
+</div>
+
+<%  if (numPages > 1) { %>
+
+    <p>
+    <fmt:message key="global.pages" />:
+    [
+    <%  for (int j=0; j<numPages; j++) {
+            String sep = ((j+1)<numPages) ? " " : "";
+            boolean isCurrent = (j+1) == curPage;
+    %>
+        <a href="pubsub-node-summary.jsp?start=<%= (j*range) %>"
+         class="<%= ((isCurrent) ? "jive-current" : "") %>"
+         ><%= (j+1) %></a><%= sep %>
+
+    <%  } %>
+    ]
+    </p>
+
+<%  } %>
+
+<br>
+<p>
+<fmt:message key="pubsub.node.summary.last_update" />: <%= JiveGlobals.formatDateTime(new Date()) %>
+</p>
+
+    </body>
+</html>